@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Helper for implementing DbFiles of unordered pages numbered from 0, such as
+ * {@link SlottedHeapFile}, {@link CompressedHeapFile} and {@link ColumnarFile}.
+ * Handles inserts through the {@link FreeSpaceMap}, deletes and scans; the
+ * subclass reads and writes its type of page P and allocates new pages.
+ * <p>
+ * 插入只访问空闲空间表认为可能有空间的页，放不下tuple的页在空闲空间表中被记为0，
+ * 直到有tuple从它上面删除，这样插入不会反复读取几乎满了的页；没有这样的页时由{@link #allocatePage()}分配新页
+ *
+ * @param <P> the type of the pages of the file
+ */
+public abstract class AbstractPageFile<P extends Page> implements DbFile, Closeable, FlushableMaps {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final File file;
+    protected final TupleDesc td;
+    protected final DbFileChannel channel;
+    protected final FreeSpaceMap freeSpaceMap;
+
+    private final Class<P> pageClass;
+
+    /**
+     * @param f         the file that stores the pages
+     * @param td        the schema of the tuples in the file
+     * @param pageClass the type of the pages, what BufferPool.getPage returns
+     *                  for this file
+     */
+    protected AbstractPageFile(File f, TupleDesc td, Class<P> pageClass) {
+        this.file = f;
+        this.td = td;
+        this.pageClass = pageClass;
+        this.channel = new DbFileChannel(f);
+        this.freeSpaceMap = new FreeSpaceMap(FreeSpaceMap.fileFor(f));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * 分配文件末尾的新页，调用时持有this的锁
+     *
+     * @return 新页的页号，读到的是空页
+     */
+    protected abstract int allocatePage() throws IOException;
+
+    /**
+     * @return page中是否放得下t
+     */
+    protected abstract boolean fits(P page, Tuple t);
+
+    protected abstract void insertTuple(P page, Tuple t) throws DbException;
+
+    protected abstract void deleteTuple(P page, Tuple t) throws DbException;
+
+    /**
+     * @return 扫描时page中的tuple
+     */
+    protected abstract Iterator<Tuple> tuples(P page);
+
+    private P getPage(TransactionId tid, PageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return pageClass.cast(Database.getBufferPool().getPage(tid, pid, perm));
+    }
+
+    @Override
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        P page = null;
+        synchronized (this) {
+            int n = numPages();
+            for (int i = freeSpaceMap.findPage(n, 0); i >= 0 && page == null; i = freeSpaceMap.findPage(n, i + 1)) {
+                P candidate = getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+                if (fits(candidate, t)) {
+                    page = candidate;
+                } else {
+                    freeSpaceMap.update(i, 0);
+                }
+            }
+            if (page == null) {
+                page = getPage(tid, new HeapPageId(getId(), allocatePage()), Permissions.READ_WRITE);
+            }
+            insertTuple(page, t);
+        }
+        page.markDirty(true, tid);
+        ArrayList<Page> pages = new ArrayList<>();
+        pages.add(page);
+        return pages;
+    }
+
+    @Override
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId() || rid.getPageId().pageNumber() >= numPages()) {
+            throw new DbException("tuple " + t + " is not in this table");
+        }
+        P page = getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        deleteTuple(page, t);
+        ArrayList<Page> pages = new ArrayList<>();
+        pages.add(page);
+        return pages;
+    }
+
+    @Override
+    public DbFileIterator iterator(TransactionId tid) {
+        return new PageIterator(tid);
+    }
+
+    @Override
+    public void flushMaps() throws IOException {
+        freeSpaceMap.flush();
+    }
+
+    /**
+     * 按页号顺序通过BufferPool读取每一页，返回{@link #tuples(Page)}给出的tuple
+     */
+    protected class PageIterator extends AbstractDbFileIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TransactionId tid;
+        private int pageNo;
+        private Iterator<Tuple> tuples;
+
+        protected PageIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        /**
+         * @return 这个迭代器返回的page中的tuple
+         */
+        protected Iterator<Tuple> tuples(P page) {
+            return AbstractPageFile.this.tuples(page);
+        }
+
+        @Override
+        public void open() {
+            pageNo = 0;
+            tuples = Collections.<Tuple>emptyList().iterator();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (tuples == null) {
+                return null;
+            }
+            while (!tuples.hasNext()) {
+                if (pageNo >= numPages()) {
+                    return null;
+                }
+                tuples = tuples(getPage(tid, new HeapPageId(getId(), pageNo++), Permissions.READ_ONLY));
+            }
+            return tuples.next();
+        }
+
+        @Override
+        public void rewind() {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            tuples = null;
+        }
+    }
+}
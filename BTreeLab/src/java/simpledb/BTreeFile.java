@@ -1,5 +1,6 @@
 package simpledb;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import simpledb.Predicate.Op;
 
@@ -16,9 +17,12 @@ import simpledb.Predicate.Op;
  * @see simpledb.BTreeRootPtrPage#BTreeRootPtrPage
  * @author Becca Taft
  */
-public class BTreeFile implements DbFile {
+public class BTreeFile implements DbFile, Closeable {
 
 	private final File f;
+	private final DbFileChannel channel;
+	private final ExtentAllocator extents;
+	private final boolean mmap;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
@@ -32,7 +36,26 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally
+	 * reading its pages through a read-only memory mapping of the file instead
+	 * of copying them into a byte array. Meant for read-mostly indexes, where
+	 * the OS page cache then acts as a second-level cache behind the BufferPool.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param mmap - whether to read pages through a memory mapping
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean mmap) {
 		this.f = f;
+		this.mmap = mmap;
+		this.channel = new DbFileChannel(f);
+		this.extents = new ExtentAllocator(channel, BTreeRootPtrPage.getPageSize(), BufferPool.getPageSize());
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -79,13 +102,17 @@ public class BTreeFile implements DbFile {
 	@Override
     public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
+			if (mmap) {
+				Page p = readMappedPage(id);
+				if (p != null) {
+					return p;
+				}
+			}
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = channel.read(pageBuf, 0);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -99,12 +126,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -128,18 +150,56 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null) {
-					bis.close();
-				}
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
+		}
+	}
+
+	/**
+	 * Decode a page directly from the memory mapping of this file.
+	 *
+	 * @return the page, or null if it lies beyond the end of the mapping and
+	 *         must be read as usual
+	 */
+	private Page readMappedPage(BTreePageId id) throws IOException {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			ByteBuffer region = channel.map(0, BTreeRootPtrPage.getPageSize());
+			if (region == null) {
+				return null;
 			}
+			// the root pointer is only a few bytes, so just copy it
+			byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
+			region.get(pageBuf);
+			return new BTreeRootPtrPage(id, pageBuf);
+		}
+		ByteBuffer region = channel.map(pageOffset(id.getPageNumber()), BufferPool.getPageSize());
+		if (region == null) {
+			return null;
+		}
+		Debug.log(1, "BTreeFile.readPage: mapped page %d", id.getPageNumber());
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, region, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, region, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, region);
 		}
 	}
 
+	/**
+	 * @return whether pages are read through a memory mapping of the file
+	 */
+	public boolean isMemoryMapped() {
+		return mmap;
+	}
+
+	/**
+	 * Returns the byte offset of a non root pointer page in the file
+	 */
+	private static long pageOffset(int pageNumber) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should
 	 * be called from the BufferPool when pages are flushed to disk
@@ -151,24 +211,38 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(page.getId().pageNumber()));
+			extents.written(page.getId().pageNumber() - 1);
 		}
 	}
 
+	/**
+	 * Close the file handle of this BTreeFile. It is reopened on the next
+	 * read or write.
+	 */
+	@Override
+	public void close() throws IOException {
+		extents.trim();
+		channel.close();
+	}
+
+	/**
+	 * Returns the allocator that grows this file in extents
+	 */
+	public ExtentAllocator getExtents() {
+		return extents;
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
-		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		// pages preallocated at the end of the file are not counted until they are allocated
+		return extents.getNumPages();
 	}
 
 	/**
@@ -939,15 +1013,11 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(channel.size() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.write(emptyRootPtrData, 0);
+				extents.allocate();
 			}
 		}
 
@@ -1002,13 +1072,9 @@ public class BTreeFile implements DbFile {
 		// or there are no free slots
 		if(headerId == null) {
 			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+				// take the next page of the current extent, growing the file by
+				// a whole extent when it is used up
+				emptyPageNo = extents.allocate() + 1;
 			}
 		}
 
@@ -1038,10 +1104,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
 		// make sure the page is not in the buffer pool	or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
@@ -1196,6 +1259,28 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
+		readAhead();
+	}
+
+	/**
+	 * Follow the right sibling pointers of the cached leaves after the current
+	 * page, up to BufferPool.getPrefetchDepth() pages, and ask the buffer pool
+	 * to read the first leaf that is not cached yet in the background. The
+	 * sibling pointer of a leaf is only known once the leaf itself is in memory,
+	 * so at most one leaf is requested at a time.
+	 */
+	private void readAhead() {
+		int depth = BufferPool.getPrefetchDepth();
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId next = curp.getRightSiblingId();
+		for (int i = 0; i < depth && next != null; i++) {
+			BTreeLeafPage leaf = (BTreeLeafPage) bp.peekPage(next, null);
+			if (leaf == null) {
+				bp.prefetch(tid, next, null);
+				return;
+			}
+			next = leaf.getRightSiblingId();
+		}
 	}
 
 	/**
@@ -1219,6 +1304,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
+				readAhead();
 				if (!it.hasNext()) {
 					it = null;
 				}
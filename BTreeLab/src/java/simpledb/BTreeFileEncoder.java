@@ -13,10 +13,10 @@ import simpledb.Predicate.Op;
 @SuppressWarnings("All")
 public class BTreeFileEncoder {
 	/**
-	 * Encode the file using the BTreeFile's Insert method.
+	 * Encode the tuples with {@link #convert(File, File, File, int, int)}.
 	 * 
 	 * @param tuples - list of tuples to add to the file
-	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param hFile - not used any more
 	 * @param bFile - the file on disk to back the resulting BTreeFile
 	 * @param keyField - the index of the key field for this B+ tree
 	 * @param numFields - the number of fields in each tuple
@@ -48,10 +48,12 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Encode the file using the BTreeFile's Insert method.
+	 * Encode the file with the parallel {@link BulkLoader}: the tuples are
+	 * sorted externally and the tree is written bottom-up, instead of being
+	 * inserted one at a time.
 	 * 
 	 * @param inFile - the raw text file containing the tuples
-	 * @param hFile - the file to temporarily store the data as a heap file on disk
+	 * @param hFile - not used any more; the sorted runs go to temporary files
 	 * @param bFile - the file on disk to back the resulting BTreeFile
 	 * @param keyField - the index of the key field for this B+ tree
 	 * @param numFields - the number of fields in each tuple
@@ -60,50 +62,12 @@ public class BTreeFileEncoder {
 	public static BTreeFile convert(File inFile, File hFile, File bFile,
 			int keyField, int numFields)
 					throws IOException {
-		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
-		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
-
-		// add the heap file to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
-
 		try {
-			TransactionId tid = new TransactionId();
-			DbFileIterator it = Database.getCatalog().getDbFile(heapf.getId()).iterator(tid);
-			it.open();
-			int count = 0;
-			Transaction t = new Transaction();
-			while (it.hasNext()) {
-				Tuple tup = it.next();
-				Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
-				count++;
-				if(count >= 40) {
-					Database.getBufferPool().flushAllPages();
-					count = 0;
-				}
-				t.commit();
-				t = new Transaction();
-			}
-			it.close();
-		} catch(TransactionAbortedException te){
-			te.printStackTrace();
-			return bf;
+			BulkLoader loader = new BulkLoader();
+			return loader.convertBTree(inFile, bFile, Utility.getTupleDesc(numFields), ',', keyField);
 		} catch(DbException e) {
-			e.printStackTrace();
-			return bf;
-		} catch(IOException e) {
-			e.printStackTrace();
-			return bf;
-		}
-
-		try {
-			Database.getBufferPool().flushAllPages();
-		} catch(Exception e) {
-			e.printStackTrace();
+			throw new IOException(e.getMessage(), e);
 		}
-
-		return bf;
-
 	}
 
 	/** 
@@ -217,6 +181,29 @@ public class BTreeFileEncoder {
 
 		// add the tuples to B+ tree file
 		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		buildFromSorted(tuples.iterator(), bf, npagebytes, numFields, typeAr, keyField);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Writes a B+ tree bottom-up from tuples that are already sorted on the
+	 * key field: leaf pages are filled in order, and the internal pages above
+	 * them are written as they fill up. The tuples are only read once, so they
+	 * may come from an external sort.
+	 *
+	 * @param sorted - the tuples, sorted on keyField
+	 * @param bf - an empty BTreeFile to write the pages to
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyField - the field of the tuples the B+ tree is keyed on
+	 * @throws IOException
+	 * @throws DbException
+	 * @see BulkLoader#convertBTree
+	 */
+	public static void buildFromSorted(Iterator<Tuple> sorted, BTreeFile bf, int npagebytes,
+			int numFields, Type[] typeAr, int keyField) throws IOException, DbException {
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
 
@@ -248,7 +235,8 @@ public class BTreeFileEncoder {
 		ArrayList<Tuple> page1 = new ArrayList<Tuple>();
 		ArrayList<Tuple> page2 = new ArrayList<Tuple>();
 		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
+		while(sorted.hasNext()) {
+			Tuple tup = sorted.next();
 			if(page1.size() < nrecords) {
 				page1.add(tup);
 			}
@@ -335,9 +323,6 @@ public class BTreeFileEncoder {
 		// set all the parent and sibling pointers
 		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
 		setRightSiblingPtrs(bf, lastPid, null);
-
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
 	}
 
 	/**
@@ -351,12 +336,13 @@ public class BTreeFileEncoder {
 	 */
 	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
 			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+		//逐页向左处理，不用递归，否则叶子页很多时会栈溢出
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			page.setRightSiblingId(rightSiblingId);
+			bf.writePage(page);
+			rightSiblingId = pid;
+			pid = page.getLeftSiblingId();
 		}
 	}
 
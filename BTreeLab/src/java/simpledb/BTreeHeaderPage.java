@@ -1,5 +1,6 @@
 package simpledb;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and 
@@ -34,9 +35,23 @@ public class BTreeHeaderPage implements Page {
      *
 	 */
 	public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
+		this(id, new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	/**
+	 * Create a BTreeHeaderPage directly from a region of a memory-mapped
+	 * BTreeFile, without copying it into a byte array first.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the bytes of this page, from its position to its limit
+	 */
+	public BTreeHeaderPage(BTreePageId id, ByteBuffer data) throws IOException {
+		this(id, new DataInputStream(new ByteBufferInputStream(data)));
+	}
+
+	private BTreeHeaderPage(BTreePageId id, DataInputStream dis) throws IOException {
 		this.pid = id;
 		this.numSlots = getNumSlots();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the next and prev pointers
 		try {
@@ -1,6 +1,7 @@
 package simpledb;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import simpledb.Predicate.Op;
 
 /**
@@ -64,52 +65,48 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeInternalPage directly from a region of a memory-mapped BTreeFile,
+	 * without copying it into a byte array first.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the bytes of this page, from its position to its limit
+	 * @param key - the field which the index is keyed on
+	 * @see BTreeFile#BTreeFile(File, int, TupleDesc, boolean)
+	 * @see PageCodec
+	 */
+	public BTreeInternalPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		ByteBuffer buf = PageCodec.pageView(data);
 
 		// Read the parent pointer
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = buf.getInt(0);
 
 		// read the child page category
-		childCategory = (int) dis.readByte();
+		childCategory = (int) buf.get(INDEX_SIZE);
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++) {
-            header[i] = dis.readByte();
-        }
+		header = PageCodec.getBytes(buf, INDEX_SIZE + 1, getHeaderSize());
 
+		// allocate and read the keys of this page
+		// start from 1 because the first key slot is not used
+		// since a node with m keys has m+1 pointers
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++) {
-                keys[i] = readNextKey(dis,i);
-            }
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		keys[0] = null;
+		for (int i=1; i<keys.length; i++) {
+			keys[i] = readNextKey(buf,i);
 		}
 
+		// allocate and read the child pointers of this page
 		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++) {
-                children[i] = readNextChild(dis,i);
-            }
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		for (int i=0; i<children.length; i++) {
+			children[i] = readNextChild(buf,i);
 		}
-		dis.close();
-
-		setBeforeImage();
+		// the before image is kept on the first change, see keepBeforeImage()
 	}
 
 	/** 
@@ -144,12 +141,7 @@ public class BTreeInternalPage extends BTreePage {
 	@Override
     public BTreeInternalPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,getBeforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -162,67 +154,44 @@ public class BTreeInternalPage extends BTreePage {
     public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
 	/**
 	 * Read keys from the source file.
 	 */
-	private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next key, and
-		// return null.
+	private Field readNextKey(ByteBuffer buf, int slotId) {
+		// if associated bit is not set, skip the key and return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty key");
-				}
-			}
 			return null;
 		}
-
-		// read the key field
-		Field f = null;
-		try {
-			f = td.getFieldType(keyField).parse(dis);
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
-		return f;
+		return td.getFieldType(keyField).parse(buf, keyOffset(slotId));
 	}
 
 	/**
 	 * Read child pointers from the source file.
 	 */
-	private int readNextChild(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next child pointer, and
-		// return -1.
+	private int readNextChild(ByteBuffer buf, int slotId) {
+		// if associated bit is not set, skip the child pointer and return -1.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<INDEX_SIZE; i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty child pointer");
-				}
-			}
 			return -1;
 		}
+		return buf.getInt(childOffset(slotId));
+	}
 
-		// read child pointer
-		int child = -1;
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			child = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
+	/**
+	 * The byte offset of a key slot (1 to numSlots - 1) within the page.
+	 */
+	private int keyOffset(int slotId) {
+		return INDEX_SIZE + 1 + header.length + (slotId - 1) * td.getFieldType(keyField).getLen();
+	}
 
-		return child;
+	/**
+	 * The byte offset of a child pointer slot (0 to numSlots - 1) within the page.
+	 */
+	private int childOffset(int slotId) {
+		return keyOffset(numSlots) + slotId * INDEX_SIZE;
 	}
 
 	/**
@@ -238,105 +207,30 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	@Override
     public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the parent pointer
-		try {
-			dos.writeInt(parent);
+		ByteBuffer page = PageCodec.allocatePage();
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// write out the parent pointer and the child page category
+		page.putInt(0, parent);
+		page.put(INDEX_SIZE, (byte) childCategory);
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
-		}
+		PageCodec.putBytes(page, INDEX_SIZE + 1, header);
 
-		// create the keys
-		// start from 1 because the first key slot is not used
+		// create the keys and the child pointers; empty slots and the padding are already zero
+		// keys start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
 		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
+			if (isSlotUsed(i)) {
+				keys[i].serialize(page, keyOffset(i));
 			}
-
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
 		}
-
-		// create the child pointers
 		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
+			if (isSlotUsed(i)) {
+				page.putInt(childOffset(i), children[i]);
 			}
-
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 
-		return baos.toByteArray();
+		return page.array();
 	}
 
 	/**
@@ -361,6 +255,7 @@ public class BTreeInternalPage extends BTreePage {
 		if (!isSlotUsed(rid.tupleno())){
             throw new DbException("tried to delete null entry.");
         }
+		keepBeforeImage();
 		if(deleteRightChild){
 			markSlotUsed(rid.tupleno(), false);
 		}else{
@@ -417,6 +312,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to update null entry.");
+		keepBeforeImage();
 		
 		for(int i = rid.tupleno() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -456,6 +352,7 @@ public class BTreeInternalPage extends BTreePage {
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId()) {
             throw new DbException("table id mismatch in insertEntry");
         }
+		keepBeforeImage();
 
 		if(childCategory == 0) {
 			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg()) {
@@ -1,6 +1,7 @@
 package simpledb;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -60,49 +61,42 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage directly from a region of a memory-mapped BTreeFile,
+	 * without copying it into a byte array first.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the bytes of this page, from its position to its limit
+	 * @param key - the field which the index is keyed on
+	 * @see BTreeFile#BTreeFile(File, int, TupleDesc, boolean)
+	 * @see PageCodec
+	 */
+	public BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		ByteBuffer buf = PageCodec.pageView(data);
 
 		// Read the parent and sibling pointers
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.leftSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.rightSibling = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = buf.getInt(0);
+		this.leftSibling = buf.getInt(INDEX_SIZE);
+		this.rightSibling = buf.getInt(2 * INDEX_SIZE);
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++) {
-            header[i] = dis.readByte();
-        }
+		header = PageCodec.getBytes(buf, 3 * INDEX_SIZE, getHeaderSize());
 
 		tuples = new Tuple[numSlots];
 		try{
 			// allocate and read the actual records of this page
 			for (int i=0; i<tuples.length; i++) {
-                tuples[i] = readNextTuple(dis,i);
+                tuples[i] = readNextTuple(buf,i);
             }
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
-		dis.close();
-		setBeforeImage();
+		// the before image is kept on the first change, see keepBeforeImage()
 	}
 
 	/** 
@@ -133,12 +127,7 @@ public class BTreeLeafPage extends BTreePage {
 	@Override
     public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,getBeforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -150,24 +139,16 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
 	/**
 	 * Read tuples from the source file.
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
+	private Tuple readNextTuple(ByteBuffer buf, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, skip the tuple and return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
 			return null;
 		}
 
@@ -175,19 +156,22 @@ public class BTreeLeafPage extends BTreePage {
 		Tuple t = new Tuple(td);
 		RecordId rid = new RecordId(pid, slotId);
 		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+		int offset = tupleOffset(slotId);
+		for (int j=0; j<td.numFields(); j++) {
+			Field f = td.getFieldType(j).parse(buf, offset + td.getFieldOffset(j));
+			t.setField(j, f);
 		}
 
 		return t;
 	}
 
+	/**
+	 * The byte offset of a tuple slot within the page.
+	 */
+	private int tupleOffset(int slotId) {
+		return 3 * INDEX_SIZE + header.length + slotId * td.getSize();
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -200,84 +184,28 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		ByteBuffer page = PageCodec.allocatePage();
 
 		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		page.putInt(0, parent);
+		page.putInt(INDEX_SIZE, leftSibling);
+		page.putInt(2 * INDEX_SIZE, rightSibling);
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
-		}
+		PageCodec.putBytes(page, 3 * INDEX_SIZE, header);
 
-		// create the tuples
+		// create the tuples; empty slots and the padding are already zero
 		for (int i=0; i<tuples.length; i++) {
-
-			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
 				continue;
 			}
-
-			// non-empty slot
+			int offset = tupleOffset(i);
 			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+				tuples[i].getField(j).serialize(page, offset + td.getFieldOffset(j));
 			}
 		}
 
-		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		return page.array();
 	}
 
 	/**
@@ -295,6 +223,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null tuple.");
+		keepBeforeImage();
 		markSlotUsed(rid.tupleno(), false);
 		t.setRecordId(null);
 	}
@@ -310,6 +239,7 @@ public class BTreeLeafPage extends BTreePage {
 	public void insertTuple(Tuple t) throws DbException {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
+		keepBeforeImage();
 
 		// find the first empty slot 
 		int emptySlot = -1;
@@ -402,6 +332,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		keepBeforeImage();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -422,6 +353,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		keepBeforeImage();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -20,6 +20,7 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// the before image, kept on the first change after the page was read (null until then)
 	protected byte[] oldData;
 	protected final Byte oldDataLock = new Byte((byte)0);
 
@@ -101,6 +102,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		keepBeforeImage();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -115,10 +117,35 @@ public abstract class BTreePage implements Page {
 	 */
 	@Override
 	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty) keepBeforeImage();
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
 
+	/**
+	 * Keep the current contents of this page as its before image, unless it
+	 * has already been kept. Called by every method that modifies the page
+	 * before it changes anything, so a page that is only read never encodes
+	 * or holds a second copy of its data.
+	 */
+	protected void keepBeforeImage() {
+		synchronized(oldDataLock) {
+			if (oldData == null) {
+				oldData = getPageData();
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes of the before image; the current contents if the
+	 * page has not been modified since it was read
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock) {
+			return oldData != null ? oldData : getPageData();
+		}
+	}
+
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
@@ -16,6 +16,7 @@ public class BTreeScan implements DbIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -59,6 +60,15 @@ public class BTreeScan implements DbIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return true if the tuples are returned in ascending order of the
+	 *         field, i.e. the field is the key of the B+ tree
+	 */
+	public boolean isSortedOn(int field) {
+		DbFile file = Database.getCatalog().getDbFile(tableid);
+		return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -75,6 +85,7 @@ public class BTreeScan implements DbIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		this.tableid = tableid;
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDbFile(tableid).iterator(tid);
 		}
@@ -0,0 +1,101 @@
+package simpledb;
+
+/**
+ * 大表顺序扫描使用的缓冲区访问策略(参考PostgreSQL的BufferAccessStrategy)。
+ * <p>
+ * 扫描不在共享缓冲池中的页时，不把页放入共享缓冲池，而是放入这个策略私有的一个小环形缓冲区，
+ * 环满了就循环使用最早的位置。这样扫描一个比缓冲池大的表不会把缓冲池中其他查询的热页挤出去。
+ * 已经在共享缓冲池中的页还是直接从共享缓冲池返回。
+ * 扫描线程和预读线程都会访问环形缓冲区，所以get和add是同步的
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)
+ */
+public class BufferAccessStrategy {
+
+    /**
+     * 环形缓冲区的默认页数，与PostgreSQL的256KB环差不多
+     */
+    public static final int DEFAULT_RING_PAGES = 32;
+
+    /**
+     * 表的页数超过缓冲池容量的这个比例时，扫描才使用环形缓冲区
+     */
+    private static double scanThreshold = 0.75;
+
+    private final PageId[] ids;
+    private final Page[] pages;
+
+    //下一个要使用(或者回收)的位置
+    private int next = 0;
+
+    public BufferAccessStrategy(int ringPages) {
+        if (ringPages < 1) {
+            throw new IllegalArgumentException("ring must hold at least one page");
+        }
+        ids = new PageId[ringPages];
+        pages = new Page[ringPages];
+    }
+
+    /**
+     * 为扫描numPages个页的表选择访问策略
+     *
+     * @param numPages 表的页数
+     * @return 表足够大时返回一个新的环形缓冲区策略，否则返回null，即使用共享缓冲池
+     */
+    public static BufferAccessStrategy forScan(int numPages) {
+        BufferPool bp = Database.getBufferPool();
+        if (numPages <= bp.PAGES_NUM * scanThreshold) {
+            return null;
+        }
+        //环不能比缓冲池本身还大
+        return new BufferAccessStrategy(Math.max(1, Math.min(DEFAULT_RING_PAGES, bp.PAGES_NUM / 4)));
+    }
+
+    public static double getScanThreshold() {
+        return scanThreshold;
+    }
+
+    /**
+     * @param fraction 表的页数超过缓冲池容量的多大比例时使用环形缓冲区，
+     *                 设为Double.POSITIVE_INFINITY可以关闭这个功能
+     */
+    public static void setScanThreshold(double fraction) {
+        scanThreshold = fraction;
+    }
+
+    public static void resetScanThreshold() {
+        scanThreshold = 0.75;
+    }
+
+    /**
+     * @return 环形缓冲区的页数
+     */
+    public int getRingSize() {
+        return ids.length;
+    }
+
+    /**
+     * @return 环中pid对应的页，不存在则返回null
+     */
+    synchronized Page get(PageId pid) {
+        for (int i = 0; i < ids.length; i++) {
+            if (pid.equals(ids[i])) {
+                return pages[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把页放入环中
+     *
+     * @return 被回收的页，环还没满时返回null
+     */
+    synchronized Page add(PageId pid, Page page) {
+        Page recycled = pages[next];
+        ids[next] = pid;
+        pages[next] = page;
+        next = (next + 1) % ids.length;
+        return recycled;
+    }
+}
@@ -1,6 +1,10 @@
 package simpledb;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -10,6 +14,10 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * 缓存页按PageId的哈希值划分到若干个Segment中，每个Segment有自己的锁和替换策略，
+ * 所以不同Segment上的getPage可以并发执行。替换策略在构造时选择(见{@link PageReplacement})，
+ * 它只在Segment内部起作用，即全局上是近似的
  */
 public class BufferPool {
 
@@ -25,11 +33,116 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * Segment数量的上限，必须是2的幂
+     */
+    public static final int MAX_SEGMENTS = 16;
+
+    /**
+     * 每个Segment平均至少要分到的页数，页数太少时分段会让近似LRU偏离真正的LRU太多
+     */
+    private static final int MIN_PAGES_PER_SEGMENT = 8;
+
     //页的最大数量
     public final int PAGES_NUM;
 
-    //当前的缓存页
-    private LruCache<PageId,Page> lruPagesPool;
+    //按PageId哈希划分的缓存段
+    private final Segment[] segments;
+
+    //所有Segment中缓存页的总数
+    private final AtomicInteger cachedPages = new AtomicInteger();
+
+    private final PageReplacement replacement;
+
+    /**
+     * 预读使用的后台I/O线程数
+     */
+    private static final int IO_THREADS = 4;
+
+    //所有BufferPool共用的预读线程，daemon线程，不会阻止JVM退出
+    private static final ExecutorService ioExecutor = Executors.newFixedThreadPool(IO_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    //顺序扫描向前预读的页数，为0时不预读
+    private static volatile int prefetchDepth = 0;
+
+    //正在后台读取的页，getPage未命中时要等它读完，避免同一个页被读两次
+    private final ConcurrentHashMap<PageId, Future<?>> inFlight = new ConcurrentHashMap<>();
+
+    //预读进来、还没有被getPage请求过的页
+    private final Set<PageId> prefetched = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+
+    private final AtomicLong prefetchIssued = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchWasted = new AtomicLong();
+
+    //命中和未命中的次数，用于统计命中率
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    //淘汰时由查询线程同步写回的脏页数，后台写回跟得上的话应该很少
+    private final AtomicLong evictionWrites = new AtomicLong();
+
+    //已经提交的事务，它们的脏页可以由PageCleaner提前写回
+    private final Set<TransactionId> committed = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+
+    //每个事务保留了插入页的HeapFile，事务结束时只释放这些文件中的插入页
+    private final ConcurrentHashMap<TransactionId, Set<HeapFile>> insertionFiles = new ConcurrentHashMap<>();
+
+    private volatile PageCleaner cleaner;
+    private Thread cleanerThread;
+
+    // off-heap模式下缓存的HeapPage的数据所在的堆外内存，否则为null
+    private final PageArena arena;
+
+    /**
+     * 缓存的一个分段，对pages和policy的所有访问都必须持有lock
+     */
+    private static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final HashMap<PageId, Page> pages = new HashMap<>();
+        final ReplacementPolicy<PageId> policy;
+
+        Segment(ReplacementPolicy<PageId> policy) {
+            this.policy = policy;
+        }
+
+        Page get(PageId pid) {
+            Page page = pages.get(pid);
+            if (page != null) {
+                policy.recordAccess(pid);
+            }
+            return page;
+        }
+
+        void put(PageId pid, Page page) {
+            pages.put(pid, page);
+            policy.recordInsert(pid);
+        }
+
+        /**
+         * @return 由替换策略选出并从该Segment删除的页，Segment为空时返回null
+         */
+        Page evict() {
+            PageId victim = policy.evict();
+            return victim == null ? null : pages.remove(victim);
+        }
+
+        Page remove(PageId pid) {
+            Page page = pages.remove(pid);
+            if (page != null) {
+                policy.remove(pid);
+            }
+            return page;
+        }
+    }
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -37,9 +150,162 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, PageReplacement.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * with the given replacement policy.
+     *
+     * @param numPages    maximum number of pages in this buffer pool.
+     * @param replacement the page replacement policy
+     */
+    public BufferPool(int numPages, PageReplacement replacement) {
+        this(numPages, replacement, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, optionally
+     * keeping the data of cached heap pages off the Java heap.
+     * <p>
+     * 在off-heap模式下，从(没有使用内存映射的)HeapFile读入的页放在一个{@link PageArena}的frame中，
+     * 缓存的HeapPage只是frame上的视图，不缓存解析出的tuple。页离开缓冲池时数据被复制回堆上，frame交还给arena。
+     * B+树的页仍然在堆上
+     *
+     * @param numPages    maximum number of pages in this buffer pool.
+     * @param replacement the page replacement policy
+     * @param offHeap     whether cached heap pages live in an off-heap arena
+     */
+    public BufferPool(int numPages, PageReplacement replacement, boolean offHeap) {
         // some code goes here
         PAGES_NUM = numPages;
-        lruPagesPool = new LruCache<>(PAGES_NUM);
+        this.replacement = replacement;
+        this.arena = offHeap ? new PageArena(numPages, PAGE_SIZE) : null;
+        int n = Integer.highestOneBit(Math.max(1, numPages / MIN_PAGES_PER_SEGMENT));
+        segments = new Segment[Math.min(MAX_SEGMENTS, n)];
+        //容量由cachedPages全局控制，替换策略按平均每个Segment的页数来设置参数
+        int segmentCapacity = (numPages + segments.length - 1) / segments.length;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(replacement.<PageId>create(segmentCapacity));
+        }
+    }
+
+    /**
+     * @return the off-heap arena of this buffer pool, or null if it keeps pages on the heap
+     */
+    public PageArena getArena() {
+        return arena;
+    }
+
+    /**
+     * @return the page replacement policy of this buffer pool
+     */
+    public PageReplacement getReplacement() {
+        return replacement;
+    }
+
+    /**
+     * @return the number of getPage calls served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of dirty pages a query thread had to write itself
+     * because the replacement policy chose them as victims
+     */
+    public long getEvictionWrites() {
+        return evictionWrites.get();
+    }
+
+    /**
+     * Start a background thread that writes dirty pages of committed
+     * transactions before they reach the eviction point. Does nothing if the
+     * cleaner is already running.
+     *
+     * @param intervalMillis how long the cleaner sleeps between two passes
+     * @return the running cleaner
+     */
+    public synchronized PageCleaner startPageCleaner(long intervalMillis) {
+        if (cleaner == null) {
+            cleaner = new PageCleaner(this, intervalMillis);
+            cleanerThread = new Thread(cleaner, "simpledb-page-cleaner");
+            cleanerThread.setDaemon(true);
+            cleanerThread.start();
+        }
+        return cleaner;
+    }
+
+    /**
+     * Stop the background page cleaner, if any, and wait for it to exit.
+     */
+    public synchronized void stopPageCleaner() {
+        if (cleaner == null) {
+            return;
+        }
+        cleaner.stop();
+        try {
+            cleanerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        cleaner = null;
+        cleanerThread = null;
+    }
+
+    /**
+     * @return the running page cleaner, or null
+     */
+    public synchronized PageCleaner getPageCleaner() {
+        return cleaner;
+    }
+
+    public static int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * @param depth 顺序扫描(HeapFile的扫描和BTreeFile的叶子页扫描)向前预读的页数，为0时关闭预读
+     */
+    public static void setPrefetchDepth(int depth) {
+        prefetchDepth = Math.max(0, depth);
+    }
+
+    /**
+     * @return the number of read-ahead requests handed to the background I/O threads
+     */
+    public long getPrefetchIssued() {
+        return prefetchIssued.get();
+    }
+
+    /**
+     * @return the number of prefetched pages that were later requested by getPage
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * @return the number of prefetched pages evicted before anyone requested them
+     */
+    public long getPrefetchWasted() {
+        return prefetchWasted.get();
+    }
+
+    private int segmentIndex(PageId pid) {
+        int h = pid.hashCode();
+        //把高位混进低位，HeapPageId和BTreePageId的哈希值的低位变化不够均匀
+        h ^= (h >>> 16);
+        h ^= (h >>> 7);
+        return h & (segments.length - 1);
     }
     public static int getPageSize(){
         return PAGE_SIZE;
@@ -70,27 +336,386 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException{
         // some code goes here
-        Page page = (Page) lruPagesPool.get(pid);
-        if (page != null) {//直接命中
-            return page;
+        awaitPrefetch(pid);
+        int index = segmentIndex(pid);
+        Segment segment = segments[index];
+        Page newPage;
+        //在Segment的锁内读盘，保证同一个PageId在缓存中只有一个Page对象
+        segment.lock.lock();
+        try {
+            Page page = segment.get(pid);
+            if (page != null) {//直接命中
+                recordHit(pid);
+                return page;
+            }
+            misses.incrementAndGet();
+            //未命中，访问磁盘并将其缓存
+            newPage = loadInto(segment, pid);
+        } finally {
+            segment.lock.unlock();
+        }
+        evictIfNeeded(index);
+        return newPage;
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but if the page is not already cached, read it into the private ring of
+     * the given access strategy instead of the shared pool.
+     *
+     * @param strategy the access strategy of a large scan, or null to use the
+     *                 shared pool as usual
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+            throws TransactionAbortedException, DbException {
+        if (strategy == null) {
+            return getPage(tid, pid, perm);
+        }
+        awaitPrefetch(pid);
+        Segment segment = segments[segmentIndex(pid)];
+        Page newPage;
+        Page recycled;
+        //和getPage一样在Segment的锁内检查共享缓冲池并读盘，读的过程中其他事务不能把这一页读入共享缓冲池。
+        //共享缓冲池中的页可能已经被修改过，所以要优先使用
+        segment.lock.lock();
+        try {
+            Page page = segment.pages.get(pid);
+            if (page == null) {
+                page = strategy.get(pid);
+            }
+            if (page != null) {
+                recordHit(pid);
+                return page;
+            }
+            misses.incrementAndGet();
+            newPage = readFromDisk(pid);
+            recycled = strategy.add(pid, newPage);
+        } finally {
+            segment.lock.unlock();
+        }
+        recycle(recycled);
+        return newPage;
+    }
+
+    /**
+     * 在后台把页读入缓冲池(strategy不为null时读入它的环形缓冲区)，页已经在缓存中或者正在被读取时什么也不做。
+     * 预读不受事务锁的约束，只是让之后的getPage命中
+     *
+     * @param tid      the ID of the transaction that will request the page
+     * @param pid      the ID of the page to read ahead
+     * @param strategy the access strategy of the scan, or null
+     */
+    public void prefetch(TransactionId tid, final PageId pid, final BufferAccessStrategy strategy) {
+        if (prefetchDepth <= 0 || peekPage(pid, strategy) != null) {
+            return;
+        }
+        final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                readAhead(pid, strategy);
+            }
+        }, null);
+        if (inFlight.putIfAbsent(pid, task) != null) {
+            return;
+        }
+        prefetchIssued.incrementAndGet();
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(pid, task);
+                }
+            }
+        });
+    }
+
+    private void readAhead(PageId pid, BufferAccessStrategy strategy) {
+        int index = segmentIndex(pid);
+        Segment segment = segments[index];
+        if (strategy != null) {
+            Page recycled;
+            segment.lock.lock();
+            try {
+                if (segment.pages.get(pid) != null || strategy.get(pid) != null) {
+                    return;
+                }
+                Page page = readFromDisk(pid);
+                prefetched.add(pid);
+                recycled = strategy.add(pid, page);
+            } finally {
+                segment.lock.unlock();
+            }
+            recycle(recycled);
+            return;
+        }
+        segment.lock.lock();
+        try {
+            if (segment.pages.get(pid) != null) {
+                return;
+            }
+            loadInto(segment, pid);
+            prefetched.add(pid);
+        } finally {
+            segment.lock.unlock();
+        }
+        evictIfNeeded(index);
+    }
+
+    /**
+     * 如果pid正在被预读，等待它读完
+     */
+    private void awaitPrefetch(PageId pid) {
+        Future<?> pending = inFlight.get(pid);
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //预读失败时由调用者自己再读一次
         }
-        //未命中，访问磁盘并将其缓存
-        DbFile table = (DbFile) Database.getCatalog().getDbFile(pid.getTableId());
-        Page newPage = null;
+    }
+
+    private void recordHit(PageId pid) {
+        hits.incrementAndGet();
+        if (prefetched.remove(pid)) {
+            prefetchHits.incrementAndGet();
+        }
+    }
+
+    /**
+     * 查找已经缓存的页，不影响替换策略和命中率统计
+     *
+     * @param strategy 不为null时也在它的环形缓冲区中查找
+     * @return 缓存的页，不存在则返回null
+     */
+    Page peekPage(PageId pid, BufferAccessStrategy strategy) {
+        Segment segment = segments[segmentIndex(pid)];
+        Page page;
+        segment.lock.lock();
         try {
-            newPage = table.readPage(pid);
+            page = segment.pages.get(pid);
+        } finally {
+            segment.lock.unlock();
+        }
+        if (page == null && strategy != null) {
+            page = strategy.get(pid);
+        }
+        return page;
+    }
+
+    private Page readFromDisk(PageId pid) {
+        DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+        try {
+            return table.readPage(pid);
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * off-heap模式下把HeapFile的页读进arena的一个frame，其他情况(包括没有空闲的frame)和readFromDisk相同
+     */
+    private Page readIntoFrame(PageId pid) {
+        DbFile table = Database.getCatalog().getDbFile(pid.getTableId());
+        if (arena == null || arena.getPageSize() != PAGE_SIZE
+                || !(table instanceof HeapFile) || ((HeapFile) table).isMemoryMapped()) {
+            return readFromDisk(pid);
+        }
+        int frame = arena.allocate();
+        if (frame < 0) {
+            return readFromDisk(pid);
+        }
+        try {
+            return ((HeapFile) table).readPage(pid, arena.frame(frame), frame);
+        } catch (IOException e) {
+            arena.release(frame);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 页离开缓冲池时调用，交还它占用的frame。还有线程在读这个frame时由最后一个读完的线程交还
+     */
+    private void releaseFrame(Page page) {
+        if (arena != null && page instanceof HeapPage) {
+            ((HeapPage) page).detach(arena);
+        }
+    }
+
+    /**
+     * 把页读入segment，调用者必须持有segment的锁
+     */
+    private Page loadInto(Segment segment, PageId pid) {
+        Page newPage = readIntoFrame(pid);
+        //先在本Segment腾出位置再放入新页，这样新页不会被马上淘汰
+        while (cachedPages.get() >= PAGES_NUM && evictFrom(segment)) {
+        }
+        segment.put(pid, newPage);
+        cachedPages.incrementAndGet();
+        return newPage;
+    }
+
+    /**
+     * 处理从环中被回收的页，不能持有Segment的锁调用，因为写回脏页可能要访问其他Segment
+     *
+     * @param recycled {@link BufferAccessStrategy#add(PageId, Page)}的返回值
+     */
+    private void recycle(Page recycled) {
+        if (recycled == null) {
+            return;
         }
-        Page removedPage = lruPagesPool.put(pid, newPage);
-        if (removedPage != null) {
+        if (prefetched.remove(recycled.getId())) {
+            prefetchWasted.incrementAndGet();
+        }
+        if (recycled.isDirty() != null) {
+            flushQuietly(recycled);
+        }
+    }
+
+    /**
+     * 从segment淘汰一个页，调用者必须持有segment的锁
+     *
+     * @return segment为空时返回false
+     */
+    private boolean evictFrom(Segment segment) {
+        Page victim = segment.evict();
+        if (victim == null) {
+            return false;
+        }
+        cachedPages.decrementAndGet();
+        if (prefetched.remove(victim.getId())) {
+            prefetchWasted.incrementAndGet();
+        }
+        //在锁内写回，避免其他线程在写回完成之前从磁盘读到旧数据。干净的页不用写
+        if (victim.isDirty() != null) {
+            evictionWrites.incrementAndGet();
+            flushQuietly(victim);
+            PageCleaner c = cleaner;
+            if (c != null) {//后台写回跟不上了，让它马上开始下一轮
+                c.wakeUp();
+            }
+        }
+        releaseFrame(victim);
+        return true;
+    }
+
+    /**
+     * 新页所在的Segment为空时缓存页总数可能仍超过PAGES_NUM，这时依次从其他Segment淘汰，
+     * 最后才轮到新页所在的Segment。每次只持有一个Segment的锁，所以不会死锁
+     *
+     * @param start 新页所在的Segment下标
+     */
+    private void evictIfNeeded(int start) {
+        for (int i = 1; i <= segments.length && cachedPages.get() > PAGES_NUM; ) {
+            Segment segment = segments[(start + i) & (segments.length - 1)];
+            segment.lock.lock();
             try {
-                flushPage(removedPage);
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (evictFrom(segment)) {
+                    continue;
+                }
+            } finally {
+                segment.lock.unlock();
             }
+            i++;
         }
-        return newPage;
+    }
+
+    private void flushQuietly(Page page) {
+        try {
+            flushPage(page);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 找出每个Segment冷端(最先会被淘汰的那些页)中已提交事务的脏页
+     *
+     * @param perSegment 每个Segment查看的页数
+     * @return 可以提前写回的页
+     */
+    List<Page> findCleanablePages(int perSegment) {
+        List<Page> cleanable = new ArrayList<>();
+        if (committed.isEmpty()) {
+            return cleanable;
+        }
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (PageId pid : segment.policy.coldest(perSegment)) {
+                    Page page = segment.pages.get(pid);
+                    TransactionId dirtier = page == null ? null : page.isDirty();
+                    if (dirtier != null && committed.contains(dirtier)) {
+                        cleanable.add(page);
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return cleanable;
+    }
+
+    /**
+     * 如果page还在缓存中、并且仍然是已提交事务的脏页，把它写回磁盘
+     *
+     * @return 是否写了
+     */
+    boolean cleanPage(Page page) throws IOException {
+        Segment segment = segments[segmentIndex(page.getId())];
+        segment.lock.lock();
+        try {
+            TransactionId dirtier = page.isDirty();
+            if (segment.pages.get(page.getId()) != page || dirtier == null || !committed.contains(dirtier)) {
+                return false;
+            }
+            flushPage(page);
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * 删除缓存中已经没有脏页的已提交事务，不然committed会一直变大
+     */
+    void pruneCommitted() {
+        Set<TransactionId> dirtiers = new HashSet<>();
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (Page page : segment.pages.values()) {
+                    TransactionId dirtier = page.isDirty();
+                    if (dirtier != null) {
+                        dirtiers.add(dirtier);
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        committed.retainAll(dirtiers);
+    }
+
+    /**
+     * @return 每个Segment能缓存的页数
+     */
+    int getPagesPerSegment() {
+        return Math.max(1, PAGES_NUM / segments.length);
+    }
+
+    /**
+     * @return 当前缓存的页数
+     */
+    int getNumCachedPages() {
+        return cachedPages.get();
     }
 
     /**
@@ -115,6 +740,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
+        transactionComplete(tid, true);
     }
 
     /**
@@ -137,6 +763,34 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for proj1
+        //还没有锁可以释放，只记下已提交的事务，让PageCleaner可以写回它的脏页
+        if (commit) {
+            committed.add(tid);
+        }
+        //释放事务在各个HeapFile中保留的插入页
+        Set<HeapFile> files = insertionFiles.remove(tid);
+        if (files != null) {
+            for (HeapFile file : files) {
+                file.releaseInsertionPage(tid);
+            }
+        }
+    }
+
+    /**
+     * Records that a transaction reserved an insertion page in a HeapFile, so
+     * that {@link #transactionComplete(TransactionId, boolean)} releases it.
+     * Called by HeapFile when it reserves the page.
+     */
+    void insertionPageReserved(TransactionId tid, HeapFile file) {
+        Set<HeapFile> files = insertionFiles.get(tid);
+        if (files == null) {
+            files = Collections.newSetFromMap(new ConcurrentHashMap<HeapFile, Boolean>());
+            Set<HeapFile> existing = insertionFiles.putIfAbsent(tid, files);
+            if (existing != null) {
+                files = existing;
+            }
+        }
+        files.add(file);
     }
 
     /**
@@ -161,6 +815,7 @@ public class BufferPool {
         ArrayList<Page> affectedPages = table.insertTuple(tid, t);
         for (Page page : affectedPages) {
             page.markDirty(true, tid);
+            cacheDirtyPage(page);
         }
     }
 
@@ -182,9 +837,39 @@ public class BufferPool {
         // some code goes here
         // not necessary for proj1
         int tableId=t.getRecordId().getPageId().getTableId();
-        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableId);
+        DbFile table = Database.getCatalog().getDbFile(tableId);
         Page affectedPage = table.deleteTuple(tid, t).get(0);
         affectedPage.markDirty(true,tid);
+        cacheDirtyPage(affectedPage);
+    }
+
+    /**
+     * 淘汰只写回脏页，而DbFile修改页时要到操作结束才会被标记为脏，如果这期间页被淘汰了，
+     * 缓存中就没有修改后的版本了。所以标记之后要确保缓存的就是这个Page对象
+     */
+    private void cacheDirtyPage(Page page) {
+        PageId pid = page.getId();
+        int index = segmentIndex(pid);
+        Segment segment = segments[index];
+        segment.lock.lock();
+        try {
+            Page cached = segment.pages.get(pid);
+            if (cached == page) {
+                return;
+            }
+            if (cached != null) {
+                segment.pages.put(pid, page);
+                releaseFrame(cached);
+                return;
+            }
+            while (cachedPages.get() >= PAGES_NUM && evictFrom(segment)) {
+            }
+            segment.put(pid, page);
+            cachedPages.incrementAndGet();
+        } finally {
+            segment.lock.unlock();
+        }
+        evictIfNeeded(index);
     }
 
     /**
@@ -199,9 +884,40 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for proj1
-        Iterator<Page> it = lruPagesPool.iterator();
-        while (it.hasNext()) {
-            flushPage(it.next());
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (Page page : segment.pages.values()) {
+                    if (page.isDirty() != null) {
+                        flushPage(page);
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        //各个表记下的FreeSpaceMap、ZoneMap项也写到文件中
+        Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+        while (tables.hasNext()) {
+            flushMaps(Database.getCatalog().getDbFile(tables.next()));
+        }
+    }
+
+    /**
+     * 把pages所在的表记下的FreeSpaceMap、ZoneMap项写到文件中，由PageCleaner在一轮写回之后调用
+     */
+    void flushMaps(List<Page> pages) throws IOException {
+        Set<Integer> tables = new HashSet<>();
+        for (Page page : pages) {
+            if (tables.add(page.getId().getTableId())) {
+                flushMaps(Database.getCatalog().getDbFile(page.getId().getTableId()));
+            }
+        }
+    }
+
+    private static void flushMaps(DbFile file) throws IOException {
+        if (file instanceof FlushableMaps) {
+            ((FlushableMaps) file).flushMaps();
         }
     }
 
@@ -211,9 +927,21 @@ public class BufferPool {
      * buffer pool doesn't keep a rolled back page in its
      * cache.
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for proj1
+        Segment segment = segments[segmentIndex(pid)];
+        segment.lock.lock();
+        try {
+            Page page = segment.remove(pid);
+            if (page != null) {
+                cachedPages.decrementAndGet();
+                prefetched.remove(pid);
+                releaseFrame(page);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
     }
 
     /**
@@ -223,7 +951,7 @@ public class BufferPool {
      *
      */
 //    private synchronized void flushPage(PageId pid) throws IOException {
-    private synchronized void flushPage(Page page) throws IOException {
+    private void flushPage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
         Page dirty_page = (Page) page;
@@ -235,16 +963,29 @@ public class BufferPool {
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (Page page : segment.pages.values()) {
+                    TransactionId dirtier = page.isDirty();
+                    if (dirtier != null && dirtier.equals(tid)) {
+                        flushPage(page);
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
     }
 
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
-     * 这个方法不实现了，具体的替换策略已经在LruCache中体现了，标志deprecated好了
+     * 这个方法不实现了，具体的替换策略由每个Segment的ReplacementPolicy决定，标志deprecated好了
      */
     @Deprecated
     private synchronized void evictPage() throws DbException {
@@ -0,0 +1,703 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多线程的批量加载：把文本文件(格式和{@link HeapFileEncoder#convert(File, File, int, int, Type[], char)}相同)
+ * 转换成HeapFile或者B+树文件。
+ * <p>
+ * 调用的线程用NIO按块(chunkBytes字节，在换行处截断)读取输入文件，每一块交给线程池：
+ * <ul>
+ * <li>{@link #convertHeap}：工作线程直接从字节解析出定长的记录并组装成HeapPage的页，调用的线程按块的顺序把页写到文件中。
+ * 每一块的最后一页可能没有满</li>
+ * <li>{@link #convertBTree}：工作线程解析出记录后按键排序，写成一个临时的有序run；所有的块处理完之后多路归并这些run，
+ * 归并的结果交给{@link BTreeFileEncoder#buildFromSorted}自底向上地写B+树，所以内存中只有正在处理的块</li>
+ * </ul>
+ * 同时在处理的块最多是线程数的两倍，读文件不会比解析快太多。每个阶段的行数、字节数和耗时记录在{@link #getStats()}中，
+ * 工作线程的阶段是所有线程耗时的和，所以各阶段的吞吐量可以直接比较，找出瓶颈
+ */
+public class BulkLoader {
+
+    /**
+     * 一个阶段处理的行数、字节数和耗时
+     */
+    public static class Stage {
+
+        private final String name;
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void add(long rows, long bytes, long nanos) {
+            this.rows.addAndGet(rows);
+            this.bytes.addAndGet(bytes);
+            this.nanos.addAndGet(nanos);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getNanos() {
+            return nanos.get();
+        }
+
+        public double rowsPerSecond() {
+            return nanos.get() == 0 ? 0 : rows.get() * 1e9 / nanos.get();
+        }
+
+        public double megabytesPerSecond() {
+            return nanos.get() == 0 ? 0 : bytes.get() * 1e9 / nanos.get() / (1 << 20);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s %10d rows %9.1f MB %9.1f ms %12.0f rows/s %8.1f MB/s", name, getRows(),
+                    getBytes() / (double) (1 << 20), getNanos() / 1e6, rowsPerSecond(), megabytesPerSecond());
+        }
+    }
+
+    /**
+     * 一次加载各个阶段的统计，按阶段开始的顺序排列
+     */
+    public static class Stats {
+
+        private final Map<String, Stage> stages = new LinkedHashMap<>();
+        private long wallNanos;
+
+        synchronized Stage stage(String name) {
+            Stage stage = stages.get(name);
+            if (stage == null) {
+                stage = new Stage(name);
+                stages.put(name, stage);
+            }
+            return stage;
+        }
+
+        /**
+         * @return the stage with the given name, or null if the load had no
+         * such stage
+         */
+        public synchronized Stage getStage(String name) {
+            return stages.get(name);
+        }
+
+        public synchronized List<Stage> getStages() {
+            return new ArrayList<>(stages.values());
+        }
+
+        /**
+         * @return the elapsed time of the whole load
+         */
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Stage stage : getStages()) {
+                sb.append(stage).append('\n');
+            }
+            sb.append(String.format("total  %.1f ms", wallNanos / 1e6));
+            return sb.toString();
+        }
+    }
+
+    //归并时每个run的读缓冲区大小
+    private static final int RUN_BUFFER = 16 << 10;
+
+    private final int threads;
+    private final int chunkBytes;
+    private final int npagebytes;
+
+    private Stats stats;
+
+    /**
+     * A loader with one thread per processor, 8 MB chunks and the BufferPool
+     * page size.
+     */
+    public BulkLoader() {
+        this(Runtime.getRuntime().availableProcessors(), 8 << 20, BufferPool.getPageSize());
+    }
+
+    /**
+     * @param threads    the number of worker threads that parse the chunks
+     * @param chunkBytes the number of bytes of the input file handed to a
+     *                   worker at a time; bounds the memory of a B+ tree
+     *                   load and the length of its sorted runs
+     * @param npagebytes the page size of the output file
+     */
+    public BulkLoader(int threads, int chunkBytes, int npagebytes) {
+        if (threads < 1 || chunkBytes < 1) {
+            throw new IllegalArgumentException("threads and chunkBytes must be positive");
+        }
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+        this.npagebytes = npagebytes;
+    }
+
+    /**
+     * @return the statistics of the last load, null before the first one
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * Converts a text file into a heap file, in the format read by
+     * {@link HeapFile}. Lines are parsed and pages built by the worker
+     * threads; the pages of each chunk are written in input order.
+     *
+     * @param inFile  the text file, one tuple per line
+     * @param outFile the heap file to write
+     * @param typeAr  the types of the fields of each line
+     * @throws IOException if a file can't be read or written, or a line is
+     *                     malformed
+     */
+    public void convertHeap(File inFile, File outFile, Type[] typeAr, char fieldSeparator) throws IOException {
+        final RecordLayout layout = new RecordLayout(typeAr, fieldSeparator);
+        final int perPage = (npagebytes * 8) / (layout.size * 8 + 1);
+        final int headerBytes = (perPage + 7) / 8;
+        stats = new Stats();
+        stats.stage("read");
+        final Stage parse = stats.stage("parse");
+        final Stage build = stats.stage("build");
+        final Stage write = stats.stage("write");
+        long begin = System.nanoTime();
+        FreeSpaceMap.fileFor(outFile).delete();
+        ExtentAllocator.fileFor(outFile).delete();
+        ZoneMap.fileFor(outFile).delete();
+        final FileChannel out = new FileOutputStream(outFile).getChannel();
+        try {
+            final long[] pages = {0};
+            readChunks(inFile, new ChunkTask<ByteBuffer>() {
+                @Override
+                public ByteBuffer process(byte[] chunk, int length) throws IOException {
+                    long t0 = System.nanoTime();
+                    Records records = layout.parse(chunk, length);
+                    long t1 = System.nanoTime();
+                    parse.add(records.count, length, t1 - t0);
+                    int n = Math.max(1, (records.count + perPage - 1) / perPage);
+                    ByteBuffer data = ByteBuffer.allocate(n * npagebytes);
+                    for (int p = 0; p < n; p++) {
+                        int first = p * perPage;
+                        int count = Math.min(perPage, records.count - first);
+                        int base = p * npagebytes;
+                        for (int i = 0; i < count; i++) {
+                            data.put(base + i / 8, (byte) (data.get(base + i / 8) | (1 << (i % 8))));
+                        }
+                        if (count > 0) {
+                            System.arraycopy(records.data, first * layout.size, data.array(),
+                                    base + headerBytes, count * layout.size);
+                        }
+                    }
+                    build.add(records.count, data.capacity(), System.nanoTime() - t1);
+                    return data;
+                }
+
+                @Override
+                public void consume(ByteBuffer data) throws IOException {
+                    //空的块不写页，除非整个文件都是空的(和HeapFileEncoder一样至少写一页)
+                    if (isEmptyPage(data) && pages[0] > 0) {
+                        return;
+                    }
+                    long t0 = System.nanoTime();
+                    int size = data.capacity();
+                    while (data.hasRemaining()) {
+                        out.write(data);
+                    }
+                    pages[0] += size / npagebytes;
+                    write.add(0, size, System.nanoTime() - t0);
+                }
+
+                private boolean isEmptyPage(ByteBuffer data) {
+                    return data.capacity() == npagebytes && data.get(0) == 0;
+                }
+            });
+        } finally {
+            out.close();
+            stats.wallNanos = System.nanoTime() - begin;
+        }
+    }
+
+    /**
+     * Converts a text file into a B+ tree file keyed on the given field, and
+     * adds it to the catalog. The workers parse each chunk, sort it on the key
+     * and spill it as a sorted run to a temporary file; the runs are then
+     * merged and passed to {@link BTreeFileEncoder#buildFromSorted}, which
+     * writes the tree bottom-up.
+     *
+     * @param inFile   the text file, one tuple per line
+     * @param bFile    the B+ tree file to write
+     * @param td       the schema of the tuples
+     * @param keyField the field the tree is keyed on
+     * @return the opened BTreeFile
+     * @throws IOException if a file can't be read or written, or a line is
+     *                     malformed
+     */
+    public BTreeFile convertBTree(File inFile, File bFile, TupleDesc td, char fieldSeparator, final int keyField)
+            throws IOException, DbException {
+        Type[] typeAr = new Type[td.numFields()];
+        for (int i = 0; i < typeAr.length; i++) {
+            typeAr[i] = td.getFieldType(i);
+        }
+        final RecordLayout layout = new RecordLayout(typeAr, fieldSeparator);
+        stats = new Stats();
+        stats.stage("read");
+        final Stage parse = stats.stage("parse");
+        final Stage sort = stats.stage("sort");
+        final Stage spill = stats.stage("spill");
+        long begin = System.nanoTime();
+        final List<File> runs = new ArrayList<>();
+        try {
+            readChunks(inFile, new ChunkTask<File>() {
+                @Override
+                public File process(byte[] chunk, int length) throws IOException {
+                    long t0 = System.nanoTime();
+                    Records records = layout.parse(chunk, length);
+                    long t1 = System.nanoTime();
+                    parse.add(records.count, length, t1 - t0);
+                    int[] order = layout.sort(records, keyField);
+                    long t2 = System.nanoTime();
+                    sort.add(records.count, (long) records.count * layout.size, t2 - t1);
+                    File run = File.createTempFile("run", ".tmp");
+                    run.deleteOnExit();
+                    OutputStream os = new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER);
+                    try {
+                        for (int i : order) {
+                            os.write(records.data, i * layout.size, layout.size);
+                        }
+                    } finally {
+                        os.close();
+                    }
+                    spill.add(records.count, (long) records.count * layout.size, System.nanoTime() - t2);
+                    return run;
+                }
+
+                @Override
+                public void consume(File run) {
+                    runs.add(run);
+                }
+            });
+
+            bFile.delete();
+            BTreeFile bf = new BTreeFile(bFile, keyField, td);
+            Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+            Stage merge = stats.stage("merge");
+            Stage build = stats.stage("build");
+            long t0 = System.nanoTime();
+            RunMerger merger = new RunMerger(runs, layout, td, keyField, merge);
+            try {
+                BTreeFileEncoder.buildFromSorted(merger, bf, npagebytes, typeAr.length, typeAr, keyField);
+            } finally {
+                merger.close();
+            }
+            long elapsed = System.nanoTime() - t0;
+            build.add(merge.getRows(), bFile.length(), elapsed - merge.getNanos());
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            return bf;
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            stats.wallNanos = System.nanoTime() - begin;
+        }
+    }
+
+    /**
+     * 工作线程处理一块输入，调用的线程按块的顺序消费结果
+     */
+    private interface ChunkTask<T> {
+        T process(byte[] chunk, int length) throws IOException;
+
+        void consume(T result) throws IOException;
+    }
+
+    /**
+     * 调用的线程按块读取输入文件，每块在最后一个换行处截断，剩下的部分放到下一块的开头。
+     * 块交给线程池处理，结果按块的顺序交给task.consume，同时处理的块不超过线程数的两倍
+     */
+    private <T> void readChunks(File inFile, final ChunkTask<T> task) throws IOException {
+        Stage read = stats.stage("read");
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bulk-loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ArrayDeque<Future<T>> inFlight = new ArrayDeque<>();
+        FileChannel in = new FileInputStream(inFile).getChannel();
+        try {
+            byte[] carry = new byte[0];
+            boolean eof = false;
+            while (!eof) {
+                long t0 = System.nanoTime();
+                ByteBuffer buf = ByteBuffer.allocate(carry.length + chunkBytes);
+                buf.put(carry);
+                while (buf.hasRemaining() && !eof) {
+                    eof = in.read(buf) < 0;
+                }
+                int end = buf.position();
+                if (!eof) {
+                    while (end > 0 && buf.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        //一行比一块还长，和下一块合在一起
+                        carry = Arrays.copyOf(buf.array(), buf.position());
+                        continue;
+                    }
+                }
+                carry = Arrays.copyOfRange(buf.array(), end, buf.position());
+                read.add(0, end, System.nanoTime() - t0);
+                final byte[] chunk = buf.array();
+                final int length = end;
+                inFlight.add(pool.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        return task.process(chunk, length);
+                    }
+                }));
+                while (inFlight.size() >= threads * 2) {
+                    task.consume(await(inFlight.poll()));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                task.consume(await(inFlight.poll()));
+            }
+        } finally {
+            in.close();
+            for (Future<T> f : inFlight) {
+                f.cancel(true);
+            }
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("bulk load interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * 一块输入解析出的记录，每条记录layout.size个字节，格式和页中的tuple相同
+     */
+    static class Records {
+        byte[] data;
+        int count;
+    }
+
+    /**
+     * 从文本直接解析出页中的记录格式，不生成String、Field和Tuple
+     */
+    static class RecordLayout {
+
+        final Type[] types;
+        final int[] offsets;
+        final int size;
+        final char separator;
+
+        RecordLayout(Type[] types, char separator) {
+            this.types = types;
+            this.separator = separator;
+            this.offsets = new int[types.length];
+            int size = 0;
+            for (int i = 0; i < types.length; i++) {
+                offsets[i] = size;
+                size += types[i].getLen();
+            }
+            this.size = size;
+        }
+
+        Records parse(byte[] chunk, int length) throws IOException {
+            Records records = new Records();
+            //按这一块的行数分配，空行不算记录，所以不会不够
+            records.data = new byte[countLines(chunk, length) * size];
+            ByteBuffer out = ByteBuffer.wrap(records.data);
+            int pos = 0;
+            while (pos < length) {
+                int lineEnd = pos;
+                while (lineEnd < length && chunk[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int end = lineEnd;
+                if (end > pos && chunk[end - 1] == '\r') {
+                    end--;
+                }
+                if (!isBlank(chunk, pos, end)) {
+                    parseLine(chunk, pos, end, out, records.count * size);
+                    records.count++;
+                }
+                pos = lineEnd + 1;
+            }
+            return records;
+        }
+
+        /**
+         * @return chunk的前length个字节中的行数，最后一行可以没有换行符
+         */
+        private static int countLines(byte[] chunk, int length) {
+            int lines = 0;
+            for (int i = 0; i < length; i++) {
+                if (chunk[i] == '\n') {
+                    lines++;
+                }
+            }
+            if (length > 0 && chunk[length - 1] != '\n') {
+                lines++;
+            }
+            return lines;
+        }
+
+        private static boolean isBlank(byte[] chunk, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if ((chunk[i] & 0xff) > ' ') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void parseLine(byte[] chunk, int from, int to, ByteBuffer out, int base) throws IOException {
+            int start = from;
+            for (int f = 0; f < types.length; f++) {
+                int end = start;
+                while (end < to && chunk[end] != separator) {
+                    end++;
+                }
+                if ((end == to) != (f == types.length - 1)) {
+                    throw badLine(chunk, from, to);
+                }
+                //和String.trim()一样去掉两边的空白和控制字符
+                int s = start;
+                int e = end;
+                while (s < e && (chunk[s] & 0xff) <= ' ') {
+                    s++;
+                }
+                while (e > s && (chunk[e - 1] & 0xff) <= ' ') {
+                    e--;
+                }
+                int offset = base + offsets[f];
+                if (types[f] == Type.INT_TYPE) {
+                    out.putInt(offset, parseInt(chunk, s, e, from, to));
+                } else {
+                    int len = Math.min(e - s, Type.STRING_LEN);
+                    out.putInt(offset, len);
+                    System.arraycopy(chunk, s, out.array(), offset + 4, len);
+                }
+                start = end + 1;
+            }
+        }
+
+        private static int parseInt(byte[] chunk, int s, int e, int from, int to) throws IOException {
+            boolean negative = s < e && chunk[s] == '-';
+            int i = negative || s < e && chunk[s] == '+' ? s + 1 : s;
+            if (i == e) {
+                throw badLine(chunk, from, to);
+            }
+            long value = 0;
+            for (; i < e; i++) {
+                int d = chunk[i] - '0';
+                if (d < 0 || d > 9) {
+                    throw badLine(chunk, from, to);
+                }
+                value = value * 10 + d;
+                if (value > (long) Integer.MAX_VALUE + 1) {
+                    throw badLine(chunk, from, to);
+                }
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) {
+                throw badLine(chunk, from, to);
+            }
+            return (int) value;
+        }
+
+        private static IOException badLine(byte[] chunk, int from, int to) {
+            return new IOException("BAD LINE : " + new String(chunk, from, to - from));
+        }
+
+        /**
+         * @return 按keyField排序后记录的编号
+         */
+        int[] sort(final Records records, int keyField) {
+            final int offset = offsets[keyField];
+            int[] result = new int[records.count];
+            if (types[keyField] == Type.INT_TYPE) {
+                //int的键和记录的编号合成一个long，排序基本类型的数组
+                long[] keys = new long[records.count];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = ((long) getInt(records.data, i * size + offset) << 32) | i;
+                }
+                Arrays.sort(keys);
+                for (int i = 0; i < keys.length; i++) {
+                    result[i] = (int) keys[i];
+                }
+                return result;
+            }
+            Comparator<Integer> byKey = new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return compareKeys(records.data, i * size + offset, records.data, j * size + offset, false);
+                }
+            };
+            Integer[] order = new Integer[records.count];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, byKey);
+            for (int i = 0; i < order.length; i++) {
+                result[i] = order[i];
+            }
+            return result;
+        }
+
+        static int getInt(byte[] b, int pos) {
+            return (b[pos] << 24) | ((b[pos + 1] & 0xff) << 16) | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+        }
+
+        /**
+         * 比较a中位置pa和b中位置pb的两个键。字符串按无符号字节比较，对ASCII和String.compareTo一致
+         */
+        static int compareKeys(byte[] a, int pa, byte[] b, int pb, boolean isInt) {
+            if (isInt) {
+                return Integer.compare(getInt(a, pa), getInt(b, pb));
+            }
+            int la = getInt(a, pa);
+            int lb = getInt(b, pb);
+            for (int k = 0; k < Math.min(la, lb); k++) {
+                int c = (a[pa + 4 + k] & 0xff) - (b[pb + 4 + k] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return Integer.compare(la, lb);
+        }
+    }
+
+    /**
+     * 多路归并有序的run，按键的顺序返回tuple。键相同时先返回前面的run中的记录
+     */
+    private static class RunMerger implements Iterator<Tuple>, Closeable {
+
+        private final RecordLayout layout;
+        private final TupleDesc td;
+        private final Stage stage;
+        private final PriorityQueue<Run> heap;
+        private final List<Run> all = new ArrayList<>();
+
+        private class Run {
+            final int index;
+            final DataInputStream in;
+            final byte[] record = new byte[layout.size];
+            long remaining;
+
+            Run(int index, File file) throws IOException {
+                this.index = index;
+                this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER));
+                this.remaining = file.length() / layout.size;
+            }
+
+            boolean advance() throws IOException {
+                if (remaining == 0) {
+                    return false;
+                }
+                in.readFully(record);
+                remaining--;
+                return true;
+            }
+        }
+
+        RunMerger(List<File> runs, final RecordLayout layout, TupleDesc td, int keyField, Stage stage)
+                throws IOException {
+            this.layout = layout;
+            this.td = td;
+            this.stage = stage;
+            final int offset = layout.offsets[keyField];
+            final boolean isInt = layout.types[keyField] == Type.INT_TYPE;
+            this.heap = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Run>() {
+                @Override
+                public int compare(Run r1, Run r2) {
+                    int c = RecordLayout.compareKeys(r1.record, offset, r2.record, offset, isInt);
+                    return c != 0 ? c : Integer.compare(r1.index, r2.index);
+                }
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                Run run = new Run(i, runs.get(i));
+                all.add(run);
+                if (run.advance()) {
+                    heap.add(run);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public Tuple next() {
+            if (heap.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            long t0 = System.nanoTime();
+            Run run = heap.poll();
+            ByteBuffer buf = ByteBuffer.wrap(run.record);
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < layout.types.length; i++) {
+                t.setField(i, layout.types[i].parse(buf, layout.offsets[i]));
+            }
+            try {
+                if (run.advance()) {
+                    heap.add(run);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            stage.add(1, layout.size, System.nanoTime() - t0);
+            return t;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Run run : all) {
+                run.in.close();
+            }
+        }
+    }
+}
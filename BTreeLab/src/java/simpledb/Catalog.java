@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -64,7 +65,10 @@ public class Catalog {
             //use the last table to be added as the table for a given name.
             throw new UnsupportedOperationException("目前不支持添加相同名字的table");
         }
-        id2file.put(tableid, file);
+        DbFile old = id2file.put(tableid, file);
+        if (old != null && old != file) {
+            closeQuietly(old);
+        }
         id2name.put(tableid, name);
         id2pkey.put(tableid, pkeyField);
         name2id.put(name, tableid);
@@ -160,14 +164,36 @@ public class Catalog {
      */
     public void clear() {
         // some code goes here
+        //表的文件句柄在这里关闭
+        for (DbFile file : id2file.values()) {
+            closeQuietly(file);
+        }
         id2name.clear();
         id2pkey.clear();
         id2file.clear();
         name2id.clear();
     }
 
+    private static void closeQuietly(DbFile file) {
+        if (file instanceof Closeable) {
+            try {
+                ((Closeable) file).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * 每行的格式为 name (field type [pk] [dict], ...) [mmap] [slotted] [compressed] [columnar]，
+     * 列后面加上dict表示这个字符串列是字典编码的({@link DictionaryEncoding})，数据文件要由
+     * {@link HeapFileEncoder#convertDictionary}写出；
+     * 行末加上mmap表示这个表以内存映射的方式读取，适合读多写少的表；
+     * 加上slotted表示这个表的文件是变长记录的{@link SlottedHeapFile}；
+     * 加上compressed表示这个表的页是压缩存储的{@link CompressedHeapFile}，适合很少修改的归档表；
+     * 加上columnar表示这个表的页是按列存放的{@link ColumnarFile}，适合只用到少数几列的分析查询。
+     * slotted、compressed和columnar是文件格式，最多只能有一个，也都不支持mmap
      *
      * @param catalogFile
      */
@@ -183,10 +209,34 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean mmap = false;
+                boolean slotted = false;
+                boolean compressed = false;
+                boolean columnar = false;
+                for (String option : options.toLowerCase().split("\\s+")) {
+                    if (option.equals("mmap")) {
+                        mmap = true;
+                    } else if (option.equals("slotted")) {
+                        slotted = true;
+                    } else if (option.equals("compressed")) {
+                        compressed = true;
+                    } else if (option.equals("columnar")) {
+                        columnar = true;
+                    } else if (!option.isEmpty()) {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
+                if ((mmap ? 1 : 0) + (slotted ? 1 : 0) + (compressed ? 1 : 0) + (columnar ? 1 : 0) > 1) {
+                    System.out.println("Conflicting table options " + options + " : " + name);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> dictColumns = new ArrayList<Integer>();
                 int keyField = 0,idx = 0;
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
@@ -199,11 +249,13 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk")) {
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk")) {
                             primaryKey = els2[0].trim();keyField = idx;
+                        } else if (els2[i].trim().equals("dict") && types.get(idx) == Type.STRING_TYPE) {
+                            dictColumns.add(idx);
                         } else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -212,7 +264,29 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File dataFile = new File(baseFolder + "/" + name + ".dat");
+                if (!dictColumns.isEmpty() && (slotted || compressed || columnar)) {
+                    System.out.println("dict columns are only supported in heap files : " + name);
+                    System.exit(0);
+                }
+                if (!dictColumns.isEmpty() && dataFile.length() > 0 && !DictionaryEncoding.fileFor(dataFile).exists()) {
+                    System.out.println("Table " + name + " has dict columns but its data file is not dictionary encoded");
+                    System.exit(0);
+                }
+                int[] dictAr = new int[dictColumns.size()];
+                for (int i = 0; i < dictAr.length; i++) {
+                    dictAr[i] = dictColumns.get(i);
+                }
+                DbFile tabHf;
+                if (slotted) {
+                    tabHf = new SlottedHeapFile(dataFile, t);
+                } else if (compressed) {
+                    tabHf = new CompressedHeapFile(dataFile, t);
+                } else if (columnar) {
+                    tabHf = new ColumnarFile(dataFile, t);
+                } else {
+                    tabHf = new HeapFile(dataFile, t, mmap, dictAr);
+                }
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
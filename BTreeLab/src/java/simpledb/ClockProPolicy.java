@@ -0,0 +1,280 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * CLOCK-Pro替换策略(Jiang, Chen and Zhang, USENIX ATC '05)。
+ * <p>
+ * 所有的页(包括已经被淘汰、但还在测试期的页的key)都放在一个环形链表上，新的页放在链表头，即HAND_hot的后面。
+ * 页分为热页和冷页，只有冷页会被淘汰：
+ * <ul>
+ * <li>HAND_cold：在冷页中找淘汰页。被访问过的冷页如果还在测试期就变成热页，否则重新开始测试期；
+ * 没被访问过的冷页被淘汰，还在测试期的话保留其key作为非驻留页</li>
+ * <li>HAND_hot：热页太多时把没被访问过的热页降为冷页，经过的冷页结束测试期</li>
+ * <li>HAND_test：非驻留页太多时结束冷页的测试期，删除非驻留页</li>
+ * </ul>
+ * 冷页的目标数量coldTarget是自适应的：非驻留页在测试期内被再次访问说明冷页区太小，加一；
+ * 非驻留页测试期结束都没被访问说明冷页区可以小一些，减一
+ */
+public class ClockProPolicy<K> implements ReplacementPolicy<K> {
+
+    private class Node {
+        final K key;
+        Node prev;
+        Node next;
+        boolean hot;
+        boolean ref;
+        boolean test;
+        boolean resident;
+
+        Node(K key) {
+            this.key = key;
+        }
+    }
+
+    //能够驻留的页数，即论文中的m
+    private final int capacity;
+
+    //冷页的目标数量，即论文中的m_c
+    private int coldTarget;
+
+    private int hotCount;
+    private int coldCount;
+    private int nonResidentCount;
+
+    private Node handHot;
+    private Node handCold;
+    private Node handTest;
+
+    private final HashMap<K, Node> nodes = new HashMap<>();
+
+    /**
+     * @param capacity 预期缓存的页数
+     */
+    public ClockProPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.coldTarget = Math.max(1, this.capacity / 4);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        Node n = nodes.get(key);
+        if (n != null && n.resident) {
+            n.ref = true;
+        }
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        Node n = nodes.get(key);
+        if (n == null) {
+            n = new Node(key);
+            n.resident = true;
+            n.test = true;
+            nodes.put(key, n);
+            linkAtHead(n);
+            coldCount++;
+        } else if (!n.resident) {
+            //在测试期内被再次访问，重用距离比冷页区要小，所以增大冷页区，并直接作为热页
+            coldTarget = Math.min(coldTarget + 1, Math.max(1, capacity - 1));
+            unlink(n);
+            nonResidentCount--;
+            n.resident = true;
+            n.hot = true;
+            n.ref = false;
+            n.test = false;
+            linkAtHead(n);
+            hotCount++;
+            balanceHot();
+        } else {
+            recordAccess(key);
+        }
+    }
+
+    @Override
+    public void remove(K key) {
+        Node n = nodes.get(key);
+        if (n == null || !n.resident) {
+            return;
+        }
+        unlink(n);
+        nodes.remove(key);
+        if (n.hot) {
+            hotCount--;
+        } else {
+            coldCount--;
+        }
+    }
+
+    @Override
+    public K evict() {
+        if (size() == 0) {
+            return null;
+        }
+        //每个驻留页最多被HAND_cold经过两次(第一次清除ref)，所以这个上限足够找到淘汰页
+        int steps = 3 * nodes.size() + 3;
+        while (steps-- > 0) {
+            if (coldCount == 0) {
+                runHandHot();
+            }
+            Node n = handCold;
+            handCold = n.next;
+            if (!n.resident || n.hot) {
+                continue;
+            }
+            if (n.ref) {
+                n.ref = false;
+                unlink(n);
+                if (n.test) {
+                    n.hot = true;
+                    coldCount--;
+                    hotCount++;
+                } else {
+                    n.test = true;
+                }
+                linkAtHead(n);
+                balanceHot();
+                continue;
+            }
+            coldCount--;
+            n.resident = false;
+            if (n.test) {
+                nonResidentCount++;
+                while (nonResidentCount > capacity) {
+                    runHandTest();
+                }
+            } else {
+                unlink(n);
+                nodes.remove(n.key);
+            }
+            return n.key;
+        }
+        throw new IllegalStateException("CLOCK-Pro could not find a victim among " + size() + " pages");
+    }
+
+    /**
+     * 从HAND_cold开始转一圈，没被访问过的驻留冷页就是HAND_cold接下来会淘汰的页
+     */
+    @Override
+    public List<K> coldest(int n) {
+        List<K> keys = new ArrayList<>(Math.min(n, coldCount));
+        Node node = handCold;
+        for (int i = 0; node != null && i < nodes.size() && keys.size() < n; i++, node = node.next) {
+            if (node.resident && !node.hot && !node.ref) {
+                keys.add(node.key);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return hotCount + coldCount;
+    }
+
+    /**
+     * 热页超过目标数量时用HAND_hot降级热页
+     */
+    private void balanceHot() {
+        while (hotCount > 0 && hotCount > capacity - coldTarget) {
+            runHandHot();
+        }
+    }
+
+    /**
+     * 转动HAND_hot，直到降级一个热页为止
+     */
+    private void runHandHot() {
+        int steps = 2 * nodes.size() + 2;
+        while (hotCount > 0 && steps-- > 0) {
+            Node n = handHot;
+            handHot = n.next;
+            if (n.hot) {
+                if (n.ref) {
+                    n.ref = false;
+                } else {
+                    n.hot = false;
+                    n.test = false;
+                    hotCount--;
+                    coldCount++;
+                    return;
+                }
+            } else if (!n.resident) {
+                removeNonResident(n);
+            } else {
+                n.test = false;
+            }
+        }
+    }
+
+    /**
+     * 转动HAND_test，直到删除一个非驻留页为止
+     */
+    private void runHandTest() {
+        int steps = nodes.size() + 1;
+        while (nonResidentCount > 0 && steps-- > 0) {
+            Node n = handTest;
+            handTest = n.next;
+            if (n.hot) {
+                continue;
+            }
+            if (!n.resident) {
+                removeNonResident(n);
+                return;
+            }
+            n.test = false;
+        }
+    }
+
+    /**
+     * 非驻留页的测试期结束都没有被再次访问，冷页区可以小一些
+     */
+    private void removeNonResident(Node n) {
+        unlink(n);
+        nodes.remove(n.key);
+        nonResidentCount--;
+        coldTarget = Math.max(1, coldTarget - 1);
+    }
+
+    /**
+     * 插入到链表头，即HAND_hot之前，这样HAND_hot要转一圈才会经过它
+     */
+    private void linkAtHead(Node n) {
+        if (handHot == null) {
+            n.next = n;
+            n.prev = n;
+            handHot = n;
+            handCold = n;
+            handTest = n;
+            return;
+        }
+        n.next = handHot;
+        n.prev = handHot.prev;
+        handHot.prev.next = n;
+        handHot.prev = n;
+    }
+
+    private void unlink(Node n) {
+        if (n.next == n) {
+            handHot = null;
+            handCold = null;
+            handTest = null;
+        } else {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            if (handHot == n) {
+                handHot = n.next;
+            }
+            if (handCold == n) {
+                handCold = n.next;
+            }
+            if (handTest == n) {
+                handTest = n.next;
+            }
+        }
+        n.next = null;
+        n.prev = null;
+    }
+}
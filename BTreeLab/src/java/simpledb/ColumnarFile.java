@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 由{@link ColumnarPage}组成的文件(PAX格式)：一页中的tuple和HeapPage相同，但每列的值连续存放，
+ * 只用到少数几列的分析查询可以通过{@link #iterator(TransactionId, int[])}只解析这几列。
+ * 页号从0开始，页大小是BufferPool.getPageSize()，插入同样使用空闲空间表和按extent增长的文件，见{@link AbstractPageFile}
+ *
+ * @see HeapFileEncoder#convertColumnar
+ * @see SeqScan#SeqScan(TransactionId, int, String, int[])
+ */
+public class ColumnarFile extends AbstractPageFile<ColumnarPage> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ExtentAllocator extents;
+
+    /**
+     * Constructs a columnar file backed by the specified file.
+     *
+     * @param f  the file that stores the on-disk backing store for this file
+     * @param td the schema of the tuples in the file
+     */
+    public ColumnarFile(File f, TupleDesc td) {
+        super(f, td, ColumnarPage.class);
+        this.extents = new ExtentAllocator(channel, 0, BufferPool.getPageSize());
+    }
+
+    @Override
+    public int numPages() {
+        return extents.getNumPages();
+    }
+
+    public ExtentAllocator getExtents() {
+        return extents;
+    }
+
+    @Override
+    public Page readPage(PageId pid) throws IllegalArgumentException, IOException {
+        if (pid.getTableId() != getId()) {
+            throw new IllegalArgumentException();
+        }
+        byte[] data = new byte[BufferPool.getPageSize()];
+        channel.read(data, (long) pid.pageNumber() * BufferPool.getPageSize());
+        ColumnarPage page = new ColumnarPage((HeapPageId) pid, data);
+        page.freeSpaceMap = freeSpaceMap;
+        return page;
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        int pageNo = page.getId().pageNumber();
+        channel.write(page.getPageData(), (long) pageNo * BufferPool.getPageSize());
+        extents.written(pageNo);
+        freeSpaceMap.persist(pageNo, ((ColumnarPage) page).getNumEmptySlots());
+    }
+
+    @Override
+    public void close() throws IOException {
+        extents.trim();
+        channel.close();
+        freeSpaceMap.close();
+    }
+
+    @Override
+    protected int allocatePage() throws IOException {
+        return extents.allocate();
+    }
+
+    @Override
+    protected boolean fits(ColumnarPage page, Tuple t) {
+        return page.getNumEmptySlots() > 0;
+    }
+
+    @Override
+    protected void insertTuple(ColumnarPage page, Tuple t) throws DbException {
+        page.insertTuple(t);
+    }
+
+    @Override
+    protected void deleteTuple(ColumnarPage page, Tuple t) throws DbException {
+        page.deleteTuple(t);
+    }
+
+    @Override
+    protected Iterator<Tuple> tuples(ColumnarPage page) {
+        return page.iterator();
+    }
+
+    /**
+     * @return 由td中columns这几列组成的TupleDesc
+     */
+    public static TupleDesc project(TupleDesc td, int[] columns) {
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = td.getFieldType(columns[i]);
+            names[i] = td.getFieldName(columns[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * Returns an iterator over the given columns of the tuples in this file.
+     * Only those columns are read from the pages.
+     *
+     * @param columns the columns to return, in this order; null for all
+     *                columns
+     * @return an iterator over tuples with the TupleDesc
+     * {@link #project(TupleDesc, int[])} of the columns
+     */
+    public DbFileIterator iterator(TransactionId tid, final int[] columns) {
+        if (columns == null) {
+            return iterator(tid);
+        }
+        final TupleDesc projected = project(td, columns);
+        return new PageIterator(tid) {
+            @Override
+            protected Iterator<Tuple> tuples(ColumnarPage page) {
+                return page.iterator(columns, projected);
+            }
+        };
+    }
+}
@@ -0,0 +1,306 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * PAX格式的页，是{@link ColumnarFile}的页。和HeapPage一样有slot的位图和同样多的slot，
+ * 但tuple不是一个接一个地存放，而是每列的值连续存放在这一列的minipage中：
+ * <pre>
+ * [0, h)                            slot的位图，h = ceil(n / 8)，n和HeapPage的slot数相同
+ * [h, h + n * len0)                 第0列的minipage，第i个值属于第i个slot
+ * [h + n * len0, h + n * (len0 + len1))  第1列的minipage
+ * ...
+ * </pre>
+ * 第j列的minipage的起始位置是h + n * (td.getFieldOffset(j))。只需要一部分列的扫描
+ * ({@link #iterator(int[], TupleDesc)})只解析这些列，并且是一列一列地顺序读取
+ *
+ * @see ColumnarFile
+ */
+public class ColumnarPage implements Page, LazyTupleSource {
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int numSlots;
+    private final int headerSize;
+
+    // 页的内容，插入和删除直接修改它
+    private final ByteBuffer data;
+
+    // 已经生成的tuple，下标是slot的编号
+    private final Tuple[] tuples;
+
+    private int emptySlots;
+
+    private TransactionId lastDirtyOperation;
+
+    // 所属ColumnarFile的空闲空间表，记录的是空的slot数
+    FreeSpaceMap freeSpaceMap;
+
+    // 修改前的数据，第一次修改或者被markDirty(true, tid)时才保留下来
+    byte[] oldData;
+
+    public ColumnarPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = numSlots(td, data.length);
+        this.headerSize = (numSlots + 7) / 8;
+        this.data = ByteBuffer.wrap(data);
+        this.tuples = new Tuple[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                emptySlots++;
+            }
+        }
+    }
+
+    /**
+     * @return 一页的slot数，和HeapPage相同
+     */
+    public static int numSlots(TupleDesc td, int pageSize) {
+        return (pageSize * 8) / (td.getSize() * 8 + 1);
+    }
+
+    /**
+     * @return 第slot个tuple的第column列在页中的位置
+     */
+    private static int fieldOffset(TupleDesc td, int numSlots, int headerSize, int slot, int column) {
+        return headerSize + numSlots * td.getFieldOffset(column) + slot * td.getFieldType(column).getLen();
+    }
+
+    private static void setSlot(ByteBuffer buf, int slot, boolean used) {
+        byte b = buf.get(slot / 8);
+        buf.put(slot / 8, (byte) (used ? b | (1 << (slot % 8)) : b & ~(1 << (slot % 8))));
+    }
+
+    /**
+     * 把t的所有列写到slot的位置
+     */
+    private static void writeTuple(ByteBuffer buf, TupleDesc td, int numSlots, int headerSize, int slot, Tuple t) {
+        for (int j = 0; j < td.numFields(); j++) {
+            t.getField(j).serialize(buf, fieldOffset(td, numSlots, headerSize, slot, j));
+        }
+        setSlot(buf, slot, true);
+    }
+
+    /**
+     * 在一个空页上依次放入tuples，用于生成新文件
+     *
+     * @return 页的数据
+     * @throws IllegalArgumentException 一页放不下这些tuple
+     * @see HeapFileEncoder#convertColumnar
+     */
+    public static byte[] createPageData(List<Tuple> tuples, TupleDesc td, int pageSize) {
+        int n = numSlots(td, pageSize);
+        if (tuples.size() > n) {
+            throw new IllegalArgumentException("tuples do not fit on one page");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        for (int i = 0; i < tuples.size(); i++) {
+            writeTuple(buf, td, n, (n + 7) / 8, i, tuples.get(i));
+        }
+        return buf.array();
+    }
+
+    /**
+     * @return 空页的数据
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    @Override
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    @Override
+    public TransactionId isDirty() {
+        return lastDirtyOperation;
+    }
+
+    @Override
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) {
+            keepBeforeImage();
+        }
+        lastDirtyOperation = dirty ? tid : null;
+    }
+
+    private void keepBeforeImage() {
+        if (oldData == null) {
+            oldData = getPageData();
+        }
+    }
+
+    @Override
+    public byte[] getPageData() {
+        return Arrays.copyOf(data.array(), data.capacity());
+    }
+
+    @Override
+    public ColumnarPage getBeforeImage() {
+        try {
+            return new ColumnarPage(pid, oldData != null ? Arrays.copyOf(oldData, oldData.length) : getPageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    @Override
+    public void setBeforeImage() {
+        oldData = getPageData();
+    }
+
+    public boolean isSlotUsed(int slot) {
+        return (data.get(slot / 8) & (1 << (slot % 8))) != 0;
+    }
+
+    public int getNumEmptySlots() {
+        return emptySlots;
+    }
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     *
+     * @throws DbException if the page is full or the TupleDesc does not match
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("tupleDesc is mismatch");
+        }
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                keepBeforeImage();
+                writeTuple(data, td, numSlots, headerSize, i, t);
+                emptySlots--;
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                updateFreeSpaceMap();
+                return;
+            }
+        }
+        throw new DbException("the page is full (no empty slots)");
+    }
+
+    /**
+     * Deletes the specified tuple from the page.
+     *
+     * @throws DbException if this tuple is not on this page, or its slot is
+     *                     already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int slot = rid == null ? -1 : rid.tupleno();
+        if (rid == null || !pid.equals(rid.getPageId()) || slot >= numSlots || !isSlotUsed(slot)) {
+            throw new DbException("this tuple is not on this page, or tuple slot is already empty");
+        }
+        keepBeforeImage();
+        Tuple old = tuples[slot];
+        if (old != null) {
+            //之后插入的tuple会覆盖这个slot，还没有解析的Field先解析出来
+            for (int j = 0; j < td.numFields(); j++) {
+                old.getField(j);
+            }
+            tuples[slot] = null;
+        }
+        setSlot(data, slot, false);
+        emptySlots++;
+        updateFreeSpaceMap();
+    }
+
+    private void updateFreeSpaceMap() {
+        if (freeSpaceMap != null) {
+            freeSpaceMap.update(pid.pageNumber(), emptySlots);
+        }
+    }
+
+    @Override
+    public Field decodeField(int slot, int fieldIndex) {
+        return td.getFieldType(fieldIndex).parse(data, fieldOffset(td, numSlots, headerSize, slot, fieldIndex));
+    }
+
+    @Override
+    public RecordId recordIdOf(int slot) {
+        return new RecordId(pid, slot);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page, whose fields are
+     * decoded when they are first accessed
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while (from < numSlots && !isSlotUsed(from)) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = tuples[slot];
+                if (t == null) {
+                    t = new Tuple(td, ColumnarPage.this, slot);
+                    tuples[slot] = t;
+                }
+                slot = advance(slot + 1);
+                return t;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * 只解析columns中的列，一列一列地从minipage中顺序读取
+     *
+     * @param columns   要读取的列
+     * @param projected 返回的tuple的TupleDesc，第i个Field是第columns[i]列
+     * @return an iterator over the projected tuples of this page
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected) {
+        int[] slots = new int[numSlots - emptySlots];
+        int n = 0;
+        for (int i = 0; i < numSlots && n < slots.length; i++) {
+            if (isSlotUsed(i)) {
+                slots[n++] = i;
+            }
+        }
+        Tuple[] result = new Tuple[n];
+        for (int k = 0; k < n; k++) {
+            result[k] = new Tuple(projected);
+            result[k].setRecordId(new RecordId(pid, slots[k]));
+        }
+        for (int c = 0; c < columns.length; c++) {
+            Type type = td.getFieldType(columns[c]);
+            int base = fieldOffset(td, numSlots, headerSize, 0, columns[c]);
+            int len = type.getLen();
+            for (int k = 0; k < n; k++) {
+                result[k].setField(c, type.parse(data, base + slots[k] * len));
+            }
+        }
+        return Arrays.asList(result).iterator();
+    }
+}
@@ -0,0 +1,428 @@
+package simpledb;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 页经过压缩的堆文件，用于很少修改、主要被扫描的归档表。页在内存(BufferPool)中就是普通的{@link HeapPage}，
+ * writePage时用jzlib压缩，readPage时解压，扫描时从磁盘读的字节数少了，代价是解压的CPU时间。
+ * <p>
+ * 压缩后的页长度不一，所以数据文件中的页是一条条记录：[页号 int][记录的长度 int][压缩的数据]，
+ * 页被再次写回时，压缩后不超过原来的记录就写在原来的位置(压缩的数据后面补0，解压时zlib流结束后的字节被忽略)，
+ * 否则在文件末尾追加一条新记录(留一点余量)，旧记录成为无用的空间。无用的空间超过文件的一半时，
+ * {@link #close()}把有效的记录按页号顺序复制到新文件中再替换原来的文件，见{@link #compact()}。
+ * 页的偏移量索引保存在"<数据文件>.pidx"中，每页一项[偏移量 long][长度 int]，长度为0表示这一页还没有写过(空页)。
+ * 索引只是加速，丢失或者和数据文件不一致时按顺序扫描数据文件重建(同一页后面的记录覆盖前面的)
+ *
+ * @see HeapFileEncoder#convertCompressed
+ */
+public class CompressedHeapFile extends AbstractPageFile<HeapPage> {
+
+    private static final long serialVersionUID = 1L;
+
+    //数据文件中每条记录的头部：页号和压缩后的长度
+    private static final int RECORD_HEADER = 8;
+
+    //偏移量索引每一项的字节数
+    private static final int INDEX_ENTRY = 12;
+
+    //追加的记录比压缩的数据多1/SLACK的余量
+    private static final int SLACK = 8;
+
+    private final DbFileChannel indexChannel;
+    private final int level;
+
+    //读写页时持有读锁，compact替换数据文件时持有写锁
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    //每页最新记录的位置和长度，第一次使用时加载，由this保护
+    private transient long[] offsets;
+    private transient int[] lengths;
+
+    //页数，包括已经分配但还没有写回的页
+    private transient int numPages = -1;
+
+    //读取和解压的统计
+    private transient long bytesRead;
+    private transient long inflateNanos;
+
+    /**
+     * Constructs a compressed heap file backed by the specified file, using
+     * the default zlib compression level.
+     *
+     * @param f  the file that stores the compressed pages
+     * @param td the schema of the tuples in the file
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        this(f, td, JZlib.Z_DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level zlib compression level used when writing pages, from
+     *              JZlib.Z_BEST_SPEED to JZlib.Z_BEST_COMPRESSION
+     */
+    public CompressedHeapFile(File f, TupleDesc td, int level) {
+        super(f, td, HeapPage.class);
+        this.level = level;
+        this.indexChannel = new DbFileChannel(indexFileFor(f));
+    }
+
+    /**
+     * @return 数据文件对应的偏移量索引文件
+     */
+    public static File indexFileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".pidx");
+    }
+
+    @Override
+    public synchronized int numPages() {
+        try {
+            load();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        return numPages;
+    }
+
+    /**
+     * 加载偏移量索引，索引和数据文件对不上时(比如追加了记录但没来得及写索引项)扫描数据文件重建
+     */
+    private void load() throws IOException {
+        if (numPages >= 0) {
+            return;
+        }
+        offsets = new long[0];
+        lengths = new int[0];
+        numPages = 0;
+        File index = indexChannel.getFile();
+        if (!file.exists()) {
+            return;
+        }
+        long dataSize = channel.size();
+        if (index.exists() && indexChannel.size() % INDEX_ENTRY == 0) {
+            byte[] data = new byte[(int) indexChannel.size()];
+            indexChannel.read(data, 0);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int n = data.length / INDEX_ENTRY;
+            ensureCapacity(n);
+            //每次追加记录之后都会写它的索引项，所以索引完整时数据文件的末尾正好是某一项指向的记录的末尾
+            boolean valid = true;
+            long end = 0;
+            for (int i = 0; i < n && valid; i++) {
+                offsets[i] = buf.getLong();
+                lengths[i] = buf.getInt();
+                if (lengths[i] != 0) {
+                    end = Math.max(end, offsets[i] + RECORD_HEADER + lengths[i]);
+                }
+                valid = lengths[i] >= 0 && end <= dataSize;
+            }
+            if (valid && end == dataSize) {
+                numPages = n;
+                return;
+            }
+        }
+        rebuildIndex(dataSize);
+    }
+
+    private void rebuildIndex(long dataSize) throws IOException {
+        offsets = new long[0];
+        lengths = new int[0];
+        numPages = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long pos = 0;
+        while (pos + RECORD_HEADER <= dataSize) {
+            channel.read(header.array(), pos);
+            int pageNo = header.getInt(0);
+            int length = header.getInt(4);
+            if (pageNo < 0 || length <= 0 || pos + RECORD_HEADER + length > dataSize) {
+                //写到一半的记录
+                break;
+            }
+            ensureCapacity(pageNo + 1);
+            offsets[pageNo] = pos;
+            lengths[pageNo] = length;
+            numPages = Math.max(numPages, pageNo + 1);
+            pos += RECORD_HEADER + length;
+        }
+        //截掉末尾不完整的记录，重写整个索引
+        if (pos < dataSize) {
+            channel.truncate(pos);
+        }
+        writeIndex();
+    }
+
+    private void writeIndex() throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(numPages * INDEX_ENTRY);
+        for (int i = 0; i < numPages; i++) {
+            index.putLong(offsets[i]).putInt(lengths[i]);
+        }
+        indexChannel.truncate(0);
+        indexChannel.write(index.array(), 0);
+    }
+
+    private void ensureCapacity(int n) {
+        if (n > offsets.length) {
+            int capacity = Math.max(n, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+    }
+
+    @Override
+    public Page readPage(PageId pid) throws IllegalArgumentException, IOException {
+        if (pid.getTableId() != getId()) {
+            throw new IllegalArgumentException();
+        }
+        int pageNo = pid.pageNumber();
+        long offset;
+        int length;
+        byte[] compressed = null;
+        fileLock.readLock().lock();
+        try {
+            synchronized (this) {
+                load();
+                //新分配的页在写回之前没有索引项
+                offset = pageNo < offsets.length ? offsets[pageNo] : 0;
+                length = pageNo < lengths.length ? lengths[pageNo] : 0;
+            }
+            if (length != 0) {
+                compressed = new byte[length];
+                channel.read(compressed, offset + RECORD_HEADER);
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        byte[] data;
+        if (compressed == null) {
+            data = HeapPage.createEmptyPageData();
+        } else {
+            long begin = System.nanoTime();
+            data = inflate(compressed, BufferPool.getPageSize());
+            synchronized (this) {
+                bytesRead += RECORD_HEADER + length;
+                inflateNanos += System.nanoTime() - begin;
+            }
+        }
+        HeapPage page = new HeapPage((HeapPageId) pid, data);
+        page.freeSpaceMap = freeSpaceMap;
+        return page;
+    }
+
+    /**
+     * 压缩后不超过这一页原来的记录时写在原来的位置，否则在数据文件末尾追加一条记录，再更新这一页的索引项
+     */
+    @Override
+    public void writePage(Page page) throws IOException {
+        int pageNo = page.getId().pageNumber();
+        byte[] compressed = deflate(page.getPageData(), level);
+        fileLock.readLock().lock();
+        try {
+            synchronized (this) {
+                load();
+                ensureCapacity(pageNo + 1);
+                if (compressed.length <= lengths[pageNo]) {
+                    //记录的长度不变，不用更新索引
+                    channel.write(Arrays.copyOf(compressed, lengths[pageNo]), offsets[pageNo] + RECORD_HEADER);
+                } else {
+                    //被写回过的页很可能还会被写回，留一点余量给稍微变长的内容
+                    int length = compressed.length + compressed.length / SLACK;
+                    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+                    record.putInt(pageNo).putInt(length).put(compressed);
+                    long offset = channel.append(record.array());
+                    offsets[pageNo] = offset;
+                    lengths[pageNo] = length;
+                    numPages = Math.max(numPages, pageNo + 1);
+                    ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+                    entry.putLong(offset).putInt(length);
+                    indexChannel.write(entry.array(), (long) pageNo * INDEX_ENTRY);
+                }
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        freeSpaceMap.persist(pageNo, ((HeapPage) page).getNumEmptySlots());
+    }
+
+    /**
+     * @return 数据文件中最新记录占用的字节数，其余的是被追加的新记录取代的旧记录
+     */
+    private long liveBytes() {
+        long live = 0;
+        for (int i = 0; i < numPages; i++) {
+            if (lengths[i] != 0) {
+                live += RECORD_HEADER + lengths[i];
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Rewrites the data file with only the latest record of each page, in
+     * page order, dropping the space of the records that later writebacks
+     * appended a replacement for.
+     * <p>
+     * 有效的记录先复制到"<数据文件>.compact"，再原子地替换数据文件，之后重写索引。
+     * 替换之前先删除索引，替换之后、索引写完之前退出的话，下次打开时从数据文件重建索引
+     */
+    public void compact() throws IOException {
+        fileLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                load();
+                File tmp = new File(file.getPath() + ".compact");
+                DbFileChannel out = new DbFileChannel(tmp);
+                out.truncate(0);
+                long[] moved = new long[numPages];
+                long pos = 0;
+                for (int i = 0; i < numPages; i++) {
+                    if (lengths[i] == 0) {
+                        continue;
+                    }
+                    byte[] record = new byte[RECORD_HEADER + lengths[i]];
+                    channel.read(record, offsets[i]);
+                    out.write(record, pos);
+                    moved[i] = pos;
+                    pos += record.length;
+                }
+                out.close();
+                channel.close();
+                indexChannel.close();
+                indexChannel.getFile().delete();
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                System.arraycopy(moved, 0, offsets, 0, numPages);
+                writeIndex();
+            }
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 用jzlib压缩一页
+     */
+    static byte[] deflate(byte[] data, int level) throws IOException {
+        ZStream z = new ZStream();
+        check(z, z.deflateInit(level), "deflateInit");
+        //不可压缩的数据最多变大一点点
+        byte[] out = new byte[data.length + data.length / 1000 + 64];
+        z.next_in = data;
+        z.next_in_index = 0;
+        z.avail_in = data.length;
+        z.next_out = out;
+        z.next_out_index = 0;
+        z.avail_out = out.length;
+        int err = z.deflate(JZlib.Z_FINISH);
+        if (err != JZlib.Z_STREAM_END) {
+            check(z, err == JZlib.Z_OK ? JZlib.Z_BUF_ERROR : err, "deflate");
+        }
+        int length = (int) z.total_out;
+        z.deflateEnd();
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * 用jzlib解压一页
+     *
+     * @param size 解压后的大小
+     */
+    static byte[] inflate(byte[] compressed, int size) throws IOException {
+        ZStream z = new ZStream();
+        check(z, z.inflateInit(), "inflateInit");
+        byte[] out = new byte[size];
+        z.next_in = compressed;
+        z.next_in_index = 0;
+        z.avail_in = compressed.length;
+        z.next_out = out;
+        z.next_out_index = 0;
+        z.avail_out = out.length;
+        int err;
+        do {
+            err = z.inflate(JZlib.Z_NO_FLUSH);
+        } while (err == JZlib.Z_OK && z.avail_in > 0 && z.avail_out > 0);
+        if (err != JZlib.Z_STREAM_END) {
+            check(z, err == JZlib.Z_OK ? JZlib.Z_DATA_ERROR : err, "inflate");
+        }
+        z.inflateEnd();
+        if (z.total_out != size) {
+            throw new IOException("page inflated to " + z.total_out + " bytes instead of " + size);
+        }
+        return out;
+    }
+
+    private static void check(ZStream z, int err, String op) throws IOException {
+        if (err != JZlib.Z_OK) {
+            throw new IOException(op + " failed: " + err + (z.msg == null ? "" : " " + z.msg));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean wasted;
+        synchronized (this) {
+            wasted = numPages >= 0 && file.exists() && channel.size() > 2 * liveBytes();
+        }
+        if (wasted) {
+            compact();
+        }
+        channel.close();
+        indexChannel.close();
+        freeSpaceMap.close();
+    }
+
+    /**
+     * @return the number of compressed bytes read from the data file by readPage
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the time readPage spent decompressing pages, in nanoseconds
+     */
+    public synchronized long getInflateNanos() {
+        return inflateNanos;
+    }
+
+    public synchronized void resetStats() {
+        bytesRead = 0;
+        inflateNanos = 0;
+    }
+
+    /**
+     * 新页在写回之前没有记录，readPage读到的是空页
+     */
+    @Override
+    protected synchronized int allocatePage() throws IOException {
+        load();
+        return numPages++;
+    }
+
+    @Override
+    protected boolean fits(HeapPage page, Tuple t) {
+        return page.getNumEmptySlots() > 0;
+    }
+
+    @Override
+    protected void insertTuple(HeapPage page, Tuple t) throws DbException {
+        page.insertTuple(t);
+    }
+
+    @Override
+    protected void deleteTuple(HeapPage page, Tuple t) throws DbException {
+        page.deleteTuple(t);
+    }
+
+    @Override
+    protected Iterator<Tuple> tuples(HeapPage page) {
+        return page.iterator();
+    }
+}
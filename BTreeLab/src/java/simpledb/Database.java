@@ -50,12 +50,34 @@ public class Database {
         buffer pool and return it
     */
     public static BufferPool resetBufferPool(int pages) {
+        _instance._bufferpool.stopPageCleaner();
         _instance._bufferpool = new BufferPool(pages);
         return _instance._bufferpool;
     }
 
+    /** Create a new instance of the buffer pool with the given page
+        replacement policy and return it
+    */
+    public static BufferPool resetBufferPool(int pages, PageReplacement replacement) {
+        _instance._bufferpool.stopPageCleaner();
+        _instance._bufferpool = new BufferPool(pages, replacement);
+        return _instance._bufferpool;
+    }
+
+    /** Create a new instance of the buffer pool with the given page
+        replacement policy, optionally keeping heap pages off the Java heap,
+        and return it
+    */
+    public static BufferPool resetBufferPool(int pages, PageReplacement replacement, boolean offHeap) {
+        _instance._bufferpool.stopPageCleaner();
+        _instance._bufferpool = new BufferPool(pages, replacement, offHeap);
+        return _instance._bufferpool;
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
+    	_instance._bufferpool.stopPageCleaner();
+    	_instance._catalog.clear();
     	_instance = new Database();
     }
 
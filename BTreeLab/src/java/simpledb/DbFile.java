@@ -82,4 +82,10 @@ public interface DbFile extends Serializable {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of pages in this DbFile, used to estimate the cost
+     * of scanning it.
+     */
+    int numPages();
 }
@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * DbFile的磁盘文件句柄。每个DbFile只打开一个FileChannel并一直使用，而不是每读写一页都打开一次文件。
+ * <p>
+ * 读写都是指定位置的(read(ByteBuffer, position)/write(ByteBuffer, position))，不改变通道的当前位置，
+ * 所以多个线程(查询线程、预读线程、后台写回线程)可以同时读写不同的页。
+ * <p>
+ * 通道在第一次使用时打开，{@link #close()}之后再使用会重新打开。线程在I/O时被中断会导致通道被关闭，
+ * 这种情况下其他线程的下一次访问也会重新打开。
+ * <p>
+ * {@link #map(long, int)}通过只读的内存映射读取，页直接从映射的区域解析，操作系统的页缓存就成了第二级缓存。
+ * 写仍然通过FileChannel，Linux上共享的映射和文件的内容是一致的
+ *
+ * @see Catalog#clear()
+ */
+public class DbFileChannel implements Closeable, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+
+    private transient volatile FileChannel channel;
+
+    //整个文件的只读映射，文件变长时重新映射
+    private transient volatile MappedByteBuffer mapped;
+
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * 从position开始读满dst，文件剩余的字节不够时只读到文件末尾
+     *
+     * @return 实际读到的字节数，position已经在文件末尾时返回-1
+     */
+    public int read(byte[] dst, long position) throws IOException {
+        return read(ByteBuffer.wrap(dst), position);
+    }
+
+    /**
+     * 从position开始读满buf的position到limit之间的部分，文件剩余的字节不够时只读到文件末尾。
+     * 读完后buf的position移到读到的最后一个字节之后
+     *
+     * @return 实际读到的字节数，position已经在文件末尾时返回-1
+     */
+    public int read(ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        //buf中下标为i的字节对应文件中的base + i
+        long base = position - start;
+        for (int retry = 0; ; retry++) {
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, base + buf.position());
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                int n = buf.position() - start;
+                return n == 0 && buf.limit() > start ? -1 : n;
+            } catch (ClosedChannelException e) {
+                //通道被其他线程关闭时重新打开再试一次，被中断的是当前线程的话直接抛出
+                if (e instanceof ClosedByInterruptException || retry > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 把src写到position开始的位置，需要时文件会变长
+     */
+    public void write(byte[] src, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(src);
+        for (int retry = 0; ; retry++) {
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    ch.write(buf, position + buf.position());
+                }
+                return;
+            } catch (ClosedChannelException e) {
+                if (e instanceof ClosedByInterruptException || retry > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 写一组定长的项，第i项写在i * entrySize的位置。编号相邻的项合并成一次写
+     *
+     * @param entries 按编号排序的项，每项entrySize个字节
+     */
+    public void writeEntries(SortedMap<Integer, byte[]> entries, int entrySize) throws IOException {
+        Iterator<Map.Entry<Integer, byte[]>> it = entries.entrySet().iterator();
+        Map.Entry<Integer, byte[]> next = it.hasNext() ? it.next() : null;
+        while (next != null) {
+            int first = next.getKey();
+            ByteArrayOutputStream run = new ByteArrayOutputStream();
+            int expected = first;
+            while (next != null && next.getKey() == expected) {
+                run.write(next.getValue(), 0, entrySize);
+                expected++;
+                next = it.hasNext() ? it.next() : null;
+            }
+            write(run.toByteArray(), (long) first * entrySize);
+        }
+    }
+
+    /**
+     * 把src追加到文件末尾，调用者要保证没有其他线程同时追加
+     *
+     * @return src被写到的位置
+     */
+    public long append(byte[] src) throws IOException {
+        long position = size();
+        write(src, position);
+        return position;
+    }
+
+    /**
+     * 返回文件中[position, position + length)这段区域的只读视图，数据直接来自内存映射，没有复制。
+     * 区域超出当前映射的范围(文件在映射之后变长了)时按文件的当前大小重新映射
+     *
+     * @return position为0、limit为length的ByteBuffer；区域超出文件末尾或者文件太大无法映射时返回null
+     */
+    public ByteBuffer map(long position, int length) throws IOException {
+        long end = position + length;
+        MappedByteBuffer m = mapped;
+        if (m == null || end > m.capacity()) {
+            m = remap(end);
+            if (m == null) {
+                return null;
+            }
+        }
+        ByteBuffer region = m.duplicate();
+        region.limit((int) end);
+        region.position((int) position);
+        return region.slice();
+    }
+
+    private synchronized MappedByteBuffer remap(long end) throws IOException {
+        if (mapped != null && end <= mapped.capacity()) {
+            return mapped;
+        }
+        long size = size();
+        if (end > size || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        mapped = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return mapped;
+    }
+
+    /**
+     * @return 当前映射的字节数，还没有映射时为0
+     */
+    public long getMappedSize() {
+        MappedByteBuffer m = mapped;
+        return m == null ? 0 : m.capacity();
+    }
+
+    /**
+     * 把文件截断到size字节，文件本来就不超过size时什么也不做
+     */
+    public void truncate(long size) throws IOException {
+        channel().truncate(size);
+    }
+
+    /**
+     * @return 文件的字节数
+     */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        //映射没有办法显式释放，不再引用它就好
+        mapped = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
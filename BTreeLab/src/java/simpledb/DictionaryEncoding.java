@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * 一个HeapFile中字典编码的字符串列。页中这些列只保存4字节的int编码，而不是STRING_LEN + 4个字节，
+ * 所以一页能放下更多的tuple，解析时也只需要查字典，见{@link HeapPage}和{@link DictionaryField}。
+ * <p>
+ * 所有列的字典保存在数据文件旁边的"<数据文件>.dict"中，这个文件只追加：每次有新的值加入某个列的字典时追加一条
+ * [列号 int][值的长度 short][值]，加载时按顺序重放，每列的编码就是值在这一列中出现的顺序。
+ * 新的值在写入引用它的页之前已经保存好了，所以磁盘上的页引用的编码在字典文件中一定存在
+ *
+ * @see HeapFileEncoder#convertDictionary
+ */
+public class DictionaryEncoding implements Closeable, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbFileChannel channel;
+
+    //逻辑上的TupleDesc和页中实际的格式(编码的列是INT_TYPE)
+    private final TupleDesc td;
+    private final TupleDesc layout;
+
+    //每列的字典，没有编码的列为null
+    private final StringDictionary[] dictionaries;
+
+    private transient boolean loaded;
+
+    /**
+     * @param file    保存字典的文件，不存在时在加入第一个值时创建
+     * @param td      表的TupleDesc
+     * @param columns 字典编码的列，都必须是STRING_TYPE
+     */
+    public DictionaryEncoding(File file, TupleDesc td, int[] columns) {
+        this.channel = new DbFileChannel(file);
+        this.td = td;
+        this.dictionaries = new StringDictionary[td.numFields()];
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = td.getFieldName(i);
+        }
+        for (int column : columns) {
+            if (td.getFieldType(column) != Type.STRING_TYPE) {
+                throw new IllegalArgumentException("only string columns can be dictionary encoded: " + names[column]);
+            }
+            dictionaries[column] = new StringDictionary();
+            types[column] = Type.INT_TYPE;
+        }
+        this.layout = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return 数据文件对应的字典文件
+     */
+    public static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".dict");
+    }
+
+    public File getFile() {
+        return channel.getFile();
+    }
+
+    /**
+     * @return 页中tuple实际的格式，编码的列是INT_TYPE
+     */
+    public TupleDesc getLayout() {
+        return layout;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public boolean isEncoded(int column) {
+        return dictionaries[column] != null;
+    }
+
+    /**
+     * @return 列的字典，列没有编码时为null
+     */
+    public StringDictionary getDictionary(int column) {
+        load();
+        return dictionaries[column];
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!getFile().exists()) {
+            return;
+        }
+        try {
+            byte[] data = new byte[(int) channel.size()];
+            channel.read(data, 0);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.remaining() >= 6) {
+                int column = buf.getInt();
+                int length = buf.getShort() & 0xffff;
+                if (buf.remaining() < length) {
+                    //写到一半的值，引用它的页不可能已经写回
+                    break;
+                }
+                byte[] value = new byte[length];
+                buf.get(value);
+                dictionaries[column].add(new String(value, "UTF-8"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 解析页中编码的列
+     */
+    Field decode(int column, int code) {
+        return new DictionaryField(getDictionary(column), code);
+    }
+
+    /**
+     * 返回值在列的字典中的编码，值不在字典中时先把它保存到字典文件，再加入字典
+     */
+    public synchronized int encode(int column, String value) throws IOException {
+        StringDictionary dictionary = getDictionary(column);
+        int code = dictionary.lookup(value);
+        if (code != StringDictionary.NOT_FOUND) {
+            return code;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        ByteBuffer record = ByteBuffer.allocate(6 + bytes.length);
+        record.putInt(column).putShort((short) bytes.length).put(bytes);
+        channel.append(record.array());
+        return dictionary.add(value);
+    }
+
+    /**
+     * 页写回时得到一个Field的编码。Field的值在插入时已经由{@link #encode}加入了字典
+     *
+     * @throws IllegalStateException 值不在字典中
+     */
+    int codeOf(int column, Field field) {
+        StringDictionary dictionary = getDictionary(column);
+        if (field instanceof DictionaryField && ((DictionaryField) field).getDictionary() == dictionary) {
+            return ((DictionaryField) field).getCode();
+        }
+        int code = dictionary.lookup(((StringField) field).getValue());
+        if (code == StringDictionary.NOT_FOUND) {
+            throw new IllegalStateException("value " + field + " of column " + column + " was never encoded");
+        }
+        return code;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
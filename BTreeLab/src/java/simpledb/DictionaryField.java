@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * 字典编码的列中解析出的StringField，除了值以外还带着它在字典中的编码。
+ * 值就是字典中保存的String对象，解析时不需要从页中复制字节、创建String。
+ * <p>
+ * 和同一个字典的DictionaryField比较相等、和常量比较相等时只比较编码，
+ * 常量的编码由{@link StringDictionary#lookup(String)}查到(每一行都是同一个常量时只查一次)。
+ * 其他比较和普通的StringField相同
+ */
+public class DictionaryField extends StringField {
+
+    private static final long serialVersionUID = 1L;
+
+    private final StringDictionary dictionary;
+    private final int code;
+
+    public DictionaryField(StringDictionary dictionary, int code) {
+        super(dictionary.decode(code), Type.STRING_LEN);
+        this.dictionary = dictionary;
+        this.code = code;
+    }
+
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return val在这个字段的字典中的编码，不在字典中时为{@link StringDictionary#NOT_FOUND}
+     */
+    private int codeOf(Field val) {
+        if (val instanceof DictionaryField && ((DictionaryField) val).dictionary == dictionary) {
+            return ((DictionaryField) val).code;
+        }
+        return dictionary.lookup(((StringField) val).getValue());
+    }
+
+    @Override
+    public boolean equals(Object field) {
+        if (field instanceof DictionaryField && ((DictionaryField) field).dictionary == dictionary) {
+            return ((DictionaryField) field).code == code;
+        }
+        return super.equals(field);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean compare(Predicate.Op op, Field val) {
+        switch (op) {
+            case EQUALS:
+                return codeOf(val) == code;
+            case NOT_EQUALS:
+                return codeOf(val) != code;
+            default:
+                return super.compare(op, val);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * 按extent增长文件。文件需要新的页时不是每次只追加一页，而是一次在末尾预先写入extentPages个全0的页，
+ * 没有用到的部分(尾部)记下来，之后分配页时直接使用，不需要再写文件，文件大小等元数据也就不用每页更新一次。
+ * <p>
+ * 页的编号从0开始，第i页在文件中的位置是base + i * pageSize(BTreeFile的base是根指针页的大小)。
+ * 逻辑上的页数({@link #getNumPages()})不包括预先写入但还没有分配的页，{@link #trim()}把文件截断到逻辑大小。
+ * <p>
+ * 文件每增长一个extent之前，先把增长前的逻辑页数写到数据文件旁边的"<数据文件>.ext"中，trim之后删除这个文件。
+ * 逻辑页数在第一次使用时由文件大小得到；没有trim就退出时.ext还在，这时从它记下的页开始，
+ * 文件末尾全0的页都当作预先写入但没有分配的页，不算在逻辑页数中。
+ * 分配之后还没写过的页也是全0的，对HeapFile来说是空页，对BTreeFile来说是没有被引用的页，当作没有分配不影响正确性
+ */
+public class ExtentAllocator implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of pages a file grows by at a time.
+     */
+    public static final int DEFAULT_EXTENT_PAGES = 64;
+
+    private final DbFileChannel channel;
+
+    //增长前的逻辑页数，文件末尾有预先写入的页时存在
+    private final DbFileChannel extentFile;
+
+    private final long base;
+    private final int pageSize;
+
+    private volatile int extentPages = DEFAULT_EXTENT_PAGES;
+
+    //逻辑页数，-1表示还没有从文件大小初始化
+    private volatile int numPages = -1;
+
+    //文件中实际有的页数(包括预先写入的尾部)
+    private int allocatedPages;
+
+    //文件增长的次数
+    private int extensions;
+
+    /**
+     * @param channel  文件
+     * @param base     第0页之前的字节数
+     * @param pageSize 页大小
+     */
+    public ExtentAllocator(DbFileChannel channel, long base, int pageSize) {
+        this.channel = channel;
+        this.extentFile = new DbFileChannel(fileFor(channel.getFile()));
+        this.base = base;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return 数据文件对应的记录增长前逻辑页数的文件
+     */
+    public static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".ext");
+    }
+
+    private void init() throws IOException {
+        if (numPages < 0) {
+            long size = channel.getFile().exists() ? channel.size() : 0;
+            allocatedPages = (int) Math.max(0, (size - base) / pageSize);
+            numPages = allocatedPages;
+            if (extentFile.getFile().exists()) {
+                //上一次没有trim，从增长前的逻辑页数开始去掉末尾全0的页
+                byte[] data = new byte[4];
+                int start = extentFile.read(data, 0) == data.length ? ByteBuffer.wrap(data).getInt() : 0;
+                byte[] page = new byte[pageSize];
+                while (numPages > start && isZero(page, numPages - 1)) {
+                    numPages--;
+                }
+            }
+        }
+    }
+
+    private boolean isZero(byte[] page, int pageNo) throws IOException {
+        int n = channel.read(page, base + (long) pageNo * pageSize);
+        for (int i = 0; i < n; i++) {
+            if (page[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 逻辑上的页数
+     */
+    public int getNumPages() {
+        int n = numPages;
+        if (n >= 0) {
+            return n;
+        }
+        synchronized (this) {
+            try {
+                init();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return 0;
+            }
+            return numPages;
+        }
+    }
+
+    /**
+     * 分配文件末尾的一页，尾部没有预先写入的页时先让文件增长一个extent
+     *
+     * @return 分配的页的编号，页的内容全为0
+     */
+    public synchronized int allocate() throws IOException {
+        init();
+        if (numPages == allocatedPages) {
+            int grow = extentPages;
+            //先记下增长前的逻辑页数，再写入新的页
+            byte[] start = new byte[4];
+            ByteBuffer.wrap(start).putInt(numPages);
+            extentFile.write(start, 0);
+            //空白页的数据全为0，一次写入
+            channel.write(new byte[grow * pageSize], base + (long) allocatedPages * pageSize);
+            allocatedPages += grow;
+            extensions++;
+        }
+        return numPages++;
+    }
+
+    /**
+     * 不经过{@link #allocate()}直接写了第pageNo页(比如encoder按顺序写出新文件)，
+     * 超出逻辑页数时把它之前的页都算作已经分配
+     */
+    public synchronized void written(int pageNo) throws IOException {
+        init();
+        if (pageNo >= numPages) {
+            numPages = pageNo + 1;
+            allocatedPages = Math.max(allocatedPages, numPages);
+        }
+    }
+
+    /**
+     * 把文件截断到逻辑大小，去掉预先写入但没有分配的页
+     */
+    public synchronized void trim() throws IOException {
+        if (numPages >= 0 && allocatedPages > numPages) {
+            channel.truncate(base + (long) numPages * pageSize);
+            allocatedPages = numPages;
+        }
+        if (numPages >= 0) {
+            extentFile.close();
+            extentFile.getFile().delete();
+        }
+    }
+
+    /**
+     * Sets the number of pages the file grows by at a time. 1 grows the file
+     * one page per allocation.
+     */
+    public void setExtentPages(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("pages must be positive");
+        }
+        extentPages = pages;
+    }
+
+    public int getExtentPages() {
+        return extentPages;
+    }
+
+    /**
+     * @return 预先写入但还没有分配的页数
+     */
+    public synchronized int getUnusedPages() {
+        return numPages < 0 ? 0 : allocatedPages - numPages;
+    }
+
+    /**
+     * @return 文件增长的次数
+     */
+    public synchronized int getExtensions() {
+        return extensions;
+    }
+}
@@ -0,0 +1,274 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts the tuples of its child in ascending order of one field,
+ * like {@link OrderBy}, but within a memory budget: when the child does not
+ * fit, sorted runs are spilled to temporary files and merged while the
+ * result is read.
+ * <p>
+ * 只在内存中排序的OrderBy要把整个child放在内存中，MergeJoin需要给没有序的一边排序时用这个。
+ * 每读满memoryBytes字节的tuple就排好序写到一个SpillFile(一个run)，child读完后用一个按每个run当前的tuple排序的
+ * 优先队列做k路归并，每次next只从一个run多读一个tuple。child放得进内存时不写文件，和OrderBy一样。
+ * 归并时每个run占一个打开的文件，run多于fanIn个时先分几趟每次把fanIn个run归并成一个更长的run，
+ * 直到剩下的run不超过fanIn个，再边读边归并
+ */
+public class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** 默认的内存预算，按tuple在页中的大小计算 */
+    public static final int DEFAULT_MEMORY = 4 * 1024 * 1024;
+
+    /** 默认一次归并最多同时打开的run的数目 */
+    public static final int DEFAULT_FAN_IN = 64;
+
+    private DbIterator child;
+    private final int sortField;
+    private final int memoryBytes;
+    private final int fanIn;
+    private final TupleComparator comparator;
+
+    //child放得进内存时排好序的tuple，否则为null
+    private transient ArrayList<Tuple> inMemory;
+    private transient Iterator<Tuple> it;
+
+    //溢出到磁盘的run，和归并用的优先队列，队列中每一项是一个run和它当前的tuple
+    private transient ArrayList<SpillFile> runs;
+    private transient PriorityQueue<RunHead> heads;
+
+    //上一次open时溢出的run的数目，和读结果之前做了几趟归并
+    private transient int spilledRuns;
+    private transient int mergePasses;
+
+    private static class RunHead {
+        final SpillFile run;
+        Tuple tuple;
+
+        RunHead(SpillFile run, Tuple tuple) {
+            this.run = run;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * @param sortField the field to sort on, ascending
+     * @param child     the tuples to sort
+     */
+    public ExternalSort(int sortField, DbIterator child) {
+        this(sortField, child, DEFAULT_MEMORY);
+    }
+
+    /**
+     * @param memoryBytes the most bytes of tuples sorted in memory at once
+     */
+    public ExternalSort(int sortField, DbIterator child, int memoryBytes) {
+        this(sortField, child, memoryBytes, DEFAULT_FAN_IN);
+    }
+
+    /**
+     * @param fanIn the most runs merged at once, each of which holds an open
+     *              file while it is merged
+     */
+    public ExternalSort(int sortField, DbIterator child, int memoryBytes, int fanIn) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("can not merge fewer than 2 runs at once");
+        }
+        this.child = child;
+        this.sortField = sortField;
+        this.memoryBytes = memoryBytes;
+        this.fanIn = fanIn;
+        this.comparator = new TupleComparator(sortField, true);
+    }
+
+    public int getSortField() {
+        return sortField;
+    }
+
+    /**
+     * @return 上一次open时溢出到磁盘的run的数目，child放得进内存时为0
+     */
+    public int getRuns() {
+        return spilledRuns;
+    }
+
+    /**
+     * @return 上一次open时在读结果之前把run归并成更少的run的趟数
+     */
+    public int getMergePasses() {
+        return mergePasses;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    @Override
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        int budget = Math.max(1, memoryBytes / child.getTupleDesc().getSize());
+        ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+        runs = new ArrayList<SpillFile>();
+        inMemory = null;
+        spilledRuns = 0;
+        mergePasses = 0;
+        while (child.hasNext()) {
+            buffer.add(child.next());
+            if (buffer.size() >= budget) {
+                spill(buffer);
+            }
+        }
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            inMemory = buffer;
+        } else {
+            spill(buffer);
+        }
+        while (runs.size() > fanIn) {
+            mergePass();
+        }
+        startMerge();
+        super.open();
+    }
+
+    private void spill(ArrayList<Tuple> buffer) throws DbException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        Collections.sort(buffer, comparator);
+        SpillFile run = new SpillFile(getTupleDesc(), "sort");
+        for (Tuple t : buffer) {
+            run.add(t);
+        }
+        run.finish();
+        runs.add(run);
+        spilledRuns++;
+        buffer.clear();
+    }
+
+    /**
+     * 每fanIn个run归并成一个run
+     */
+    private void mergePass() throws DbException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        for (int i = 0; i < runs.size(); i += fanIn) {
+            List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            SpillFile run = new SpillFile(getTupleDesc(), "sort");
+            PriorityQueue<RunHead> queue = openRuns(group);
+            Tuple t;
+            while ((t = poll(queue)) != null) {
+                run.add(t);
+            }
+            run.finish();
+            for (SpillFile old : group) {
+                old.delete();
+            }
+            merged.add(run);
+        }
+        runs = merged;
+        mergePasses++;
+    }
+
+    /**
+     * 打开group中的每个run，返回按每个run当前的tuple排序的优先队列
+     */
+    private PriorityQueue<RunHead> openRuns(List<SpillFile> group) throws DbException {
+        PriorityQueue<RunHead> queue = new PriorityQueue<RunHead>(Math.max(1, group.size()), new Comparator<RunHead>() {
+            @Override
+            public int compare(RunHead o1, RunHead o2) {
+                return comparator.compare(o1.tuple, o2.tuple);
+            }
+        });
+        for (SpillFile run : group) {
+            run.open();
+            queue.add(new RunHead(run, run.next()));
+        }
+        return queue;
+    }
+
+    /**
+     * 取出队列中最小的tuple，并从它所在的run多读一个tuple
+     *
+     * @return 最小的tuple，所有的run都读完时为null
+     */
+    private static Tuple poll(PriorityQueue<RunHead> queue) throws DbException {
+        RunHead head = queue.poll();
+        if (head == null) {
+            return null;
+        }
+        Tuple result = head.tuple;
+        if (head.run.hasNext()) {
+            head.tuple = head.run.next();
+            queue.add(head);
+        } else {
+            head.run.close();
+        }
+        return result;
+    }
+
+    private void startMerge() throws DbException {
+        if (inMemory != null) {
+            it = inMemory.iterator();
+            return;
+        }
+        heads = openRuns(runs);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        child.close();
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.delete();
+            }
+        }
+        runs = null;
+        heads = null;
+        inMemory = null;
+        it = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (heads != null) {
+            for (SpillFile run : runs) {
+                run.close();
+            }
+        }
+        startMerge();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns tuples from the child
+     * operator in ascending order of the sort field
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    @Override
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null) {
+            return it.hasNext() ? it.next() : null;
+        }
+        return poll(heads);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
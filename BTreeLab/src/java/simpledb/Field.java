@@ -3,6 +3,7 @@ package simpledb;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in SimpleDB.
@@ -16,6 +17,16 @@ public interface Field extends Serializable{
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * 把这个Field写到buf的绝对位置offset，一共写getType().getLen()个字节，不改变buf的position。
+     * 写出的字节和serialize(DataOutputStream)相同
+     *
+     * @see Type#parse(ByteBuffer, int)
+     * @param buf    the buffer to write to
+     * @param offset the absolute position of the field in buf
+     */
+    void serialize(ByteBuffer buf, int offset);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
@@ -16,9 +16,6 @@ public class Filter extends Operator {
 
     private DbIterator child;
 
-    //缓存过滤结果，加快hasNext和next方法
-    private TupleIterator filterResult;
-
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -48,33 +45,23 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        //表是HeapFile时，SeqScan可以跳过不可能有满足谓词的tuple的页
+        if (child instanceof SeqScan) {
+            ((SeqScan) child).pushDown(predicate);
+        }
         child.open();
         super.open();
-        filterResult = filter(child, predicate);
-        filterResult.open();
-    }
-
-    private TupleIterator filter(DbIterator child, Predicate predicate) throws DbException, TransactionAbortedException {
-        ArrayList<Tuple> tuples = new ArrayList<>();
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            if (predicate.filter(t)) {
-                tuples.add(t);
-            }
-        }
-        return new TupleIterator(getTupleDesc(), tuples);
     }
 
     public void close() {
         // some code goes here
         super.close();
         child.close();
-        filterResult = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        filterResult.rewind();
+        child.rewind();
     }
 
 
@@ -91,9 +78,14 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        if(filterResult.hasNext())
-            return filterResult.next();
-        else return null;
+        //每次只从child读到下一个满足谓词的tuple，不缓存结果：第一个结果不用等child读完，内存也不随child的大小增长
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (predicate.filter(t)) {
+                return t;
+            }
+        }
+        return null;
     }
 
     @Override
@@ -0,0 +1,19 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * A DbFile whose per-page side files ({@link FreeSpaceMap}, {@link ZoneMap})
+ * are updated in memory when its pages are written back, and written to disk
+ * in batches.
+ * <p>
+ * 写回一页时只在内存中记下它在这些表中的新项，由{@link BufferPool#flushAllPages()}、
+ * {@link PageCleaner}的每一轮和文件的close()一起写到文件中，写回一页不用再额外写几次side file
+ */
+public interface FlushableMaps {
+
+    /**
+     * Write the entries recorded since the last flush to the side files.
+     */
+    void flushMaps() throws IOException;
+}
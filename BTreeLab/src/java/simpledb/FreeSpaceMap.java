@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.TreeMap;
+
+/**
+ * HeapFile的空闲空间表(free-space map)：记录每个页还有多少个空的slot，插入时直接找到有空间的页，
+ * 而不是从第0页开始逐页通过BufferPool读取。
+ * <p>
+ * 表保存在数据文件旁边的"<数据文件>.fsm"中，每页2个字节，保存空slot数加1，0表示不知道
+ * (文件中没有写过的部分读出来就是0)。页被写回磁盘时({@link HeapFile#writePage})才记下它的那一项，
+ * 记下的项先留在内存中，由{@link #flush()}一起写到文件中(见{@link FlushableMaps})，
+ * 所以文件中的内容是磁盘上的页在上一次flush时的情况；内存中的内容由HeapPage在插入和删除时更新，反映的是缓存中的页。
+ * <p>
+ * 表只是一个提示：不知道的页当作可能有空间，插入时发现页实际上已经满了就更正它。
+ * 所以没有.fsm文件的旧表也能使用，第一次插入时和原来一样逐页查找，之后就会跳过已经满了的页
+ */
+public class FreeSpaceMap implements Closeable, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    //每一项的字节数
+    private static final int ENTRY_SIZE = 2;
+
+    private static final short UNKNOWN = -1;
+
+    private final DbFileChannel channel;
+
+    //每页的空slot数，UNKNOWN表示不知道。第一次使用时从文件加载
+    private transient short[] freeSlots;
+
+    //可能有空间的页(空slot数大于0或者不知道)
+    private transient BitSet candidates;
+
+    //写回磁盘的页还没有写到文件中的项，按页号排序
+    private transient TreeMap<Integer, byte[]> pending;
+
+    /**
+     * @param file 保存空闲空间表的文件，不存在时在第一次写入时创建
+     */
+    public FreeSpaceMap(File file) {
+        this.channel = new DbFileChannel(file);
+    }
+
+    /**
+     * @return 数据文件对应的空闲空间表文件
+     */
+    public static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    public File getFile() {
+        return channel.getFile();
+    }
+
+    private void load() {
+        if (freeSlots != null) {
+            return;
+        }
+        freeSlots = new short[0];
+        candidates = new BitSet();
+        if (!getFile().exists()) {
+            return;
+        }
+        try {
+            long size = channel.size();
+            byte[] data = new byte[(int) Math.min(size, Integer.MAX_VALUE) / ENTRY_SIZE * ENTRY_SIZE];
+            channel.read(data, 0);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            ensureCapacity(data.length / ENTRY_SIZE);
+            for (int i = 0; i < data.length / ENTRY_SIZE; i++) {
+                set(i, (short) (buf.getShort(i * ENTRY_SIZE) - 1));
+            }
+        } catch (IOException e) {
+            //读不了就当作全都不知道
+            e.printStackTrace();
+        }
+    }
+
+    private void ensureCapacity(int numPages) {
+        if (numPages > freeSlots.length) {
+            int old = freeSlots.length;
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(numPages, old * 2));
+            Arrays.fill(freeSlots, old, freeSlots.length, UNKNOWN);
+            candidates.set(old, freeSlots.length);
+        }
+    }
+
+    private void set(int pageNo, short free) {
+        freeSlots[pageNo] = free;
+        candidates.set(pageNo, free != 0);
+    }
+
+    /**
+     * @param numPages 数据文件的页数
+     * @param from     从这一页开始找
+     * @return [from, numPages)中第一个可能有空slot的页，没有时返回-1
+     */
+    public synchronized int findPage(int numPages, int from) {
+        load();
+        ensureCapacity(numPages);
+        int pageNo = candidates.nextSetBit(from);
+        return pageNo >= 0 && pageNo < numPages ? pageNo : -1;
+    }
+
+    /**
+     * 更新内存中一页的空slot数，由HeapPage在插入和删除之后调用
+     */
+    public synchronized void update(int pageNo, int free) {
+        load();
+        ensureCapacity(pageNo + 1);
+        set(pageNo, (short) free);
+    }
+
+    /**
+     * @return 内存中记录的一页的空slot数，不知道时返回-1
+     */
+    public synchronized int getFreeSlots(int pageNo) {
+        load();
+        return pageNo < freeSlots.length ? freeSlots[pageNo] : UNKNOWN;
+    }
+
+    /**
+     * 记下一页写回磁盘时的空slot数，由HeapFile在把这一页写回磁盘时调用。下一次{@link #flush()}时写到文件中
+     */
+    public synchronized void persist(int pageNo, int free) {
+        byte[] entry = new byte[ENTRY_SIZE];
+        ByteBuffer.wrap(entry).putShort((short) (free + 1));
+        if (pending == null) {
+            pending = new TreeMap<>();
+        }
+        pending.put(pageNo, entry);
+    }
+
+    /**
+     * 把上一次flush以来记下的项写到文件中，页号相邻的项合并成一次写
+     */
+    public synchronized void flush() throws IOException {
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+        channel.writeEntries(pending, ENTRY_SIZE);
+        pending.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
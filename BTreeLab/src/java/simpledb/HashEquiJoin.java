@@ -4,6 +4,18 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * This is a hybrid hash join. The left (build) child is read into a hash
+ * table partitioned by a hash of the join key. When the table grows past the
+ * memory budget, the largest partition still in memory is spilled to a
+ * temporary file, and later build tuples of that partition go to the file too.
+ * The right (probe) child is then streamed: tuples of partitions that stayed
+ * in memory are joined at once, the others are spilled next to their build
+ * partition. Each pair of spilled partitions is joined afterwards in the same
+ * way with a different hash function, so partitions that are still too big
+ * are split again. Past {@link #MAX_LEVEL} levels (a single key with more
+ * tuples than fit in memory) a partition is joined a memory-sized chunk of
+ * build tuples at a time.
  */
 public class HashEquiJoin extends Operator {
 
@@ -11,13 +23,21 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    private final int memoryBytes;
+
+    /** Default memory budget of the hash table, in bytes of tuples as stored on a page. */
+    public static final int DEFAULT_MEMORY = 4 * 1024 * 1024;
+
+    /** Number of partitions the build side is split into at each level. */
+    static final int FANOUT = 16;
+
+    /** Partitioning depth after which oversize partitions are joined in chunks. */
+    static final int MAX_LEVEL = 4;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -26,9 +46,19 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY);
+    }
+
+    /**
+     * @param memoryBytes
+     *            The most bytes of build tuples kept in memory before
+     *            partitions are spilled to disk
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryBytes) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryBytes = memoryBytes;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -39,7 +69,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getIndex1());
@@ -49,53 +79,235 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getIndex2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getIndex1()));
+    /**
+     * @return bytes written to spill files by the last run, build and probe
+     *         tuples of every level, counted when a level is done
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return number of build partitions spilled to disk by the last run, at
+     *         every level
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /** A pair of inputs still to be joined, and the partitioning level to join them at. */
+    private static class Task {
+        final DbIterator build;
+        final DbIterator probe;
+        final int level;
+
+        Task(DbIterator build, DbIterator probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+    }
+
+    /** One hash partition of the current task. */
+    private class Partition {
+        final HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+        int size;
+        SpillFile buildFile;
+        SpillFile probeFile;
+
+        void add(Tuple t) {
+            Field key = t.getField(pred.getIndex1());
+            ArrayList<Tuple> list = map.get(key);
             if (list == null) {
                 list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getIndex1()), list);
+                map.put(key, list);
+            }
+            list.add(t);
+            size++;
+        }
+
+        void spill() throws DbException {
+            buildFile = new SpillFile(child1.getTupleDesc(), "hashjoin");
+            probeFile = new SpillFile(child2.getTupleDesc(), "hashjoin");
+            for (ArrayList<Tuple> list : map.values()) {
+                for (Tuple t : list) {
+                    buildFile.add(t);
+                }
+            }
+            map.clear();
+            size = 0;
+            spilledPartitions++;
+        }
+    }
+
+    transient private LinkedList<Task> tasks;
+    transient private Task task;
+    transient private Partition[] partitions;
+    // build tuples held by the partitions in memory
+    transient private int resident;
+    // true when the current task is joined a chunk of build tuples at a time
+    transient private boolean chunked;
+    transient private long spilledBytes;
+    transient private int spilledPartitions;
+    transient private Tuple t2 = null;
+    transient Iterator<Tuple> listIt = null;
+
+    private int budget() {
+        return Math.max(1, memoryBytes / child1.getTupleDesc().getSize());
+    }
+
+    private static int partitionOf(Field key, int level) {
+        int h = key.hashCode() * 0x9E3779B1 + level * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 13;
+        return (h & Integer.MAX_VALUE) % FANOUT;
+    }
+
+    /**
+     * Reads the build side of the current task into the partitions,
+     * spilling the largest one whenever the budget is exceeded.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        partitions = new Partition[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            partitions[i] = new Partition();
+        }
+        resident = 0;
+        chunked = task.level >= MAX_LEVEL;
+        if (chunked) {
+            loadChunk();
+            return;
+        }
+        int budget = budget();
+        while (task.build.hasNext()) {
+            Tuple t = task.build.next();
+            Partition p = partitions[partitionOf(t.getField(pred.getIndex1()), task.level)];
+            if (p.buildFile != null) {
+                p.buildFile.add(t);
+                continue;
+            }
+            p.add(t);
+            if (++resident > budget) {
+                Partition largest = p;
+                for (Partition q : partitions) {
+                    if (q.size > largest.size) {
+                        largest = q;
+                    }
+                }
+                resident -= largest.size;
+                largest.spill();
+            }
+        }
+    }
+
+    /** Loads the next budget-sized chunk of the build side into partition 0. */
+    private boolean loadChunk() throws DbException, TransactionAbortedException {
+        partitions[0].map.clear();
+        partitions[0].size = 0;
+        int budget = budget();
+        while (partitions[0].size < budget && task.build.hasNext()) {
+            partitions[0].add(task.build.next());
+        }
+        return partitions[0].size > 0;
+    }
+
+    /**
+     * Queues the spilled partition pairs of the current task and starts the
+     * next task.
+     *
+     * @return false if there are no tasks left
+     */
+    private boolean nextTask() throws DbException, TransactionAbortedException {
+        for (Partition p : partitions) {
+            if (p.buildFile == null) {
+                continue;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            p.buildFile.finish();
+            p.probeFile.finish();
+            spilledBytes += p.buildFile.getBytes() + p.probeFile.getBytes();
+            if (p.buildFile.count() > 0 && p.probeFile.count() > 0) {
+                tasks.add(new Task(p.buildFile, p.probeFile, task.level + 1));
+            } else {
+                p.buildFile.delete();
+                p.probeFile.delete();
+            }
+        }
+        partitions = null;
+        deleteSpillFiles(task);
+        task = tasks.poll();
+        if (task == null) {
+            return false;
         }
-        return cnt > 0;
+        task.build.open();
+        task.probe.open();
+        build();
+        return true;
+    }
 
+    private static void deleteSpillFiles(Task task) {
+        if (task.build instanceof SpillFile) {
+            ((SpillFile) task.build).delete();
+            ((SpillFile) task.probe).delete();
+        }
     }
 
+    /** Deletes every spill file and starts over from the children. */
+    private void start() throws DbException, TransactionAbortedException {
+        cleanup();
+        spilledBytes = 0;
+        spilledPartitions = 0;
+        tasks = new LinkedList<Task>();
+        task = new Task(child1, child2, 0);
+        build();
+    }
+
+    private void cleanup() {
+        if (partitions != null) {
+            for (Partition p : partitions) {
+                if (p.buildFile != null) {
+                    p.buildFile.delete();
+                    p.probeFile.delete();
+                }
+            }
+        }
+        if (task != null) {
+            deleteSpillFiles(task);
+        }
+        if (tasks != null) {
+            for (Task t : tasks) {
+                deleteSpillFiles(t);
+            }
+        }
+        tasks = null;
+        task = null;
+        partitions = null;
+        t2 = null;
+        listIt = null;
+    }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        super.open();
+        start();
     }
 
     public void close() {
         super.close();
+        cleanup();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        start();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -110,12 +322,12 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        Tuple t1 = listIt.next();
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -132,32 +344,43 @@ public class HashEquiJoin extends Operator {
 
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        // every task is done: stay exhausted until rewind()
+        if (task == null) {
+            return null;
         }
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getIndex2()));
-            if (l == null)
+            // loop around the probe side of the current task
+            if (task.probe.hasNext()) {
+                t2 = task.probe.next();
+                Field key = t2.getField(pred.getIndex2());
+                Partition p = partitions[chunked ? 0 : partitionOf(key, task.level)];
+                if (p.probeFile != null) {
+                    p.probeFile.add(t2);
+                    continue;
+                }
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                ArrayList<Tuple> l = p.map.get(key);
+                if (l != null) {
+                    listIt = l.iterator();
+                }
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // probe side is done: advance to the next chunk or the next task
+            if (chunked && loadChunk()) {
+                task.probe.rewind();
+                continue;
+            }
+            if (!nextTask()) {
+                return null;
+            }
         }
-
-        return null;
     }
 
     @Override
@@ -170,6 +393,6 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -13,13 +14,33 @@ import java.util.*;
  * @author Sam Madden
  * @see simpledb.HeapPage#HeapPage
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, Closeable, FlushableMaps {
 
     private TupleDesc tupleDesc;
 
     private File file;
 
-    private int numPage;
+    //一直打开的文件句柄，由Catalog在删除表时关闭
+    private final DbFileChannel channel;
+
+    //为true时通过内存映射读取页
+    private final boolean mmap;
+
+    //插入时用来找有空间的页
+    private final FreeSpaceMap freeSpaceMap;
+
+    //每个正在插入的事务保留的插入页，别的事务不会往这一页插入。insertionPages和reservedPages由this保护
+    private final Map<TransactionId, Integer> insertionPages = new HashMap<>();
+    private final BitSet reservedPages = new BitSet();
+
+    //文件按extent增长，记录逻辑上的页数
+    private final ExtentAllocator extents;
+
+    //字典编码的字符串列，没有时为null
+    private final DictionaryEncoding dictionaries;
+
+    //每页INT列的范围，扫描时用来跳过页，表没有INT列时为null
+    private final ZoneMap zoneMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,10 +49,43 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * its pages through a read-only memory mapping of the file instead of
+     * copying them into a byte array. Meant for read-mostly tables, where the
+     * OS page cache then acts as a second-level cache behind the BufferPool.
+     *
+     * @param f    the file that stores the on-disk backing store for this heap
+     *             file.
+     * @param mmap whether to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean mmap) {
+        this(f, td, mmap, new int[0]);
+    }
+
+    /**
+     * Constructs a heap file whose pages store the given string columns as
+     * codes into per-column dictionaries kept in
+     * {@link DictionaryEncoding#fileFor(File)}. The file must have been
+     * written in that format, see {@link HeapFileEncoder#convertDictionary}.
+     *
+     * @param dictionaryColumns the string columns that are dictionary
+     *                          encoded, none for an ordinary heap file
+     */
+    public HeapFile(File f, TupleDesc td, boolean mmap, int[] dictionaryColumns) {
         // some code goes here
         file = f;
-        numPage = (int) (file.length() / BufferPool.PAGE_SIZE);
+        this.mmap = mmap;
+        channel = new DbFileChannel(f);
+        freeSpaceMap = new FreeSpaceMap(FreeSpaceMap.fileFor(f));
+        extents = new ExtentAllocator(channel, 0, BufferPool.PAGE_SIZE);
         tupleDesc = td;
+        dictionaries = dictionaryColumns.length == 0 ? null
+                : new DictionaryEncoding(DictionaryEncoding.fileFor(f), td, dictionaryColumns);
+        zoneMap = ZoneMap.intColumns(td).length == 0 ? null : new ZoneMap(ZoneMap.fileFor(f), td);
     }
 
     /**
@@ -86,39 +140,143 @@ public class HeapFile implements DbFile {
             throw new IllegalArgumentException();
         }
         Page page = null;
-        byte[] data = new byte[BufferPool.PAGE_SIZE];
-
-        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r")) {
+        try {
             // page在HeapFile的偏移量
-            int pos = pid.pageNumber() * BufferPool.PAGE_SIZE;
-            raf.seek(pos);
-            raf.read(data, 0, data.length);
-            page = new HeapPage((HeapPageId) pid, data);
+            long pos = (long) pid.pageNumber() * BufferPool.PAGE_SIZE;
+            //映射模式下直接从映射的区域解析，页超出文件末尾时还是读到data中(不足的部分为0)
+            ByteBuffer region = mmap ? channel.map(pos, BufferPool.PAGE_SIZE) : null;
+            if (region != null) {
+                page = new HeapPage((HeapPageId) pid, region);
+            } else {
+                byte[] data = new byte[BufferPool.PAGE_SIZE];
+                channel.read(data, pos);
+                page = new HeapPage((HeapPageId) pid, data);
+            }
+            ((HeapPage) page).freeSpaceMap = freeSpaceMap;
+            attachZoneMap((HeapPage) page);
         } catch (IOException e) {
             e.printStackTrace();
         }
         return page;
     }
 
+    /**
+     * 把页读进PageArena的一个frame，返回的HeapPage只是frame上的视图。页超出文件末尾的部分填0
+     *
+     * @param frame      frame的视图
+     * @param frameIndex frame的编号，页离开缓冲池时由{@link HeapPage#detach(PageArena)}交还
+     * @see BufferPool#BufferPool(int, PageReplacement, boolean)
+     */
+    HeapPage readPage(PageId pid, ByteBuffer frame, int frameIndex) throws IOException {
+        if (pid.getTableId() != getId()) {
+            throw new IllegalArgumentException();
+        }
+        ByteBuffer dst = frame.duplicate();
+        channel.read(dst, (long) pid.pageNumber() * BufferPool.PAGE_SIZE);
+        //frame会被重复使用，没有读到的部分要清零
+        while (dst.hasRemaining()) {
+            dst.put((byte) 0);
+        }
+        HeapPage page = new HeapPage((HeapPageId) pid, frame, frameIndex);
+        page.freeSpaceMap = freeSpaceMap;
+        attachZoneMap(page);
+        return page;
+    }
+
+    /**
+     * 页从磁盘读出后调用，没有记录这一页的范围时根据读到的内容记下来
+     */
+    private void attachZoneMap(HeapPage page) {
+        if (zoneMap != null) {
+            page.zoneMap = zoneMap;
+            zoneMap.learn(page);
+        }
+    }
+
 
     // see DbFile.java for javadocs
     @Override
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.seek(page.getId().pageNumber() * BufferPool.PAGE_SIZE);
-            byte[] data = page.getPageData();
-            raf.write(data);
+        int pageNo = page.getId().pageNumber();
+        //zone map要在页写到磁盘之前标记为stale
+        if (zoneMap != null) {
+            zoneMap.persist((HeapPage) page);
+        }
+        channel.write(page.getPageData(), (long) pageNo * BufferPool.PAGE_SIZE);
+        extents.written(pageNo);
+        freeSpaceMap.persist(pageNo, ((HeapPage) page).getNumEmptySlots());
+    }
+
+    @Override
+    public void flushMaps() throws IOException {
+        freeSpaceMap.flush();
+        if (zoneMap != null) {
+            zoneMap.flush();
+        }
+    }
+
+    /**
+     * 关闭文件句柄，之后再读写会重新打开
+     */
+    @Override
+    public void close() throws IOException {
+        extents.trim();
+        channel.close();
+        freeSpaceMap.close();
+        if (dictionaries != null) {
+            dictionaries.close();
         }
+        if (zoneMap != null) {
+            zoneMap.close();
+        }
+    }
+
+    /**
+     * @return the free-space map that inserts use to find a page with room
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpaceMap;
+    }
+
+    /**
+     * @return the allocator that grows this file in extents
+     */
+    public ExtentAllocator getExtents() {
+        return extents;
+    }
+
+    /**
+     * @return the dictionaries of the dictionary-encoded columns, or null if
+     * no column is encoded
+     */
+    public DictionaryEncoding getDictionaries() {
+        return dictionaries;
+    }
+
+    /**
+     * @return the per-page ranges of the INT columns, or null if the table
+     * has no INT column
+     */
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
+    /**
+     * @return whether pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return mmap;
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
+    @Override
     public int numPages() {
         // some code goes here
-        return numPage;
+        return extents.getNumPages();
     }
 
     // see DbFile.java for javadocs
@@ -127,34 +285,62 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> affectedPages = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPageId pid = new HeapPageId(getId(), i);
+        //每个事务只往自己保留的插入页中插入，并发插入的事务不会争同一页
+        while (affectedPages.size() == 0) {
+            int pageNo = insertionPage(tid);
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
             if (page.getNumEmptySlots() != 0) {
-                //page的insertTuple已经负责修改tuple信息表明其存储在该page上
+                //page的insertTuple已经负责修改tuple信息表明其存储在该page上，也会更新空闲空间表
                 page.insertTuple(t);
                 page.markDirty(true, tid);
                 affectedPages.add(page);
-                break;
+            } else {
+                //这一页满了(或者空闲空间表中的信息过时了)，换一页
+                freeSpaceMap.update(pageNo, 0);
+                releaseInsertionPage(tid);
             }
         }
-        if (affectedPages.size() == 0) {//说明page都已经满了
-            //创建一个新的空白的Page
-            HeapPageId npid = new HeapPageId(getId(), numPages());
-            HeapPage blankPage = new HeapPage(npid, HeapPage.createEmptyPageData());
-            numPage++;
-            //将其写入磁盘
-            writePage(blankPage);
-            //通过BufferPool来访问该新的page
-            HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, npid, Permissions.READ_WRITE);
-            newPage.insertTuple(t);
-            newPage.markDirty(true, tid);
-            affectedPages.add(newPage);
-        }
         return affectedPages;
         // not necessary for proj1
     }
 
+    /**
+     * 返回事务保留的插入页，没有时保留一个别的事务没有保留、可能有空间的页，
+     * 所有的页都满了时在文件末尾分配一个空白页
+     */
+    private synchronized int insertionPage(TransactionId tid) throws IOException {
+        Integer reserved = insertionPages.get(tid);
+        if (reserved != null) {
+            return reserved;
+        }
+        //只访问空闲空间表认为可能有空间的页
+        int numPages = numPages();
+        int pageNo = freeSpaceMap.findPage(numPages, 0);
+        while (pageNo >= 0 && reservedPages.get(pageNo)) {
+            pageNo = freeSpaceMap.findPage(numPages, pageNo + 1);
+        }
+        if (pageNo < 0) {
+            pageNo = extents.allocate();
+        }
+        reservedPages.set(pageNo);
+        insertionPages.put(tid, pageNo);
+        Database.getBufferPool().insertionPageReserved(tid, this);
+        return pageNo;
+    }
+
+    /**
+     * Gives up the page reserved for inserts by the given transaction, so that
+     * other transactions may insert into it. Called by the BufferPool when the
+     * transaction completes.
+     */
+    public synchronized void releaseInsertionPage(TransactionId tid) {
+        Integer pageNo = insertionPages.remove(tid);
+        if (pageNo != null) {
+            reservedPages.clear(pageNo);
+        }
+    }
+
     // see DbFile.java for javadocs
     @Override
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
@@ -180,7 +366,26 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator that skips the pages which, according to the
+     * {@link ZoneMap}, hold no tuple satisfying all the given predicates.
+     * Tuples on the pages that are read are all returned, so the caller
+     * still has to apply the predicates.
+     *
+     * @param predicates predicates on the columns of this file
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return new HeapFileIterator(tid, zoneMap == null ? Collections.<Predicate>emptyList() : predicates);
+    }
+
+    /**
+     * @return 按zone map，第pageNo页是否可能有满足所有谓词的tuple
+     */
+    private boolean mayMatch(int pageNo, List<Predicate> predicates) {
+        return predicates.isEmpty() || zoneMap.mayMatch(pageNo, predicates);
     }
 
     /**
@@ -207,8 +412,17 @@ public class HeapFile implements DbFile {
          * @param pageNum   HeapFile所有的Page数目
          */
         public OneOffCachePages(double cacheRate, int pageNum) {
+            this(cacheRate, pageNum, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @param cacheRate 缓存的Page比例
+         * @param pageNum   HeapFile所有的Page数目
+         * @param maxNum    最多缓存的Page数目
+         */
+        public OneOffCachePages(double cacheRate, int pageNum, int maxNum) {
             cachePages = new ArrayList<>();
-            int tmp = (int) (pageNum * cacheRate);
+            int tmp = Math.min((int) (pageNum * cacheRate), maxNum);
             num = tmp < 1 ? 1 : tmp;//计算得到需要缓存的page数目，如果总的page数目小于1,则设置为1
         }
 
@@ -237,10 +451,12 @@ public class HeapFile implements DbFile {
             if (current.hasNext()) {//判断当前访问的Page是否还有tuple未访问
                 return true;
             }
-            if (index+1 < cachePages.size()) {//判断是否还有缓存的Page未访问
+            while (index+1 < cachePages.size()) {//判断是否还有缓存的Page未访问，跳过空的Page
                 index++;
                 current = cachePages.get(index);
-                return current.hasNext();
+                if (current.hasNext()) {
+                    return true;
+                }
             }
             return false;
         }
@@ -271,6 +487,12 @@ public class HeapFile implements DbFile {
      * 4.我觉得别人的一个想法挺好，就是存储一个当前正在遍历的页的tuples迭代器的引用，这样一页一页来遍历
      * 5.在写Join算法时，我发现这个类的next和hasNext是性能瓶颈(是由于频繁的磁盘访问导致的)，故准备将一部分Page先缓存起来，
      * 设置了一个cacheRate表示缓存比例，表示每一次磁盘访问先缓存下来多大比例的Page
+     * 6.表比缓冲池大时使用BufferAccessStrategy的环形缓冲区，不让扫描把缓冲池中的热页挤出去，
+     * 这时一次缓存的Page数目也不超过环的大小，否则环被回收的页还被这里引用着，内存就不受环的限制了
+     * 7.每读一页就让BufferPool在后台预读后面的BufferPool.getPrefetchDepth()页，这样读盘和处理tuple可以重叠。
+     * 使用环形缓冲区时预读的页也放在环里，所以预读深度不超过环的一半，一次缓存的Page数目再减去预读深度，
+     * 不然预读进来的页还没被用到就被环回收了
+     * 8.有下推的谓词时，按zone map不可能有满足谓词的tuple的页既不缓存也不预读
      */
     private class HeapFileIterator implements DbFileIterator {
 
@@ -284,20 +506,41 @@ public class HeapFile implements DbFile {
 
         private TransactionId tid;
 
-        public HeapFileIterator(TransactionId tid) {
+        //下推的谓词，用来跳过页
+        private final List<Predicate> predicates;
+
+        //大表扫描使用的环形缓冲区，小表为null
+        private BufferAccessStrategy strategy;
+
+        //向前预读的页数
+        private int readAhead;
+
+        //已经发出预读请求的最大页号
+        private int prefetchedUpTo;
+
+        public HeapFileIterator(TransactionId tid, List<Predicate> predicates) {
             this.tid = tid;
+            this.predicates = predicates;
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
             initPos = 0;
-            cachePool = new OneOffCachePages(cacheRate, numPage);
+            prefetchedUpTo = -1;
+            readAhead = BufferPool.getPrefetchDepth();
+            strategy = BufferAccessStrategy.forScan(numPages());
+            if (strategy == null) {
+                cachePool = new OneOffCachePages(cacheRate, numPages());
+            } else {
+                readAhead = Math.min(readAhead, strategy.getRingSize() / 2);
+                cachePool = new OneOffCachePages(cacheRate, numPages(), strategy.getRingSize() - readAhead);
+            }
             initPos += fillCache(initPos);//缓存Pages并修改initPos为下一次需要作为起始缓存的Page偏移量
         }
 
         /**
          * @param initPos 作为起始偏移量，从这一页开始缓存Page，直到访问完当前HeapFile的所有Page或缓存用完
-         * @return 实际缓存了的Page数目
+         * @return 这次经过的Page数目(包括被跳过的页)
          * @throws TransactionAbortedException
          * @throws DbException
          */
@@ -306,16 +549,19 @@ public class HeapFile implements DbFile {
             //先清空之前的缓存页
             cachePool.clear();
             int pagePos = initPos;
-            for (; pagePos < numPage && addNum < cachePool.getNum(); ) {
+            for (; pagePos < numPages() && addNum < cachePool.getNum(); pagePos++) {
+                if (!mayMatch(pagePos, predicates)) {
+                    continue;
+                }
                 HeapPageId pid = new HeapPageId(getId(), pagePos);
                 Iterator<Tuple> tuples = getTuplesInPage(pid);
                 cachePool.addPage(tuples);
-                addNum = ++pagePos - initPos;
+                addNum++;
             }
             if (addNum != 0) {
                 cachePool.init();
             }
-            return addNum;
+            return pagePos - initPos;
         }
 
         /**
@@ -328,7 +574,15 @@ public class HeapFile implements DbFile {
          */
         public Iterator<Tuple> getTuplesInPage(HeapPageId pid) throws TransactionAbortedException, DbException {
             // 不能直接使用HeapFile的readPage方法，而是通过BufferPool来获得page，理由见readPage()方法的Javadoc
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            BufferPool bufferPool = Database.getBufferPool();
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY, strategy);
+            int last = Math.min(pid.pageNumber() + readAhead, numPages() - 1);
+            for (int next = Math.max(pid.pageNumber() + 1, prefetchedUpTo + 1); next <= last; next++) {
+                if (mayMatch(next, predicates)) {
+                    bufferPool.prefetch(tid, new HeapPageId(getId(), next), strategy);
+                }
+                prefetchedUpTo = next;
+            }
             return page.iterator();
         }
 
@@ -338,16 +592,15 @@ public class HeapFile implements DbFile {
                 //说明已经被关闭
                 return false;
             }
-            if (cachePool.hasNext()) {//如果缓存还访问完
-                return true;
-            }
-            //从上一个if出来说明当前缓存访问完了，所以加载新的Page到缓存
-            int addNum = fillCache(initPos);
-            //实际缓存的page数量为0，说明这个HeapFile已经访问完
-            if (addNum == 0) {
-                return false;
+            //当前缓存访问完了就加载新的Page到缓存，新缓存的Page可能都是空的(比如文件末尾预先增加的空白页)
+            while (!cachePool.hasNext()) {
+                int addNum = fillCache(initPos);
+                //经过的page数量为0，说明这个HeapFile已经访问完
+                if (addNum == 0) {
+                    return false;
+                }
+                initPos += addNum;
             }
-            initPos += addNum;
             return true;
         }
 
@@ -369,6 +622,7 @@ public class HeapFile implements DbFile {
         public void close() {
             initPos = 0;
             cachePool = null;
+            strategy = null;
         }
     }
 }
@@ -1,7 +1,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -9,6 +13,13 @@ import java.util.ArrayList;
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
  * data file.
+ * <p>
+ * The convertSlotted methods write the variable-length format of
+ * {@link SlottedHeapPage} instead, convertCompressed turns an existing
+ * heap file into the format of {@link CompressedHeapFile}, and
+ * convertDictionary writes heap pages whose string columns are dictionary
+ * encoded ({@link DictionaryEncoding}), and convertColumnar writes the
+ * column-wise pages of {@link ColumnarFile}.
  */
 
 public class HeapFileEncoder {
@@ -76,7 +87,9 @@ public class HeapFileEncoder {
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
-    * HeapFile.
+    * HeapFile. The input is parsed in chunks by one thread per processor,
+    * see {@link BulkLoader#convertHeap}; the last page of each chunk may not
+    * be full.
     *
     * @see HeapPage
     * @see HeapFile
@@ -90,137 +103,282 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+    //按块并行解析，见BulkLoader
+    new BulkLoader(Runtime.getRuntime().availableProcessors(), 8 << 20, npagebytes)
+        .convertHeap(inFile, outFile, Arrays.copyOf(typeAr, numFields), fieldSeparator);
+  }
+
+  /** Convert the specified input text file into a file of slotted pages with
+   * variable-length records, in the format read by {@link SlottedHeapFile}.
+   * The input format is the same as for
+   * {@link #convert(File, File, int, int, Type[], char)}; strings are trimmed
+   * and cut to Type.STRING_LEN characters.
+   *
+   * @throws IOException if the input/output file can't be opened or a
+   *   malformed input line is encountered
+   */
+  public static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    try {
+      convertSlotted(parseLines(br, numFields, typeAr, fieldSeparator), outFile, npagebytes);
+    } catch (RuntimeException e) {
+      throw parseFailure(e);
+    } finally {
+      br.close();
+    }
+  }
 
-      int nrecbytes = 0;
-      for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
+  /**
+   * 逐行解析文本文件中的tuple，一次只保存一行。格式错误的行抛出IllegalArgumentException，
+   * 读文件出错时抛出cause为IOException的RuntimeException，见{@link #parseFailure}
+   */
+  private static Iterator<Tuple> parseLines(final BufferedReader br, final int numFields,
+                                            final Type[] typeAr, char fieldSeparator) {
+    final TupleDesc td = new TupleDesc(typeAr);
+    final Pattern separator = Pattern.compile(Pattern.quote(String.valueOf(fieldSeparator)));
+    return new Iterator<Tuple>() {
+      private String line = nextLine();
+      private int lineNo = 1;
+
+      private String nextLine() {
+        try {
+          String l = br.readLine();
+          while (l != null && l.trim().isEmpty()) {
+            l = br.readLine();
+          }
+          return l;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
 
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
+      public boolean hasNext() {
+        return line != null;
+      }
+
+      public Tuple next() {
+        String[] values = separator.split(line, -1);
+        if (values.length != numFields) {
+          throw new IllegalArgumentException("BAD LINE " + lineNo + " : " + line);
         }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < numFields; i++) {
+          String v = values[i].trim();
+          if (typeAr[i] == Type.INT_TYPE) {
+            t.setField(i, new IntField(Integer.parseInt(v)));
+          } else {
+            t.setField(i, new StringField(v, Type.STRING_LEN));
+          }
         }
+        line = nextLine();
+        lineNo++;
+        return t;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @return parseLines的迭代器抛出的异常对应的IOException
+   */
+  private static IOException parseFailure(RuntimeException e) {
+    if (e instanceof IllegalArgumentException) {
+      return new IOException(e.getMessage(), e);
+    }
+    if (e.getCause() instanceof IOException) {
+      return (IOException) e.getCause();
+    }
+    throw e;
+  }
+
+  /** Write the given tuples into a file of slotted pages, filling each page
+   * before starting the next one.
+   *
+   * @see SlottedHeapPage#createPageData
+   * @throws IOException if the output file can't be written, or a tuple does
+   *   not fit on an empty page
+   */
+  public static void convertSlotted(Iterator<Tuple> tuples, File outFile, int npagebytes) throws IOException {
+    BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+    //旧文件的空闲空间表已经不对了
+    FreeSpaceMap.fileFor(outFile).delete();
+    ExtentAllocator.fileFor(outFile).delete();
+    try {
+      ArrayList<Tuple> page = new ArrayList<Tuple>();
+      int used = SlottedHeapPage.HEADER_SIZE;
+      while (tuples.hasNext()) {
+        Tuple t = tuples.next();
+        int bytes = SlottedHeapPage.bytesFor(t);
+        if (used + bytes > npagebytes) {
+          if (page.isEmpty()) {
+            throw new IOException("tuple " + t + " does not fit on a page of " + npagebytes + " bytes");
+          }
+          os.write(SlottedHeapPage.createPageData(page, npagebytes));
+          page.clear();
+          used = SlottedHeapPage.HEADER_SIZE;
+        }
+        page.add(t);
+        used += bytes;
+      }
+      if (!page.isEmpty()) {
+        os.write(SlottedHeapPage.createPageData(page, npagebytes));
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Compresses the pages of an existing heap file into the record format of
+   * {@link CompressedHeapFile}, writing the page offset index next to
+   * outFile.
+   *
+   * @param heapFile   the heap file to read, a sequence of npagebytes pages
+   * @param outFile    the compressed file to write
+   * @param npagebytes the page size of heapFile
+   * @param level      the zlib compression level
+   */
+  public static void convertCompressed(File heapFile, File outFile, int npagebytes, int level) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)));
+    DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+    DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(CompressedHeapFile.indexFileFor(outFile))));
+    FreeSpaceMap.fileFor(outFile).delete();
+    ExtentAllocator.fileFor(outFile).delete();
+    try {
+      long pages = heapFile.length() / npagebytes;
+      byte[] page = new byte[npagebytes];
+      long offset = 0;
+      for (int pageNo = 0; pageNo < pages; pageNo++) {
+        in.readFully(page);
+        byte[] compressed = CompressedHeapFile.deflate(page, level);
+        //和CompressedHeapFile.writePage写的记录相同：页号、长度、压缩的数据
+        os.writeInt(pageNo);
+        os.writeInt(compressed.length);
+        os.write(compressed);
+        index.writeLong(offset);
+        index.writeInt(compressed.length);
+        offset += 8 + compressed.length;
+      }
+    } finally {
+      in.close();
+      os.close();
+      index.close();
+    }
+  }
+
+  /**
+   * Writes the tuples as heap pages in which the given string columns hold
+   * codes into per-column dictionaries, and writes the dictionaries next to
+   * outFile. Open the result with
+   * {@link HeapFile#HeapFile(File, TupleDesc, boolean, int[])} and the same
+   * columns.
+   *
+   * @param tuples     the tuples to write, all with TupleDesc td
+   * @param outFile    the heap file to write
+   * @param npagebytes the page size
+   * @param td         the schema of the tuples
+   * @param columns    the string columns to encode
+   */
+  public static void convertDictionary(Iterator<Tuple> tuples, File outFile, int npagebytes,
+                                       TupleDesc td, int[] columns) throws IOException {
+    File dictFile = DictionaryEncoding.fileFor(outFile);
+    dictFile.delete();
+    FreeSpaceMap.fileFor(outFile).delete();
+    ExtentAllocator.fileFor(outFile).delete();
+    ZoneMap.fileFor(outFile).delete();
+    DictionaryEncoding dictionaries = new DictionaryEncoding(dictFile, td, columns);
+    TupleDesc layout = dictionaries.getLayout();
+    int tupleSize = layout.getSize();
+    //和HeapPage相同的格式：header中每个slot一位，后面是定长的slot
+    int numSlots = (npagebytes * 8) / (tupleSize * 8 + 1);
+    int headerBytes = (numSlots + 7) / 8;
+    BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+    try {
+      ByteBuffer page = ByteBuffer.allocate(npagebytes);
+      int slot = 0;
+      while (tuples.hasNext()) {
+        Tuple t = tuples.next();
+        int offset = headerBytes + slot * tupleSize;
+        page.put(slot / 8, (byte) (page.get(slot / 8) | (1 << (slot % 8))));
+        for (int j = 0; j < td.numFields(); j++) {
+          int fieldOffset = offset + layout.getFieldOffset(j);
+          if (dictionaries.isEncoded(j)) {
+            page.putInt(fieldOffset, dictionaries.encode(j, ((StringField) t.getField(j)).getValue()));
+          } else {
+            t.getField(j).serialize(page, fieldOffset);
+          }
+        }
+        if (++slot == numSlots) {
+          os.write(page.array());
+          page = ByteBuffer.allocate(npagebytes);
+          slot = 0;
+        }
+      }
+      if (slot > 0) {
+        os.write(page.array());
+      }
+    } finally {
+      os.close();
+      dictionaries.close();
+    }
+  }
+
+  /** Convert the specified input text file into a file of column-wise
+   * {@link ColumnarPage}s, read by {@link ColumnarFile}. The input format is
+   * the same as for {@link #convert(File, File, int, int, Type[], char)}.
+   *
+   * @throws IOException if the input/output file can't be opened or a
+   *   malformed input line is encountered
+   */
+  public static void convertColumnar(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    try {
+      convertColumnar(parseLines(br, numFields, typeAr, fieldSeparator), outFile, npagebytes,
+          new TupleDesc(typeAr));
+    } catch (RuntimeException e) {
+      throw parseFailure(e);
+    } finally {
+      br.close();
+    }
+  }
+
+  /**
+   * Writes the tuples into a file of {@link ColumnarPage}s, filling each
+   * page before starting the next.
+   *
+   * @param tuples     the tuples to write, all with the types of td
+   * @param outFile    the columnar file to write
+   * @param npagebytes the page size
+   * @param td         the schema of the tuples
+   */
+  public static void convertColumnar(Iterator<Tuple> tuples, File outFile, int npagebytes,
+                                     TupleDesc td) throws IOException {
+    BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+    FreeSpaceMap.fileFor(outFile).delete();
+    ExtentAllocator.fileFor(outFile).delete();
+    try {
+      int numSlots = ColumnarPage.numSlots(td, npagebytes);
+      ArrayList<Tuple> page = new ArrayList<Tuple>();
+      while (tuples.hasNext()) {
+        page.add(tuples.next());
+        if (page.size() == numSlots) {
+          os.write(ColumnarPage.createPageData(page, td, npagebytes));
+          page.clear();
+        }
+      }
+      if (!page.isEmpty()) {
+        os.write(ColumnarPage.createPageData(page, td, npagebytes));
+      }
+    } finally {
+      os.close();
     }
-    br.close();
-    os.close();
   }
 }
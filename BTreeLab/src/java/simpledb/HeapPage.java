@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -10,18 +12,47 @@ import java.io.*;
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements Page, LazyTupleSource {
 
     private HeapPageId pid;
     private TupleDesc td;
+    // 页中tuple实际的格式。字典编码的列在页中是int，没有字典编码时就是td
+    private TupleDesc layout;
+    // 所属HeapFile的字典编码，没有时为null
+    private DictionaryEncoding dictionaries;
     private byte header[];
+    // 已经生成的tuple，使用中的slot为null时表示还没有从raw解析。
+    // 建立在PageArena的frame上的页不缓存tuple，这个数组在第一次插入时才分配
     private Tuple tuples[];
     private int numSlots;
+    // 空slot的个数，由markSlotUsed()维护
+    private int emptySlots;
     private TransactionId lastDirtyOperation;
 
+    // 所属HeapFile的空闲空间表，插入和删除后更新。不是由HeapFile读出的页(比如before image)为null
+    FreeSpaceMap freeSpaceMap;
+
+    // 所属HeapFile的zone map，插入后扩大这一页的范围。表没有INT列或者不是由HeapFile读出的页为null
+    ZoneMap zoneMap;
+
+    // 从磁盘读到的原始数据(可能是内存映射的一段区域或者PageArena的一个frame)，只读，不会被修改。
+    // tuple和field都是在被访问时才从这里解析的，用绝对位置读取，所以多个线程可以同时解析
+    private volatile ByteBuffer raw;
+
+    // raw所在的PageArena frame的编号，不在frame上时为-1，见detach()
+    private final int frame;
+
+    // 正在读raw的线程数，加上页已经离开frame时的DETACHED位。不在frame上的页一开始就是DETACHED，见pin()
+    private final AtomicInteger readers;
+    private static final int DETACHED = 1 << 30;
+
+    // frame所在的PageArena，detach时设置，由最后一个读frame的线程用来交还frame
+    private PageArena arena;
+
     // oldData的作用见setBeforeImage()和getBeforeImage()方法
     // 如果一个HeapPage在修改前调用setBeforeImage(),就能将当前的数据保留下来
     // 在修改后，通过getBeforeImage()获得修改前的HeapPage
+    // 为null时修改前的数据就是raw，第一次修改或者被markDirty(true, tid)时才保留下来
     byte[] oldData;
 
     /**
@@ -42,27 +73,49 @@ public class HeapPage implements Page {
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 直接从内存映射文件的一段区域解析HeapPage，不先复制到byte数组中
+     *
+     * @param data 该页的数据，即data的position到limit之间的字节
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, -1);
+    }
+
+    /**
+     * 建立在PageArena的一个frame上的HeapPage，不缓存解析出的tuple，堆上只有header
+     *
+     * @param data  frame的视图
+     * @param frame frame的编号，为-1时和{@link #HeapPage(HeapPageId, ByteBuffer)}相同
+     * @see BufferPool#BufferPool(int, PageReplacement, boolean)
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, int frame) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DbFile file = Database.getCatalog().getDbFile(id.getTableId());
+        this.dictionaries = file instanceof HeapFile ? ((HeapFile) file).getDictionaries() : null;
+        this.layout = dictionaries == null ? td : dictionaries.getLayout();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.raw = PageCodec.pageView(data);
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        header = PageCodec.getBytes(raw, 0, getHeaderSize());
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                emptySlots++;
+            }
+        }
 
-        try {
-            // allocate and read the actual records of this page
+        // tuple在被访问时才解析，见getTuple()
+        this.frame = frame;
+        this.readers = new AtomicInteger(frame < 0 ? DETACHED : 0);
+        if (frame < 0) {
             tuples = new Tuple[numSlots];
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
         }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /**
@@ -76,7 +129,7 @@ public class HeapPage implements Page {
             return numSlots;
         }
         //int的四则运算就是向下取整的
-        numSlots = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        numSlots = (BufferPool.PAGE_SIZE * 8) / (layout.getSize() * 8 + 1);
         return numSlots;
 
     }
@@ -98,7 +151,7 @@ public class HeapPage implements Page {
      */
     public HeapPage getBeforeImage() {
         try {
-            return new HeapPage(pid, oldData);
+            return new HeapPage(pid, oldData != null ? oldData : rawData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -108,7 +161,32 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        oldData = getPageData();
+    }
+
+    /**
+     * 在第一次修改之前调用，把raw作为修改前的数据保留下来
+     */
+    private void keepBeforeImage() {
+        if (oldData == null) {
+            oldData = rawData();
+        }
+    }
+
+    /**
+     * @return raw的内容。raw就是一个完整的byte数组时直接返回它(它不会被修改)，否则复制一份
+     */
+    private byte[] rawData() {
+        boolean pinned = pin();
+        try {
+            ByteBuffer src = raw;
+            if (src.hasArray() && src.arrayOffset() == 0 && src.array().length == BufferPool.PAGE_SIZE) {
+                return src.array();
+            }
+            return PageCodec.copyPage(src);
+        } finally {
+            unpin(pinned);
+        }
     }
 
     /**
@@ -120,37 +198,94 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return slot中的tuple，slot没有使用时为null。第一次访问时生成一个延迟解析的tuple，
+     * 它的Field在被访问时才从raw解析
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Tuple getTuple(int slotId) {
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
+        if (tuples == null) {//frame上的页，每次访问都生成新的tuple
+            return new Tuple(td, this, slotId);
+        }
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, this, slotId);
+            tuples[slotId] = t;
+        }
+        return t;
+    }
+
+    /**
+     * 页离开缓冲池时由BufferPool调用：把frame中的数据复制到堆上，之后读raw的线程读的是堆上的副本，
+     * 还在使用这个页(以及它的tuple)的线程读到的仍然是原来的数据。
+     * 已经拿到frame上的raw、还没读完的线程读完之前frame不能给别的页使用，所以frame由最后一个这样的线程交还，
+     * 没有这样的线程时在这里交还
+     *
+     * @param arena frame所在的PageArena
+     */
+    synchronized void detach(PageArena arena) {
+        if (frame < 0 || (readers.get() & DETACHED) != 0) {
+            return;
+        }
+        this.arena = arena;
+        raw = ByteBuffer.wrap(PageCodec.copyPage(raw));
+        if (readers.addAndGet(DETACHED) == DETACHED) {
+            arena.release(frame);
+        }
+    }
+
+    /**
+     * 读raw之前调用。页还在frame上时登记为读者，detach之后frame要等读者都unpin才交还；
+     * 已经detach的页raw在堆上，不用登记，DETACHED之后读者数只会减少，所以frame只会被交还一次
+     *
+     * @return 是否登记了，要传给{@link #unpin(boolean)}
+     */
+    private boolean pin() {
+        while (true) {
+            int r = readers.get();
+            if ((r & DETACHED) != 0) {
+                return false;
+            }
+            if (readers.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void unpin(boolean pinned) {
+        if (pinned && readers.decrementAndGet() == DETACHED) {
+            arena.release(frame);
+        }
+    }
+
+    /**
+     * @return slot在页中的字节偏移量
+     */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * layout.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    /**
+     * 只解析一个tuple中的一个Field，偏移量由TupleDesc计算。字典编码的列只读出编码，值直接来自字典
+     */
+    @Override
+    public Field decodeField(int slotId, int fieldIndex) {
+        int offset = slotOffset(slotId) + layout.getFieldOffset(fieldIndex);
+        boolean pinned = pin();
         try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+            if (dictionaries != null && dictionaries.isEncoded(fieldIndex)) {
+                return dictionaries.decode(fieldIndex, raw.getInt(offset));
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return layout.getFieldType(fieldIndex).parse(raw, offset);
+        } finally {
+            unpin(pinned);
         }
+    }
 
-        return t;
+    @Override
+    public RecordId recordIdOf(int slotId) {
+        return new RecordId(pid, slotId);
     }
 
     /**
@@ -165,65 +300,83 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
+        boolean pinned = pin();
+        try {
+            ByteBuffer page = PageCodec.allocatePage();
+            byte[] data = page.array();
+            int tupleSize = layout.getSize();
+            ByteBuffer src = raw;
+
+            // create the header of the page
+            PageCodec.putBytes(page, 0, header);
+
+            // create the tuples
+            // 空的slot和页尾的填充都是0，不需要写
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    continue;
                 }
-                continue;
-            }
+                int offset = slotOffset(i);
 
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
+                // 还没有生成tuple，直接复制原始数据
+                Tuple t = tuples == null ? null : tuples[i];
+                if (t == null) {
+                    PageCodec.copy(src, offset, data, offset, tupleSize);
+                    continue;
+                }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
+                // non-empty slot
+                for (int j = 0; j < td.numFields(); j++) {
+                    int fieldOffset = offset + layout.getFieldOffset(j);
+                    Field f = t.getDecodedField(j);
+                    if (f == null && t.isBackedBy(this, i)) {//这个Field还没有解析，也没有被修改过
+                        PageCodec.copy(src, fieldOffset, data, fieldOffset, layout.getFieldType(j).getLen());
+                    } else if (dictionaries != null && dictionaries.isEncoded(j)) {
+                        page.putInt(fieldOffset, dictionaries.codeOf(j, t.getField(j)));
+                    } else {
+                        t.getField(j).serialize(page, fieldOffset);
+                    }
                 }
             }
+            return data;
+        } finally {
+            unpin(pinned);
         }
+    }
 
-        // padding
-        // 填充字节0
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
+    /**
+     * 计算页中所有tuple在columns这几列(都是INT列)上的范围，给ZoneMap使用。
+     * 和getPageData()一样，还没有解析的Field直接从原始数据中读，不生成tuple和Field
+     *
+     * @param lo 返回每列的最小值，页中没有tuple时为Integer.MAX_VALUE
+     * @param hi 返回每列的最大值，页中没有tuple时为Integer.MIN_VALUE
+     */
+    void intRanges(int[] columns, int[] lo, int[] hi) {
+        boolean pinned = pin();
         try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            Arrays.fill(lo, Integer.MAX_VALUE);
+            Arrays.fill(hi, Integer.MIN_VALUE);
+            ByteBuffer src = raw;
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    continue;
+                }
+                Tuple t = tuples == null ? null : tuples[i];
+                for (int c = 0; c < columns.length; c++) {
+                    Field f = t == null ? null : t.getDecodedField(columns[c]);
+                    int v;
+                    if (f == null && (t == null || t.isBackedBy(this, i))) {
+                        v = src.getInt(slotOffset(i) + layout.getFieldOffset(columns[c]));
+                    } else {
+                        v = ((IntField) t.getField(columns[c])).getValue();
+                    }
+                    lo[c] = Math.min(lo[c], v);
+                    hi[c] = Math.max(hi[c], v);
+                }
+            }
+        } finally {
+            unpin(pinned);
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -257,8 +410,18 @@ public class HeapPage implements Page {
         if (!hpid.equals(pid) || !isSlotUsed(tupleNum)) {
             throw new DbException("this tuple is not on this page, or tuple slot is already empty");
         }
-        tuples[tupleNum]=null;
+        keepBeforeImage();
+        if (tuples != null) {
+            tuples[tupleNum] = null;
+        }
         markSlotUsed(tupleNum, false);
+        updateFreeSpaceMap();
+    }
+
+    private void updateFreeSpaceMap() {
+        if (freeSpaceMap != null) {
+            freeSpaceMap.update(pid.pageNumber(), emptySlots);
+        }
     }
 
     /**
@@ -277,20 +440,44 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
+        //新的值先加入字典(并保存)，页写回时才能得到它们的编码
+        if (dictionaries != null && getNumEmptySlots() > 0) {
+            encode(t);
+        }
         //不使用getNumTuples() == 0来判断是否没有可用的slot，因为要找到可用的slot本身就要遍历一次tuples数组
         //if(getNumTuples() == 0) throw new DbException("the page is full (no empty slots)");
         for(int i=0;i<getNumTuples();i++) {
             if (!isSlotUsed(i)) {
+                keepBeforeImage();
+                if (tuples == null) {
+                    tuples = new Tuple[numSlots];
+                }
                 tuples[i] = t;
                 //修改tuple的信息，表明它现在存储在这个page上
                 t.setRecordId(new RecordId(pid, i));
                 markSlotUsed(i,true);
+                updateFreeSpaceMap();
+                if (zoneMap != null) {
+                    zoneMap.widen(pid.pageNumber(), t);
+                }
                 return;
             }
         }
         throw new DbException("the page is full (no empty slots)");
     }
 
+    private void encode(Tuple t) throws DbException {
+        for (int j = 0; j < td.numFields(); j++) {
+            if (dictionaries.isEncoded(j)) {
+                try {
+                    dictionaries.encode(j, ((StringField) t.getField(j)).getValue());
+                } catch (IOException e) {
+                    throw new DbException("could not add " + t.getField(j) + " to the dictionary: " + e.getMessage());
+                }
+            }
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -298,6 +485,9 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
         // not necessary for lab1
+        if (dirty) {
+            keepBeforeImage();
+        }
         lastDirtyOperation = dirty ? tid : null;
     }
 
@@ -313,15 +503,8 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    // TODO: 17-6-8 修改为用一个变量来存储空的slot数量，效率会更高（虽然维护也相对麻烦）
     public int getNumEmptySlots() {
         // some code goes here
-        int emptySlots = 0;
-        for (int i = 0; i < getNumTuples(); i++) {
-            if (!isSlotUsed(i)) {
-                emptySlots++;
-            }
-        }
         return emptySlots;
     }
 
@@ -366,6 +549,9 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int byteNum = i / 8;//计算在第几个字节
         int posInByte = i % 8;//计算在该字节的第几位,从右往左算（这是因为JVM用big-ending）
+        if (isOne(header[byteNum], posInByte) != value) {
+            emptySlots += value ? -1 : 1;
+        }
         header[byteNum] = editBitInByte(header[byteNum], posInByte, value);
     }
 
@@ -422,7 +608,7 @@ public class HeapPage implements Page {
             for (; !isSlotUsed(index); index++) {
             }//直到找到在使用的(对应的slot非空的)tuple，再返回
             pos++;
-            return tuples[index++];
+            return getTuple(index++);
         }
     }
 
@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of the left child with the tuples of
+ * the right child that have an equal key, found by an
+ * {@link IndexPredicate} lookup in the {@link BTreeFile} of the right child
+ * instead of a scan. The right child must be a {@link SeqScan} of a B+ tree
+ * keyed on the join field, possibly under {@link Filter}s, which are then
+ * applied to the tuples found.
+ * <p>
+ * 左表按块(和Join一样每块Join.blockMemory字节)读进内存，块内按join的key排好序再逐个查找：
+ * 相同的key只查一次，结果给块内所有这个key的tuple用；不同的key按升序查找，相邻的查找落在同一个或相邻的叶子页上，
+ * 这些页刚被读过还在BufferPool中。右表本身不会被open，只用它所在的表和事务
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate joinPredicate;
+
+    private TupleDesc td;
+
+    private DbIterator child1, child2;
+
+    private final int batchMemory;
+
+    //右表的SeqScan，和它上面的Filter的谓词
+    private transient SeqScan scan;
+    private transient ArrayList<Predicate> filters;
+
+    //按左表join的列排序块内的tuple
+    private transient TupleComparator comparator;
+
+    //当前块，块中下一个tuple的下标，当前的左表tuple
+    private transient ArrayList<Tuple> batch;
+    private transient int batchPos;
+    private transient Tuple left;
+
+    //上一次查找的key和找到的右表tuple，下一个要和left组合的下标
+    private transient Field probedKey;
+    private transient ArrayList<Tuple> matches;
+    private transient int matchPos;
+
+    private transient int probes;
+
+    /**
+     * @param p      The predicate to use to join the children, must be EQUALS
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 The scan of the right(inner) relation, indexed on
+     *               p.getIndex2(), see {@link #canProbe(Predicate.Op, DbIterator, int)}
+     * @throws IllegalArgumentException if child2 can not be probed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, Join.blockMemory);
+    }
+
+    /**
+     * @param batchMemory the bytes of left tuples whose keys are sorted and
+     *                    looked up together
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int batchMemory) {
+        if (!canProbe(p.getOperator(), child2, p.getIndex2())) {
+            throw new IllegalArgumentException("can not probe the index of " + child2 + " on field " + p.getIndex2());
+        }
+        this.joinPredicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.batchMemory = batchMemory;
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return 能否对inner按field做op的查找：op是EQUALS，inner是按field做key的BTreeFile的SeqScan，外面可以有Filter
+     */
+    public static boolean canProbe(Predicate.Op op, DbIterator inner, int field) {
+        while (inner instanceof Filter) {
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        return op == Predicate.Op.EQUALS && inner instanceof SeqScan && ((SeqScan) inner).isIndexedOn(field);
+    }
+
+    /**
+     * @return 能否对file的不投影的SeqScan(外面可以有Filter)按名为fieldName的列做op的查找，条件和
+     * {@link #canProbe(Predicate.Op, DbIterator, int)}相同。JoinOptimizer估计代价时还没有生成scan，用这个判断
+     */
+    public static boolean canProbe(Predicate.Op op, DbFile file, String fieldName) {
+        return op == Predicate.Op.EQUALS && file instanceof BTreeFile
+                && file.getTupleDesc().getFieldName(((BTreeFile) file).keyField()).equals(fieldName);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return joinPredicate;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(joinPredicate.getIndex1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(joinPredicate.getIndex2());
+    }
+
+    /**
+     * @return 上一次open以来对右表的B+树做的查找次数
+     */
+    public int getProbes() {
+        return probes;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        filters = new ArrayList<Predicate>();
+        DbIterator inner = child2;
+        while (inner instanceof Filter) {
+            filters.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        scan = (SeqScan) inner;
+        comparator = new TupleComparator(joinPredicate.getIndex1(), true);
+        child1.open();
+        super.open();
+        start();
+    }
+
+    private void start() {
+        batch = new ArrayList<Tuple>();
+        batchPos = 0;
+        left = null;
+        probedKey = null;
+        matches = new ArrayList<Tuple>();
+        matchPos = 0;
+        probes = 0;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        batch = matches = null;
+        left = null;
+        probedKey = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        start();
+    }
+
+    /**
+     * 读下一块左表tuple并按join的key排序
+     *
+     * @return 左表是否还有tuple
+     */
+    private boolean fillBatch() throws DbException, TransactionAbortedException {
+        int batchSize = Math.max(1, batchMemory / child1.getTupleDesc().getSize());
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < batchSize && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        Collections.sort(batch, comparator);
+        return !batch.isEmpty();
+    }
+
+    private void probe(Field key) throws DbException, TransactionAbortedException {
+        matches.clear();
+        DbFileIterator it = scan.indexIterator(new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            boolean pass = true;
+            for (Predicate f : filters) {
+                if (!f.filter(t)) {
+                    pass = false;
+                    break;
+                }
+            }
+            if (pass) {
+                matches.add(t);
+            }
+        }
+        it.close();
+        probedKey = key;
+        probes++;
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        Tuple result = new Tuple(td);
+        int length1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < length1; i++) {
+            result.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            result.setField(i + length1, t2.getField(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The result is the concatenation of the joining tuples from
+     * the left and right relation, as in {@link Join#fetchNext()}; the left
+     * tuples of each batch come out in order of their keys.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && matchPos < matches.size()) {
+                return mergeTuples(left, matches.get(matchPos++));
+            }
+            if (batchPos >= batch.size() && !fillBatch()) {
+                return null;
+            }
+            left = batch.get(batchPos++);
+            Field key = left.getField(joinPredicate.getIndex1());
+            if (probedKey == null || !probedKey.equals(key)) {
+                probe(key);
+            }
+            matchPos = 0;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -16,11 +16,21 @@ public class Join extends Operator {
 
     private DbIterator child1, child2;
 
-    private TupleIterator joinResults;
-
     // 131072是MySql中BlockNestedLoopJoin算法的默认缓冲区大小（以字节为单位）
     public static final int blockMemory = 131072;
 
+    //BlockNestedLoopJoin的状态，fetchNext每次从上次停下的地方继续：
+    //左表的当前块，块中的tuple数目
+    private Tuple[] block;
+    private int blockCount;
+
+    //当前的右表tuple，以及下一个要和它比较的块中tuple的下标，为null时要读右表的下一个tuple
+    private Tuple right;
+    private int blockPos;
+
+    //当前块是否是open或rewind之后的第一个块，第一个块不用rewind右表
+    private boolean firstBlock;
+
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -84,11 +94,16 @@ public class Join extends Operator {
         child1.open();
         child2.open();
         super.open();
-//        joinResults = nestedLoopJoin();
-        joinResults = blockNestedLoopJoin();
-//        joinResults = doubleBlockNestedLoopJoin();
-//        joinResults = dbnlSortedJoin();
-        joinResults.open();
+        block = new Tuple[Math.max(1, blockMemory / child1.getTupleDesc().getSize())];//131072是MySql中该算法的默认缓冲区大小
+        resetBlock();
+    }
+
+    private void resetBlock() {
+        Arrays.fill(block, null);
+        blockCount = 0;
+        right = null;
+        blockPos = 0;
+        firstBlock = true;
     }
 
     private Tuple mergeTuples(int length1, Tuple left, Tuple right) {
@@ -107,14 +122,15 @@ public class Join extends Operator {
         super.close();
         child1.close();
         child2.close();
-        joinResults.close();
+        block = null;
+        right = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child1.rewind();
         child2.rewind();
-        joinResults.rewind();
+        resetBlock();
     }
 
     /**
@@ -137,11 +153,7 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (joinResults.hasNext()) {
-            return joinResults.next();
-        } else {
-            return null;
-        }
+        return blockNestedLoopJoin();
     }
 
     @Override
@@ -170,49 +182,51 @@ public class Join extends Operator {
      * 4. 在完成Join优化器后，发现BlockNestedLoopJoin与其配合效果已经非常好，所以没必要使用这个复杂的方法，
      *    关键是这个方法得到的结果集是排序过的，也就是说，需要Query中有OrderBy子句才可以使用
      *    因为有OrderBy的话，最后会对结果集排序，也就可以忽略Merge Join对tuple顺序的影响了
+     * 5. 原来open时就把整个结果集算出来放在LinkedList中，多对多的join在返回第一个结果之前就可能把内存用完，
+     *    现在改成了可以从中间继续的状态机：fetchNext每次只算出下一个结果，内存只用一个块的大小，和结果集的大小无关
      *
      * PS: NestedLoopJoin，DoubleBlockNestedJoin和dbnlSortedJoin方法不想删掉，标为Deprecated算了
      */
-    private TupleIterator blockNestedLoopJoin() throws DbException, TransactionAbortedException {
-        LinkedList<Tuple> tuples = new LinkedList<>();
-        int blockSize = blockMemory / child1.getTupleDesc().getSize();//131072是MySql中该算法的默认缓冲区大小
-        Tuple[] cacheBlock = new Tuple[blockSize];
-        int index = 0;
+    private Tuple blockNestedLoopJoin() throws DbException, TransactionAbortedException {
         int length1 = child1.getTupleDesc().numFields();
-        child1.rewind();
-        while (child1.hasNext()) {
-            Tuple left = child1.next();
-            cacheBlock[index++] = left;
-            if (index >= cacheBlock.length) {//如果缓冲区满了，就先处理缓存中的tuple
-                child2.rewind();
-                while (child2.hasNext()) {
-                    Tuple right = child2.next();
-                    for (Tuple cacheLeft : cacheBlock) {
-                        if (joinPredicate.filter(cacheLeft, right)) {//如果符合条件就合并来自两个表的tuple作为一条结果
-                            Tuple result = mergeTuples(length1, cacheLeft, right);
-                            tuples.add(result);
-                        }
+        while (true) {
+            if (right != null) {//接着把当前的右表tuple和块中剩下的tuple比较
+                while (blockPos < blockCount) {
+                    Tuple left = block[blockPos++];
+                    if (joinPredicate.filter(left, right)) {//如果符合条件就合并来自两个表的tuple作为一条结果
+                        return mergeTuples(length1, left, right);
                     }
                 }
-                Arrays.fill(cacheBlock, null);//清空，给下一次使用
-                index = 0;
+                right = null;
             }
-        }
-        if (index > 0 && index < cacheBlock.length) {//处理缓冲区中剩下的tuple
-            child2.rewind();
-            while (child2.hasNext()) {
-                Tuple right = child2.next();
-                for (Tuple cacheLeft : cacheBlock) {
-                    //如果符合条件就合并来自两个表的tuple作为一条结果，加上为null的判断是因为此时cache没有满，最后有null值
-                    if (cacheLeft == null) break;
-                    if (joinPredicate.filter(cacheLeft, right)) {
-                        Tuple result = mergeTuples(length1, cacheLeft, right);
-                        tuples.add(result);
-                    }
-                }
+            if (blockCount > 0 && child2.hasNext()) {//用右表的下一个tuple和整个块比较
+                right = child2.next();
+                blockPos = 0;
+                continue;
+            }
+            //右表已经和当前块比较完了，读左表的下一个块，读不到说明join结束
+            if (!fillBlock()) {
+                return null;
+            }
+            if (!firstBlock) {
+                child2.rewind();
             }
+            firstBlock = false;
         }
-        return new TupleIterator(getTupleDesc(), tuples);
+    }
+
+    /**
+     * 清空块并从左表读入下一个块
+     *
+     * @return 是否读到了tuple
+     */
+    private boolean fillBlock() throws DbException, TransactionAbortedException {
+        Arrays.fill(block, 0, blockCount, null);//清空，给下一次使用
+        blockCount = 0;
+        while (blockCount < block.length && child1.hasNext()) {
+            block[blockCount++] = child1.next();
+        }
+        return blockCount > 0;
     }
 
 
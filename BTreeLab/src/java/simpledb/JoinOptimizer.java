@@ -62,12 +62,100 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
+        //两边都已经按join的列有序(比如都是按这一列做key的BTreeFile)时直接归并
+        if (!(lj instanceof LogicalSubplanJoinNode) && MergeJoin.canMerge(p.getOperator())
+                && isSortedOn(plan1, t1id) && isSortedOn(plan2, t2id)) {
+            return new MergeJoin(p, plan1, plan2);
+        }
+
         j = new Join(p, plan1, plan2);
 
         return j;
 
     }
 
+    /**
+     * Like {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator)},
+     * but also compares the nested-loop join with the algorithms that need an
+     * estimate of the inputs, and picks the cheapest: when only one side is
+     * sorted on its join field, sorting the other side by
+     * {@link ExternalSort} and merging; for equality, a {@link HashEquiJoin}
+     * built on plan1; when plan2 scans a B+ tree keyed on its join field, an
+     * {@link IndexNestedLoopJoin}.
+     *
+     * @param card1 Estimated cardinality of plan1
+     * @param card2 Estimated cardinality of plan2
+     * @param cost1 Estimated cost of one full scan of plan1
+     * @param cost2 Estimated cost of one full scan of plan2
+     */
+    public static DbIterator instantiateJoin(LogicalJoinNode lj, DbIterator plan1, DbIterator plan2,
+                                             int card1, int card2, double cost1, double cost2)
+            throws ParsingException {
+        DbIterator j = instantiateJoin(lj, plan1, plan2);
+        if (!(j instanceof Join) || lj instanceof LogicalSubplanJoinNode) {
+            return j;
+        }
+        JoinPredicate p = ((Join) j).getJoinPredicate();
+        int tupleSize1 = plan1.getTupleDesc().getSize();
+        DbIterator best = j;
+        double bestCost = estimateBlockNestedLoopJoinCost(tupleSize1, card1, card2, cost1, cost2);
+        boolean sorted1 = isSortedOn(plan1, p.getIndex1());
+        boolean sorted2 = isSortedOn(plan2, p.getIndex2());
+        if (MergeJoin.canMerge(p.getOperator()) && sorted1 != sorted2) {
+            double mergeCost = estimateMergeJoinCost(card1, card2, cost1, cost2) + (sorted1
+                    ? estimateSortCost(card2, plan2.getTupleDesc().getSize())
+                    : estimateSortCost(card1, tupleSize1));
+            if (mergeCost < bestCost) {
+                bestCost = mergeCost;
+                best = sorted1 ? new MergeJoin(p, plan1, new ExternalSort(p.getIndex2(), plan2))
+                        : new MergeJoin(p, new ExternalSort(p.getIndex1(), plan1), plan2);
+            }
+        }
+        if (p.getOperator() == Predicate.Op.EQUALS) {
+            double hashCost = estimateHashJoinCost(tupleSize1, plan2.getTupleDesc().getSize(),
+                    card1, card2, cost1, cost2);
+            if (hashCost < bestCost) {
+                bestCost = hashCost;
+                best = new HashEquiJoin(p, plan1, plan2);
+            }
+        }
+        if (IndexNestedLoopJoin.canProbe(p.getOperator(), plan2, p.getIndex2())) {
+            int keySize = plan2.getTupleDesc().getFieldType(p.getIndex2()).getLen();
+            double indexCost = estimateIndexNestedLoopJoinCost(tupleSize1, keySize, card1, cost1, cost2);
+            if (indexCost < bestCost) {
+                best = new IndexNestedLoopJoin(p, plan1, plan2);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return true if the tuples of plan come in ascending order of field:
+     * scans of a BTreeFile keyed on field, filters of those, sorts on field
+     * and equality merge joins on field
+     */
+    public static boolean isSortedOn(DbIterator plan, int field) {
+        if (plan instanceof SeqScan) {
+            return ((SeqScan) plan).isSortedOn(field);
+        } else if (plan instanceof BTreeScan) {
+            return ((BTreeScan) plan).isSortedOn(field);
+        } else if (plan instanceof Filter) {
+            return isSortedOn(((Filter) plan).getChildren()[0], field);
+        } else if (plan instanceof ExternalSort) {
+            return ((ExternalSort) plan).getSortField() == field;
+        } else if (plan instanceof OrderBy) {
+            return ((OrderBy) plan).isASC() && ((OrderBy) plan).getOrderByField() == field;
+        } else if (plan instanceof MergeJoin) {
+            //等值归并的结果按两边的join列有序
+            MergeJoin mj = (MergeJoin) plan;
+            JoinPredicate p = mj.getJoinPredicate();
+            int length1 = mj.getChildren()[0].getTupleDesc().numFields();
+            return p.getOperator() == Predicate.Op.EQUALS
+                    && (field == p.getIndex1() || field == length1 + p.getIndex2());
+        }
+        return false;
+    }
+
     /**
      * Estimate the cost of a join.
      * <p>
@@ -90,6 +178,20 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Like {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     *
+     * @param rightIsScan whether the right child of the join is the scan of
+     *                    j.t2Alias (possibly under filters), as
+     *                    {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator, int, int, double, double)}
+     *                    needs to build an {@link IndexNestedLoopJoin}; false
+     *                    when it is a subplan that already joins that table
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+                                   double cost1, double cost2, boolean rightIsScan) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 4.
@@ -102,15 +204,113 @@ public class JoinOptimizer {
 
             //针对BlockNestedLoopJoin
             TupleDesc desc = p.getTupleDesc(j.t1Alias);
-            int blockSize = Join.blockMemory / desc.getSize();
-            int fullNum = card1 / blockSize;
-            int left = (card1 - blockSize * fullNum) == 0 ? 0 : 1;
-            int blockCard = fullNum + left;//得到左表被分成多少个缓冲区
-            double cost = cost1 + blockCard * cost2 + (double) card1 * (double) card2;
+            double cost = estimateBlockNestedLoopJoinCost(desc.getSize(), card1, card2, cost1, cost2);
+            //等值join可以用左表建哈希表
+            if (j.p == Predicate.Op.EQUALS && j.t2Alias != null) {
+                cost = Math.min(cost, estimateHashJoinCost(desc.getSize(), p.getTupleDesc(j.t2Alias).getSize(),
+                        card1, card2, cost1, cost2));
+            }
+            //右表是按join的列做key的BTreeFile时，也可以对左表的每个tuple查一次B+树，
+            //条件和instantiateJoin生成IndexNestedLoopJoin的条件相同
+            Integer t2id = j.t2Alias == null ? null : p.getTableId(j.t2Alias);
+            if (rightIsScan && t2id != null) {
+                DbFile file = Database.getCatalog().getDbFile(t2id);
+                if (IndexNestedLoopJoin.canProbe(j.p, file, j.f2PureName)) {
+                    int keySize = file.getTupleDesc().getFieldType(((BTreeFile) file).keyField()).getLen();
+                    cost = Math.min(cost, estimateIndexNestedLoopJoinCost(desc.getSize(), keySize,
+                            card1, cost1, cost2));
+                }
+            }
             return cost;
         }
     }
 
+    /**
+     * @param tupleSize1 the size of the left tuples, which decides how many
+     *                   fit in a block of {@link Join#blockMemory} bytes
+     * @return the cost of a {@link Join}: one scan of the left side, one scan
+     * of the right side per left block, and one predicate per pair
+     */
+    public static double estimateBlockNestedLoopJoinCost(int tupleSize1, int card1, int card2,
+                                                         double cost1, double cost2) {
+        int blockSize = Join.blockMemory / tupleSize1;
+        int fullNum = card1 / blockSize;
+        int left = (card1 - blockSize * fullNum) == 0 ? 0 : 1;
+        int blockCard = fullNum + left;//得到左表被分成多少个缓冲区
+        return cost1 + blockCard * cost2 + (double) card1 * (double) card2;
+    }
+
+    /**
+     * @param tupleSize1 the size of the left tuples, which decides how many
+     *                   keys are sorted and looked up together
+     * @param keySize2   the size of the key of the B+ tree on the right side
+     * @param cost2      the cost of a full scan of the right table, which
+     *                   gives its number of pages
+     * @return the cost of an {@link IndexNestedLoopJoin}: one scan of the left
+     * side, and one lookup from the root of the B+ tree per left tuple, but
+     * never more than reading every page of the right table per left batch,
+     * since the sorted lookups of a batch read the leaves in order
+     */
+    public static double estimateIndexNestedLoopJoinCost(int tupleSize1, int keySize2, int card1,
+                                                         double cost1, double cost2) {
+        double pages2 = Math.max(1, cost2 / TableStats.IOCOSTPERPAGE);
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keySize2 + BTreePage.INDEX_SIZE));
+        double height = 1 + Math.ceil(Math.log(pages2) / Math.log(fanout));
+        int batchSize = Math.max(1, Join.blockMemory / tupleSize1);
+        double batches = Math.ceil((double) card1 / batchSize);
+        return cost1 + card1 + Math.min(card1 * height * TableStats.IOCOSTPERPAGE, batches * cost2);
+    }
+
+    /**
+     * @param tupleSize1 the size of the left tuples, which the hash table is
+     *                   built from
+     * @param tupleSize2 the size of the right tuples
+     * @return the cost of a {@link HashEquiJoin}: one scan of each side and
+     * one hash per tuple, plus writing and reading back the share of both
+     * sides that falls in spilled partitions when the left side does not fit
+     * in {@link HashEquiJoin#DEFAULT_MEMORY}
+     */
+    public static double estimateHashJoinCost(int tupleSize1, int tupleSize2, int card1, int card2,
+                                              double cost1, double cost2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        long bytes1 = (long) card1 * tupleSize1;
+        if (bytes1 > HashEquiJoin.DEFAULT_MEMORY) {
+            double spilled = 1 - (double) HashEquiJoin.DEFAULT_MEMORY / bytes1;
+            long bytes = bytes1 + (long) card2 * tupleSize2;
+            cost += 2.0 * spilled * Math.ceil((double) bytes / BufferPool.getPageSize()) * TableStats.IOCOSTPERPAGE;
+        }
+        return cost;
+    }
+
+    /**
+     * @return the cost of a {@link MergeJoin} of two sorted inputs: one scan
+     * of each side and one comparison per tuple
+     */
+    public static double estimateMergeJoinCost(int card1, int card2, double cost1, double cost2) {
+        return cost1 + cost2 + card1 + card2;
+    }
+
+    /**
+     * @return the cost of an {@link ExternalSort} of card tuples: n log n
+     * comparisons, plus writing and reading back the runs when they do not
+     * fit in memory, once more for each pass needed to bring the runs down
+     * to the merge fan-in
+     */
+    public static double estimateSortCost(int card, int tupleSize) {
+        double cost = card * (Math.log(Math.max(card, 2)) / Math.log(2));
+        long bytes = (long) card * tupleSize;
+        if (bytes > ExternalSort.DEFAULT_MEMORY) {
+            double runs = Math.ceil((double) bytes / ExternalSort.DEFAULT_MEMORY);
+            int passes = 1;
+            while (runs > ExternalSort.DEFAULT_FAN_IN) {
+                runs = Math.ceil(runs / ExternalSort.DEFAULT_FAN_IN);
+                passes++;
+            }
+            cost += 2.0 * passes * Math.ceil((double) bytes / BufferPool.getPageSize()) * TableStats.IOCOSTPERPAGE;
+        }
+        return cost;
+    }
+
 
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
@@ -391,7 +591,8 @@ public class JoinOptimizer {
                 t1card = tmp1;
             }
         } else if (leftInPreBest) {//如果树已经成型，而且新加进来的join的左表在树中
-            cost = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+            //右表也在树中时，join的右边是已经生成的子计划，不是右表的scan
+            cost = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, !rightInPreBest);
         } else if (rightInPreBest) {//如果树已经成型，而且新加进来的join的右表在树中
             LogicalJoinNode j2 = j.swapInnerOuter();
             cost = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
@@ -0,0 +1,20 @@
+package simpledb;
+
+/**
+ * 延迟解析的tuple的数据来源，见{@link Tuple#Tuple(TupleDesc, LazyTupleSource, int)}。
+ * tuple只记住自己在来源中的slot，Field和RecordId在被访问时才向来源要
+ *
+ * @see HeapPage
+ */
+interface LazyTupleSource {
+
+    /**
+     * 解析slot中的tuple的一个Field
+     */
+    Field decodeField(int slot, int fieldIndex);
+
+    /**
+     * @return slot中的tuple的RecordId
+     */
+    RecordId recordIdOf(int slot);
+}
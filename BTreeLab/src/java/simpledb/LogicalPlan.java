@@ -344,6 +344,17 @@ public class LogicalPlan {
             joins = jo.orderJoins(statsMap,filterSelectivities,explain);
         }
 
+        //每个子计划的估计行数和代价，instantiateJoin用来决定要不要给一边排序后做MergeJoin
+        HashMap<String,Integer> subplanCard = new HashMap<String,Integer>();
+        HashMap<String,Double> subplanCost = new HashMap<String,Double>();
+        for (String alias : subplanMap.keySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+            if (s != null) {
+                subplanCard.put(alias, s.estimateTableCardinality(filterSelectivities.get(alias)));
+                subplanCost.put(alias, s.estimateScanCost());
+            }
+        }
+
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -378,7 +389,21 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             DbIterator j;
-            j = JoinOptimizer.instantiateJoin(lj,plan1,plan2);
+            Integer card1 = subplanCard.get(t1name);
+            Integer card2 = subplanCard.get(t2name);
+            if (isSubqueryJoin || card1 == null || card2 == null) {
+                j = JoinOptimizer.instantiateJoin(lj,plan1,plan2);
+                subplanCard.remove(t1name);
+            } else {
+                double cost1 = subplanCost.get(t1name);
+                double cost2 = subplanCost.get(t2name);
+                j = JoinOptimizer.instantiateJoin(lj,plan1,plan2,card1,card2,cost1,cost2);
+                boolean pkey1 = Database.getCatalog().getPrimaryKey(this.getTableId(lj.t1Alias)).equals(lj.f1PureName);
+                boolean pkey2 = Database.getCatalog().getPrimaryKey(this.getTableId(lj.t2Alias)).equals(lj.f2PureName);
+                subplanCard.put(t1name, jo.estimateJoinCardinality(lj, card1, card2, pkey1, pkey2, statsMap));
+                subplanCost.put(t1name, jo.estimateJoinCost(lj, card1, card2, cost1, cost2,
+                        plan2 instanceof SeqScan || plan2 instanceof Filter));
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
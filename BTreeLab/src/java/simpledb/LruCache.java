@@ -41,9 +41,10 @@ public class LruCache<K,V> {
      * @param ruNode the recently used Node
      */
     private void unlink(Node ruNode) {
-        //如果是最后一个结点
+        //如果是最后一个结点，要同时修改tail，否则tail会指向一个已经被移到表头的结点
         if (ruNode.next == null) {
             ruNode.front.next = null;
+            tail = ruNode.front == head ? null : ruNode.front;
         } else {
             ruNode.front.next=ruNode.next;
             ruNode.next.front=ruNode.front;
@@ -75,7 +76,7 @@ public class LruCache<K,V> {
         Node newTail = tail.front;
         tail.front=null;
         newTail.next=null;
-        tail=newTail;
+        tail = newTail == head ? null : newTail;
         return element;
     }
 
@@ -131,6 +132,41 @@ public class LruCache<K,V> {
         return cachedEntries.containsKey(key);
     }
 
+    /**
+     * 删除最久未使用的条目
+     * @return 被删除的条目，如果缓存为空，返回null
+     */
+    public V removeEldest() {
+        if (tail == null) {
+            return null;
+        }
+        K removedKey = removeTail();
+        return cachedEntries.remove(removedKey).value;
+    }
+
+    /**
+     * 删除指定的条目
+     * @param key
+     * @return 被删除的条目，不存在则返回null
+     */
+    public V remove(K key) {
+        Node ruNode = cachedEntries.remove(key);
+        if (ruNode == null) {
+            return null;
+        }
+        unlink(ruNode);
+        ruNode.front = null;
+        ruNode.next = null;
+        return ruNode.value;
+    }
+
+    /**
+     * @return 当前缓存的条目数量
+     */
+    public int size() {
+        return cachedEntries.size();
+    }
+
     private void displayCache() {
         //用于测试的
         Node n=head;
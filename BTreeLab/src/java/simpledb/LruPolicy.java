@@ -0,0 +1,56 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 最近最少使用的替换策略，与原来LruCache的行为一致
+ */
+public class LruPolicy<K> implements ReplacementPolicy<K> {
+
+    //accessOrder为true时，迭代顺序就是从最久未使用到最近使用
+    private final LinkedHashMap<K, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void recordAccess(K key) {
+        order.get(key);
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void remove(K key) {
+        order.remove(key);
+    }
+
+    @Override
+    public K evict() {
+        Iterator<K> it = order.keySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        K victim = it.next();
+        it.remove();
+        return victim;
+    }
+
+    @Override
+    public List<K> coldest(int n) {
+        List<K> keys = new ArrayList<>(Math.min(n, order.size()));
+        //遍历keySet不会改变访问顺序
+        for (Iterator<K> it = order.keySet().iterator(); it.hasNext() && keys.size() < n; ) {
+            keys.add(it.next());
+        }
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return order.size();
+    }
+}
@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * MergeJoin joins two children that are both sorted in ascending order of
+ * their join fields, e.g. scans of {@link BTreeFile}s keyed on the join
+ * field, or children sorted by {@link ExternalSort}.
+ * <p>
+ * 等值join时两边一起往前走，右表中key相同的一段tuple(run)放在内存中，和左表中key相同的每个tuple组合，
+ * 内存只需要最长的一段重复key。
+ * 不等值join时，对一边的每个tuple，另一边满足条件的tuple是有序输入的一个前缀，并且随着这一边的key变大，
+ * 这个前缀只会变长：left &lt; right 时对右表的每个tuple，满足的是左表中key比它小的那些；left &gt; right 时反过来。
+ * 所以只要把前缀缓存起来，一边读一边往后加就行，结果的数目本身就和两个表的大小的乘积同阶
+ */
+public class MergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate joinPredicate;
+
+    private TupleDesc td;
+
+    private DbIterator child1, child2;
+
+    //等值join：左表的当前tuple，右表中key相同的一段和下一个要和左表tuple组合的下标，右表中run之后的第一个tuple
+    private transient Tuple left;
+    private transient ArrayList<Tuple> run;
+    private transient int runPos;
+    private transient Tuple rightNext;
+
+    //不等值join：每次读一个tuple的一边(driver)的当前tuple，另一边缓存的前缀，前缀之后的第一个tuple
+    private transient Tuple driver;
+    private transient ArrayList<Tuple> prefix;
+    private transient int prefixPos;
+    private transient Tuple pending;
+
+    /**
+     * @param p      The predicate to use to join the children, one of EQUALS,
+     *               LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN and
+     *               GREATER_THAN_OR_EQ
+     * @param child1 Iterator for the left relation, sorted ascending on
+     *               p.getIndex1()
+     * @param child2 Iterator for the right relation, sorted ascending on
+     *               p.getIndex2()
+     * @throws IllegalArgumentException if the predicate can not be merged
+     */
+    public MergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!canMerge(p.getOperator())) {
+            throw new IllegalArgumentException("can not merge join on " + p.getOperator());
+        }
+        this.joinPredicate = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return 两边有序时能否用MergeJoin按op做join
+     */
+    public static boolean canMerge(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return joinPredicate;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(joinPredicate.getIndex1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(joinPredicate.getIndex2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        super.open();
+        start();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        run = new ArrayList<Tuple>();
+        runPos = 0;
+        prefix = new ArrayList<Tuple>();
+        prefixPos = 0;
+        driver = null;
+        if (joinPredicate.getOperator() == Predicate.Op.EQUALS) {
+            left = next(child1);
+            rightNext = next(child2);
+        } else {
+            pending = next(bufferedSide());
+        }
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        left = rightNext = driver = pending = null;
+        run = prefix = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    private static Tuple next(DbIterator child) throws DbException, TransactionAbortedException {
+        return child.hasNext() ? child.next() : null;
+    }
+
+    private static int compare(Field f1, Field f2) {
+        if (f1.compare(Predicate.Op.LESS_THAN, f2)) {
+            return -1;
+        } else if (f1.compare(Predicate.Op.GREATER_THAN, f2)) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        Tuple result = new Tuple(td);
+        int length1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < length1; i++) {
+            result.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            result.setField(i + length1, t2.getField(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The result is the concatenation of the joining tuples from
+     * the left and right relation, as in {@link Join#fetchNext()}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (joinPredicate.getOperator() == Predicate.Op.EQUALS) {
+            return fetchNextEquals();
+        }
+        return fetchNextInequality();
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException, DbException {
+        int index1 = joinPredicate.getIndex1();
+        int index2 = joinPredicate.getIndex2();
+        while (left != null) {
+            if (!run.isEmpty()) {
+                if (runPos < run.size()) {
+                    return mergeTuples(left, run.get(runPos++));
+                }
+                //当前左表tuple和run组合完了，下一个左表tuple的key相同时再用一遍run
+                Field key = run.get(0).getField(index2);
+                left = next(child1);
+                runPos = 0;
+                if (left == null || compare(left.getField(index1), key) != 0) {
+                    run.clear();
+                }
+                continue;
+            }
+            if (rightNext == null) {
+                return null;
+            }
+            int c = compare(left.getField(index1), rightNext.getField(index2));
+            if (c < 0) {
+                left = next(child1);
+            } else if (c > 0) {
+                rightNext = next(child2);
+            } else {//把右表中key相同的一段读进run
+                Field key = rightNext.getField(index2);
+                do {
+                    run.add(rightNext);
+                    rightNext = next(child2);
+                } while (rightNext != null && compare(key, rightNext.getField(index2)) == 0);
+                runPos = 0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * left &lt; right 和 left &lt;= right 时右表是driver，否则左表是driver
+     */
+    private boolean driverIsLeft() {
+        Predicate.Op op = joinPredicate.getOperator();
+        return op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    private DbIterator bufferedSide() {
+        return driverIsLeft() ? child2 : child1;
+    }
+
+    private Tuple fetchNextInequality() throws TransactionAbortedException, DbException {
+        boolean driverIsLeft = driverIsLeft();
+        DbIterator driverSide = driverIsLeft ? child1 : child2;
+        DbIterator bufferedSide = bufferedSide();
+        int driverIndex = driverIsLeft ? joinPredicate.getIndex1() : joinPredicate.getIndex2();
+        int bufferedIndex = driverIsLeft ? joinPredicate.getIndex2() : joinPredicate.getIndex1();
+        //缓存的一边的key小于(或小于等于)driver的key时满足条件
+        boolean orEqual = joinPredicate.getOperator() == Predicate.Op.LESS_THAN_OR_EQ
+                || joinPredicate.getOperator() == Predicate.Op.GREATER_THAN_OR_EQ;
+        while (true) {
+            if (driver != null && prefixPos < prefix.size()) {
+                Tuple other = prefix.get(prefixPos++);
+                return driverIsLeft ? mergeTuples(driver, other) : mergeTuples(other, driver);
+            }
+            driver = next(driverSide);
+            if (driver == null) {
+                return null;
+            }
+            prefixPos = 0;
+            Field key = driver.getField(driverIndex);
+            while (pending != null) {
+                int c = compare(pending.getField(bufferedIndex), key);
+                if (c > 0 || (c == 0 && !orEqual)) {
+                    break;
+                }
+                prefix.add(pending);
+                pending = next(bufferedSide);
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 堆外的页内存池。BufferPool的off-heap模式下，缓存的HeapPage的数据放在这里的frame中，
+ * HeapPage只是frame上的视图，tuple在访问时才解析，所以缓存再大，堆上也只有很少的对象，GC的停顿不会随缓存变长。
+ * <p>
+ * 内存由若干个direct ByteBuffer(chunk)组成，每个chunk不超过1GB(一个ByteBuffer最多2GB)，
+ * 被切成页大小的frame，用编号访问。空闲的frame保存在一个int栈中。
+ * direct内存的上限由-XX:MaxDirectMemorySize决定
+ *
+ * @see BufferPool#BufferPool(int, PageReplacement, boolean)
+ */
+public class PageArena {
+
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final int numFrames;
+
+    //空闲frame的编号，free[0, freeCount)有效
+    private final int[] free;
+    private int freeCount;
+
+    /**
+     * @param numFrames frame的个数
+     * @param pageSize  每个frame的字节数
+     */
+    public PageArena(int numFrames, int pageSize) {
+        this.pageSize = pageSize;
+        this.numFrames = numFrames;
+        this.framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / pageSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+        free = new int[numFrames];
+        //倒序放入，先分配编号小的frame
+        for (int i = 0; i < numFrames; i++) {
+            free[i] = numFrames - 1 - i;
+        }
+        freeCount = numFrames;
+    }
+
+    /**
+     * @return 一个空闲frame的编号，没有空闲的frame时返回-1
+     */
+    public synchronized int allocate() {
+        return freeCount == 0 ? -1 : free[--freeCount];
+    }
+
+    /**
+     * 归还frame，之后它可能马上被分配给别的页
+     */
+    public synchronized void release(int frame) {
+        if (frame < 0 || frame >= numFrames || freeCount == numFrames) {
+            throw new IllegalArgumentException("invalid frame " + frame);
+        }
+        free[freeCount++] = frame;
+    }
+
+    /**
+     * @return frame的视图，position为0，limit为页大小。每次调用返回一个新的ByteBuffer对象，
+     * 但它们共享同一块内存
+     */
+    public ByteBuffer frame(int frame) {
+        ByteBuffer buf = chunks[frame / framesPerChunk].duplicate();
+        int offset = (frame % framesPerChunk) * pageSize;
+        buf.limit(offset + pageSize);
+        buf.position(offset);
+        return buf.slice();
+    }
+
+    /**
+     * @return frame的字节数
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return frame的总数
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * @return 正在使用的frame数
+     */
+    public synchronized int getUsedFrames() {
+        return numFrames - freeCount;
+    }
+
+    /**
+     * @return 堆外内存的总字节数
+     */
+    public long getCapacityBytes() {
+        return (long) numFrames * pageSize;
+    }
+}
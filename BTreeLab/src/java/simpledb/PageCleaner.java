@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台写回线程：定期查看每个Segment的冷端，即替换策略接下来会淘汰的那些页，把其中已提交事务的脏页写回磁盘，
+ * 这样这些页被淘汰时已经是干净的，查询线程不用在getPage里等待写盘。
+ * <p>
+ * 写页之前先调用LogFile.force()，保证日志先于数据页落盘(WAL)。一轮中要写的页共用一次force，
+ * 写完之后这些页所在的表的side file也一起写一次(见{@link FlushableMaps})。
+ * 未提交事务的脏页不会被写，淘汰时还是由BufferPool自己写回。
+ * <p>
+ * 由{@link BufferPool#startPageCleaner(long)}启动，{@link BufferPool#stopPageCleaner()}停止
+ */
+public class PageCleaner implements Runnable {
+
+    //每个Segment查看冷端的比例，即查看Segment容量的1/COLD_FRACTION
+    private static final int COLD_FRACTION = 4;
+
+    //每隔多少轮清理一次BufferPool中已经没有脏页的已提交事务
+    private static final int PRUNE_PASSES = 16;
+
+    private final BufferPool bufferPool;
+
+    private final long intervalMillis;
+
+    private volatile boolean running = true;
+
+    //被唤醒但还没开始的一轮
+    private boolean pending;
+
+    private final long startNanos = System.nanoTime();
+
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong passes = new AtomicLong();
+
+    //上一轮开始时冷端中等待写回的脏页数
+    private volatile int backlog;
+
+    /**
+     * @param bufferPool     要清理的缓冲池
+     * @param intervalMillis 两轮之间的间隔
+     */
+    PageCleaner(BufferPool bufferPool, long intervalMillis) {
+        this.bufferPool = bufferPool;
+        this.intervalMillis = Math.max(1, intervalMillis);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                cleanOnce();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (!pending && running) {
+                    try {
+                        wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                pending = false;
+            }
+        }
+    }
+
+    /**
+     * 执行一轮写回
+     *
+     * @return 这一轮写回的页数
+     */
+    int cleanOnce() throws IOException {
+        if (passes.incrementAndGet() % PRUNE_PASSES == 0) {
+            bufferPool.pruneCommitted();
+        }
+        List<Page> cleanable = bufferPool.findCleanablePages(
+                Math.max(1, bufferPool.getPagesPerSegment() / COLD_FRACTION));
+        backlog = cleanable.size();
+        if (cleanable.isEmpty()) {
+            return 0;
+        }
+        //WAL：日志要先于数据页写到磁盘
+        Database.getLogFile().force();
+        int written = 0;
+        for (Page page : cleanable) {
+            if (bufferPool.cleanPage(page)) {
+                written++;
+            }
+        }
+        //写回的页在FreeSpaceMap、ZoneMap中的项一轮写一次
+        if (written > 0) {
+            bufferPool.flushMaps(cleanable);
+        }
+        pagesWritten.addAndGet(written);
+        return written;
+    }
+
+    /**
+     * 不等到间隔结束，马上开始下一轮
+     */
+    synchronized void wakeUp() {
+        pending = true;
+        notify();
+    }
+
+    synchronized void stop() {
+        running = false;
+        notify();
+    }
+
+    /**
+     * @return the number of pages written by the cleaner so far
+     */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /**
+     * @return the number of passes the cleaner has made so far
+     */
+    public long getPasses() {
+        return passes.get();
+    }
+
+    /**
+     * @return pages written per second since the cleaner started
+     */
+    public double getWriteRate() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds <= 0 ? 0 : pagesWritten.get() / seconds;
+    }
+
+    /**
+     * @return the number of committed dirty pages found at the cold end when the
+     * last pass started
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+}
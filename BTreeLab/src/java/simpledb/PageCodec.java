@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HeapPage、BTreeLeafPage和BTreeInternalPage共用的页编码和解码方法。
+ * <p>
+ * 所有读写都是ByteBuffer上的绝对位置get/put(见{@link Type#parse(ByteBuffer, int)}和
+ * {@link Field#serialize(ByteBuffer, int)})：不改变buffer的position，所以同一个buffer(比如内存映射的一段区域)
+ * 可以被多个线程同时解码；也没有DataInputStream/DataOutputStream每个字节一次的虚方法调用。
+ * <p>
+ * 编码时先分配一个全0的页，空的slot和页尾的填充本来就是0，不需要再写
+ */
+final class PageCodec {
+
+    //解码不是数组实现的buffer(直接内存、内存映射)时复用的临时数组，每个线程一个
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[Type.STRING_LEN];
+        }
+    };
+
+    private PageCodec() {
+    }
+
+    /**
+     * @return 一个新的全0的页，调用者编码完成后用array()取得页的数据
+     */
+    static ByteBuffer allocatePage() {
+        return ByteBuffer.wrap(new byte[BufferPool.getPageSize()]);
+    }
+
+    /**
+     * 检查data的position到limit之间是不是一个完整的页
+     *
+     * @return 从data的position开始的视图，position为0，不影响data本身
+     */
+    static ByteBuffer pageView(ByteBuffer data) throws java.io.IOException {
+        if (data.remaining() < BufferPool.getPageSize()) {
+            throw new java.io.IOException("page data is shorter than " + BufferPool.getPageSize() + " bytes");
+        }
+        return data.slice();
+    }
+
+    /**
+     * 把src中[offset, offset + length)的字节复制到dst的dstOffset处
+     */
+    static void copy(ByteBuffer src, int offset, byte[] dst, int dstOffset, int length) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + offset, dst, dstOffset, length);
+        } else {
+            ByteBuffer dup = src.duplicate();
+            dup.position(offset);
+            dup.get(dst, dstOffset, length);
+        }
+    }
+
+    /**
+     * @return src中[offset, offset + length)的字节的副本
+     */
+    static byte[] getBytes(ByteBuffer src, int offset, int length) {
+        byte[] dst = new byte[length];
+        copy(src, offset, dst, 0, length);
+        return dst;
+    }
+
+    /**
+     * @return 整个页的副本，用作修改前的数据(before image)。只是复制，不需要再编码一次
+     */
+    static byte[] copyPage(ByteBuffer page) {
+        return getBytes(page, 0, BufferPool.getPageSize());
+    }
+
+    /**
+     * 把src写到dst的offset处，dst是{@link #allocatePage()}分配的页
+     */
+    static void putBytes(ByteBuffer dst, int offset, byte[] src) {
+        System.arraycopy(src, 0, dst.array(), dst.arrayOffset() + offset, src.length);
+    }
+
+    /**
+     * 解码StringField用的临时数组，长度至少为length。
+     * 只能在当前线程里立即使用，不能保留引用
+     */
+    static byte[] scratch(int length) {
+        byte[] buf = scratch.get();
+        if (buf.length < length) {
+            buf = new byte[length];
+            scratch.set(buf);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+/**
+ * The page replacement policies a BufferPool can be constructed with.
+ *
+ * @see BufferPool#BufferPool(int, PageReplacement)
+ */
+public enum PageReplacement {
+
+    /**
+     * Plain least-recently-used, the original behaviour of the buffer pool.
+     */
+    LRU {
+        @Override
+        public <K> ReplacementPolicy<K> create(int capacity) {
+            return new LruPolicy<>();
+        }
+    },
+
+    /**
+     * 2Q: pages seen once wait in a small FIFO and only pages referenced again
+     * after leaving it reach the main LRU list, so one big scan cannot flush
+     * the hot pages.
+     */
+    TWO_Q {
+        @Override
+        public <K> ReplacementPolicy<K> create(int capacity) {
+            return new TwoQueuePolicy<>(capacity);
+        }
+    },
+
+    /**
+     * CLOCK-Pro: a clock approximation of LIRS that tracks reuse distance
+     * with hot/cold pages and non-resident test entries.
+     */
+    CLOCK_PRO {
+        @Override
+        public <K> ReplacementPolicy<K> create(int capacity) {
+            return new ClockProPolicy<>(capacity);
+        }
+    };
+
+    /**
+     * @param capacity the number of pages the policy is expected to hold
+     * @return a new, empty policy instance
+     */
+    public abstract <K> ReplacementPolicy<K> create(int capacity);
+}
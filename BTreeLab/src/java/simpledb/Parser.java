@@ -521,8 +521,14 @@ public class Parser {
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null)
+                    if (query != null) {
                         query.execute();
+                        // print the plan again when a hash join spilled, to show how much
+                        if (explain && s instanceof ZQuery && hasSpilled(query.getPhysicalPlan())) {
+                            System.out.println("The executed query plan is:");
+                            new QueryPlanVisualizer().printQueryPlanTree(query.getPhysicalPlan(), System.out);
+                        }
+                    }
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
@@ -568,6 +574,24 @@ public class Parser {
         }
     }
 
+    /**
+     * @return true if plan contains a HashEquiJoin that spilled partitions to
+     *         disk when it ran
+     */
+    private static boolean hasSpilled(DbIterator plan) {
+        if (plan instanceof HashEquiJoin && ((HashEquiJoin) plan).getSpilledPartitions() > 0) {
+            return true;
+        }
+        if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                if (hasSpilled(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
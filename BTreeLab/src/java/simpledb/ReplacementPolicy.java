@@ -0,0 +1,54 @@
+package simpledb;
+
+import java.util.List;
+
+/**
+ * ReplacementPolicy decides which cached page the BufferPool evicts when it
+ * needs room for a new page.
+ * <p>
+ * BufferPool keeps one policy instance per segment and only calls it while
+ * holding that segment's lock, so implementations need not be thread-safe.
+ * The policy only tracks keys; the pages themselves stay in the segment.
+ *
+ * @see PageReplacement
+ * @see BufferPool
+ */
+public interface ReplacementPolicy<K> {
+
+    /**
+     * Record a hit on a key that is already resident.
+     */
+    void recordAccess(K key);
+
+    /**
+     * Record that key has just been read into the cache.
+     */
+    void recordInsert(K key);
+
+    /**
+     * Forget a resident key that left the cache without being chosen by
+     * {@link #evict()}, e.g. because of {@link BufferPool#discardPage}.
+     */
+    void remove(K key);
+
+    /**
+     * Choose a resident key to evict and stop tracking it as resident.
+     *
+     * @return the victim, or null if no key is resident
+     */
+    K evict();
+
+    /**
+     * Look at the cold end of the policy without changing its state. Used by
+     * the {@link PageCleaner} to write dirty pages before they are evicted.
+     *
+     * @param n the maximum number of keys to return
+     * @return up to n resident keys, roughly in the order they would be evicted
+     */
+    List<K> coldest(int n);
+
+    /**
+     * @return the number of resident keys tracked by this policy
+     */
+    int size();
+}
@@ -22,6 +22,15 @@ public class SeqScan implements DbIterator {
 
     private TupleDesc td;
 
+    //只返回这些列，null表示所有列
+    private int[] columns;
+
+    //tupleIterator返回的tuple是否已经只有columns中的列(表是ColumnarFile时由表完成投影)
+    private boolean projectedByFile;
+
+    //父算子下推的谓词，表是HeapFile时用来跳过页
+    private final List<Predicate> pushedDown = new ArrayList<>();
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -37,10 +46,25 @@ public class SeqScan implements DbIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that only returns the given columns of the
+     * table, in the given order. For a {@link ColumnarFile} only those
+     * columns are read from the pages; for other tables the remaining fields
+     * of each tuple are simply not copied.
+     *
+     * @param columns the columns to return, null for all columns
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
         this.tid = tid;
         this.tableAlias = tableAlias;
         this.tableid = tableid;
-        tupleIterator = Database.getCatalog().getDbFile(tableid).iterator(tid);
+        this.columns = columns;
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        projectedByFile = columns != null && file instanceof ColumnarFile;
+        tupleIterator = projectedByFile ? ((ColumnarFile) file).iterator(tid, columns) : file.iterator(tid);
     }
 
     /**
@@ -74,6 +98,59 @@ public class SeqScan implements DbIterator {
         // some code goes here
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.td = null;
+    }
+
+    /**
+     * @return 返回的tuple是否按field升序：表是按这一列做key的BTreeFile时，扫描是按key的顺序读叶子页的
+     */
+    public boolean isSortedOn(int field) {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        int column = columns == null ? field : columns[field];
+        return file instanceof BTreeFile && ((BTreeFile) file).keyField() == column;
+    }
+
+    /**
+     * @return 能否用indexIterator按field查找：表是按这一列做key的BTreeFile，并且扫描返回整个tuple
+     */
+    public boolean isIndexedOn(int field) {
+        return columns == null && isSortedOn(field);
+    }
+
+    /**
+     * Looks up the tuples of the scanned table that satisfy ipred through its
+     * B+ tree, as part of the transaction of this scan, instead of reading the
+     * whole table. Only valid when {@link #isIndexedOn(int)} holds for the key
+     * field.
+     *
+     * @param ipred the predicate on the key field
+     * @return an unopened iterator over the matching tuples
+     */
+    public DbFileIterator indexIterator(IndexPredicate ipred) {
+        return ((BTreeFile) Database.getCatalog().getDbFile(tableid)).indexIterator(tid, ipred);
+    }
+
+    /**
+     * Passes down a predicate that a parent operator applies to the tuples of
+     * this scan. A {@link HeapFile} uses it to skip the pages that cannot hold
+     * a matching tuple, see {@link HeapFile#iterator(TransactionId, List)};
+     * the tuples of the pages that are read are still all returned. Has no
+     * effect on other tables, and must be called before open().
+     *
+     * @param p a predicate on the fields of {@link #getTupleDesc()}
+     */
+    public void pushDown(Predicate p) {
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (!(file instanceof HeapFile) || pushedDown.contains(p)) {
+            return;
+        }
+        pushedDown.add(p);
+        //谓词的下标是返回的tuple中的下标，换成表中的列
+        List<Predicate> onFile = new ArrayList<>();
+        for (Predicate q : pushedDown) {
+            onFile.add(columns == null ? q : new Predicate(columns[q.getIndex()], q.getOp(), q.getOperand()));
+        }
+        tupleIterator = ((HeapFile) file).iterator(tid, onFile);
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -100,6 +177,9 @@ public class SeqScan implements DbIterator {
             return td;
         }
         TupleDesc desc = Database.getCatalog().getTupleDesc(tableid);
+        if (columns != null) {
+            desc = ColumnarFile.project(desc, columns);
+        }
         int fieldNum = desc.numFields();
         Type[] types = new Type[fieldNum];
         String[] names = new String[fieldNum];
@@ -111,7 +191,9 @@ public class SeqScan implements DbIterator {
             fieldName = fieldName == null ? "null" : fieldName;
             names[i] = prefix + fieldName;
         }
-        return new TupleDesc(types, names);
+        //每个tuple都要用到，只生成一次
+        td = new TupleDesc(types, names);
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -127,14 +209,18 @@ public class SeqScan implements DbIterator {
     }
 
     /**
-     * 将tuple的tupleDesc加上Alias
+     * 将tuple的tupleDesc加上Alias。没有投影时只换TupleDesc，延迟解析的Field仍然在被访问时才解析，
+     * 这样Filter只解析谓词用到的列
      * @param old
      * @return
      */
     private Tuple transTd(Tuple old) {
+        if (columns == null || projectedByFile) {
+            return old.withTupleDesc(getTupleDesc());
+        }
         Tuple result = new Tuple(getTupleDesc());
-        for(int i=0;i<old.getTupleDesc().numFields();i++) {
-            result.setField(i, old.getField(i));
+        for (int i = 0; i < columns.length; i++) {
+            result.setField(i, old.getField(columns[i]));
         }
         return result;
     }
@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 由{@link SlottedHeapPage}组成的堆文件，记录是变长的，用于字符串列多、字符串又大多很短的表。
+ * 和HeapFile一样没有顺序，页号从0开始，页大小是BufferPool.getPageSize()。
+ * <p>
+ * 插入同样使用空闲空间表(这里记录的是每页空闲的字节数)和按extent增长的文件，见{@link AbstractPageFile}
+ *
+ * @see HeapFileEncoder#convertSlotted
+ */
+public class SlottedHeapFile extends AbstractPageFile<SlottedHeapPage> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ExtentAllocator extents;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f  the file that stores the on-disk backing store for this file
+     * @param td the schema of the tuples in the file
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        super(f, td, SlottedHeapPage.class);
+        this.extents = new ExtentAllocator(channel, 0, BufferPool.getPageSize());
+    }
+
+    @Override
+    public int numPages() {
+        return extents.getNumPages();
+    }
+
+    public ExtentAllocator getExtents() {
+        return extents;
+    }
+
+    @Override
+    public Page readPage(PageId pid) throws IllegalArgumentException, IOException {
+        if (pid.getTableId() != getId()) {
+            throw new IllegalArgumentException();
+        }
+        byte[] data = new byte[BufferPool.getPageSize()];
+        channel.read(data, (long) pid.pageNumber() * BufferPool.getPageSize());
+        SlottedHeapPage page = new SlottedHeapPage((HeapPageId) pid, data);
+        page.freeSpaceMap = freeSpaceMap;
+        return page;
+    }
+
+    @Override
+    public void writePage(Page page) throws IOException {
+        int pageNo = page.getId().pageNumber();
+        channel.write(page.getPageData(), (long) pageNo * BufferPool.getPageSize());
+        extents.written(pageNo);
+        freeSpaceMap.persist(pageNo, Math.min(((SlottedHeapPage) page).getFreeBytes(), Short.MAX_VALUE - 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        extents.trim();
+        channel.close();
+        freeSpaceMap.close();
+    }
+
+    @Override
+    protected int allocatePage() throws IOException {
+        return extents.allocate();
+    }
+
+    @Override
+    protected boolean fits(SlottedHeapPage page, Tuple t) {
+        return page.fits(t);
+    }
+
+    @Override
+    protected void insertTuple(SlottedHeapPage page, Tuple t) throws DbException {
+        page.insertTuple(t);
+    }
+
+    @Override
+    protected void deleteTuple(SlottedHeapPage page, Tuple t) throws DbException {
+        page.deleteTuple(t);
+    }
+
+    @Override
+    protected Iterator<Tuple> tuples(SlottedHeapPage page) {
+        return page.iterator();
+    }
+}
@@ -0,0 +1,432 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 变长记录的slotted page，是{@link SlottedHeapFile}的页。HeapPage中每个STRING都占STRING_LEN + 4个字节，
+ * 这里的记录只保存实际的字符，短字符串多的表一页能放下多得多的tuple。
+ * <p>
+ * 页的格式(无符号16位整数都是big-endian)：
+ * <pre>
+ * [0, 2)            slot的个数n
+ * [2, 4)            记录区的起始位置，0表示页大小(空页)
+ * [4, 4 + 4n)       slot目录，每项是记录的偏移量和长度，长度为0表示空的slot
+ * ...               空闲空间
+ * [起始位置, 页尾)  记录，从页尾往前放
+ * </pre>
+ * 记录中的INT占4个字节，STRING是1个字节的长度加上字符(每个字符只写低8位，和StringField.serialize相同)。
+ * <p>
+ * 删除只把slot的长度改为0，slot的编号(RecordId)不变；插入时连续的空闲空间不够但总的空闲空间够，
+ * 就把记录挤到页尾，去掉删除留下的空洞。页的大小不能超过64KB
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedHeapPage implements Page {
+
+    // 页头的字节数
+    static final int HEADER_SIZE = 4;
+    private static final int SLOT_SIZE = 4;
+
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int pageSize;
+
+    // 页的内容，插入和删除直接修改它
+    private final ByteBuffer data;
+
+    // 已经解析的tuple，下标是slot的编号
+    private Tuple[] tuples;
+
+    private int numSlots;
+    private int dataStart;
+    // 空闲的字节数，包括删除留下的空洞
+    private int freeBytes;
+
+    private TransactionId lastDirtyOperation;
+
+    // 所属SlottedHeapFile的空闲空间表，记录的是空闲的字节数
+    FreeSpaceMap freeSpaceMap;
+
+    // 修改前的数据，第一次修改或者被markDirty(true, tid)时才保留下来
+    byte[] oldData;
+
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = data.length;
+        if (pageSize > 1 << 16) {
+            throw new IOException("slotted pages can not be larger than 64KB");
+        }
+        this.data = ByteBuffer.wrap(data);
+        this.numSlots = this.data.getChar(0);
+        this.dataStart = startOf(this.data.getChar(2), pageSize);
+        // 记录之间的空洞也是空闲的
+        int used = HEADER_SIZE + numSlots * SLOT_SIZE;
+        for (int i = 0; i < numSlots; i++) {
+            if (length(i) != 0 && (offset(i) < dataStart || offset(i) + length(i) > pageSize)) {
+                throw new IOException("corrupt slot " + i + " on " + id);
+            }
+            used += length(i);
+        }
+        this.freeBytes = pageSize - used;
+        this.tuples = new Tuple[numSlots];
+    }
+
+    private static int startOf(int stored, int pageSize) {
+        return stored == 0 ? pageSize : stored;
+    }
+
+    private int offset(int slot) {
+        return data.getChar(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int length(int slot) {
+        return data.getChar(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        data.putChar(HEADER_SIZE + slot * SLOT_SIZE, (char) offset);
+        data.putChar(HEADER_SIZE + slot * SLOT_SIZE + 2, (char) length);
+    }
+
+    private void setHeader() {
+        data.putChar(0, (char) numSlots);
+        data.putChar(2, (char) (dataStart == pageSize ? 0 : dataStart));
+    }
+
+    /**
+     * @return 记录t所需的字节数
+     */
+    public static int recordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                size += 1 + Math.min(((StringField) t.getField(i)).getValue().length(), Type.STRING_LEN);
+            } else {
+                size += td.getFieldType(i).getLen();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 把t写成记录，放在buf的offset处
+     */
+    static void writeRecord(ByteBuffer buf, int offset, Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int pos = offset;
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                String s = ((StringField) f).getValue();
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                buf.put(pos++, (byte) len);
+                for (int j = 0; j < len; j++) {
+                    buf.put(pos++, (byte) s.charAt(j));
+                }
+            } else {
+                buf.putInt(pos, ((IntField) f).getValue());
+                pos += 4;
+            }
+        }
+    }
+
+    private Tuple readRecord(int slot) {
+        Tuple t = new Tuple(td);
+        int pos = offset(slot);
+        byte[] bytes = data.array();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                int len = bytes[pos++] & 0xff;
+                t.setField(i, new StringField(new String(bytes, pos, len), Type.STRING_LEN));
+                pos += len;
+            } else {
+                t.setField(i, new IntField(data.getInt(pos)));
+                pos += 4;
+            }
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    /**
+     * 在一个空页上依次放入tuples，用于生成新文件
+     *
+     * @return 页的数据
+     * @throws IllegalArgumentException 一页放不下这些tuple
+     * @see HeapFileEncoder#convertSlotted
+     */
+    public static byte[] createPageData(List<Tuple> tuples, int pageSize) {
+        if (usedBytes(tuples) > pageSize) {
+            throw new IllegalArgumentException("tuples do not fit on one page");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        int start = pageSize;
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple t = tuples.get(i);
+            int len = recordSize(t);
+            start -= len;
+            writeRecord(buf, start, t);
+            buf.putChar(HEADER_SIZE + i * SLOT_SIZE, (char) start);
+            buf.putChar(HEADER_SIZE + i * SLOT_SIZE + 2, (char) len);
+        }
+        buf.putChar(0, (char) tuples.size());
+        buf.putChar(2, (char) (start == pageSize ? 0 : start));
+        return buf.array();
+    }
+
+    /**
+     * @return 只放tuples的一页使用的字节数
+     */
+    public static int usedBytes(List<Tuple> tuples) {
+        int used = HEADER_SIZE;
+        for (Tuple t : tuples) {
+            used += bytesFor(t);
+        }
+        return used;
+    }
+
+    /**
+     * @return 在页上放t使用的字节数，包括slot目录项
+     */
+    static int bytesFor(Tuple t) {
+        return SLOT_SIZE + recordSize(t);
+    }
+
+    /**
+     * @return 空页的数据
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    @Override
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    @Override
+    public TransactionId isDirty() {
+        return lastDirtyOperation;
+    }
+
+    @Override
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty) {
+            keepBeforeImage();
+        }
+        lastDirtyOperation = dirty ? tid : null;
+    }
+
+    private void keepBeforeImage() {
+        if (oldData == null) {
+            oldData = getPageData();
+        }
+    }
+
+    @Override
+    public byte[] getPageData() {
+        return Arrays.copyOf(data.array(), pageSize);
+    }
+
+    @Override
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(pid, oldData != null ? Arrays.copyOf(oldData, pageSize) : getPageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    @Override
+    public void setBeforeImage() {
+        oldData = getPageData();
+    }
+
+    /**
+     * @return 空闲的字节数，包括删除留下的空洞
+     */
+    public int getFreeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     * @return 插入t需要的字节数，没有空的slot可以重用时还要加上一个slot目录项
+     */
+    private int spaceFor(Tuple t) {
+        int size = recordSize(t);
+        for (int i = 0; i < numSlots; i++) {
+            if (length(i) == 0) {
+                return size;
+            }
+        }
+        return size + SLOT_SIZE;
+    }
+
+    /**
+     * @return 这一页能否放下t
+     */
+    public boolean fits(Tuple t) {
+        return spaceFor(t) <= freeBytes;
+    }
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     *
+     * @throws DbException if the tuple does not fit on this page or its
+     *                     TupleDesc does not match
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("tupleDesc is mismatch");
+        }
+        int size = recordSize(t);
+        if (size == 0) {
+            //长度为0的slot表示空的slot
+            throw new DbException("can not store an empty record");
+        }
+        if (!fits(t)) {
+            throw new DbException("the page is full");
+        }
+        keepBeforeImage();
+        int slot = 0;
+        while (slot < numSlots && length(slot) != 0) {
+            slot++;
+        }
+        int directoryEnd = HEADER_SIZE + Math.max(numSlots, slot + 1) * SLOT_SIZE;
+        if (dataStart - size < directoryEnd) {
+            compact();
+        }
+        if (slot == numSlots) {
+            numSlots++;
+            tuples = Arrays.copyOf(tuples, numSlots);
+            freeBytes -= SLOT_SIZE;
+        }
+        dataStart -= size;
+        writeRecord(data, dataStart, t);
+        setSlot(slot, dataStart, size);
+        setHeader();
+        freeBytes -= size;
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+        updateFreeSpaceMap();
+    }
+
+    /**
+     * 把所有的记录挤到页尾，去掉删除留下的空洞
+     */
+    private void compact() {
+        Integer[] order = new Integer[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            order[i] = i;
+        }
+        // 按偏移量从大到小移动，记录只会往页尾移动，不会覆盖还没有移动的记录
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return offset(b) - offset(a);
+            }
+        });
+        byte[] bytes = data.array();
+        int end = pageSize;
+        for (int slot : order) {
+            int len = length(slot);
+            if (len == 0) {
+                continue;
+            }
+            end -= len;
+            System.arraycopy(bytes, offset(slot), bytes, end, len);
+            setSlot(slot, end, len);
+        }
+        dataStart = end;
+        setHeader();
+    }
+
+    /**
+     * Deletes the specified tuple from the page. Its slot stays in the
+     * directory, so the RecordIds of other tuples do not change.
+     *
+     * @throws DbException if this tuple is not on this page, or its slot is
+     *                     already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int slot = rid == null ? -1 : rid.tupleno();
+        if (rid == null || !pid.equals(rid.getPageId()) || slot >= numSlots || length(slot) == 0) {
+            throw new DbException("this tuple is not on this page, or tuple slot is already empty");
+        }
+        keepBeforeImage();
+        freeBytes += length(slot);
+        setSlot(slot, 0, 0);
+        tuples[slot] = null;
+        updateFreeSpaceMap();
+    }
+
+    private void updateFreeSpaceMap() {
+        if (freeSpaceMap != null) {
+            freeSpaceMap.update(pid.pageNumber(), Math.min(freeBytes, Short.MAX_VALUE - 1));
+        }
+    }
+
+    /**
+     * @return the number of tuples on this page
+     */
+    public int getNumTuples() {
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (length(i) != 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while (from < numSlots && length(from) == 0) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = tuples[slot];
+                if (t == null) {
+                    t = readRecord(slot);
+                    tuples[slot] = t;
+                }
+                slot = advance(slot + 1);
+                return t;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of tuples spilled by an operator that ran out of memory.
+ * Tuples are appended with {@link #add}, and after {@link #finish} the file
+ * is read back in the same order as a DbIterator, as many times as needed.
+ * The file is removed by {@link #delete}, or when the JVM exits.
+ */
+class SpillFile implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TupleDesc td;
+    private final File file;
+    private transient DataOutputStream out;
+    private transient DataInputStream in;
+    private int count;
+    private int read;
+
+    /**
+     * @param td     the schema of the tuples
+     * @param prefix the prefix of the temporary file name
+     */
+    SpillFile(TupleDesc td, String prefix) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile(prefix, ".spill");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch (IOException e) {
+            throw new DbException("could not create a spill file: " + e.getMessage());
+        }
+    }
+
+    void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write " + file + ": " + e.getMessage());
+        }
+        count++;
+    }
+
+    /**
+     * Flushes the tuples added so far; no more can be added afterwards.
+     */
+    void finish() throws DbException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of tuples in the file
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes in the file
+     */
+    long getBytes() {
+        return (long) count * td.getSize();
+    }
+
+    void delete() {
+        close();
+        try {
+            out.close();
+        } catch (IOException e) {
+            // deleted anyway
+        }
+        file.delete();
+    }
+
+    @Override
+    public void open() throws DbException {
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (IOException e) {
+            throw new DbException("could not read " + file + ": " + e.getMessage());
+        }
+        read = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return read < count;
+    }
+
+    @Override
+    public Tuple next() throws DbException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, td.getFieldType(i).parse(in));
+            }
+        } catch (ParseException e) {
+            throw new DbException("could not read " + file + ": " + e.getMessage());
+        }
+        read++;
+        return t;
+    }
+
+    @Override
+    public void rewind() throws DbException {
+        close();
+        open();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    @Override
+    public void close() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // only read from
+            }
+            in = null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 一个字符串列的字典：列中出现过的每个不同的值对应一个从0开始的整数编码，页中只保存编码。
+ * 编码一旦分配就不会改变，字典只会增长，保存和加载由{@link DictionaryEncoding}负责。
+ * <p>
+ * 解码返回的是字典中保存的同一个String对象，所以解码不会分配内存，String缓存的hashCode也只计算一次
+ *
+ * @see DictionaryField
+ */
+public class StringDictionary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * lookup()找不到值时返回的编码
+     */
+    public static final int NOT_FOUND = -1;
+
+    //编码到值，容量不够时加倍。每次加入值后都重新赋值这个volatile字段，decode()不需要加锁就能读到新加入的值
+    private volatile String[] values = new String[16];
+    private int size;
+    private final HashMap<String, Integer> codes = new HashMap<>();
+
+    //上一次查找的值和结果。谓词中的常量每一行都是同一个对象，按引用比较就不需要再查HashMap
+    private transient volatile Object[] lastLookup;
+
+    /**
+     * @return 值的编码，不在字典中时返回{@link #NOT_FOUND}
+     */
+    public int lookup(String value) {
+        Object[] last = lastLookup;
+        if (last != null && last[0] == value) {
+            return (Integer) last[1];
+        }
+        int code;
+        synchronized (this) {
+            Integer c = codes.get(value);
+            code = c == null ? NOT_FOUND : c;
+        }
+        //找不到的值之后可能会被加入字典，不缓存
+        if (code != NOT_FOUND) {
+            lastLookup = new Object[]{value, code};
+        }
+        return code;
+    }
+
+    /**
+     * @return 编码对应的值
+     */
+    public String decode(int code) {
+        return values[code];
+    }
+
+    /**
+     * 把值加入字典，由DictionaryEncoding在保存了这个值之后调用
+     *
+     * @return 新的编码
+     */
+    synchronized int add(String value) {
+        int code = size++;
+        String[] v = values;
+        if (code == v.length) {
+            v = Arrays.copyOf(v, v.length * 2);
+        }
+        v[code] = value;
+        values = v;
+        codes.put(value, code);
+        return code;
+    }
+
+    /**
+     * @return 字典中不同的值的个数
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
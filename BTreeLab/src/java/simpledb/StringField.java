@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -67,6 +68,23 @@ public class StringField implements Field {
             dos.write((byte) 0);
     }
 
+    /**
+     * 和serialize(DataOutputStream)写出相同的maxSize + 4个字节。
+     * 和DataOutputStream.writeBytes()一样，每个字符只写低8位
+     */
+    public void serialize(ByteBuffer buf, int offset) {
+        int len = Math.min(value.length(), maxSize);
+        buf.putInt(offset, len);
+        int pos = offset + 4;
+        for (int i = 0; i < len; i++) {
+            buf.put(pos++, (byte) value.charAt(i));
+        }
+        //填充0字节达到最大长度
+        for (int end = offset + 4 + maxSize; pos < end; pos++) {
+            buf.put(pos, (byte) 0);
+        }
+    }
+
     /**
      * Compare the specified field to the value of this Field. Return semantics
      * are as specified by Field.compare
@@ -61,7 +61,7 @@ public class TableStats {
     //Key是该表的每一列的FieldName，Value是最小值和最大值的数组
     private HashMap<String, Integer[]> attrs;
     private HashMap<String, Object> name2hist;
-    private HeapFile table;
+    private DbFile table;
     private int ntups;
     private int ioCostPerPage;
     private TupleDesc td;
@@ -84,7 +84,7 @@ public class TableStats {
         // in a single scan of the table.
         // some code goes here
         this.ioCostPerPage = ioCostPerPage;
-        table = (HeapFile) Database.getCatalog().getDbFile(tableid);
+        table = Database.getCatalog().getDbFile(tableid);
         td = table.getTupleDesc();
         attrs = new HashMap<>();
         name2hist = new HashMap<>();
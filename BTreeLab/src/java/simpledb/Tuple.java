@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -20,6 +22,11 @@ public class Tuple implements Serializable {
 
     private RecordId recordId;
 
+    // 延迟解析的tuple的数据来源和在其中的slot，为null时所有的Field都已经设置好了。
+    // fields中为null的Field在第一次getField时才从source解析
+    private transient LazyTupleSource source;
+    private transient int slot;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -33,6 +40,19 @@ public class Tuple implements Serializable {
         fields = new Field[td.numFields()];
     }
 
+    /**
+     * 创建一个延迟解析的tuple，Field和RecordId在被访问时才从source中解析，
+     * 这样被Filter过滤掉的行只需要解析用到的Field
+     *
+     * @param source tuple所在的页
+     * @param slot   tuple在页中的slot
+     */
+    Tuple(TupleDesc td, LazyTupleSource source, int slot) {
+        this(td);
+        this.source = source;
+        this.slot = slot;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -47,6 +67,9 @@ public class Tuple implements Serializable {
      */
     public RecordId getRecordId() {
         // some code goes here
+        if (recordId == null && source != null) {
+            recordId = source.recordIdOf(slot);
+        }
         return recordId;
     }
 
@@ -84,9 +107,44 @@ public class Tuple implements Serializable {
         if (!isValidIndex(i)) {
             throw new IllegalArgumentException("Field 索引值不合法");
         }
+        Field f = fields[i];
+        if (f == null && source != null) {
+            f = source.decodeField(slot, i);
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    /**
+     * @return 已经解析或者设置了的第i个Field，不会触发解析
+     */
+    Field getDecodedField(int i) {
         return fields[i];
     }
 
+    /**
+     * @return 这个tuple是否是从source的这个slot延迟解析的。同一页中别的slot的tuple被插入到这个slot时，
+     * 它还没有解析的Field在source中是另一个slot的数据，不能直接从这个slot复制
+     */
+    boolean isBackedBy(LazyTupleSource source, int slot) {
+        return this.source == source && this.slot == slot;
+    }
+
+    /**
+     * 返回值和这个tuple相同、TupleDesc换成td的tuple，td只能改变字段名。
+     * 还没有解析的Field不会被解析，新tuple访问它们时仍然从同一个source的同一个slot解析
+     *
+     * @param td 字段类型和这个tuple相同的TupleDesc
+     */
+    Tuple withTupleDesc(TupleDesc td) {
+        Tuple t = new Tuple(td);
+        System.arraycopy(fields, 0, t.fields, 0, fields.length);
+        t.recordId = recordId;
+        t.source = source;
+        t.slot = slot;
+        return t;
+    }
+
     private boolean isValidIndex(int index) {
         return index >= 0 && index < fields.length;
     }
@@ -105,9 +163,9 @@ public class Tuple implements Serializable {
         for (int i = 0; i < fields.length; i++) {
             if (i == fields.length - 1) {
                 //如果是最后一个Field，就接换行符，否则接空格
-                rowString.append(Objects.toString(fields[i],"null") + "\n");
+                rowString.append(Objects.toString(getField(i),"null") + "\n");
             } else {
-                rowString.append(Objects.toString(fields[i],"null") + "\t");
+                rowString.append(Objects.toString(getField(i),"null") + "\t");
             }
         }
         return rowString.toString();
@@ -134,8 +192,19 @@ public class Tuple implements Serializable {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            return fields[pos++];
+            return getField(pos++);
+        }
+    }
+
+    /**
+     * 序列化之前先解析所有的Field，因为source不会被序列化
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            getField(i);
         }
+        getRecordId();
+        out.defaultWriteObject();
     }
 
 
@@ -19,6 +19,9 @@ public class TupleDesc implements Serializable {
      */
     private TDItem[] tdAr;
 
+    //每个字段在tuple中的字节偏移量，第一次使用时计算
+    private transient int[] offsets;
+
 
     /**
      * A help class to facilitate organizing the information of each field
@@ -210,6 +213,28 @@ public class TupleDesc implements Serializable {
         return totalSize;
     }
 
+    /**
+     * @param i index of the field. It must be a valid index.
+     * @return the byte offset of the ith field within a tuple of this TupleDesc
+     * @throws NoSuchElementException if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i < 0 || i >= numFields) {
+            throw new NoSuchElementException();
+        }
+        int[] o = offsets;
+        if (o == null) {
+            o = new int[numFields];
+            int offset = 0;
+            for (int k = 0; k < numFields; k++) {
+                o[k] = offset;
+                offset += tdAr[k].fieldType.getLen();
+            }
+            offsets = o;
+        }
+        return o[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
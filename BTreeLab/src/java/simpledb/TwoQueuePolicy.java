@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 2Q替换策略(Johnson and Shasha, VLDB '94)的完整版本：
+ * <ul>
+ * <li>A1in：只被访问过一次的页，FIFO，目标大小为容量的1/4</li>
+ * <li>A1out：从A1in淘汰的页的key(不缓存页本身)，FIFO，最多为容量的1/2</li>
+ * <li>Am：在A1out中还能找到时又被访问的页，即热页，LRU</li>
+ * </ul>
+ * 一次全表扫描的页只会经过A1in，不会把Am中的热页挤出去
+ */
+public class TwoQueuePolicy<K> implements ReplacementPolicy<K> {
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<K> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<K> a1out = new LinkedHashSet<>();
+    private final LinkedHashMap<K, Boolean> am = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity 预期缓存的页数
+     */
+    public TwoQueuePolicy(int capacity) {
+        kin = Math.max(1, capacity / 4);
+        kout = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        //A1in中的页再次被访问时什么也不做，短时间内的重复访问通常是相关的访问，不能说明是热页
+        am.get(key);
+    }
+
+    @Override
+    public void recordInsert(K key) {
+        if (a1out.remove(key)) {
+            am.put(key, Boolean.TRUE);
+        } else {
+            a1in.add(key);
+        }
+    }
+
+    @Override
+    public void remove(K key) {
+        if (!a1in.remove(key)) {
+            am.remove(key);
+        }
+    }
+
+    @Override
+    public K evict() {
+        if (a1in.size() > kin || (am.isEmpty() && !a1in.isEmpty())) {
+            K victim = removeFirst(a1in.iterator());
+            a1out.add(victim);
+            if (a1out.size() > kout) {
+                removeFirst(a1out.iterator());
+            }
+            return victim;
+        }
+        if (am.isEmpty()) {
+            return null;
+        }
+        return removeFirst(am.keySet().iterator());
+    }
+
+    /**
+     * A1in中的页总是先于Am中的页被淘汰(除非A1in没超过目标大小)，所以先返回A1in，再按LRU顺序返回Am
+     */
+    @Override
+    public List<K> coldest(int n) {
+        List<K> keys = new ArrayList<>(Math.min(n, size()));
+        for (Iterator<K> it = a1in.iterator(); it.hasNext() && keys.size() < n; ) {
+            keys.add(it.next());
+        }
+        for (Iterator<K> it = am.keySet().iterator(); it.hasNext() && keys.size() < n; ) {
+            keys.add(it.next());
+        }
+        return keys;
+    }
+
+    private K removeFirst(Iterator<K> it) {
+        K first = it.next();
+        it.remove();
+        return first;
+    }
+
+    @Override
+    public int size() {
+        return a1in.size() + am.size();
+    }
+}
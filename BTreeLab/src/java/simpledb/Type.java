@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,11 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
         @Override
         public String toString(){
             return "INT";
@@ -55,6 +61,18 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = Math.max(0, Math.min(buf.getInt(offset), STRING_LEN));
+            if (buf.hasArray()) {
+                return new StringField(new String(buf.array(), buf.arrayOffset() + offset + 4, strLen), STRING_LEN);
+            }
+            //直接内存或内存映射的buffer先复制到每个线程复用的临时数组中
+            byte bs[] = PageCodec.scratch(strLen);
+            PageCodec.copy(buf, offset + 4, bs, 0, strLen);
+            return new StringField(new String(bs, 0, strLen), STRING_LEN);
+        }
+
         @Override
         public String toString(){
             return "STRING";
@@ -77,4 +95,13 @@ public enum Type implements Serializable {
      */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+    /**
+     * 从buf的绝对位置offset解析一个Field，不改变buf的position，所以多个线程可以同时从同一个buf解析
+     *
+     * @param buf    the buffer to read from
+     * @param offset the absolute position of the field in buf
+     * @return a Field object of the same type as this object
+     */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
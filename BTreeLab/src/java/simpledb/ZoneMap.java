@@ -0,0 +1,300 @@
+package simpledb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * HeapFile的zone map：记录每页中每个INT列的最小值和最大值。扫描时如果一页的范围不可能满足下推的谓词
+ * ({@link HeapFile#iterator(TransactionId, List)})，就不读这一页。对按顺序追加的id、日期这类列，
+ * 范围查询只需要读很少的页。
+ * <p>
+ * 和{@link FreeSpaceMap}一样，表保存在数据文件旁边的"<数据文件>.zmap"中，每页一项：
+ * [是否已知 byte][第0个INT列的min int][max int][第1个INT列的min int][max int]...，
+ * 文件中没有写过的部分读出来是0，表示不知道。页被写回磁盘时({@link HeapFile#writePage})按页的内容记下它的那一项，
+ * 记下的项先留在内存中，由{@link #flush()}一起写到文件中(见{@link FlushableMaps})；内存中的内容在插入时由HeapPage扩大，
+ * 反映的是缓存中的页。
+ * <p>
+ * 页已经写回、它的项还没有flush的时候，文件中的项可能比磁盘上的页窄，这时程序退出的话下次打开不能相信这个文件。
+ * 所以写回的页有还没flush的项时，文件旁边有一个"<数据文件>.zmap.stale"，flush之后删除；
+ * 打开时发现它就丢掉整个文件，所有页都当作不知道，再从读到的页重新记下来。
+ * 删除时不缩小，回滚的插入也不缩小，范围只会比实际的大，跳过的页一定没有满足谓词的tuple。
+ * <p>
+ * 不知道的页不跳过，从磁盘读到这一页时({@link HeapFile#readPage})再根据它的内容记下来，
+ * 所以没有.zmap文件的旧表第一次扫描时和原来一样，之后就能跳过页了
+ */
+public class ZoneMap implements Closeable, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbFileChannel channel;
+
+    //记录范围的列(表中所有的INT列)
+    private final int[] columns;
+
+    //每一项的字节数
+    private final int entrySize;
+
+    //每页是否已知，第一次使用时从文件加载
+    private transient boolean[] known;
+
+    //第pageNo页第c个记录的列的范围是[mins[pageNo * columns.length + c], maxs[...]]
+    private transient int[] mins;
+    private transient int[] maxs;
+
+    //还没有写到文件中的项，按页号排序
+    private transient TreeMap<Integer, byte[]> pending;
+
+    //pending中是否有写回的页的项，有的话staleMarker存在
+    private transient boolean stale;
+
+    /**
+     * @param file 保存zone map的文件，不存在时在第一次写入时创建
+     * @param td   表的TupleDesc，记录其中所有INT列的范围
+     */
+    public ZoneMap(File file, TupleDesc td) {
+        this.channel = new DbFileChannel(file);
+        this.columns = intColumns(td);
+        this.entrySize = 1 + 8 * columns.length;
+    }
+
+    /**
+     * @return 数据文件对应的zone map文件
+     */
+    public static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".zmap");
+    }
+
+    /**
+     * @return td中所有INT列的下标
+     */
+    public static int[] intColumns(TupleDesc td) {
+        int[] result = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                result[n++] = i;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    public File getFile() {
+        return channel.getFile();
+    }
+
+    /**
+     * @return 写回的页有还没写到文件中的项时存在的标记文件
+     */
+    public File getStaleMarker() {
+        return new File(getFile().getPath() + ".stale");
+    }
+
+    private void load() {
+        if (known != null) {
+            return;
+        }
+        known = new boolean[0];
+        mins = new int[0];
+        maxs = new int[0];
+        pending = new TreeMap<>();
+        if (getStaleMarker().exists()) {
+            //上一次没有flush就退出了，文件中的项可能比磁盘上的页窄
+            getFile().delete();
+            getStaleMarker().delete();
+        }
+        if (!getFile().exists()) {
+            return;
+        }
+        try {
+            long size = channel.size();
+            byte[] data = new byte[(int) Math.min(size, Integer.MAX_VALUE) / entrySize * entrySize];
+            channel.read(data, 0);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            ensureCapacity(data.length / entrySize);
+            for (int i = 0; i < data.length / entrySize; i++) {
+                int pos = i * entrySize;
+                known[i] = buf.get(pos) != 0;
+                for (int c = 0; c < columns.length; c++) {
+                    mins[i * columns.length + c] = buf.getInt(pos + 1 + 8 * c);
+                    maxs[i * columns.length + c] = buf.getInt(pos + 5 + 8 * c);
+                }
+            }
+        } catch (IOException e) {
+            //读不了就当作全都不知道
+            e.printStackTrace();
+        }
+    }
+
+    private void ensureCapacity(int numPages) {
+        if (numPages > known.length) {
+            int capacity = Math.max(numPages, known.length * 2);
+            known = Arrays.copyOf(known, capacity);
+            mins = Arrays.copyOf(mins, capacity * columns.length);
+            maxs = Arrays.copyOf(maxs, capacity * columns.length);
+        }
+    }
+
+    /**
+     * @return 内存中是否记录了这一页的范围
+     */
+    public synchronized boolean isKnown(int pageNo) {
+        load();
+        return pageNo < known.length && known[pageNo];
+    }
+
+    /**
+     * @return 内存中记录的一页中column列的最小值，不知道时返回Integer.MIN_VALUE
+     * @throws IllegalArgumentException column不是INT列
+     */
+    public synchronized int getMin(int pageNo, int column) {
+        int c = indexOf(column);
+        return isKnown(pageNo) ? mins[pageNo * columns.length + c] : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return 内存中记录的一页中column列的最大值，不知道时返回Integer.MAX_VALUE
+     * @throws IllegalArgumentException column不是INT列
+     */
+    public synchronized int getMax(int pageNo, int column) {
+        int c = indexOf(column);
+        return isKnown(pageNo) ? maxs[pageNo * columns.length + c] : Integer.MAX_VALUE;
+    }
+
+    private int indexOf(int column) {
+        for (int c = 0; c < columns.length; c++) {
+            if (columns[c] == column) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("column " + column + " is not an INT column");
+    }
+
+    /**
+     * 插入t之后扩大内存中一页的范围，由HeapPage在插入之后调用。不知道的页仍然不知道
+     */
+    public synchronized void widen(int pageNo, Tuple t) {
+        if (!isKnown(pageNo)) {
+            return;
+        }
+        for (int c = 0; c < columns.length; c++) {
+            int v = ((IntField) t.getField(columns[c])).getValue();
+            int i = pageNo * columns.length + c;
+            mins[i] = Math.min(mins[i], v);
+            maxs[i] = Math.max(maxs[i], v);
+        }
+    }
+
+    /**
+     * 从磁盘读到一页时调用：这一页的范围还不知道时根据它的内容记下来，下一次{@link #flush()}时写到文件中
+     */
+    public void learn(HeapPage page) {
+        if (!isKnown(page.getId().pageNumber())) {
+            try {
+                record(page, false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 根据页的内容设置一页的范围，由HeapFile在把这一页写回磁盘时调用。下一次{@link #flush()}时写到文件中
+     */
+    public void persist(HeapPage page) throws IOException {
+        record(page, true);
+    }
+
+    private void record(HeapPage page, boolean written) throws IOException {
+        int pageNo = page.getId().pageNumber();
+        int[] lo = new int[columns.length];
+        int[] hi = new int[columns.length];
+        page.intRanges(columns, lo, hi);
+        byte[] entry = new byte[entrySize];
+        ByteBuffer buf = ByteBuffer.wrap(entry);
+        buf.put((byte) 1);
+        for (int c = 0; c < columns.length; c++) {
+            buf.putInt(lo[c]).putInt(hi[c]);
+        }
+        synchronized (this) {
+            load();
+            ensureCapacity(pageNo + 1);
+            known[pageNo] = true;
+            System.arraycopy(lo, 0, mins, pageNo * columns.length, columns.length);
+            System.arraycopy(hi, 0, maxs, pageNo * columns.length, columns.length);
+            pending.put(pageNo, entry);
+            if (written && !stale) {
+                getStaleMarker().createNewFile();
+                stale = true;
+            }
+        }
+    }
+
+    /**
+     * 把上一次flush以来记下的项写到文件中，页号相邻的项合并成一次写。写不了时项留在内存中，下一次flush再写
+     */
+    public synchronized void flush() throws IOException {
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+        channel.writeEntries(pending, entrySize);
+        pending.clear();
+        if (stale) {
+            getStaleMarker().delete();
+            stale = false;
+        }
+    }
+
+    /**
+     * @return 一页中是否可能有满足所有谓词的tuple。不知道的页、不是INT列或者不能用范围判断的谓词都当作可能满足
+     */
+    public synchronized boolean mayMatch(int pageNo, List<Predicate> predicates) {
+        if (predicates.isEmpty() || !isKnown(pageNo)) {
+            return true;
+        }
+        for (Predicate p : predicates) {
+            if (!mayMatch(pageNo, p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean mayMatch(int pageNo, Predicate p) {
+        if (!(p.getOperand() instanceof IntField)) {
+            return true;
+        }
+        int c = Arrays.binarySearch(columns, p.getIndex());
+        if (c < 0) {
+            return true;
+        }
+        int min = mins[pageNo * columns.length + c];
+        int max = maxs[pageNo * columns.length + c];
+        int v = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+            case EQUALS:
+                return min <= v && v <= max;
+            case LESS_THAN:
+                return min < v;
+            case LESS_THAN_OR_EQ:
+                return min <= v;
+            case GREATER_THAN:
+                return max > v;
+            case GREATER_THAN_OR_EQ:
+                return max >= v;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
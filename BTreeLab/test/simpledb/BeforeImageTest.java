@@ -0,0 +1,99 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class BeforeImageTest extends SimpleDbTestBase {
+
+	@Before public void addTable() throws Exception {
+		Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+	}
+
+	/**
+	 * A leaf page keeps no before image until it is first modified, and then
+	 * keeps the contents it was read with.
+	 */
+	@Test public void leafPageKeptOnFirstWrite() throws Exception {
+		BTreePageId pid = new BTreePageId(-1, 2, BTreePageId.LEAF);
+		byte[] original = BTreeUtility.createRandomLeafPage(pid, 2, 0, 50, 0, 1000).getPageData();
+		BTreeLeafPage page = new BTreeLeafPage(pid, original, 0);
+		assertNull(page.oldData);
+		assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{500, 500}));
+		assertNotNull(page.oldData);
+		page.deleteTuple(page.iterator().next());
+		page.setRightSiblingId(new BTreePageId(-1, 3, BTreePageId.LEAF));
+		assertArrayEquals(original, page.getBeforeImage().getPageData());
+		assertFalse(java.util.Arrays.equals(original, page.getPageData()));
+	}
+
+	/**
+	 * Changes to an internal page's entries and parent pointer keep the
+	 * original contents as the before image.
+	 */
+	@Test public void internalPageKeptOnFirstWrite() throws Exception {
+		BTreePageId pid = new BTreePageId(-1, 1, BTreePageId.INTERNAL);
+		byte[] original = BTreeUtility.createRandomInternalPage(pid, 0, BTreePageId.LEAF, 50, 0, 1000, 2).getPageData();
+
+		BTreeInternalPage page = new BTreeInternalPage(pid, original, 0);
+		assertNull(page.oldData);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry first = it.next();
+		page.deleteKeyAndRightChild(first);
+		assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+		page = new BTreeInternalPage(pid, original, 0);
+		page.setParentId(new BTreePageId(-1, 9, BTreePageId.INTERNAL));
+		assertArrayEquals(original, page.getBeforeImage().getPageData());
+	}
+
+	/**
+	 * markDirty(true, tid) keeps the before image of a page that has not been
+	 * changed through its own methods; later changes do not replace it.
+	 */
+	@Test public void keptOnMarkDirty() throws Exception {
+		BTreePageId pid = new BTreePageId(-1, 2, BTreePageId.LEAF);
+		byte[] original = BTreeUtility.createRandomLeafPage(pid, 2, 0, 50, 0, 1000).getPageData();
+		BTreeLeafPage page = new BTreeLeafPage(pid, original, 0);
+		page.markDirty(true, new TransactionId());
+		assertNotNull(page.oldData);
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[]{1, 1}));
+		assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+		page.setBeforeImage();
+		assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+	}
+
+	/**
+	 * A heap page read from a file keeps its original bytes as the before image
+	 * after tuples are deleted and inserted.
+	 */
+	@Test public void heapPageKeptOnFirstWrite() throws Exception {
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+		HeapPageId pid = new HeapPageId(table.getId(), 0);
+		HeapPage page = (HeapPage) table.readPage(pid);
+		byte[] original = page.getPageData();
+		assertNull(page.oldData);
+
+		page.deleteTuple(page.iterator().next());
+		page.insertTuple(Utility.getHeapTuple(new int[]{7, 7}));
+		assertArrayEquals(original, page.getBeforeImage().getPageData());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BeforeImageTest.class);
+	}
+}
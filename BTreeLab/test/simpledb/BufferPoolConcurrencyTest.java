@@ -0,0 +1,137 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+	private static final int PAGES = 40;
+
+	/** Counts the number of readPage operations, safe to use from several threads. */
+	private static class CountingHeapFile extends HeapFile {
+		final AtomicInteger readCount = new AtomicInteger();
+
+		CountingHeapFile(File f, TupleDesc td) {
+			super(f, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			readCount.incrementAndGet();
+			return super.readPage(pid);
+		}
+	}
+
+	private CountingHeapFile table;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * PAGES, 1000, null,
+				new ArrayList<ArrayList<Integer>>());
+		table = new CountingHeapFile(f, Utility.getTupleDesc(1));
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+	}
+
+	/**
+	 * Runs the given number of threads, each doing getPage on random pages of the table,
+	 * and returns the number of nanoseconds the slowest thread took.
+	 */
+	private long runReaders(final BufferPool bp, int threads, final int opsPerThread,
+			final AtomicReferenceArray<Page> seen) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final Exception[] error = new Exception[1];
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					TransactionId tid = new TransactionId();
+					try {
+						start.await();
+						for (int i = 0; i < opsPerThread; i++) {
+							int pgNo = rand.nextInt(PAGES);
+							Page p = bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+							if (seen != null && !seen.compareAndSet(pgNo, null, p) && seen.get(pgNo) != p) {
+								throw new DbException("two different page objects for page " + pgNo);
+							}
+						}
+					} catch (Exception e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		if (error[0] != null) {
+			throw error[0];
+		}
+		return elapsed;
+	}
+
+	/**
+	 * Concurrent misses on the same page must read it from disk once and hand every
+	 * thread the same Page object.
+	 */
+	@Test public void concurrentMissesShareOnePage() throws Exception {
+		BufferPool bp = Database.resetBufferPool(PAGES * 2);
+		AtomicReferenceArray<Page> seen = new AtomicReferenceArray<Page>(PAGES);
+		runReaders(bp, 8, 2000, seen);
+		assertEquals(PAGES, table.readCount.get());
+		assertEquals(PAGES, bp.getNumCachedPages());
+	}
+
+	/**
+	 * A pool smaller than the table keeps evicting, but never holds more than its
+	 * capacity once the threads are done.
+	 */
+	@Test public void capacityRespectedUnderContention() throws Exception {
+		BufferPool bp = Database.resetBufferPool(PAGES / 4);
+		runReaders(bp, 8, 2000, null);
+		assertTrue(bp.getNumCachedPages() <= PAGES / 4);
+	}
+
+	/**
+	 * Throughput of the hit path (every page already cached) as the number of threads
+	 * grows. The numbers are printed rather than asserted, since they depend on the machine.
+	 */
+	@Test public void hitPathThroughput() throws Exception {
+		BufferPool bp = Database.resetBufferPool(PAGES * 2);
+		runReaders(bp, 1, 20000, null);
+		final int ops = 200000;
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= Math.max(2, cores); threads *= 2) {
+			long elapsed = runReaders(bp, threads, ops, null);
+			double opsPerSec = (double) threads * ops / (elapsed / 1e9);
+			System.out.println(String.format("BufferPool hit path: %2d threads, %12.0f getPage/s", threads, opsPerSec));
+		}
+		assertEquals(PAGES, table.readCount.get());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+	}
+}
@@ -0,0 +1,187 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+
+	private static File tempFile(String suffix) throws IOException {
+		File f = File.createTempFile("bulk", suffix);
+		f.deleteOnExit();
+		FreeSpaceMap.fileFor(f).deleteOnExit();
+		ZoneMap.fileFor(f).deleteOnExit();
+		return f;
+	}
+
+	private static File textFile(String contents) throws IOException {
+		File f = tempFile(".txt");
+		BufferedWriter w = new BufferedWriter(new FileWriter(f));
+		w.write(contents);
+		w.close();
+		return f;
+	}
+
+	private static List<String> scan(DbFile table) throws Exception {
+		ArrayList<String> rows = new ArrayList<String>();
+		DbFileIterator it = table.iterator(new TransactionId());
+		it.open();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		it.close();
+		return rows;
+	}
+
+	/**
+	 * Lines split over many small chunks come back in input order, with
+	 * Windows line endings, blank lines, padding and a missing final newline.
+	 */
+	@Test public void heapFileInInputOrder() throws Exception {
+		StringBuilder text = new StringBuilder();
+		ArrayList<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			text.append(" ").append(i - 2500).append(" | name").append(i).append(i % 7 == 0 ? "\r\n" : "\n");
+			if (i % 100 == 0) {
+				text.append("\n");
+			}
+			expected.add((i - 2500) + "\tname" + i + "\n");
+		}
+		text.append("42|last");
+		expected.add("42\tlast\n");
+		File in = textFile(text.toString());
+		File out = tempFile(".dat");
+		BulkLoader loader = new BulkLoader(3, 1000, BufferPool.getPageSize());
+		loader.convertHeap(in, out, new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, '|');
+
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+		HeapFile table = new HeapFile(out, td);
+		Database.getCatalog().addTable(table, "bulk");
+		assertEquals(expected, scan(table));
+		assertEquals(5001, loader.getStats().getStage("parse").getRows());
+		assertEquals(in.length(), loader.getStats().getStage("read").getBytes());
+		assertEquals(out.length(), loader.getStats().getStage("write").getBytes());
+	}
+
+	/**
+	 * A malformed line fails the load with its text.
+	 */
+	@Test public void badLine() throws Exception {
+		File in = textFile("1,2\n3,x\n");
+		try {
+			new BulkLoader().convertHeap(in, tempFile(".dat"), new Type[]{Type.INT_TYPE, Type.INT_TYPE}, ',');
+			fail("expected an IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("3,x"));
+		}
+		try {
+			new BulkLoader().convertHeap(in, tempFile(".dat"), new Type[]{Type.INT_TYPE}, ',');
+			fail("expected an IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("1,2"));
+		}
+	}
+
+	/**
+	 * The records of a chunk take one record per line, however wide the
+	 * schema, instead of a guess from the chunk length.
+	 */
+	@Test public void parseBufferSizedByLines() throws Exception {
+		BulkLoader.RecordLayout layout = new BulkLoader.RecordLayout(new Type[]{Type.STRING_TYPE}, ',');
+		byte[] chunk = "a\nbb\n\nccc".getBytes("UTF-8");
+		BulkLoader.Records records = layout.parse(chunk, chunk.length);
+		assertEquals(3, records.count);
+		assertEquals(4 * Type.STRING_TYPE.getLen(), records.data.length);
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			text.append(i).append('\n');
+		}
+		chunk = text.toString().getBytes("UTF-8");
+		records = layout.parse(chunk, chunk.length);
+		assertEquals(1000, records.count);
+		assertEquals(1000 * Type.STRING_TYPE.getLen(), records.data.length);
+	}
+
+	/**
+	 * Keys spread over many sorted runs come out of the tree in order, and
+	 * the tree answers lookups.
+	 */
+	@Test public void btreeFromSortedRuns() throws Exception {
+		Random r = new Random(1);
+		StringBuilder text = new StringBuilder();
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < 20000; i++) {
+			int key = r.nextInt(5000) - 1000;
+			keys.add(key);
+			text.append(i).append(',').append(key).append('\n');
+		}
+		Collections.sort(keys);
+		BulkLoader loader = new BulkLoader(2, 4096, BufferPool.getPageSize());
+		BTreeFile tree = loader.convertBTree(textFile(text.toString()), tempFile(".dat"),
+				Utility.getTupleDesc(2), ',', 1);
+		assertEquals(keys.size(), loader.getStats().getStage("spill").getRows());
+
+		ArrayList<Integer> actual = new ArrayList<Integer>();
+		DbFileIterator it = tree.iterator(new TransactionId());
+		it.open();
+		while (it.hasNext()) {
+			actual.add(((IntField) it.next().getField(1)).getValue());
+		}
+		it.close();
+		assertEquals(keys, actual);
+
+		int key = keys.get(keys.size() / 2);
+		int matches = Collections.frequency(keys, key);
+		DbFileIterator lookup = tree.indexIterator(new TransactionId(),
+				new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+		lookup.open();
+		int found = 0;
+		while (lookup.hasNext()) {
+			assertEquals(new IntField(key), lookup.next().getField(1));
+			found++;
+		}
+		lookup.close();
+		assertEquals(matches, found);
+	}
+
+	/**
+	 * Loads 500k rows into a heap file and into a B+ tree and prints the
+	 * throughput of each stage.
+	 */
+	@Test public void stageThroughput() throws Exception {
+		Random r = new Random(2);
+		File in = tempFile(".txt");
+		BufferedWriter w = new BufferedWriter(new FileWriter(in));
+		for (int i = 0; i < 500000; i++) {
+			w.write(r.nextInt() + "," + i + "," + r.nextInt(1000) + "\n");
+		}
+		w.close();
+		BulkLoader loader = new BulkLoader();
+		loader.convertHeap(in, tempFile(".dat"), Utility.getTypes(3), ',');
+		System.out.println("heap file load:\n" + loader.getStats());
+		assertEquals(500000, loader.getStats().getStage("build").getRows());
+		loader.convertBTree(in, tempFile(".dat"), Utility.getTupleDesc(3), ',', 0);
+		System.out.println("B+ tree load:\n" + loader.getStats());
+		assertEquals(500000, loader.getStats().getStage("merge").getRows());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BulkLoaderTest.class);
+	}
+}
@@ -0,0 +1,231 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class ColumnarFileTest extends SimpleDbTestBase {
+
+	private static File tempFile() throws Exception {
+		File f = File.createTempFile("columnar", ".dat");
+		f.deleteOnExit();
+		FreeSpaceMap.fileFor(f).deleteOnExit();
+		return f;
+	}
+
+	/** Writes the tuples as a columnar file and adds it to the catalog. */
+	private static ColumnarFile columnarTable(List<Tuple> tuples, TupleDesc td) throws Exception {
+		File f = tempFile();
+		HeapFileEncoder.convertColumnar(tuples.iterator(), f, BufferPool.getPageSize(), td);
+		ColumnarFile table = new ColumnarFile(f, td);
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		return table;
+	}
+
+	private static List<Tuple> scan(DbIterator it) throws Exception {
+		ArrayList<Tuple> rows = new ArrayList<Tuple>();
+		it.open();
+		while (it.hasNext()) {
+			rows.add(it.next());
+		}
+		it.close();
+		return rows;
+	}
+
+	private static List<String> strings(List<Tuple> tuples) {
+		ArrayList<String> rows = new ArrayList<String>();
+		for (Tuple t : tuples) {
+			rows.add(t.toString());
+		}
+		return rows;
+	}
+
+	/**
+	 * Each column is stored contiguously after the slot bitmap, and both the
+	 * full and the projected page iterators read the values back.
+	 */
+	@Test public void pageLayout() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(3);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < 10; i++) {
+			tuples.add(Utility.getHeapTuple(new int[]{i, 100 + i, 200 + i}));
+		}
+		ColumnarFile table = columnarTable(tuples, td);
+		int n = ColumnarPage.numSlots(td, BufferPool.getPageSize());
+		int header = (n + 7) / 8;
+		byte[] data = ColumnarPage.createPageData(tuples, td, BufferPool.getPageSize());
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		assertEquals((byte) 0xff, data[0]);
+		assertEquals(3, data[1]);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, buf.getInt(header + i * 4));
+			assertEquals(100 + i, buf.getInt(header + n * 4 + i * 4));
+			assertEquals(200 + i, buf.getInt(header + n * 8 + i * 4));
+		}
+
+		ColumnarPage page = new ColumnarPage(new HeapPageId(table.getId(), 0), data);
+		assertEquals(n - 10, page.getNumEmptySlots());
+		ArrayList<Tuple> all = new ArrayList<Tuple>();
+		for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+			all.add(it.next());
+		}
+		assertEquals(strings(tuples), strings(all));
+
+		int[] columns = {2, 0};
+		Iterator<Tuple> it = page.iterator(columns, ColumnarFile.project(td, columns));
+		for (int i = 0; i < 10; i++) {
+			Tuple t = it.next();
+			assertEquals(2, t.getTupleDesc().numFields());
+			assertEquals(new IntField(200 + i), t.getField(0));
+			assertEquals(new IntField(i), t.getField(1));
+			assertEquals(i, t.getRecordId().tupleno());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * The text loader and a catalog line ending in "columnar" give a table
+	 * that SeqScan can read whole or projected.
+	 */
+	@Test public void loaderCatalogAndProjection() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "columnar" + System.nanoTime());
+		assertTrue(dir.mkdir());
+		File text = new File(dir, "Sales.txt");
+		BufferedWriter w = new BufferedWriter(new FileWriter(text));
+		for (int i = 0; i < 2000; i++) {
+			w.write(i + ",region" + (i % 5) + "," + (i * 3) + "\n");
+		}
+		w.close();
+		HeapFileEncoder.convertColumnar(text, new File(dir, "Sales.dat"), BufferPool.getPageSize(), 3,
+				new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE}, ',');
+		File schema = new File(dir, "catalog.txt");
+		w = new BufferedWriter(new FileWriter(schema));
+		w.write("Sales (id int pk, region string, amount int) columnar\n");
+		w.close();
+
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		int id = Database.getCatalog().getTableId("Sales");
+		assertTrue(Database.getCatalog().getDbFile(id) instanceof ColumnarFile);
+		TransactionId tid = new TransactionId();
+		List<Tuple> all = scan(new SeqScan(tid, id, "s"));
+		assertEquals(2000, all.size());
+		assertEquals("region3", all.get(8).getField(1).toString());
+
+		SeqScan projected = new SeqScan(tid, id, "s", new int[]{2, 1});
+		assertEquals("s.amount", projected.getTupleDesc().getFieldName(0));
+		assertEquals("s.region", projected.getTupleDesc().getFieldName(1));
+		List<Tuple> rows = scan(projected);
+		assertEquals(2000, rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			assertEquals(new IntField(i * 3), rows.get(i).getField(0));
+			assertEquals("region" + (i % 5), rows.get(i).getField(1).toString());
+		}
+
+		Database.getCatalog().clear();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool survive flushing and
+	 * rereading the pages.
+	 */
+	@Test public void insertAndDelete() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		ColumnarFile table = columnarTable(Collections.<Tuple>emptyList(), td);
+		BufferPool bp = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		for (int i = 0; i < 3000; i++) {
+			Tuple t = Utility.getHeapTuple(new int[]{i, -i});
+			bp.insertTuple(tid, table.getId(), t);
+			inserted.add(t);
+		}
+		for (int i = 0; i < inserted.size(); i += 2) {
+			bp.deleteTuple(tid, inserted.get(i));
+		}
+		bp.flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		List<Tuple> rows = scan(new SeqScan(tid, table.getId()));
+		assertEquals(1500, rows.size());
+		for (Tuple t : rows) {
+			int v = ((IntField) t.getField(0)).getValue();
+			assertEquals(1, v % 2);
+			assertEquals(new IntField(-v), t.getField(1));
+		}
+	}
+
+	/** Returns the best time of ten runs of the query, and its result rows. */
+	private static long time(DbIterator query, List<String> result) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 10; run++) {
+			Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+			long begin = System.nanoTime();
+			List<Tuple> rows = scan(query);
+			best = Math.min(best, System.nanoTime() - begin);
+			result.clear();
+			result.addAll(strings(rows));
+		}
+		Collections.sort(result);
+		return best;
+	}
+
+	/**
+	 * Aggregate benchmark over a 10-column table: SUM(c3) GROUP BY c0 with a
+	 * full heap scan, a projected heap scan and a projected columnar scan.
+	 * Prints the time of each and checks that they agree.
+	 */
+	@Test public void aggregateBenchmark() throws Exception {
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(10, 100000, 100, null, rows);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (ArrayList<Integer> row : rows) {
+			int[] values = new int[row.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = row.get(i);
+			}
+			tuples.add(Utility.getHeapTuple(values));
+		}
+		ColumnarFile columnar = columnarTable(tuples, heap.getTupleDesc());
+		TransactionId tid = new TransactionId();
+		int[] columns = {0, 3};
+
+		List<String> full = new ArrayList<String>();
+		List<String> heapProjected = new ArrayList<String>();
+		List<String> columnarProjected = new ArrayList<String>();
+		long t1 = time(new Aggregate(new SeqScan(tid, heap.getId(), "h"), 3, 0, Aggregator.Op.SUM), full);
+		long t2 = time(new Aggregate(new SeqScan(tid, heap.getId(), "h", columns), 1, 0, Aggregator.Op.SUM),
+				heapProjected);
+		long t3 = time(new Aggregate(new SeqScan(tid, columnar.getId(), "c", columns), 1, 0, Aggregator.Op.SUM),
+				columnarProjected);
+		System.out.println(String.format(
+				"SUM(c3) GROUP BY c0 over %d rows: heap %6.1f ms, heap projected %6.1f ms, columnar projected %6.1f ms",
+				rows.size(), t1 / 1e6, t2 / 1e6, t3 / 1e6));
+		assertEquals(100, full.size());
+		assertEquals(full, heapProjected);
+		assertEquals(full, columnarProjected);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ColumnarFileTest.class);
+	}
+}
@@ -0,0 +1,265 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import com.jcraft.jzlib.JZlib;
+import org.junit.Assume;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+	/** The IMDB sample shipped with project 3, relative to this project. */
+	private static final File IMDB = new File("../3/CS186-proj3-supplement/CS186-proj3/sample-0.01/0.01");
+
+	private static File tempFile() throws Exception {
+		File f = File.createTempFile("compressed", ".dat");
+		f.deleteOnExit();
+		CompressedHeapFile.indexFileFor(f).deleteOnExit();
+		FreeSpaceMap.fileFor(f).deleteOnExit();
+		return f;
+	}
+
+	private static CompressedHeapFile compress(HeapFile heap) throws Exception {
+		File f = tempFile();
+		HeapFileEncoder.convertCompressed(heap.getFile(), f, BufferPool.getPageSize(), JZlib.Z_DEFAULT_COMPRESSION);
+		CompressedHeapFile table = new CompressedHeapFile(f, heap.getTupleDesc());
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		return table;
+	}
+
+	/**
+	 * A converted heap file scans back the same rows from fewer bytes.
+	 */
+	@Test public void convertAndScan() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+		CompressedHeapFile table = compress(heap);
+		assertEquals(heap.numPages(), table.numPages());
+		assertTrue(table.getFile().length() < heap.getFile().length() / 2);
+
+		SystemTestUtil.matchTuples(table, tuples);
+		assertTrue(table.getBytesRead() > 0);
+		assertTrue(table.getBytesRead() <= table.getFile().length());
+	}
+
+	/**
+	 * Pages that grow are appended with a new index entry, and the index
+	 * is rebuilt from the records when it is missing or behind the data.
+	 */
+	@Test public void writeBackAndRebuildIndex() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, tuples);
+		CompressedHeapFile table = compress(heap);
+		int pages = table.numPages();
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 2000; i++) {
+			Tuple t = Utility.getHeapTuple(new int[]{i, -i});
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+			tuples.add(SystemTestUtil.tupleToList(t));
+		}
+		assertTrue(table.numPages() > pages);
+		Database.getBufferPool().flushAllPages();
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		SystemTestUtil.matchTuples(table, tuples);
+
+		// a torn record at the end and a lost index are both recovered from the data
+		File data = table.getFile();
+		long size = data.length();
+		RandomAccessFile raf = new RandomAccessFile(data, "rw");
+		raf.seek(size);
+		raf.writeInt(0);
+		raf.writeInt(1000);
+		raf.close();
+		assertTrue(CompressedHeapFile.indexFileFor(data).delete());
+		CompressedHeapFile reopened = new CompressedHeapFile(data, table.getTupleDesc());
+		Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertEquals(table.numPages(), reopened.numPages());
+		assertEquals(size, data.length());
+		SystemTestUtil.matchTuples(reopened, tuples);
+	}
+
+	/** Inserts rows in rounds, writing the grown pages back after each round. */
+	private static void grow(DbFile table, TransactionId tid, ArrayList<ArrayList<Integer>> tuples, Random r)
+			throws Exception {
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 50; i++) {
+				Tuple t = Utility.getHeapTuple(new int[]{r.nextInt(100), r.nextInt(100)});
+				Database.getBufferPool().insertTuple(tid, table.getId(), t);
+				tuples.add(SystemTestUtil.tupleToList(t));
+			}
+			Database.getBufferPool().flushAllPages();
+		}
+	}
+
+	/**
+	 * Writing a page back over and over keeps its record where it is; the
+	 * records left behind by pages that outgrew them are dropped by compact()
+	 * and by close().
+	 */
+	@Test public void writeBackInPlaceAndCompact() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, tuples);
+		CompressedHeapFile table = compress(heap);
+		File data = table.getFile();
+		long size = data.length();
+		BufferPool pool = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+		for (int i = 0; i < 100; i++) {
+			table.writePage(page);
+		}
+		assertEquals(size, data.length());
+		// a changed page moves to the end at most once, with room to change a little more in place
+		int moves = 0;
+		for (int i = 0; i < 10; i++) {
+			Tuple t = page.iterator().next();
+			pool.deleteTuple(tid, t);
+			tuples.remove(SystemTestUtil.tupleToList(t));
+			table.writePage(page);
+			if (data.length() != size) {
+				size = data.length();
+				moves++;
+			}
+		}
+		assertTrue(moves <= 1);
+
+		Random r = new Random(7);
+		grow(table, tid, tuples, r);
+		long grown = data.length();
+		table.compact();
+		long compacted = data.length();
+		assertTrue(compacted < grown / 2);
+		pool.transactionComplete(tid);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		SystemTestUtil.matchTuples(table, tuples);
+
+		tid = new TransactionId();
+		grow(table, tid, tuples, r);
+		Database.getBufferPool().transactionComplete(tid);
+		assertTrue(data.length() > 2 * compacted);
+		table.close();
+		assertTrue(data.length() < 2 * compacted);
+
+		CompressedHeapFile reopened = new CompressedHeapFile(data, table.getTupleDesc());
+		Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		SystemTestUtil.matchTuples(reopened, tuples);
+	}
+
+	/**
+	 * A catalog line ending in "compressed" opens the table as a
+	 * CompressedHeapFile.
+	 */
+	@Test public void catalogOption() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, tuples);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "compressed" + System.nanoTime());
+		assertTrue(dir.mkdir());
+		File data = new File(dir, "Archive.dat");
+		HeapFileEncoder.convertCompressed(heap.getFile(), data, BufferPool.getPageSize(), JZlib.Z_BEST_SPEED);
+		File schema = new File(dir, "catalog.txt");
+		BufferedWriter w = new BufferedWriter(new FileWriter(schema));
+		w.write("Archive (field0 int, field1 int) compressed\n");
+		w.close();
+
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		DbFile table = Database.getCatalog().getDbFile(Database.getCatalog().getTableId("Archive"));
+		assertTrue(table instanceof CompressedHeapFile);
+		SystemTestUtil.matchTuples(table, tuples);
+
+		Database.getCatalog().clear();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static final int RUNS = 5;
+
+	/**
+	 * Scans the table from disk (a fresh BufferPool each time) after one
+	 * warm-up scan and returns the average time of the following runs. The
+	 * stats of a compressed table are reset after the warm-up.
+	 */
+	private static long timeScans(DbFile table) throws Exception {
+		long total = 0;
+		for (int run = 0; run <= RUNS; run++) {
+			Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+			if (run == 1 && table instanceof CompressedHeapFile) {
+				((CompressedHeapFile) table).resetStats();
+			}
+			long begin = System.nanoTime();
+			DbFileIterator it = table.iterator(new TransactionId());
+			it.open();
+			while (it.hasNext()) {
+				it.next();
+			}
+			it.close();
+			if (run > 0) {
+				total += System.nanoTime() - begin;
+			}
+		}
+		return total / RUNS;
+	}
+
+	/**
+	 * Bytes read versus CPU spent scanning the IMDB sample tables as plain
+	 * heap files and as compressed files. Skipped when the sample is not next
+	 * to this project.
+	 */
+	@Test public void imdbBenchmark() throws Exception {
+		Assume.assumeTrue(new File(IMDB, "imdb.schema").exists());
+		Database.getCatalog().loadSchema(new File(IMDB, "imdb.schema").getAbsolutePath());
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); ) {
+			ids.add(it.next());
+		}
+		long heapBytes = 0;
+		long compressedBytes = 0;
+		for (int id : ids) {
+			HeapFile heap = (HeapFile) Database.getCatalog().getDbFile(id);
+			String name = Database.getCatalog().getTableName(id);
+			if (!heap.getFile().exists()) {
+				// this sample leaves out some of the tables
+				continue;
+			}
+			CompressedHeapFile table = compress(heap);
+
+			long heapNanos = timeScans(heap);
+			long compressedNanos = timeScans(table);
+			long read = table.getBytesRead() / RUNS;
+			long inflate = table.getInflateNanos() / RUNS;
+			heapBytes += heap.getFile().length();
+			compressedBytes += read;
+			System.out.println(String.format(
+					"%-15s heap %7d KB read %6.2f ms, compressed %6d KB read %6.2f ms (%5.2f ms inflating)",
+					name, heap.getFile().length() / 1024, heapNanos / 1e6,
+					read / 1024, compressedNanos / 1e6, inflate / 1e6));
+		}
+		System.out.println(String.format("total: heap %d KB, compressed %d KB read per scan",
+				heapBytes / 1024, compressedBytes / 1024));
+		assertTrue(compressedBytes < heapBytes);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+	}
+}
@@ -0,0 +1,166 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class DbFileChannelTest extends SimpleDbTestBase {
+
+	private static final int PAGES = 100;
+
+	private HeapFile table;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		table = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, new ArrayList<ArrayList<Integer>>());
+		assertEquals(PAGES, table.numPages());
+	}
+
+	/**
+	 * Positional reads from several threads see the same bytes as a single reader.
+	 */
+	@Test public void concurrentRandomReads() throws Exception {
+		final byte[][] expected = new byte[PAGES][];
+		for (int i = 0; i < PAGES; i++) {
+			expected[i] = table.readPage(new HeapPageId(table.getId(), i)).getPageData();
+		}
+		int threads = 8;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final Exception[] error = new Exception[1];
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					try {
+						for (int i = 0; i < 2000; i++) {
+							int pgNo = rand.nextInt(PAGES);
+							byte[] data = table.readPage(new HeapPageId(table.getId(), pgNo)).getPageData();
+							if (!Arrays.equals(expected[pgNo], data)) {
+								throw new DbException("page " + pgNo + " read differently");
+							}
+						}
+					} catch (Exception e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		if (error[0] != null) {
+			throw error[0];
+		}
+	}
+
+	/**
+	 * Catalog.clear closes the file handle; the next access reopens it.
+	 */
+	@Test public void reopenAfterClose() throws Exception {
+		HeapPageId pid = new HeapPageId(table.getId(), 3);
+		HeapPage page = (HeapPage) table.readPage(pid);
+		byte[] before = page.getPageData();
+		Database.getCatalog().clear();
+		Database.getCatalog().addTable(table, "reopened");
+		assertArrayEquals(before, table.readPage(pid).getPageData());
+
+		table.close();
+		table.writePage(page);
+		assertArrayEquals(before, table.readPage(pid).getPageData());
+	}
+
+	/** The page read before DbFileChannel: a new RandomAccessFile per read. */
+	private static byte[] readWithRandomAccessFile(File f, int pgNo) throws IOException {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			raf.seek((long) pgNo * BufferPool.getPageSize());
+			raf.read(data, 0, data.length);
+		}
+		return data;
+	}
+
+	/** The B+ tree page read before DbFileChannel: a new stream skipped from byte 0. */
+	private static byte[] readWithSkip(File f, int pgNo) throws IOException {
+		byte[] data = new byte[BufferPool.getPageSize()];
+		try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+			bis.skip(BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize());
+			bis.read(data, 0, data.length);
+		}
+		return data;
+	}
+
+	/**
+	 * Average latency of a random page read, opening the file on every read as
+	 * HeapFile and BTreeFile used to, and through a persistent channel. Only the
+	 * I/O is timed, not decoding the page. The numbers are printed rather than
+	 * asserted, since they depend on the machine.
+	 */
+	@Test public void randomReadLatency() throws Exception {
+		BTreeFile index = BTreeUtility.createRandomBTreeFile(2, 504 * PAGES, null, null, 0);
+		int btreePages = index.numPages();
+		final int reads = 20000;
+		byte[] data = new byte[BufferPool.getPageSize()];
+
+		Random rand = new Random(0);
+		long begin = System.nanoTime();
+		for (int i = 0; i < reads; i++) {
+			readWithRandomAccessFile(table.getFile(), rand.nextInt(PAGES));
+		}
+		long heapBefore = (System.nanoTime() - begin) / reads;
+
+		DbFileChannel heapChannel = new DbFileChannel(table.getFile());
+		rand = new Random(0);
+		begin = System.nanoTime();
+		for (int i = 0; i < reads; i++) {
+			heapChannel.read(data, (long) rand.nextInt(PAGES) * BufferPool.getPageSize());
+		}
+		long heapAfter = (System.nanoTime() - begin) / reads;
+		heapChannel.close();
+
+		rand = new Random(0);
+		begin = System.nanoTime();
+		for (int i = 0; i < reads; i++) {
+			readWithSkip(index.getFile(), 1 + rand.nextInt(btreePages));
+		}
+		long btreeBefore = (System.nanoTime() - begin) / reads;
+
+		DbFileChannel btreeChannel = new DbFileChannel(index.getFile());
+		rand = new Random(0);
+		begin = System.nanoTime();
+		for (int i = 0; i < reads; i++) {
+			btreeChannel.read(data, BTreeRootPtrPage.getPageSize() + (long) rand.nextInt(btreePages) * BufferPool.getPageSize());
+		}
+		long btreeAfter = (System.nanoTime() - begin) / reads;
+		btreeChannel.close();
+
+		System.out.println(String.format("HeapFile random page read:  %6d ns (open per read) %6d ns (FileChannel)",
+				heapBefore, heapAfter));
+		System.out.println(String.format("BTreeFile random page read: %6d ns (open per read) %6d ns (FileChannel)",
+				btreeBefore, btreeAfter));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(DbFileChannelTest.class);
+	}
+}
@@ -0,0 +1,244 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class DictionaryEncodingTest extends SimpleDbTestBase {
+
+	/** The IMDB sample shipped with project 3, relative to this project. */
+	private static final File IMDB = new File("../3/CS186-proj3-supplement/CS186-proj3/sample-0.01/0.01");
+
+	private static final String[] GENDERS = {"M", "F"};
+
+	private TupleDesc td;
+
+	@Before public void setUpSchema() {
+		td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.STRING_TYPE},
+				new String[]{"id", "gender", "name"});
+	}
+
+	private Tuple tuple(int id, String gender, String name) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new IntField(id));
+		t.setField(1, new StringField(gender, Type.STRING_LEN));
+		t.setField(2, new StringField(name, Type.STRING_LEN));
+		return t;
+	}
+
+	private ArrayList<Tuple> people(int n) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < n; i++) {
+			tuples.add(tuple(i, GENDERS[i % 2], "person" + i));
+		}
+		return tuples;
+	}
+
+	private static File tempFile() throws Exception {
+		File f = File.createTempFile("dict", ".dat");
+		f.deleteOnExit();
+		DictionaryEncoding.fileFor(f).deleteOnExit();
+		FreeSpaceMap.fileFor(f).deleteOnExit();
+		return f;
+	}
+
+	/** Writes the tuples with the gender column encoded and adds the table to the catalog. */
+	private HeapFile encodedTable(List<Tuple> tuples) throws Exception {
+		File f = tempFile();
+		HeapFileEncoder.convertDictionary(tuples.iterator(), f, BufferPool.getPageSize(), td, new int[]{1});
+		HeapFile table = new HeapFile(f, td, false, new int[]{1});
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		return table;
+	}
+
+	private static ArrayList<Tuple> scan(DbIterator it) throws Exception {
+		ArrayList<Tuple> rows = new ArrayList<Tuple>();
+		it.open();
+		while (it.hasNext()) {
+			rows.add(it.next());
+		}
+		it.close();
+		return rows;
+	}
+
+	/**
+	 * Encoded columns come back as DictionaryFields with the original values,
+	 * and the pages hold more tuples than with full strings.
+	 */
+	@Test public void encodeAndScan() throws Exception {
+		ArrayList<Tuple> tuples = people(3000);
+		HeapFile table = encodedTable(tuples);
+		assertEquals(2, table.getDictionaries().getDictionary(1).size());
+
+		ArrayList<Tuple> rows = scan(new SeqScan(new TransactionId(), table.getId()));
+		assertEquals(tuples.size(), rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			assertEquals(tuples.get(i).toString(), rows.get(i).toString());
+			assertTrue(rows.get(i).getField(1) instanceof DictionaryField);
+			assertFalse(rows.get(i).getField(2) instanceof DictionaryField);
+		}
+		int plainSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+		assertTrue(table.numPages() < (tuples.size() + plainSlots - 1) / plainSlots);
+	}
+
+	/**
+	 * Equality against a constant and between fields of one dictionary
+	 * compares codes; the results match the plain string comparisons.
+	 */
+	@Test public void predicatesAndHashJoin() throws Exception {
+		ArrayList<Tuple> tuples = people(1000);
+		HeapFile table = encodedTable(tuples);
+		TransactionId tid = new TransactionId();
+
+		Predicate female = new Predicate(1, Predicate.Op.EQUALS, new StringField("F", Type.STRING_LEN));
+		assertEquals(500, scan(new Filter(female, new SeqScan(tid, table.getId()))).size());
+		Predicate other = new Predicate(1, Predicate.Op.EQUALS, new StringField("X", Type.STRING_LEN));
+		assertEquals(0, scan(new Filter(other, new SeqScan(tid, table.getId()))).size());
+		Predicate notMale = new Predicate(1, Predicate.Op.NOT_EQUALS, new StringField("M", Type.STRING_LEN));
+		assertEquals(500, scan(new Filter(notMale, new SeqScan(tid, table.getId()))).size());
+		Predicate after = new Predicate(1, Predicate.Op.GREATER_THAN, new StringField("F", Type.STRING_LEN));
+		assertEquals(500, scan(new Filter(after, new SeqScan(tid, table.getId()))).size());
+
+		ArrayList<Tuple> rows = scan(new SeqScan(tid, table.getId()));
+		DictionaryField f0 = (DictionaryField) rows.get(0).getField(1);
+		DictionaryField f2 = (DictionaryField) rows.get(2).getField(1);
+		assertNotSame(f0, f2);
+		assertEquals(f0, f2);
+		assertEquals(f0.hashCode(), f2.hashCode());
+		assertEquals(new StringField("M", Type.STRING_LEN), f0);
+		assertEquals(f0, new StringField("M", Type.STRING_LEN));
+		assertEquals(new StringField("M", Type.STRING_LEN).hashCode(), f0.hashCode());
+
+		// every person matches the half of the table with the same gender
+		JoinPredicate sameGender = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+		HashEquiJoin join = new HashEquiJoin(sameGender, new SeqScan(tid, table.getId(), "a"),
+				new SeqScan(tid, table.getId(), "b"));
+		assertEquals(1000 * 500, scan(join).size());
+	}
+
+	/**
+	 * Values inserted later are added to the dictionary file and decode
+	 * again after the table is reopened.
+	 */
+	@Test public void insertNewValues() throws Exception {
+		ArrayList<Tuple> tuples = people(100);
+		HeapFile table = encodedTable(tuples);
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 100; i++) {
+			Tuple t = tuple(1000 + i, i % 3 == 0 ? "X" : "F", "new" + i);
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+			tuples.add(t);
+		}
+		Database.getBufferPool().flushAllPages();
+		Database.getBufferPool().transactionComplete(tid);
+		table.close();
+
+		HeapFile reopened = new HeapFile(table.getFile(), td, false, new int[]{1});
+		Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertEquals(3, reopened.getDictionaries().getDictionary(1).size());
+		ArrayList<String> expected = new ArrayList<String>();
+		for (Tuple t : tuples) {
+			expected.add(t.toString());
+		}
+		ArrayList<String> actual = new ArrayList<String>();
+		for (Tuple t : scan(new SeqScan(new TransactionId(), reopened.getId()))) {
+			actual.add(t.toString());
+		}
+		assertEquals(expected.size(), actual.size());
+		assertTrue(actual.containsAll(expected));
+	}
+
+	/**
+	 * A column annotated with "dict" in the catalog is opened as encoded.
+	 */
+	@Test public void catalogAnnotation() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "dict" + System.nanoTime());
+		assertTrue(dir.mkdir());
+		ArrayList<Tuple> tuples = people(200);
+		File data = new File(dir, "People.dat");
+		HeapFileEncoder.convertDictionary(tuples.iterator(), data, BufferPool.getPageSize(), td, new int[]{1});
+		File schema = new File(dir, "catalog.txt");
+		BufferedWriter w = new BufferedWriter(new FileWriter(schema));
+		w.write("People (id int pk, gender string dict, name string)\n");
+		w.close();
+
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		HeapFile table = (HeapFile) Database.getCatalog().getDbFile(Database.getCatalog().getTableId("People"));
+		assertNotNull(table.getDictionaries());
+		assertTrue(table.getDictionaries().isEncoded(1));
+		assertFalse(table.getDictionaries().isEncoded(2));
+		assertEquals(tuples.size(), scan(new SeqScan(new TransactionId(), table.getId())).size());
+
+		Database.getCatalog().clear();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/** Returns the best time of a few runs of the query, checking its row count. */
+	private static long time(DbIterator query, int rows) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 5; run++) {
+			long begin = System.nanoTime();
+			assertEquals(rows, scan(query).size());
+			best = Math.min(best, System.nanoTime() - begin);
+		}
+		return best;
+	}
+
+	/**
+	 * The IMDB Genre table with the genre column encoded: file size, and the
+	 * time of an equality filter and of a grouping by genre, against the plain
+	 * heap file. Skipped when the sample is not next to this project.
+	 */
+	@Test public void imdbGenre() throws Exception {
+		Assume.assumeTrue(new File(IMDB, "imdb.schema").exists());
+		Database.getCatalog().loadSchema(new File(IMDB, "imdb.schema").getAbsolutePath());
+		HeapFile heap = (HeapFile) Database.getCatalog().getDbFile(Database.getCatalog().getTableId("Genre"));
+		List<Tuple> tuples = scan(new SeqScan(new TransactionId(), heap.getId()));
+		File f = tempFile();
+		HeapFileEncoder.convertDictionary(tuples.iterator(), f, BufferPool.getPageSize(), heap.getTupleDesc(),
+				new int[]{1});
+		HeapFile encoded = new HeapFile(f, heap.getTupleDesc(), false, new int[]{1});
+		Database.getCatalog().addTable(encoded, "Genre_dict");
+		int genres = encoded.getDictionaries().getDictionary(1).size();
+
+		String drama = "Drama";
+		int dramas = 0;
+		for (Tuple t : tuples) {
+			dramas += t.getField(1).toString().equals(drama) ? 1 : 0;
+		}
+		TransactionId tid = new TransactionId();
+		HeapFile[] tables = {heap, encoded};
+		for (HeapFile table : tables) {
+			Predicate p = new Predicate(1, Predicate.Op.EQUALS, new StringField(drama, Type.STRING_LEN));
+			long filter = time(new Filter(p, new SeqScan(tid, table.getId())), dramas);
+			long group = time(new Aggregate(new SeqScan(tid, table.getId()), 0, 1, Aggregator.Op.COUNT), genres);
+			System.out.println(String.format("Genre %-6s %4d pages %6d KB: filter %6.2f ms, group by %6.2f ms",
+					table == heap ? "plain" : "dict", table.numPages(), table.getFile().length() / 1024,
+					filter / 1e6, group / 1e6));
+		}
+		assertTrue(encoded.numPages() * 4 < heap.numPages());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(DictionaryEncodingTest.class);
+	}
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class ExtentAllocatorTest extends SimpleDbTestBase {
+
+	private static final int PAGE = BufferPool.getPageSize();
+
+	/**
+	 * Pages are handed out from the preallocated tail, the file only grows
+	 * when the tail is used up, and trim cuts the tail off again.
+	 */
+	@Test public void allocateFromTail() throws Exception {
+		File f = File.createTempFile("extents", ".dat");
+		f.deleteOnExit();
+		DbFileChannel channel = new DbFileChannel(f);
+		ExtentAllocator extents = new ExtentAllocator(channel, 9, PAGE);
+		extents.setExtentPages(4);
+		assertEquals(0, extents.getNumPages());
+
+		assertEquals(0, extents.allocate());
+		assertEquals(9 + 4 * PAGE, f.length());
+		assertEquals(3, extents.getUnusedPages());
+		for (int i = 1; i < 4; i++) {
+			assertEquals(i, extents.allocate());
+		}
+		assertEquals(1, extents.getExtensions());
+		assertEquals(4, extents.allocate());
+		assertEquals(2, extents.getExtensions());
+		assertEquals(9 + 8 * PAGE, f.length());
+
+		// a page written directly past the logical end takes the pages before it
+		extents.written(6);
+		assertEquals(7, extents.getNumPages());
+		extents.trim();
+		assertEquals(9 + 7 * PAGE, f.length());
+		assertEquals(0, extents.getUnusedPages());
+		channel.close();
+
+		ExtentAllocator reopened = new ExtentAllocator(new DbFileChannel(f), 9, PAGE);
+		assertEquals(7, reopened.getNumPages());
+	}
+
+	/**
+	 * A file left with its preallocated tail (no trim before exit) reopens
+	 * with the pages it had allocated, not the zero pages of the tail.
+	 */
+	@Test public void reopenWithoutTrim() throws Exception {
+		File f = File.createTempFile("extents", ".dat");
+		f.deleteOnExit();
+		File ext = ExtentAllocator.fileFor(f);
+		ext.deleteOnExit();
+		DbFileChannel channel = new DbFileChannel(f);
+		ExtentAllocator extents = new ExtentAllocator(channel, 9, PAGE);
+		extents.setExtentPages(8);
+		byte[] page = new byte[PAGE];
+		for (int i = 0; i < 11; i++) {
+			int pageNo = extents.allocate();
+			page[0] = (byte) (pageNo + 1);
+			channel.write(page, 9 + (long) pageNo * PAGE);
+		}
+		assertEquals(9 + 16 * PAGE, f.length());
+		assertTrue(ext.exists());
+		channel.close();
+
+		ExtentAllocator reopened = new ExtentAllocator(new DbFileChannel(f), 9, PAGE);
+		assertEquals(11, reopened.getNumPages());
+		assertEquals(5, reopened.getUnusedPages());
+		assertEquals(11, reopened.allocate());
+		reopened.trim();
+		assertFalse(ext.exists());
+		assertEquals(9 + 12 * PAGE, f.length());
+
+		// without a tail the length of the file is the page count, zero pages included
+		assertEquals(12, new ExtentAllocator(new DbFileChannel(f), 9, PAGE).getNumPages());
+	}
+
+	/**
+	 * A B+ tree grown by inserts counts only the pages it allocated, and is
+	 * trimmed to them when closed.
+	 */
+	@Test public void btreeGrowsInExtents() throws Exception {
+		File f = File.createTempFile("btree", ".dat");
+		f.deleteOnExit();
+		BTreeFile index = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		Database.getCatalog().addTable(index, SystemTestUtil.getUUID());
+		index.getExtents().setExtentPages(16);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 10000; i++) {
+			Tuple t = BTreeUtility.getBTreeTuple(new int[]{i * 7919 % 10000, i});
+			Database.getBufferPool().insertTuple(tid, index.getId(), t);
+			tuples.add(BTreeUtility.tupleToList(t));
+		}
+		Database.getBufferPool().flushAllPages();
+		int pages = index.numPages();
+		assertTrue(pages > 16);
+		assertEquals(BTreeRootPtrPage.getPageSize() + (long) (pages + index.getExtents().getUnusedPages()) * PAGE,
+				f.length());
+		assertTrue(index.getExtents().getExtensions() <= pages / 16 + 1);
+
+		index.close();
+		assertEquals(BTreeRootPtrPage.getPageSize() + (long) pages * PAGE, f.length());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertEquals(pages, index.numPages());
+		SystemTestUtil.matchTuples(index, tuples);
+	}
+
+	/** Inserts rows into a fresh heap file and a fresh B+ tree, returning rows/s for each. */
+	private static double[] load(int extentPages, int rows) throws Exception {
+		Database.reset();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		table.getExtents().setExtentPages(extentPages);
+		File f = File.createTempFile("btree", ".dat");
+		f.deleteOnExit();
+		BTreeFile index = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		Database.getCatalog().addTable(index, SystemTestUtil.getUUID());
+		index.getExtents().setExtentPages(extentPages);
+
+		double[] rates = new double[2];
+		DbFile[] files = {table, index};
+		for (int k = 0; k < files.length; k++) {
+			TransactionId tid = new TransactionId();
+			long begin = System.nanoTime();
+			for (int i = 0; i < rows; i++) {
+				Database.getBufferPool().insertTuple(tid, files[k].getId(), Utility.getHeapTuple(new int[]{i, i}));
+			}
+			Database.getBufferPool().flushPages(tid);
+			Database.getBufferPool().transactionComplete(tid);
+			rates[k] = rows * 1e9 / (System.nanoTime() - begin);
+		}
+		System.out.println(String.format(
+				"extent %2d pages: heap %8.0f rows/s (%d pages, %d extensions), btree %8.0f rows/s (%d pages, %d extensions)",
+				extentPages, rates[0], table.numPages(), table.getExtents().getExtensions(),
+				rates[1], index.numPages(), index.getExtents().getExtensions()));
+		return rates;
+	}
+
+	/**
+	 * Bulk-load benchmark: appending rows to a heap file and a B+ tree with
+	 * one-page growth and with 64-page extents. Prints the throughput of each.
+	 */
+	@Test public void bulkLoadBenchmark() throws Exception {
+		int rows = 40000;
+		load(1, rows / 10);
+		load(1, rows);
+		load(ExtentAllocator.DEFAULT_EXTENT_PAGES, rows);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ExtentAllocatorTest.class);
+	}
+}
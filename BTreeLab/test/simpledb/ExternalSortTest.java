@@ -0,0 +1,123 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+	private static TupleIterator table(int rows, long seed) {
+		Random r = new Random(seed);
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = i;
+			data[2 * i + 1] = r.nextInt(rows);
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	private static List<Integer> keys(DbIterator it) throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		while (it.hasNext()) {
+			keys.add(((IntField) it.next().getField(1)).getValue());
+		}
+		return keys;
+	}
+
+	/**
+	 * Input that fits in the budget is sorted in memory.
+	 */
+	@Test public void inMemory() throws Exception {
+		List<Integer> expected = keys(open(table(1000, 1)));
+		Collections.sort(expected);
+		ExternalSort sort = new ExternalSort(1, table(1000, 1));
+		sort.open();
+		assertEquals(expected, keys(sort));
+		assertEquals(0, sort.getRuns());
+		sort.close();
+	}
+
+	/**
+	 * Input many times the budget is spilled as sorted runs and merged back,
+	 * again after a rewind.
+	 */
+	@Test public void spilledRuns() throws Exception {
+		List<Integer> expected = keys(open(table(50000, 2)));
+		Collections.sort(expected);
+		ExternalSort sort = new ExternalSort(1, table(50000, 2), 1000 * Utility.getTupleDesc(2).getSize());
+		sort.open();
+		assertEquals(50, sort.getRuns());
+		assertEquals(expected, keys(sort));
+		sort.rewind();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(expected.get(i), ((IntField) sort.next().getField(1)).getValue(), 0);
+		}
+		sort.rewind();
+		assertEquals(expected, keys(sort));
+		sort.close();
+
+		sort = new ExternalSort(1, table(0, 3), 8);
+		sort.open();
+		assertFalse(sort.hasNext());
+		sort.close();
+	}
+
+	private static int spillFiles() {
+		File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+		int n = 0;
+		for (File f : files) {
+			if (f.getName().startsWith("sort") && f.getName().endsWith(".spill")) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * More runs than the fan-in are first merged into fewer, longer runs, so
+	 * that no merge holds more than fan-in files open.
+	 */
+	@Test public void multiPassMerge() throws Exception {
+		List<Integer> expected = keys(open(table(50000, 4)));
+		Collections.sort(expected);
+		int before = spillFiles();
+		ExternalSort sort = new ExternalSort(1, table(50000, 4), 1000 * Utility.getTupleDesc(2).getSize(), 4);
+		sort.open();
+		assertEquals(50, sort.getRuns());
+		// 50 runs -> 13 -> 4
+		assertEquals(2, sort.getMergePasses());
+		assertEquals(before + 4, spillFiles());
+		assertEquals(expected, keys(sort));
+		sort.rewind();
+		assertEquals(expected, keys(sort));
+		sort.close();
+		assertEquals(before, spillFiles());
+
+		sort = new ExternalSort(1, table(50000, 4), 1000 * Utility.getTupleDesc(2).getSize(), 50);
+		sort.open();
+		assertEquals(0, sort.getMergePasses());
+		assertEquals(expected, keys(sort));
+		sort.close();
+	}
+
+	private static DbIterator open(DbIterator it) throws Exception {
+		it.open();
+		return it;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ExternalSortTest.class);
+	}
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class FilterStreamingTest extends SimpleDbTestBase {
+
+	private static final int ROWS = 2000000;
+
+	private static File data;
+
+	/** Rows (i, i % 10) for i in [0, ROWS), shared by the tests. */
+	@BeforeClass public static void createTable() throws Exception {
+		File text = File.createTempFile("filter", ".txt");
+		BufferedWriter w = new BufferedWriter(new FileWriter(text));
+		for (int i = 0; i < ROWS; i++) {
+			w.write(i + "," + (i % 10) + "\n");
+		}
+		w.close();
+		data = File.createTempFile("filter", ".dat");
+		new BulkLoader().convertHeap(text, data, Utility.getTypes(2), ',');
+		text.delete();
+	}
+
+	@AfterClass public static void deleteTable() {
+		data.delete();
+		FreeSpaceMap.fileFor(data).delete();
+		ZoneMap.fileFor(data).delete();
+	}
+
+	/** Filters on column 1, which every page has all values of, so no page is skipped. */
+	private static Filter filter(HeapFile table, Predicate.Op op, int value) {
+		return new Filter(new Predicate(1, op, new IntField(value)),
+				new SeqScan(new TransactionId(), table.getId()));
+	}
+
+	/**
+	 * The first row comes back long before the child is exhausted.
+	 */
+	@Test public void firstRowLatency() throws Exception {
+		HeapFile table = Utility.openHeapFile(2, data);
+		Filter f = filter(table, Predicate.Op.EQUALS, 9);
+		long begin = System.nanoTime();
+		f.open();
+		assertTrue(f.hasNext());
+		Tuple first = f.next();
+		long firstRow = System.nanoTime() - begin;
+		assertEquals(new IntField(9), first.getField(0));
+		int n = 1;
+		while (f.hasNext()) {
+			f.next();
+			n++;
+		}
+		long all = System.nanoTime() - begin;
+		f.close();
+		assertEquals(ROWS / 10, n);
+		System.out.println(String.format("filter over %d rows: first row after %.2f ms, last after %.2f ms",
+				ROWS, firstRow / 1e6, all / 1e6));
+		assertTrue(firstRow * 20 < all);
+	}
+
+	/**
+	 * Memory held by an open Filter does not grow with the rows it has passed,
+	 * even when nearly every row matches.
+	 */
+	@Test public void boundedMemory() throws Exception {
+		HeapFile table = Utility.openHeapFile(2, data);
+		Filter f = filter(table, Predicate.Op.LESS_THAN, 9);
+		f.open();
+		f.next();
+		long opened = SystemTestUtil.getMemoryFootprint();
+		int n = 1;
+		while (n < ROWS / 2) {
+			f.next();
+			n++;
+		}
+		long halfway = SystemTestUtil.getMemoryFootprint();
+		while (f.hasNext()) {
+			f.next();
+			n++;
+		}
+		f.close();
+		assertEquals(ROWS / 10 * 9, n);
+		System.out.println(String.format("filter over %d rows: %.1f MB after the first row, %.1f MB halfway",
+				ROWS, opened / 1e6, halfway / 1e6));
+		assertTrue(halfway - opened < 16 * 1024 * 1024);
+	}
+
+	/**
+	 * Rewinding rescans the child and returns the same rows again.
+	 */
+	@Test public void rewind() throws Exception {
+		HeapFile table = Utility.openHeapFile(2, data);
+		Filter f = filter(table, Predicate.Op.EQUALS, 3);
+		f.open();
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(new IntField(i * 10 + 3), f.next().getField(0));
+		}
+		f.rewind();
+		int n = 0;
+		while (f.hasNext()) {
+			assertEquals(new IntField(n * 10 + 3), f.next().getField(0));
+			n++;
+		}
+		f.close();
+		assertEquals(ROWS / 10, n);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(FilterStreamingTest.class);
+	}
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+	private static long accesses(BufferPool pool) {
+		return pool.getHitCount() + pool.getMissCount();
+	}
+
+	/**
+	 * Once the map knows the full pages, an insert into a large table fetches
+	 * only the page it goes to, instead of every page before it.
+	 */
+	@Test public void insertSkipsFullPages() throws Exception {
+		BufferPool pool = Database.resetBufferPool(1000);
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 20000, null, null);
+		int pages = table.numPages();
+		assertTrue(pages > 10);
+
+		TransactionId tid = new TransactionId();
+		// the first insert learns which pages are full
+		pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{1, 1}));
+		for (int i = 0; i < pages - 1; i++) {
+			assertEquals(0, table.getFreeSpaceMap().getFreeSlots(i));
+		}
+
+		long before = accesses(pool);
+		pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{2, 2}));
+		assertEquals(1, accesses(pool) - before);
+		pool.transactionComplete(tid);
+	}
+
+	/**
+	 * A slot freed by a delete in an early page is found by the next insert.
+	 */
+	@Test public void deleteMakesPageCandidate() throws Exception {
+		BufferPool pool = Database.resetBufferPool(1000);
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+		TransactionId tid = new TransactionId();
+		pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{1, 1}));
+
+		HeapPage first = (HeapPage) pool.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+		pool.deleteTuple(tid, first.iterator().next());
+		assertEquals(1, table.getFreeSpaceMap().getFreeSlots(0));
+		pool.transactionComplete(tid);
+
+		// a new transaction has no insertion page reserved yet
+		TransactionId next = new TransactionId();
+		pool.insertTuple(next, table.getId(), Utility.getHeapTuple(new int[]{-1, -1}));
+		assertEquals(0, first.getNumEmptySlots());
+		assertEquals(0, table.getFreeSpaceMap().getFreeSlots(0));
+		pool.transactionComplete(next);
+	}
+
+	/**
+	 * Entries written with the pages survive reopening the table, and pages
+	 * that were never written back stay unknown.
+	 */
+	@Test public void persistedWithPages() throws Exception {
+		BufferPool pool = Database.resetBufferPool(1000);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+		File fsm = FreeSpaceMap.fileFor(table.getFile());
+		assertFalse(fsm.exists());
+
+		TransactionId tid = new TransactionId();
+		pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{1, 1}));
+		int last = table.numPages() - 1;
+		int free = table.getFreeSpaceMap().getFreeSlots(last);
+		pool.flushPages(tid);
+		pool.transactionComplete(tid);
+		table.close();
+		assertTrue(fsm.exists());
+
+		HeapFile reopened = new HeapFile(table.getFile(), table.getTupleDesc());
+		assertEquals(free, reopened.getFreeSpaceMap().getFreeSlots(last));
+		assertEquals(-1, reopened.getFreeSpaceMap().getFreeSlots(0));
+		reopened.close();
+
+		// re-encoding the file drops the stale map
+		HeapFileEncoder.convert(tuples, table.getFile(), BufferPool.getPageSize(), 2);
+		assertFalse(fsm.exists());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+	}
+}
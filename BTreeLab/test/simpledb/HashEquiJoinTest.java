@@ -0,0 +1,205 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+	private static final JoinPredicate EQ = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+
+	/** Bytes of memory that hold n two-column build tuples. */
+	private static int tuples(int n) {
+		return n * Utility.getTupleDesc(2).getSize();
+	}
+
+	/** Rows (i, key) with keys drawn from [0, keys). */
+	private static TupleIterator table(int rows, int keys, long seed) {
+		Random r = new Random(seed);
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = i;
+			data[2 * i + 1] = r.nextInt(keys);
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	private static List<String> sorted(DbIterator it) throws Exception {
+		ArrayList<String> rows = new ArrayList<String>();
+		it.open();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		it.close();
+		Collections.sort(rows);
+		return rows;
+	}
+
+	private static int spillFiles() {
+		String[] files = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("hashjoin") && name.endsWith(".spill");
+			}
+		});
+		return files == null ? 0 : files.length;
+	}
+
+	/**
+	 * A build side that fits in memory is not spilled.
+	 */
+	@Test public void inMemory() throws Exception {
+		HashEquiJoin join = new HashEquiJoin(EQ, table(2000, 500, 1), table(3000, 500, 2));
+		assertEquals(sorted(new Join(EQ, table(2000, 500, 1), table(3000, 500, 2))), sorted(join));
+		assertEquals(0, join.getSpilledPartitions());
+		assertEquals(0, join.getSpilledBytes());
+	}
+
+	/**
+	 * Once the join is exhausted, hasNext() keeps returning false, with or
+	 * without spilling, and rewind() starts it over.
+	 */
+	@Test public void staysExhausted() throws Exception {
+		int[] budgets = {HashEquiJoin.DEFAULT_MEMORY, tuples(200)};
+		for (int budget : budgets) {
+			HashEquiJoin join = new HashEquiJoin(EQ, table(4000, 2000, 5), table(3000, 2000, 6), budget);
+			join.open();
+			int rows = 0;
+			while (join.hasNext()) {
+				join.next();
+				rows++;
+			}
+			assertFalse(join.hasNext());
+			assertFalse(join.hasNext());
+			join.rewind();
+			int again = 0;
+			while (join.hasNext()) {
+				join.next();
+				again++;
+			}
+			assertFalse(join.hasNext());
+			join.close();
+			assertEquals(rows, again);
+		}
+	}
+
+	/**
+	 * A build side many times the budget is partitioned to disk, partitions
+	 * still too big are split again, and the result is the same as a nested
+	 * loop join. The spill files are gone after close.
+	 */
+	@Test public void spillsAndRecurses() throws Exception {
+		int before = spillFiles();
+		HashEquiJoin join = new HashEquiJoin(EQ, table(40000, 20000, 3), table(30000, 20000, 4), tuples(200));
+		List<String> expected = sorted(new Join(EQ, table(40000, 20000, 3), table(30000, 20000, 4)));
+		assertEquals(expected, sorted(join));
+		assertTrue(join.getSpilledPartitions() > HashEquiJoin.FANOUT);
+		assertTrue(join.getSpilledBytes() > tuples(40000));
+		assertEquals(before, spillFiles());
+
+		join.open();
+		for (int i = 0; i < 10; i++) {
+			join.next();
+		}
+		assertTrue(spillFiles() > before);
+		join.rewind();
+		ArrayList<String> rows = new ArrayList<String>();
+		while (join.hasNext()) {
+			rows.add(join.next().toString());
+		}
+		join.close();
+		Collections.sort(rows);
+		assertEquals(expected, rows);
+		assertEquals(before, spillFiles());
+	}
+
+	/**
+	 * One key with more build tuples than the budget cannot be split by
+	 * hashing; it is joined a chunk at a time.
+	 */
+	@Test public void skewedKey() throws Exception {
+		HashEquiJoin join = new HashEquiJoin(EQ, table(3000, 2, 5), table(50, 2, 6), tuples(100));
+		List<String> expected = sorted(new Join(EQ, table(3000, 2, 5), table(50, 2, 6)));
+		assertTrue(expected.size() > 50000);
+		assertEquals(expected, sorted(join));
+	}
+
+	/**
+	 * The plan printed after running shows how much the join spilled.
+	 */
+	@Test public void explainShowsSpill() throws Exception {
+		TransactionId tid = new TransactionId();
+		HeapFile a = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, null);
+		HeapFile b = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, null);
+		HashEquiJoin join = new HashEquiJoin(EQ, new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, b.getId(), "b"),
+				tuples(1000));
+		assertFalse(new QueryPlanVisualizer().getQueryPlanTree(join).contains("spilled"));
+		sorted(join);
+		String plan = new QueryPlanVisualizer().getQueryPlanTree(join);
+		assertTrue(plan, plan.contains("spilled:" + join.getSpilledPartitions() + " partitions/"
+				+ join.getSpilledBytes() + " bytes"));
+	}
+
+	/**
+	 * The planner joins two large tables on an equality with a hash join, and
+	 * still uses a nested-loop join for other predicates.
+	 */
+	@Test public void plannerChoosesHashJoin() throws Exception {
+		TransactionId tid = new TransactionId();
+		HeapFile a = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, null, "c");
+		HeapFile b = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, null, "c");
+		Database.getCatalog().addTable(a, "HA");
+		Database.getCatalog().addTable(b, "HB");
+		TableStats.setTableStats("HA", new TableStats(a.getId(), TableStats.IOCOSTPERPAGE));
+		TableStats.setTableStats("HB", new TableStats(b.getId(), TableStats.IOCOSTPERPAGE));
+		Parser parser = new Parser();
+
+		LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT * FROM HA a, HB b WHERE a.c0 = b.c0;");
+		DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		String tree = new QueryPlanVisualizer().getQueryPlanTree(plan);
+		assertTrue(tree, tree.contains(QueryPlanVisualizer.HASH_JOIN));
+		assertEquals(sorted(new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, b.getId(), "b"))).size(), sorted(plan).size());
+
+		lp = parser.generateLogicalPlan(tid, "SELECT * FROM HA a, HB b WHERE a.c0 < b.c0;");
+		tree = new QueryPlanVisualizer().getQueryPlanTree(lp.physicalPlan(tid, TableStats.getStatsMap(), false));
+		assertFalse(tree, tree.contains(QueryPlanVisualizer.HASH_JOIN));
+	}
+
+	/**
+	 * Joins 200k rows with 200k rows with a budget of a tenth of the build
+	 * side and prints the time and spill volume.
+	 */
+	@Test public void spillBenchmark() throws Exception {
+		HashEquiJoin join = new HashEquiJoin(EQ, table(200000, 100000, 9), table(200000, 100000, 10),
+				tuples(20000));
+		long begin = System.nanoTime();
+		int n = sorted(join).size();
+		long spilled = System.nanoTime() - begin;
+		HashEquiJoin inMemory = new HashEquiJoin(EQ, table(200000, 100000, 9), table(200000, 100000, 10));
+		begin = System.nanoTime();
+		assertEquals(n, sorted(inMemory).size());
+		long memory = System.nanoTime() - begin;
+		System.out.println(String.format(
+				"hash join of 200k x 200k rows (%d results): %.1f ms in memory, %.1f ms spilling %d partitions/%d bytes",
+				n, memory / 1e6, spilled / 1e6, join.getSpilledPartitions(), join.getSpilledBytes()));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashEquiJoinTest.class);
+	}
+}
@@ -0,0 +1,250 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class HeapPageLazyDecodingTest extends SimpleDbTestBase {
+
+	private static final int COLUMNS = 6;
+
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile table;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		tuples = new ArrayList<ArrayList<Integer>>();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(COLUMNS, 20000, 1000, null, tuples);
+		table = new HeapFile(f, Utility.getTupleDesc(COLUMNS));
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+	}
+
+	private HeapPage readPage(int pgNo) {
+		return (HeapPage) table.readPage(new HeapPageId(table.getId(), pgNo));
+	}
+
+	/**
+	 * Fields are decoded on first access only, and hold the values that were written.
+	 */
+	@Test public void fieldsDecodedOnAccess() throws Exception {
+		HeapPage page = readPage(0);
+		Iterator<Tuple> it = page.iterator();
+		for (int row = 0; it.hasNext(); row++) {
+			Tuple t = it.next();
+			assertNull(t.getDecodedField(COLUMNS - 1));
+			assertEquals(tuples.get(row).get(COLUMNS - 1).intValue(),
+					((IntField) t.getField(COLUMNS - 1)).getValue());
+			assertNotNull(t.getDecodedField(COLUMNS - 1));
+			assertNull(t.getDecodedField(0));
+			assertEquals(new RecordId(page.getId(), row), t.getRecordId());
+			assertEquals(tuples.get(row), SystemTestUtil.tupleToList(t));
+		}
+	}
+
+	/**
+	 * Undecoded slots are written back byte for byte, and modified pages keep
+	 * their original contents as the before image.
+	 */
+	@Test public void pageDataRoundTrip() throws Exception {
+		HeapPage page = readPage(1);
+		byte[] original = page.getPageData();
+		assertArrayEquals(original, readPage(1).getPageData());
+
+		Iterator<Tuple> it = page.iterator();
+		Tuple first = it.next();
+		first.getField(2);
+		assertArrayEquals(original, page.getPageData());
+
+		page.deleteTuple(first);
+		Tuple t = Utility.getHeapTuple(new int[]{1, 2, 3, 4, 5, 6});
+		page.insertTuple(t);
+		assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+		HeapPage copy = new HeapPage(page.getId(), page.getPageData());
+		Iterator<Tuple> copied = copy.iterator();
+		for (Iterator<Tuple> it2 = page.iterator(); it2.hasNext(); ) {
+			assertEquals(SystemTestUtil.tupleToList(it2.next()), SystemTestUtil.tupleToList(copied.next()));
+		}
+		assertFalse(copied.hasNext());
+	}
+
+	/**
+	 * A scanned tuple inserted into another slot of its own page is written
+	 * with its own values, not with the bytes that were left in that slot.
+	 */
+	@Test public void reinsertIntoOwnPage() throws Exception {
+		// a page without a zone map, which would decode the inserted tuple
+		HeapPage page = new HeapPage(new HeapPageId(table.getId(), 0), readPage(0).getPageData());
+		Iterator<Tuple> it = page.iterator();
+		Tuple a = it.next();
+		Tuple b = it.next();
+		page.deleteTuple(b);
+		page.insertTuple(a);
+		assertEquals(new RecordId(page.getId(), 1), a.getRecordId());
+		assertNull(a.getDecodedField(0));
+
+		HeapPage written = new HeapPage(page.getId(), page.getPageData());
+		Iterator<Tuple> rows = written.iterator();
+		assertEquals(tuples.get(0), SystemTestUtil.tupleToList(rows.next()));
+		assertEquals(tuples.get(0), SystemTestUtil.tupleToList(rows.next()));
+		assertEquals(tuples.get(2), SystemTestUtil.tupleToList(rows.next()));
+	}
+
+	/**
+	 * Bytes allocated by the current thread, or -1 if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Decode every page of the table, reading the given number of fields of each row.
+	 *
+	 * @return the number of rows
+	 */
+	private int scan(int fieldsPerRow) {
+		int rows = 0;
+		long sum = 0;
+		for (int pgNo = 0; pgNo < table.numPages(); pgNo++) {
+			Iterator<Tuple> it = readPage(pgNo).iterator();
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				for (int j = 0; j < fieldsPerRow; j++) {
+					sum += ((IntField) t.getField(j)).getValue();
+				}
+				rows++;
+			}
+		}
+		assertTrue(sum >= 0);
+		return rows;
+	}
+
+	/**
+	 * Scan throughput and allocation per row when a filter reads one column,
+	 * compared with materializing every field as the eager HeapPage did. The
+	 * numbers are printed; only the allocation ordering is asserted.
+	 */
+	@Test public void scanThroughputAndAllocation() throws Exception {
+		for (int warmup = 0; warmup < 3; warmup++) {
+			scan(1);
+			scan(COLUMNS);
+		}
+		int[] fieldCounts = {COLUMNS, 1};
+		String[] labels = {"all fields (eager)", "one field (lazy)"};
+		long[] bytesPerRow = new long[2];
+		for (int k = 0; k < 2; k++) {
+			long bytes = allocatedBytes();
+			long begin = System.nanoTime();
+			int rows = scan(fieldCounts[k]);
+			long elapsed = System.nanoTime() - begin;
+			bytesPerRow[k] = bytes < 0 ? -1 : (allocatedBytes() - bytes) / rows;
+			System.out.println(String.format("HeapPage scan, %-18s: %10.0f rows/s, %5d bytes allocated/row",
+					labels[k], rows / (elapsed / 1e9), bytesPerRow[k]));
+		}
+		if (bytesPerRow[0] >= 0) {
+			assertTrue(bytesPerRow[1] < bytesPerRow[0]);
+		}
+	}
+
+	/**
+	 * Runs it, reading the given number of fields of every row it returns.
+	 *
+	 * @return the number of rows whose first field is below 100
+	 */
+	private static int scan(DbIterator it, int fieldsPerRow) throws Exception {
+		int matches = 0;
+		long sum = 0;
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			for (int j = 0; j < fieldsPerRow; j++) {
+				sum += ((IntField) t.getField(j)).getValue();
+			}
+			if (((IntField) t.getField(0)).getValue() < 100) {
+				matches++;
+			}
+		}
+		it.close();
+		assertTrue(sum >= 0);
+		return matches;
+	}
+
+	private Filter selective() {
+		return new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)),
+				new SeqScan(new TransactionId(), table.getId()));
+	}
+
+	/**
+	 * Rows coming out of SeqScan, and of a Filter over it, only have the
+	 * fields decoded that were read on the way.
+	 */
+	@Test public void seqScanKeepsFieldsLazy() throws Exception {
+		SeqScan scan = new SeqScan(new TransactionId(), table.getId(), "t");
+		scan.open();
+		Tuple t = scan.next();
+		assertSame(scan.getTupleDesc(), t.getTupleDesc());
+		assertNull(t.getDecodedField(0));
+		assertEquals(tuples.get(0), SystemTestUtil.tupleToList(t));
+		scan.close();
+
+		Filter filter = selective();
+		filter.open();
+		assertTrue(filter.hasNext());
+		t = filter.next();
+		assertNotNull(t.getDecodedField(0));
+		assertNull(t.getDecodedField(COLUMNS - 1));
+		filter.close();
+	}
+
+	/**
+	 * Throughput and allocation per row of a SeqScan + Filter whose predicate
+	 * reads one column, compared with decoding every field of each row that
+	 * SeqScan returns as it used to. The numbers are printed; only the
+	 * allocation ordering is asserted.
+	 */
+	@Test public void filteredSeqScanThroughput() throws Exception {
+		Database.resetBufferPool(table.numPages());
+		for (int warmup = 0; warmup < 3; warmup++) {
+			scan(new SeqScan(new TransactionId(), table.getId()), COLUMNS);
+			scan(selective(), 0);
+		}
+		String[] labels = {"all fields (eager)", "one field (lazy)"};
+		long[] bytesPerRow = new long[2];
+		int[] matches = new int[2];
+		for (int k = 0; k < 2; k++) {
+			long bytes = allocatedBytes();
+			long begin = System.nanoTime();
+			matches[k] = k == 0 ? scan(new SeqScan(new TransactionId(), table.getId()), COLUMNS) : scan(selective(), 0);
+			long elapsed = System.nanoTime() - begin;
+			bytesPerRow[k] = bytes < 0 ? -1 : (allocatedBytes() - bytes) / tuples.size();
+			System.out.println(String.format("SeqScan + Filter, %-18s: %10.0f rows/s, %5d bytes allocated/row",
+					labels[k], tuples.size() / (elapsed / 1e9), bytesPerRow[k]));
+		}
+		assertEquals(matches[0], matches[1]);
+		if (bytesPerRow[0] >= 0) {
+			assertTrue(bytesPerRow[1] < bytesPerRow[0]);
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HeapPageLazyDecodingTest.class);
+	}
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+	private TransactionId tid;
+	private BTreeFile inner;
+
+	/** Loads rows (c0, c1) = (i % keys, i) into a B+ tree keyed on c0 named name. */
+	private static BTreeFile btree(String name, int rows, int keys) throws Exception {
+		File text = File.createTempFile("indexjoin", ".txt");
+		text.deleteOnExit();
+		BufferedWriter w = new BufferedWriter(new FileWriter(text));
+		for (int i = 0; i < rows; i++) {
+			w.write((i % keys) + "," + i + "\n");
+		}
+		w.close();
+		File data = File.createTempFile("indexjoin", ".dat");
+		data.deleteOnExit();
+		BTreeFile f = new BulkLoader().convertBTree(text, data, Utility.getTupleDesc(2, "c"), ',', 0);
+		Database.getCatalog().addTable(f, name);
+		TableStats.setTableStats(name, new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+		return f;
+	}
+
+	/** Rows (key, i) with keys drawn from [0, keys), in random order. */
+	private static TupleIterator outer(int rows, int keys, long seed) {
+		Random r = new Random(seed);
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = r.nextInt(keys);
+			data[2 * i + 1] = i;
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	private static List<String> sorted(DbIterator it) throws Exception {
+		ArrayList<String> rows = new ArrayList<String>();
+		it.open();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		it.close();
+		Collections.sort(rows);
+		return rows;
+	}
+
+	@Before public void createInner() throws Exception {
+		tid = new TransactionId();
+		inner = btree("IB", 20000, 1000);
+	}
+
+	private SeqScan scan() {
+		return new SeqScan(tid, inner.getId(), "b");
+	}
+
+	/**
+	 * Keys of the outer side that are missing from the index, or appear in it
+	 * many times, give the same result as a nested-loop join.
+	 */
+	@Test public void sameAsNestedLoop() throws Exception {
+		JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		List<String> expected = sorted(new Join(p, outer(3000, 1500, 1), scan()));
+		assertEquals(expected, sorted(new IndexNestedLoopJoin(p, outer(3000, 1500, 1), scan())));
+		assertEquals(expected, sorted(new IndexNestedLoopJoin(p, outer(3000, 1500, 1), scan(), 64)));
+		assertTrue(sorted(new IndexNestedLoopJoin(p, outer(0, 1, 2), scan())).isEmpty());
+	}
+
+	/**
+	 * Filters over the inner scan are applied to the tuples found in the index.
+	 */
+	@Test public void filteredInner() throws Exception {
+		JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		Predicate f = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5000));
+		List<String> expected = sorted(new Join(p, outer(2000, 1000, 3), new Filter(f, scan())));
+		assertEquals(2000 * 5, expected.size());
+		assertEquals(expected, sorted(new IndexNestedLoopJoin(p, outer(2000, 1000, 3), new Filter(f, scan()))));
+	}
+
+	/**
+	 * Duplicate keys of a batch share a single lookup.
+	 */
+	@Test public void batchedProbes() throws Exception {
+		JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		IndexNestedLoopJoin j = new IndexNestedLoopJoin(p, outer(10000, 50, 4), scan());
+		assertEquals(10000 * 20, sorted(j).size());
+		assertEquals(50, j.getProbes());
+
+		// one outer tuple per batch
+		j = new IndexNestedLoopJoin(p, outer(500, 50, 4), scan(), 1);
+		assertEquals(500 * 20, sorted(j).size());
+		assertTrue(j.getProbes() > 50);
+	}
+
+	@Test public void rewind() throws Exception {
+		JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+		IndexNestedLoopJoin j = new IndexNestedLoopJoin(p, outer(1000, 2000, 5), scan(), 800);
+		j.open();
+		for (int i = 0; i < 100; i++) {
+			j.next();
+		}
+		j.rewind();
+		ArrayList<String> rows = new ArrayList<String>();
+		while (j.hasNext()) {
+			rows.add(j.next().toString());
+		}
+		j.close();
+		Collections.sort(rows);
+		assertEquals(sorted(new Join(p, outer(1000, 2000, 5), scan())), rows);
+	}
+
+	@Test public void notIndexed() throws Exception {
+		HeapFile h = SystemTestUtil.createRandomHeapFile(2, 10, 10, null, null, "c");
+		Database.getCatalog().addTable(h, "IH");
+		assertTrue(IndexNestedLoopJoin.canProbe(Predicate.Op.EQUALS, scan(), 0));
+		assertFalse(IndexNestedLoopJoin.canProbe(Predicate.Op.EQUALS, scan(), 1));
+		assertFalse(IndexNestedLoopJoin.canProbe(Predicate.Op.GREATER_THAN, scan(), 0));
+		assertFalse(IndexNestedLoopJoin.canProbe(Predicate.Op.EQUALS, new SeqScan(tid, h.getId(), "h"), 0));
+		try {
+			new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer(1, 1, 6),
+					new SeqScan(tid, h.getId(), "h"));
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The planner looks up the keys of a small outer side in the index of a
+	 * large inner table.
+	 */
+	@Test public void plannerChoosesIndex() throws Exception {
+		HeapFile h = SystemTestUtil.createRandomHeapFile(2, 10, 1000, null, null, "c");
+		Database.getCatalog().addTable(h, "IH");
+		TableStats.setTableStats("IH", new TableStats(h.getId(), TableStats.IOCOSTPERPAGE));
+		double cost2 = TableStats.getTableStats("IB").estimateScanCost();
+		LogicalJoinNode lj = new LogicalJoinNode("h", "b", "h.c0", "b.c0", Predicate.Op.EQUALS);
+
+		DbIterator j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, h.getId(), "h"), scan(),
+				10, 20000, TableStats.IOCOSTPERPAGE, cost2);
+		assertTrue(j instanceof IndexNestedLoopJoin);
+		LogicalJoinNode range = new LogicalJoinNode("h", "b", "h.c0", "b.c0", Predicate.Op.LESS_THAN);
+		j = JoinOptimizer.instantiateJoin(range, new SeqScan(tid, h.getId(), "h"), scan(),
+				10, 20000, TableStats.IOCOSTPERPAGE, cost2);
+		assertFalse(j instanceof IndexNestedLoopJoin);
+
+		// one root-to-leaf lookup per outer tuple, but never more than a scan of the inner table per batch
+		double few = JoinOptimizer.estimateIndexNestedLoopJoinCost(8, 4, 10, TableStats.IOCOSTPERPAGE, cost2);
+		assertTrue(few < JoinOptimizer.estimateBlockNestedLoopJoinCost(8, 10, 20000, TableStats.IOCOSTPERPAGE, cost2));
+		assertTrue(few < TableStats.IOCOSTPERPAGE + 10 + 10 * 3 * TableStats.IOCOSTPERPAGE);
+		double many = JoinOptimizer.estimateIndexNestedLoopJoinCost(8, 4, 100000, TableStats.IOCOSTPERPAGE, cost2);
+		assertEquals(TableStats.IOCOSTPERPAGE + 100000 + Math.ceil(100000.0 / (Join.blockMemory / 8)) * cost2,
+				many, 0.001);
+
+		Parser parser = new Parser();
+		LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT * FROM IB b, IH h WHERE b.c0 = h.c0;");
+		DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		String tree = new QueryPlanVisualizer().getQueryPlanTree(plan);
+		assertTrue(tree, tree.contains(QueryPlanVisualizer.INDEX_JOIN));
+		assertEquals(sorted(new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, h.getId(), "h"), scan())).size(), sorted(plan).size());
+	}
+
+	/**
+	 * The optimizer only costs a join as an index nested-loop join when
+	 * instantiateJoin could build one: an equality on the key of a B+ tree
+	 * whose scan is the right child, not a subplan that already joined it.
+	 */
+	@Test public void costMatchesInstantiation() throws Exception {
+		HeapFile h = SystemTestUtil.createRandomHeapFile(2, 10, 1000, null, null, "c");
+		Database.getCatalog().addTable(h, "IH");
+		TableStats.setTableStats("IH", new TableStats(h.getId(), TableStats.IOCOSTPERPAGE));
+		double cost2 = TableStats.getTableStats("IB").estimateScanCost();
+		LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM IB b, IH h WHERE b.c0 = h.c0;");
+		JoinOptimizer jo = new JoinOptimizer(lp, new java.util.Vector<LogicalJoinNode>());
+		LogicalJoinNode lj = new LogicalJoinNode("h", "b", "h.c0", "b.c0", Predicate.Op.EQUALS);
+		int size = h.getTupleDesc().getSize();
+		double scanned = Math.min(
+				JoinOptimizer.estimateBlockNestedLoopJoinCost(size, 10, 20000, TableStats.IOCOSTPERPAGE, cost2),
+				JoinOptimizer.estimateHashJoinCost(size, size, 10, 20000, TableStats.IOCOSTPERPAGE, cost2));
+
+		assertTrue(IndexNestedLoopJoin.canProbe(Predicate.Op.EQUALS, inner, "c0"));
+		assertFalse(IndexNestedLoopJoin.canProbe(Predicate.Op.EQUALS, inner, "c1"));
+		assertFalse(IndexNestedLoopJoin.canProbe(Predicate.Op.EQUALS, h, "c0"));
+		assertTrue(jo.estimateJoinCost(lj, 10, 20000, TableStats.IOCOSTPERPAGE, cost2) < scanned);
+		assertEquals(scanned, jo.estimateJoinCost(lj, 10, 20000, TableStats.IOCOSTPERPAGE, cost2, false), 0.001);
+		LogicalJoinNode c1 = new LogicalJoinNode("h", "b", "h.c0", "b.c1", Predicate.Op.EQUALS);
+		assertFalse(IndexNestedLoopJoin.canProbe(Predicate.Op.EQUALS, scan(), 1));
+		assertEquals(scanned, jo.estimateJoinCost(c1, 10, 20000, TableStats.IOCOSTPERPAGE, cost2), 0.001);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+	}
+}
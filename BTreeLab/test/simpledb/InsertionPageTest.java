@@ -0,0 +1,198 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class InsertionPageTest extends SimpleDbTestBase {
+
+	/**
+	 * Runs the given number of writer threads, each inserting rowsPerThread
+	 * tuples (writer, i) in its own transaction, and returns the number of
+	 * nanoseconds from start until all writers have committed. Writers commit
+	 * only after all of them have inserted their rows.
+	 */
+	private long runWriters(final BufferPool bp, final HeapFile table, int threads, final int rowsPerThread)
+			throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch inserted = new CountDownLatch(threads);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final Exception[] error = new Exception[1];
+		for (int t = 0; t < threads; t++) {
+			final int writer = t;
+			new Thread() {
+				public void run() {
+					TransactionId tid = new TransactionId();
+					try {
+						start.await();
+						try {
+							for (int i = 0; i < rowsPerThread; i++) {
+								bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{writer, i}));
+							}
+						} finally {
+							inserted.countDown();
+						}
+						inserted.await();
+						bp.transactionComplete(tid);
+					} catch (Exception e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		if (error[0] != null) {
+			throw error[0];
+		}
+		return elapsed;
+	}
+
+	/**
+	 * Concurrent writers each fill pages of their own: no page holds tuples of
+	 * two writers, and every tuple is there afterwards.
+	 */
+	@Test public void writersUseOwnPages() throws Exception {
+		BufferPool bp = Database.resetBufferPool(1000);
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		runWriters(bp, table, 4, 3000);
+
+		HashMap<Integer, Integer> rowsByWriter = new HashMap<Integer, Integer>();
+		TransactionId tid = new TransactionId();
+		for (int pgNo = 0; pgNo < table.numPages(); pgNo++) {
+			HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+			int owner = -1;
+			for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+				int writer = ((IntField) it.next().getField(0)).getValue();
+				assertTrue(owner == -1 || owner == writer);
+				owner = writer;
+				Integer count = rowsByWriter.get(writer);
+				rowsByWriter.put(writer, count == null ? 1 : count + 1);
+			}
+		}
+		assertEquals(4, rowsByWriter.size());
+		for (int count : rowsByWriter.values()) {
+			assertEquals(3000, count);
+		}
+	}
+
+	/**
+	 * When every page is full, the next insertion page is taken from the
+	 * file's current extent, and the file grows by a whole extent only once
+	 * the extent is used up.
+	 */
+	@Test public void extendsInExtents() throws Exception {
+		BufferPool bp = Database.resetBufferPool(1000);
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		table.getExtents().setExtentPages(3);
+		int pages = table.numPages();
+		TransactionId tid = new TransactionId();
+		HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+		int slots = first.getNumEmptySlots();
+		int row = 0;
+		for (; row < slots * pages; row++) {
+			bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{0, row}));
+		}
+		assertEquals(pages, table.numPages());
+
+		bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{0, row++}));
+		assertEquals(pages + 1, table.numPages());
+		assertEquals(2, table.getExtents().getUnusedPages());
+		assertEquals((pages + 3) * BufferPool.getPageSize(), table.getFile().length());
+		for (; row < slots * (pages + 1); row++) {
+			bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{0, row}));
+		}
+		bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{0, row}));
+		assertEquals(pages + 2, table.numPages());
+		assertEquals(1, table.getExtents().getUnusedPages());
+		assertEquals(1, table.getExtents().getExtensions());
+	}
+
+	/**
+	 * A second transaction does not insert into the page reserved by the
+	 * first one, and gets it once the first one completes.
+	 */
+	@Test public void releasedOnComplete() throws Exception {
+		BufferPool bp = Database.resetBufferPool(1000);
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		TransactionId t1 = new TransactionId();
+		TransactionId t2 = new TransactionId();
+		Tuple a = Utility.getHeapTuple(new int[]{1, 1});
+		Tuple b = Utility.getHeapTuple(new int[]{2, 2});
+		bp.insertTuple(t1, table.getId(), a);
+		bp.insertTuple(t2, table.getId(), b);
+		assertFalse(a.getRecordId().getPageId().equals(b.getRecordId().getPageId()));
+
+		bp.transactionComplete(t1);
+		TransactionId t3 = new TransactionId();
+		Tuple c = Utility.getHeapTuple(new int[]{3, 3});
+		bp.insertTuple(t3, table.getId(), c);
+		assertEquals(a.getRecordId().getPageId(), c.getRecordId().getPageId());
+	}
+
+	/**
+	 * Completing a transaction releases its insertion pages in every table it
+	 * inserted into, and only those tables are visited.
+	 */
+	@Test public void releasedInEveryTable() throws Exception {
+		BufferPool bp = Database.resetBufferPool(1000);
+		HeapFile t1 = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		HeapFile t2 = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		TransactionId writer = new TransactionId();
+		Tuple a = Utility.getHeapTuple(new int[]{1, 1});
+		Tuple b = Utility.getHeapTuple(new int[]{2, 2});
+		bp.insertTuple(writer, t1.getId(), a);
+		bp.insertTuple(writer, t2.getId(), b);
+
+		// a table dropped from the catalog is released all the same
+		Database.getCatalog().clear();
+		bp.transactionComplete(writer);
+		TransactionId next = new TransactionId();
+		Tuple c = Utility.getHeapTuple(new int[]{3, 3});
+		Tuple d = Utility.getHeapTuple(new int[]{4, 4});
+		t1.insertTuple(next, c);
+		t2.insertTuple(next, d);
+		assertEquals(a.getRecordId().getPageId(), c.getRecordId().getPageId());
+		assertEquals(b.getRecordId().getPageId(), d.getRecordId().getPageId());
+		bp.transactionComplete(next);
+	}
+
+	/**
+	 * Multi-writer insert benchmark: the same number of rows inserted by 1 to 8
+	 * concurrent writers. Prints rows/s for each writer count.
+	 */
+	@Test public void multiWriterBenchmark() throws Exception {
+		int rows = 80000;
+		System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			Database.reset();
+			BufferPool bp = Database.resetBufferPool(2000);
+			HeapFile table = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+			long nanos = runWriters(bp, table, threads, rows / threads);
+			System.out.println(String.format("%d writers: %9.0f rows/s, %d pages",
+					threads, rows * 1e9 / nanos, table.numPages()));
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(InsertionPageTest.class);
+	}
+}
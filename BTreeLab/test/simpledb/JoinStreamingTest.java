@@ -0,0 +1,150 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class JoinStreamingTest extends SimpleDbTestBase {
+
+	/** Rows (i, key(i)) for i in [0, rows), with key(i) = i % mod. */
+	private static TupleIterator table(int rows, int mod) {
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = i;
+			data[2 * i + 1] = i % mod;
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	private static List<String> drain(DbIterator it) throws Exception {
+		ArrayList<String> rows = new ArrayList<String>();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		return rows;
+	}
+
+	/** The rows a tuple-at-a-time nested loop gives, in block nested loop order. */
+	private static List<String> expected(DbIterator left, DbIterator right, JoinPredicate p, int blockSize)
+			throws Exception {
+		ArrayList<Tuple> lefts = new ArrayList<Tuple>();
+		left.open();
+		while (left.hasNext()) {
+			lefts.add(left.next());
+		}
+		left.close();
+		ArrayList<String> rows = new ArrayList<String>();
+		for (int begin = 0; begin < lefts.size(); begin += blockSize) {
+			right.open();
+			while (right.hasNext()) {
+				Tuple r = right.next();
+				for (Tuple l : lefts.subList(begin, Math.min(lefts.size(), begin + blockSize))) {
+					if (p.filter(l, r)) {
+						rows.add(l.toString().replace("\n", "\t") + r.toString());
+					}
+				}
+			}
+			right.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * A left input spanning several blocks joins to the same rows as a plain
+	 * nested loop, for equality and inequality predicates.
+	 */
+	@Test public void matchesNestedLoopAcrossBlocks() throws Exception {
+		int blockSize = Join.blockMemory / Utility.getTupleDesc(2).getSize();
+		int rows = blockSize * 2 + 123;
+		JoinPredicate eq = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+		Join join = new Join(eq, table(rows, 100), table(300, 100));
+		join.open();
+		List<String> actual = drain(join);
+		join.close();
+		assertEquals(rows * 3, actual.size());
+		assertEquals(expected(table(rows, 100), table(300, 100), eq, blockSize), actual);
+
+		JoinPredicate lt = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+		join = new Join(lt, table(rows, rows), table(20, 20));
+		join.open();
+		actual = drain(join);
+		join.close();
+		assertEquals(19 * 20 / 2, actual.size());
+		assertEquals(expected(table(rows, rows), table(20, 20), lt, blockSize), actual);
+	}
+
+	/**
+	 * Rewinding part way through starts the join again from the first block.
+	 */
+	@Test public void rewindMidJoin() throws Exception {
+		int blockSize = Join.blockMemory / Utility.getTupleDesc(2).getSize();
+		JoinPredicate eq = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+		Join join = new Join(eq, table(blockSize + 10, 7), table(50, 7));
+		join.open();
+		List<String> all = drain(join);
+		join.rewind();
+		for (int i = 0; i < all.size() / 2 + blockSize; i++) {
+			join.next();
+		}
+		join.rewind();
+		assertEquals(all, drain(join));
+		join.close();
+
+		join = new Join(eq, table(100, 7), table(0, 7));
+		join.open();
+		assertFalse(join.hasNext());
+		join.close();
+		join = new Join(eq, table(0, 7), table(100, 7));
+		join.open();
+		assertFalse(join.hasNext());
+		join.close();
+	}
+
+	/**
+	 * A join of 3000 rows with 3000 rows on one key has nine million result
+	 * rows. The first comes back at once, and reading millions of them does
+	 * not grow the memory held by the join.
+	 */
+	@Test public void manyToManyStreams() throws Exception {
+		JoinPredicate eq = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+		Join join = new Join(eq, table(3000, 1), table(3000, 1));
+		long begin = System.nanoTime();
+		join.open();
+		Tuple first = join.next();
+		long firstRow = System.nanoTime() - begin;
+		assertEquals(new IntField(0), first.getField(0));
+		long opened = SystemTestUtil.getMemoryFootprint();
+		int n = 1;
+		while (n < 4000000) {
+			join.next();
+			n++;
+		}
+		long read = SystemTestUtil.getMemoryFootprint();
+		while (join.hasNext()) {
+			join.next();
+			n++;
+		}
+		long all = System.nanoTime() - begin;
+		join.close();
+		assertEquals(9000000, n);
+		System.out.println(String.format(
+				"join with %d result rows: first row after %.2f ms, last after %.2f ms; %.1f MB after the first row, %.1f MB after 4M rows",
+				n, firstRow / 1e6, all / 1e6, opened / 1e6, read / 1e6));
+		assertTrue(firstRow * 20 < all);
+		assertTrue(read - opened < 16 * 1024 * 1024);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(JoinStreamingTest.class);
+	}
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class MemoryMappedFileTest extends SimpleDbTestBase {
+
+	/**
+	 * A mapped heap file returns the same tuples as the file it was written to.
+	 */
+	@Test public void heapScan() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(3, 5000, 1000, null, tuples);
+		HeapFile table = new HeapFile(f, Utility.getTupleDesc(3), true);
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		assertTrue(table.isMemoryMapped());
+		SystemTestUtil.matchTuples(table, tuples);
+	}
+
+	/**
+	 * Pages appended after the file was mapped are read through a new mapping.
+	 */
+	@SuppressWarnings("deprecation")
+	@Test public void remapOnGrowth() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 2, 1000, null, tuples);
+		HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		assertEquals(2, table.numPages());
+		SystemTestUtil.matchTuples(table, tuples);
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 10; i++) {
+			Tuple t = Utility.getHeapTuple(new int[]{-i, i});
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			row.add(-i);
+			row.add(i);
+			tuples.add(row);
+		}
+		assertEquals(3, table.numPages());
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), 2));
+		int count = 0;
+		for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+			count++;
+		}
+		assertEquals(10, count);
+		SystemTestUtil.matchTuples(table, tuples);
+	}
+
+	/**
+	 * A mapped B+ tree decodes every page category from the mapping.
+	 */
+	@Test public void btreeScan() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile created = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+		BTreeFile index = new BTreeFile(created.getFile(), 0, created.getTupleDesc(), true);
+		Database.getCatalog().addTable(index, SystemTestUtil.getUUID());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertTrue(index.isMemoryMapped());
+		SystemTestUtil.matchTuples(index, tuples);
+	}
+
+	/**
+	 * A trailing "mmap" in the catalog file opens the table in mapped mode.
+	 */
+	@Test public void loadSchemaOption() throws Exception {
+		File dir = Files.createTempDirectory("catalog").toFile();
+		dir.deleteOnExit();
+		for (String name : new String[]{"mapped", "plain"}) {
+			File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 1000, null, null);
+			File dat = new File(dir, name + ".dat");
+			assertTrue(f.renameTo(dat));
+			dat.deleteOnExit();
+		}
+		File schema = new File(dir, "catalog.txt");
+		schema.deleteOnExit();
+		FileWriter w = new FileWriter(schema);
+		w.write("mapped (a int, b int) mmap\n");
+		w.write("plain (a int pk, b int)\n");
+		w.close();
+
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		Catalog catalog = Database.getCatalog();
+		assertTrue(((HeapFile) catalog.getDbFile(catalog.getTableId("mapped"))).isMemoryMapped());
+		assertFalse(((HeapFile) catalog.getDbFile(catalog.getTableId("plain"))).isMemoryMapped());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(MemoryMappedFileTest.class);
+	}
+}
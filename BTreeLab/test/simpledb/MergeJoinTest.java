@@ -0,0 +1,193 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class MergeJoinTest extends SimpleDbTestBase {
+
+	/** Rows (i, key) with keys drawn from [0, keys), sorted by key. */
+	private static TupleIterator sortedTable(int rows, int keys, long seed) {
+		Random r = new Random(seed);
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for (int i = 0; i < rows; i++) {
+			values.add(r.nextInt(keys));
+		}
+		Collections.sort(values);
+		int[] data = new int[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			data[2 * i] = i;
+			data[2 * i + 1] = values.get(i);
+		}
+		return TestUtil.createTupleList(2, data);
+	}
+
+	private static List<String> sorted(DbIterator it) throws Exception {
+		ArrayList<String> rows = new ArrayList<String>();
+		it.open();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		it.close();
+		Collections.sort(rows);
+		return rows;
+	}
+
+	private static void assertSameAsNestedLoop(Predicate.Op op, int rows1, int rows2, int keys) throws Exception {
+		JoinPredicate p = new JoinPredicate(1, op, 1);
+		List<String> expected = sorted(new Join(p, sortedTable(rows1, keys, 1), sortedTable(rows2, keys, 2)));
+		assertEquals(op.toString(), expected, sorted(new MergeJoin(p, sortedTable(rows1, keys, 1), sortedTable(rows2, keys, 2))));
+	}
+
+	/**
+	 * Equality joins pair every tuple of a run of equal keys on the left with
+	 * every tuple of the run on the right.
+	 */
+	@Test public void equalsWithDuplicateRuns() throws Exception {
+		assertSameAsNestedLoop(Predicate.Op.EQUALS, 3000, 2000, 300);
+		assertSameAsNestedLoop(Predicate.Op.EQUALS, 500, 500, 3);
+		assertSameAsNestedLoop(Predicate.Op.EQUALS, 1000, 1000, 100000);
+		assertSameAsNestedLoop(Predicate.Op.EQUALS, 0, 100, 10);
+		assertSameAsNestedLoop(Predicate.Op.EQUALS, 100, 0, 10);
+	}
+
+	@Test public void inequalities() throws Exception {
+		for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+				Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+			assertSameAsNestedLoop(op, 300, 200, 50);
+			assertSameAsNestedLoop(op, 100, 100, 1);
+		}
+	}
+
+	@Test public void rewind() throws Exception {
+		JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+		MergeJoin join = new MergeJoin(p, sortedTable(500, 20, 3), sortedTable(500, 20, 4));
+		join.open();
+		for (int i = 0; i < 100; i++) {
+			join.next();
+		}
+		join.rewind();
+		ArrayList<String> rows = new ArrayList<String>();
+		while (join.hasNext()) {
+			rows.add(join.next().toString());
+		}
+		join.close();
+		Collections.sort(rows);
+		assertEquals(sorted(new Join(p, sortedTable(500, 20, 3), sortedTable(500, 20, 4))), rows);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notEqualsRejected() {
+		new MergeJoin(new JoinPredicate(1, Predicate.Op.NOT_EQUALS, 1), sortedTable(1, 1, 5), sortedTable(1, 1, 6));
+	}
+
+	/** Loads rows (c0, c1) = (i % keys, i) into a B+ tree keyed on c0 named name. */
+	private static BTreeFile btree(String name, int rows, int keys) throws Exception {
+		File text = File.createTempFile("merge", ".txt");
+		text.deleteOnExit();
+		BufferedWriter w = new BufferedWriter(new FileWriter(text));
+		for (int i = 0; i < rows; i++) {
+			w.write((i % keys) + "," + i + "\n");
+		}
+		w.close();
+		File data = File.createTempFile("merge", ".dat");
+		data.deleteOnExit();
+		BTreeFile f = new BulkLoader().convertBTree(text, data, Utility.getTupleDesc(2, "c"), ',', 0);
+		Database.getCatalog().addTable(f, name);
+		TableStats.setTableStats(name, new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+		return f;
+	}
+
+	private static HeapFile heap(String name, int rows, int keys) throws Exception {
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, keys, null, null, "c");
+		Database.getCatalog().addTable(f, name);
+		TableStats.setTableStats(name, new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+		return f;
+	}
+
+	private static LogicalJoinNode join(String t1, String t2) {
+		return new LogicalJoinNode(t1, t2, t1 + ".c0", t2 + ".c0", Predicate.Op.EQUALS);
+	}
+
+	/**
+	 * Scans of B+ trees keyed on the join field are merged; when only one side
+	 * is ordered the other is sorted if that is cheaper than a nested loop.
+	 */
+	@Test public void plannerChoosesMergeJoin() throws Exception {
+		BTreeFile a = btree("MA", 2000, 500);
+		BTreeFile b = btree("MB", 3000, 500);
+		HeapFile h = heap("MH", 2000, 500);
+		TransactionId tid = new TransactionId();
+
+		SeqScan sa = new SeqScan(tid, a.getId(), "a");
+		assertTrue(JoinOptimizer.isSortedOn(sa, 0));
+		assertFalse(JoinOptimizer.isSortedOn(sa, 1));
+		assertFalse(JoinOptimizer.isSortedOn(new SeqScan(tid, h.getId(), "h"), 0));
+
+		DbIterator j = JoinOptimizer.instantiateJoin(join("a", "b"), sa, new SeqScan(tid, b.getId(), "b"));
+		assertTrue(j instanceof MergeJoin);
+		assertTrue(JoinOptimizer.isSortedOn(j, 0));
+		assertTrue(JoinOptimizer.isSortedOn(j, 2));
+		assertEquals(3000 * 2000 / 500, sorted(j).size());
+
+		j = JoinOptimizer.instantiateJoin(join("a", "h"), new SeqScan(tid, a.getId(), "a"),
+				new SeqScan(tid, h.getId(), "h"));
+		assertTrue(j instanceof Join);
+		// an equality join hashes a instead of sorting h
+		j = JoinOptimizer.instantiateJoin(join("a", "h"), new SeqScan(tid, a.getId(), "a"),
+				new SeqScan(tid, h.getId(), "h"), 2000, 2000, 10000, 10000);
+		assertTrue(j instanceof HashEquiJoin);
+		List<String> expected = sorted(new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, h.getId(), "h")));
+		assertEquals(expected, sorted(j));
+		j = JoinOptimizer.instantiateJoin(new LogicalJoinNode("a", "h", "a.c0", "h.c0", Predicate.Op.LESS_THAN),
+				new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, h.getId(), "h"), 2000, 2000, 10000, 10000);
+		assertTrue(j instanceof MergeJoin);
+		assertTrue(((Operator) j).getChildren()[1] instanceof ExternalSort);
+		// an equality join would look the keys up in the index of a instead
+		j = JoinOptimizer.instantiateJoin(new LogicalJoinNode("h", "a", "h.c0", "a.c0", Predicate.Op.LESS_THAN),
+				new SeqScan(tid, h.getId(), "h"), new SeqScan(tid, a.getId(), "a"), 2000, 2000, 10000, 10000);
+		assertTrue(j instanceof MergeJoin);
+		assertTrue(((Operator) j).getChildren()[0] instanceof ExternalSort);
+
+		// sorting is not worth it for a single row
+		j = JoinOptimizer.instantiateJoin(join("a", "h"), new SeqScan(tid, a.getId(), "a"),
+				new SeqScan(tid, h.getId(), "h"), 2000, 1, 10000, 1000);
+		assertTrue(j instanceof Join);
+	}
+
+	/**
+	 * A query over two B+ trees gets a merge join from the planner and the
+	 * same answer as over heap files.
+	 */
+	@Test public void plannedQuery() throws Exception {
+		btree("QA", 2000, 400);
+		btree("QB", 1000, 400);
+		TransactionId tid = new TransactionId();
+		Parser p = new Parser();
+		LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM QA a, QB b WHERE a.c0 = b.c0;");
+		DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+		String tree = new QueryPlanVisualizer().getQueryPlanTree(plan);
+		assertTrue(tree, tree.contains(QueryPlanVisualizer.MERGE_JOIN));
+		assertEquals(2000 * 1000 / 400, sorted(plan).size());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(MergeJoinTest.class);
+	}
+}
@@ -0,0 +1,270 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+	/**
+	 * Frames are handed out once until released, and do not overlap.
+	 */
+	@Test public void allocateAndRelease() {
+		PageArena arena = new PageArena(3, 4096);
+		int a = arena.allocate();
+		int b = arena.allocate();
+		int c = arena.allocate();
+		assertEquals(-1, arena.allocate());
+		assertEquals(3, arena.getUsedFrames());
+		assertTrue(a != b && b != c && a != c);
+
+		ByteBuffer fa = arena.frame(a);
+		ByteBuffer fb = arena.frame(b);
+		assertEquals(4096, fa.remaining());
+		fa.putInt(4092, 42);
+		assertEquals(0, fb.getInt(4092));
+		assertEquals(42, arena.frame(a).getInt(4092));
+
+		arena.release(b);
+		assertEquals(b, arena.allocate());
+		arena.release(a);
+		arena.release(b);
+		arena.release(c);
+		assertEquals(0, arena.getUsedFrames());
+	}
+
+	/**
+	 * Scans and inserts through an off-heap pool much smaller than the table
+	 * see every tuple, and never use more frames than the pool holds.
+	 */
+	@Test public void scanAndInsertOffHeap() throws Exception {
+		BufferPool pool = Database.resetBufferPool(16, PageReplacement.LRU, true);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		assertTrue(table.numPages() > 16);
+
+		TransactionId reader = new TransactionId();
+		for (int i = 0; i < table.numPages(); i++) {
+			pool.getPage(reader, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+			assertTrue(pool.getArena().getUsedFrames() <= 16);
+		}
+		assertTrue(pool.getArena().getUsedFrames() > 0);
+		SystemTestUtil.matchTuples(table, tuples);
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 500; i++) {
+			pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{-i, i}));
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			row.add(-i);
+			row.add(i);
+			tuples.add(row);
+		}
+		pool.flushPages(tid);
+		pool.transactionComplete(tid);
+		SystemTestUtil.matchTuples(table, tuples);
+
+		Database.resetBufferPool(16, PageReplacement.LRU, true);
+		SystemTestUtil.matchTuples(table, tuples);
+	}
+
+	/**
+	 * A page that is still in use after it was evicted keeps its contents,
+	 * even though its frame has been given to another page.
+	 */
+	@Test public void evictedPageIsDetached() throws Exception {
+		BufferPool pool = Database.resetBufferPool(8, PageReplacement.LRU, true);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+		TransactionId tid = new TransactionId();
+		HeapPage first = (HeapPage) pool.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+		Iterator<Tuple> held = first.iterator();
+
+		for (int i = 1; i < table.numPages(); i++) {
+			pool.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+		}
+		assertNull(pool.peekPage(first.getId(), null));
+
+		for (int row = 0; held.hasNext(); row++) {
+			assertEquals(tuples.get(row), SystemTestUtil.tupleToList(held.next()));
+		}
+	}
+
+	/**
+	 * Threads decoding tuples of pages that other threads keep evicting read
+	 * the contents of their own page, never those of a page read into the
+	 * frame afterwards, and every frame is given back once.
+	 */
+	@Test public void concurrentEvictWhileDecoding() throws Exception {
+		final BufferPool pool = Database.resetBufferPool(8, PageReplacement.LRU, true);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 20000; i++) {
+			ArrayList<Integer> tuple = new ArrayList<Integer>();
+			tuple.add(i);
+			tuple.add(i * 31 + 7);
+			tuples.add(tuple);
+		}
+		File f = File.createTempFile("arena", ".dat");
+		f.deleteOnExit();
+		FreeSpaceMap.fileFor(f).deleteOnExit();
+		ZoneMap.fileFor(f).deleteOnExit();
+		HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+		final HeapFile table = Utility.openHeapFile(2, f);
+		assertTrue(table.numPages() > 8);
+
+		final AtomicInteger decoded = new AtomicInteger();
+		final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int k = 0; k < threads.length; k++) {
+			final int start = k;
+			threads[k] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						TransactionId tid = new TransactionId();
+						for (int round = 0; round < 10; round++) {
+							for (int i = 0; i < table.numPages(); i++) {
+								int pageNo = (i + start * 7) % table.numPages();
+								HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(table.getId(), pageNo),
+										Permissions.READ_ONLY);
+								for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+									Tuple t = it.next();
+									int key = ((IntField) t.getField(0)).getValue();
+									assertEquals(key * 31 + 7, ((IntField) t.getField(1)).getValue());
+									decoded.incrementAndGet();
+								}
+							}
+						}
+						pool.transactionComplete(tid);
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[k].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!errors.isEmpty()) {
+			throw new AssertionError(errors.get(0));
+		}
+		assertEquals(threads.length * 10 * tuples.size(), decoded.get());
+		assertTrue(pool.getArena().getUsedFrames() <= pool.getNumCachedPages());
+	}
+
+	/** GC counters summed over all collectors. */
+	private static long[] gcTotals() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[]{count, millis};
+	}
+
+	/** The longest last-collection duration reported by any collector. */
+	private static long lastPauseMillis() {
+		long max = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc instanceof com.sun.management.GarbageCollectorMXBean) {
+				com.sun.management.GcInfo info = ((com.sun.management.GarbageCollectorMXBean) gc).getLastGcInfo();
+				if (info != null) {
+					max = Math.max(max, info.getDuration());
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Runs scans and inserts against a fully cached table, then prints the heap
+	 * retained by the cached pages and the GC activity during the run.
+	 *
+	 * @return the heap retained by the cached pages, in bytes
+	 */
+	private long soak(boolean offHeap, long millis) throws Exception {
+		Database.reset();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 100000, null, null);
+		BufferPool pool = Database.resetBufferPool(table.numPages() * 2, PageReplacement.LRU, offHeap);
+		long before = SystemTestUtil.getMemoryFootprint();
+		long rows = scan(table);
+		long retained = SystemTestUtil.getMemoryFootprint() - before;
+
+		long[] gcStart = gcTotals();
+		long maxPause = 0;
+		long scanned = 0;
+		int inserted = 0;
+		long begin = System.currentTimeMillis();
+		while (System.currentTimeMillis() - begin < millis) {
+			scanned += scan(table);
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < 100; i++) {
+				pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{i, inserted}));
+				inserted++;
+			}
+			pool.flushPages(tid);
+			pool.transactionComplete(tid);
+			maxPause = Math.max(maxPause, lastPauseMillis());
+		}
+		long elapsed = System.currentTimeMillis() - begin;
+		long[] gcEnd = gcTotals();
+		assertEquals(rows + inserted, scan(table));
+
+		System.out.println(String.format(
+				"%-8s pool: %6d KB heap retained by %d cached pages, %8.0f rows scanned/s, %d inserts, "
+						+ "%d GCs, %d ms in GC, longest observed pause %d ms",
+				offHeap ? "off-heap" : "heap", retained / 1024, pool.getNumCachedPages(),
+				scanned * 1000.0 / Math.max(1, elapsed), inserted,
+				gcEnd[0] - gcStart[0], gcEnd[1] - gcStart[1], maxPause));
+		return retained;
+	}
+
+	private static long scan(HeapFile table) throws Exception {
+		DbFileIterator it = table.iterator(new TransactionId());
+		it.open();
+		long count = 0;
+		long sum = 0;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			sum += ((IntField) t.getField(0)).getValue() + ((IntField) t.getField(1)).getValue();
+			count++;
+		}
+		it.close();
+		assertTrue(sum != Long.MIN_VALUE);
+		return count;
+	}
+
+	/**
+	 * Soak test comparing a heap pool with an off-heap pool. The duration of
+	 * each run defaults to three seconds and can be raised with the
+	 * simpledb.soak.seconds system property.
+	 */
+	@Test public void soakTest() throws Exception {
+		long millis = 1000L * Integer.getInteger("simpledb.soak.seconds", 3);
+		long heap = soak(false, millis);
+		long offHeap = soak(true, millis);
+		assertTrue(offHeap < heap);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PageArenaTest.class);
+	}
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+
+	private static final int PAGES = 40;
+
+	/** Counts the pages written to disk. */
+	private static class WriteCountingHeapFile extends HeapFile {
+		final AtomicInteger writeCount = new AtomicInteger();
+		final Set<PageId> written = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+
+		WriteCountingHeapFile(File f, TupleDesc td) {
+			super(f, td);
+		}
+
+		@Override
+		public void writePage(Page page) throws IOException {
+			writeCount.incrementAndGet();
+			written.add(page.getId());
+			super.writePage(page);
+		}
+	}
+
+	private WriteCountingHeapFile table;
+	private BufferPool bp;
+	private TransactionId committed;
+	private TransactionId running;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * PAGES * 2, 1000, null,
+				new ArrayList<ArrayList<Integer>>());
+		table = new WriteCountingHeapFile(f, Utility.getTupleDesc(1));
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		bp = Database.resetBufferPool(PAGES);
+
+		// fill the pool with the first half of the table; dirty pages 0-9 by a
+		// committed transaction and pages 10-19 by a running one
+		committed = new TransactionId();
+		running = new TransactionId();
+		for (int i = 0; i < PAGES; i++) {
+			Page p = bp.getPage(committed, new HeapPageId(table.getId(), i), Permissions.READ_WRITE);
+			if (i < 10) {
+				p.markDirty(true, committed);
+			} else if (i < 20) {
+				p.markDirty(true, running);
+			}
+		}
+		bp.transactionComplete(committed, true);
+	}
+
+	@After public void tearDown() {
+		bp.stopPageCleaner();
+	}
+
+	/**
+	 * Read the second half of the table, evicting most pages read in setUp, then
+	 * flush whatever is still dirty.
+	 */
+	@SuppressWarnings("deprecation")
+	private void evictAll() throws Exception {
+		for (int i = PAGES; i < PAGES * 2; i++) {
+			bp.getPage(committed, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+		}
+		bp.flushAllPages();
+	}
+
+	/**
+	 * One pass writes only committed dirty pages from the cold end, and every
+	 * dirty page is still written exactly once overall.
+	 */
+	@Test public void cleansCommittedPagesAtColdEnd() throws Exception {
+		PageCleaner cleaner = new PageCleaner(bp, 1000);
+		int written = cleaner.cleanOnce();
+		assertTrue(written > 0);
+		assertEquals(written, cleaner.getBacklog());
+		for (PageId pid : table.written) {
+			assertTrue(pid.pageNumber() < 10);
+		}
+		for (int i = 10; i < 20; i++) {
+			HeapPageId pid = new HeapPageId(table.getId(), i);
+			assertEquals(running, bp.getPage(running, pid, Permissions.READ_ONLY).isDirty());
+		}
+
+		evictAll();
+		assertEquals(20, table.writeCount.get());
+		assertTrue(bp.getEvictionWrites() <= 20 - written);
+	}
+
+	/**
+	 * Pages of a transaction that has not committed are left to the eviction path.
+	 */
+	@Test public void skipsRunningTransactions() throws Exception {
+		PageCleaner cleaner = new PageCleaner(bp, 1000);
+		while (cleaner.cleanOnce() > 0) {
+		}
+		int cleaned = table.writeCount.get();
+		assertTrue(cleaned <= 10);
+		evictAll();
+		assertEquals(20, table.writeCount.get());
+	}
+
+	/**
+	 * The background thread makes progress on its own and reports its metrics.
+	 */
+	@Test public void backgroundThread() throws Exception {
+		PageCleaner cleaner = bp.startPageCleaner(1);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cleaner.getPagesWritten() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(cleaner.getPagesWritten() > 0);
+		assertTrue(cleaner.getWriteRate() > 0);
+		bp.stopPageCleaner();
+		assertNull(bp.getPageCleaner());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PageCleanerTest.class);
+	}
+}
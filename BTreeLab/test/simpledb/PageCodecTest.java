@@ -0,0 +1,200 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class PageCodecTest extends SimpleDbTestBase {
+
+	@Before public void addTable() throws Exception {
+		Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+	}
+
+	private static ByteBuffer direct(byte[] data) {
+		ByteBuffer buf = ByteBuffer.allocateDirect(data.length + 16);
+		buf.position(16);
+		buf.put(data);
+		buf.position(16);
+		return buf;
+	}
+
+	/**
+	 * Leaf pages encode to the bytes they were decoded from, whether the bytes
+	 * come from an array or from a direct buffer.
+	 */
+	@Test public void leafPageRoundTrip() throws Exception {
+		BTreePageId pid = new BTreePageId(-1, 2, BTreePageId.LEAF);
+		BTreeLeafPage page = BTreeUtility.createRandomLeafPage(pid, 2, 0, 100, 0, 10000);
+		page.setParentId(new BTreePageId(-1, 7, BTreePageId.INTERNAL));
+		page.setRightSiblingId(new BTreePageId(-1, 3, BTreePageId.LEAF));
+		byte[] data = page.getPageData();
+		assertEquals(BufferPool.getPageSize(), data.length);
+
+		BTreeLeafPage decoded = new BTreeLeafPage(pid, direct(data), 0);
+		assertArrayEquals(data, decoded.getPageData());
+		assertArrayEquals(data, decoded.getBeforeImage().getPageData());
+		assertEquals(page.getParentId(), decoded.getParentId());
+		assertEquals(page.getRightSiblingId(), decoded.getRightSiblingId());
+		assertNull(decoded.getLeftSiblingId());
+		assertEquals(page.getNumTuples(), decoded.getNumTuples());
+		Iterator<Tuple> expected = page.iterator();
+		for (Iterator<Tuple> it = decoded.iterator(); it.hasNext(); ) {
+			Tuple t = it.next();
+			assertEquals(expected.next().getRecordId(), t.getRecordId());
+		}
+		assertFalse(expected.hasNext());
+	}
+
+	/**
+	 * Internal pages keep their keys, child pointers and child category.
+	 */
+	@Test public void internalPageRoundTrip() throws Exception {
+		BTreePageId pid = new BTreePageId(-1, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = BTreeUtility.createRandomInternalPage(pid, 0, BTreePageId.LEAF, 200, 0, 10000, 2);
+		byte[] data = page.getPageData();
+
+		BTreeInternalPage decoded = new BTreeInternalPage(pid, direct(data), 0);
+		assertArrayEquals(data, decoded.getPageData());
+		assertArrayEquals(data, decoded.getBeforeImage().getPageData());
+		assertEquals(page.getNumEntries(), decoded.getNumEntries());
+		Iterator<BTreeEntry> expected = page.iterator();
+		for (Iterator<BTreeEntry> it = decoded.iterator(); it.hasNext(); ) {
+			BTreeEntry e = it.next();
+			BTreeEntry x = expected.next();
+			assertEquals(x.getKey(), e.getKey());
+			assertEquals(x.getLeftChild(), e.getLeftChild());
+			assertEquals(x.getRightChild(), e.getRightChild());
+		}
+		assertFalse(expected.hasNext());
+	}
+
+	/**
+	 * Heap pages with string fields encode the length prefix, the characters
+	 * and the zero padding of each string.
+	 */
+	@Test public void heapPageStrings() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+		File f = File.createTempFile("codec", ".dat");
+		f.deleteOnExit();
+		HeapFile table = new HeapFile(f, td);
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+		HeapPageId pid = new HeapPageId(table.getId(), 0);
+		HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+		for (int i = 0; i < 20; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new IntField(i));
+			t.setField(1, new StringField("value-" + i, Type.STRING_LEN));
+			page.insertTuple(t);
+		}
+		byte[] data = page.getPageData();
+
+		HeapPage decoded = new HeapPage(pid, direct(data));
+		assertArrayEquals(data, decoded.getPageData());
+		int i = 0;
+		for (Iterator<Tuple> it = decoded.iterator(); it.hasNext(); i++) {
+			Tuple t = it.next();
+			assertEquals(new IntField(i), t.getField(0));
+			assertEquals("value-" + i, ((StringField) t.getField(1)).getValue());
+		}
+		assertEquals(20, i);
+		assertArrayEquals(data, decoded.getPageData());
+	}
+
+	private static final int OPS = 20000;
+
+	private interface Codec {
+		void run() throws Exception;
+	}
+
+	private static void time(String label, Codec codec) throws Exception {
+		for (int i = 0; i < OPS; i++) {
+			codec.run();
+		}
+		long begin = System.nanoTime();
+		for (int i = 0; i < OPS; i++) {
+			codec.run();
+		}
+		long elapsed = System.nanoTime() - begin;
+		System.out.println(String.format("%-24s %8.0f ns/page", label, (double) elapsed / OPS));
+	}
+
+	/**
+	 * Prints the time to decode and encode a full page of each type. Decoding
+	 * a heap page includes reading every field, so that it does the same work
+	 * as the eager B+ tree pages.
+	 */
+	@Test public void codecBenchmark() throws Exception {
+		final BTreePageId leafId = new BTreePageId(-1, 2, BTreePageId.LEAF);
+		final BTreeLeafPage leaf = BTreeUtility.createRandomLeafPage(leafId, 2, 0, 0, 10000);
+		final byte[] leafData = leaf.getPageData();
+		final BTreePageId internalId = new BTreePageId(-1, 1, BTreePageId.INTERNAL);
+		final BTreeInternalPage internal = BTreeUtility.createRandomInternalPage(internalId, 0, BTreePageId.LEAF, 0, 10000, 2);
+		final byte[] internalData = internal.getPageData();
+
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+		final HeapPageId heapId = new HeapPageId(table.getId(), 0);
+		final HeapPage heap = (HeapPage) table.readPage(heapId);
+		final int fields = 2;
+		for (Iterator<Tuple> it = heap.iterator(); it.hasNext(); ) {
+			Tuple t = it.next();
+			for (int j = 0; j < fields; j++) {
+				t.getField(j);
+			}
+		}
+		final byte[] heapData = heap.getPageData();
+
+		time("BTreeLeafPage decode", new Codec() {
+			public void run() throws Exception {
+				new BTreeLeafPage(leafId, leafData, 0);
+			}
+		});
+		time("BTreeLeafPage encode", new Codec() {
+			public void run() {
+				leaf.getPageData();
+			}
+		});
+		time("BTreeInternalPage decode", new Codec() {
+			public void run() throws Exception {
+				new BTreeInternalPage(internalId, internalData, 0);
+			}
+		});
+		time("BTreeInternalPage encode", new Codec() {
+			public void run() {
+				internal.getPageData();
+			}
+		});
+		time("HeapPage decode", new Codec() {
+			public void run() throws Exception {
+				for (Iterator<Tuple> it = new HeapPage(heapId, heapData).iterator(); it.hasNext(); ) {
+					Tuple t = it.next();
+					for (int j = 0; j < fields; j++) {
+						t.getField(j);
+					}
+				}
+			}
+		});
+		time("HeapPage encode", new Codec() {
+			public void run() {
+				heap.getPageData();
+			}
+		});
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PageCodecTest.class);
+	}
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class PrefetchTest extends SimpleDbTestBase {
+
+	private static final int DEPTH = 4;
+
+	/** Remembers every page read, so that a page read twice can be detected. */
+	private static class ReadLog {
+		final AtomicInteger reads = new AtomicInteger();
+		final Set<PageId> pages = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+
+		void record(PageId pid) {
+			reads.incrementAndGet();
+			pages.add(pid);
+		}
+	}
+
+	private static class LoggingHeapFile extends HeapFile {
+		final ReadLog log = new ReadLog();
+
+		LoggingHeapFile(File f, TupleDesc td) {
+			super(f, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			log.record(pid);
+			return super.readPage(pid);
+		}
+	}
+
+	private static class LoggingBTreeFile extends BTreeFile {
+		final ReadLog log = new ReadLog();
+
+		LoggingBTreeFile(File f, int key, TupleDesc td) {
+			super(f, key, td);
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			log.record(pid);
+			return super.readPage(pid);
+		}
+	}
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		BufferPool.setPrefetchDepth(DEPTH);
+	}
+
+	@After public void tearDown() {
+		BufferPool.setPrefetchDepth(0);
+	}
+
+	private int scan(DbFile f) throws Exception {
+		DbFileIterator it = f.iterator(new TransactionId());
+		it.open();
+		int count = 0;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	/**
+	 * A heap file scan with read-ahead returns every tuple, reads each page once,
+	 * and finds most pages already read by the background threads.
+	 */
+	@Test public void heapScan() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(2, 20000, 1000, null, tuples);
+		LoggingHeapFile table = new LoggingHeapFile(f, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		BufferPool bp = Database.resetBufferPool(table.numPages() * 2);
+
+		assertEquals(tuples.size(), scan(table));
+		assertEquals(table.numPages(), table.log.reads.get());
+		assertEquals(table.numPages(), table.log.pages.size());
+		assertTrue(bp.getPrefetchIssued() > 0);
+		assertTrue(bp.getPrefetchHits() > 0);
+	}
+
+	/**
+	 * A scan larger than the pool reads through a ring; read-ahead must stay inside it,
+	 * so no page is read twice and the shared pool keeps its capacity.
+	 */
+	@Test public void heapScanThroughRing() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		File f = SystemTestUtil.createRandomHeapFileUnopened(2, 20000, 1000, null, tuples);
+		LoggingHeapFile table = new LoggingHeapFile(f, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		BufferPool bp = Database.resetBufferPool(table.numPages() / 4);
+
+		assertEquals(tuples.size(), scan(table));
+		assertEquals(table.numPages(), table.log.pages.size());
+		assertEquals(table.numPages(), table.log.reads.get());
+		assertTrue(bp.getNumCachedPages() <= table.numPages() / 4);
+	}
+
+	/**
+	 * A B+ tree scan prefetches the right siblings of the leaves.
+	 */
+	@Test public void btreeScan() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile created = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+		LoggingBTreeFile index = new LoggingBTreeFile(created.getFile(), 0, created.getTupleDesc());
+		Database.getCatalog().addTable(index, SystemTestUtil.getUUID());
+		BufferPool bp = Database.resetBufferPool(1000);
+
+		assertEquals(tuples.size(), scan(index));
+		assertEquals(index.log.pages.size(), index.log.reads.get());
+		assertTrue(bp.getPrefetchHits() > 0);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PrefetchTest.class);
+	}
+}
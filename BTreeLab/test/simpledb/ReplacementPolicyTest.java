@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest {
+
+	/**
+	 * Drives a policy the way a single BufferPool segment does, and counts misses.
+	 */
+	private static class SimulatedCache {
+		final ReplacementPolicy<Integer> policy;
+		final HashSet<Integer> resident = new HashSet<Integer>();
+		final int capacity;
+		int misses = 0;
+
+		SimulatedCache(PageReplacement replacement, int capacity) {
+			this.policy = replacement.create(capacity);
+			this.capacity = capacity;
+		}
+
+		void access(int key) {
+			if (resident.contains(key)) {
+				policy.recordAccess(key);
+				return;
+			}
+			misses++;
+			if (resident.size() >= capacity) {
+				Integer victim = policy.evict();
+				assertNotNull(victim);
+				assertTrue("evicted a page that is not resident", resident.remove(victim));
+			}
+			resident.add(key);
+			policy.recordInsert(key);
+			assertEquals(resident.size(), policy.size());
+		}
+	}
+
+	/**
+	 * Unit test for the plain LRU policy
+	 */
+	@Test public void lruOrder() {
+		ReplacementPolicy<Integer> lru = PageReplacement.LRU.create(3);
+		lru.recordInsert(1);
+		lru.recordInsert(2);
+		lru.recordInsert(3);
+		lru.recordAccess(1);
+		assertEquals(Integer.valueOf(2), lru.evict());
+		assertEquals(Integer.valueOf(3), lru.evict());
+		assertEquals(Integer.valueOf(1), lru.evict());
+		assertNull(lru.evict());
+	}
+
+	/**
+	 * Every policy only ever evicts resident keys and keeps its size in step
+	 * with the cache, under a random mix of accesses and removals.
+	 */
+	@Test public void randomWorkload() {
+		for (PageReplacement replacement : PageReplacement.values()) {
+			Random rand = new Random(42);
+			SimulatedCache cache = new SimulatedCache(replacement, 32);
+			for (int i = 0; i < 50000; i++) {
+				int key = rand.nextInt(200);
+				if (rand.nextInt(20) == 0 && cache.resident.remove(key)) {
+					cache.policy.remove(key);
+					assertEquals(cache.resident.size(), cache.policy.size());
+				} else {
+					cache.access(key);
+				}
+			}
+			while (!cache.resident.isEmpty()) {
+				assertTrue(cache.resident.remove(cache.policy.evict()));
+			}
+			assertNull(replacement.toString(), cache.policy.evict());
+			assertEquals(0, cache.policy.size());
+		}
+	}
+
+	/**
+	 * Warms a hot set up, runs one scan over many more pages than fit in the cache,
+	 * and returns how many of the hot pages missed afterwards.
+	 */
+	private int hotMissesAfterScan(PageReplacement replacement) {
+		final int capacity = 100;
+		final int hot = 20;
+		SimulatedCache cache = new SimulatedCache(replacement, capacity);
+		Random rand = new Random(7);
+		int cold = 1000;
+		for (int round = 0; round < 20; round++) {
+			for (int k = 0; k < hot; k++) {
+				cache.access(k);
+			}
+			for (int k = 0; k < 30; k++) {
+				cache.access(cold + rand.nextInt(10000));
+			}
+		}
+		for (int k = 0; k < 10 * capacity; k++) {
+			cache.access(100000 + k);
+		}
+		cache.misses = 0;
+		for (int k = 0; k < hot; k++) {
+			cache.access(k);
+		}
+		return cache.misses;
+	}
+
+	/**
+	 * A single large scan flushes the hot pages out of LRU but not out of the
+	 * scan resistant policies.
+	 */
+	@Test public void scanResistance() {
+		assertEquals(20, hotMissesAfterScan(PageReplacement.LRU));
+		assertEquals(0, hotMissesAfterScan(PageReplacement.TWO_Q));
+		assertEquals(0, hotMissesAfterScan(PageReplacement.CLOCK_PRO));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+	}
+}
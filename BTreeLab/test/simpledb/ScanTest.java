@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Before;
 import org.junit.Test;
 import simpledb.*;
@@ -100,6 +102,122 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that a scan over a table larger than the buffer pool goes through
+     * a private ring and leaves the pages of other tables cached.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testLargeScanKeepsWorkingSet() throws IOException, DbException, TransactionAbortedException {
+        /** Counts the number of readPage operations. */
+        class InstrumentedHeapFile extends HeapFile {
+            public InstrumentedHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                readCount += 1;
+                return super.readPage(pid);
+            }
+
+            public int readCount = 0;
+        }
+
+        final int SMALL_PAGES = 10;
+        final int LARGE_PAGES = 4 * BufferPool.DEFAULT_PAGES;
+        ArrayList<ArrayList<Integer>> smallTuples = new ArrayList<ArrayList<Integer>>();
+        File small = SystemTestUtil.createRandomHeapFileUnopened(1, 992*SMALL_PAGES, 1000, null, smallTuples);
+        InstrumentedHeapFile smallTable = new InstrumentedHeapFile(small, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(smallTable, SystemTestUtil.getUUID());
+        ArrayList<ArrayList<Integer>> largeTuples = new ArrayList<ArrayList<Integer>>();
+        File large = SystemTestUtil.createRandomHeapFileUnopened(1, 992*LARGE_PAGES, 1000, null, largeTuples);
+        InstrumentedHeapFile largeTable = new InstrumentedHeapFile(large, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(largeTable, SystemTestUtil.getUUID());
+
+        // the small table is cached by the shared pool
+        SystemTestUtil.matchTuples(smallTable, smallTuples);
+        assertEquals(SMALL_PAGES, smallTable.readCount);
+        smallTable.readCount = 0;
+
+        // the large table is read through the ring, every scan reads every page
+        SystemTestUtil.matchTuples(largeTable, largeTuples);
+        SystemTestUtil.matchTuples(largeTable, largeTuples);
+        assertEquals(2 * LARGE_PAGES, largeTable.readCount);
+
+        // and did not push the small table out of the pool
+        SystemTestUtil.matchTuples(smallTable, smallTuples);
+        assertEquals(0, smallTable.readCount);
+    }
+
+    /** Verifies that while a page is read into a ring, another transaction
+     * cannot load it into the shared pool, and that the shared copy is
+     * served once it is there.
+     * @throws Exception */
+    @Test public void testRingReadExcludesSharedLoad() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        /** Blocks the first readPage until released. */
+        class BlockingHeapFile extends HeapFile {
+            private final AtomicBoolean first = new AtomicBoolean(true);
+
+            public BlockingHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) throws NoSuchElementException {
+                if (first.compareAndSet(true, false)) {
+                    reading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.readPage(pid);
+            }
+        }
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1000, 1000, null, null);
+        BlockingHeapFile table = new BlockingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        final BufferPool pool = Database.getBufferPool();
+        final BufferAccessStrategy strategy = new BufferAccessStrategy(4);
+        final PageId pid = new HeapPageId(table.getId(), 0);
+        final Page[] pages = new Page[2];
+        Thread scanner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pages[0] = pool.getPage(new TransactionId(), pid, Permissions.READ_ONLY, strategy);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pages[1] = pool.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        scanner.start();
+        reading.await();
+        loader.start();
+        loader.join(200);
+        // the loader waits until the page is in the ring
+        assertTrue(loader.isAlive());
+        release.countDown();
+        scanner.join();
+        loader.join();
+        assertNotNull(pages[0]);
+        assertNotNull(pages[1]);
+        assertSame(pages[1], pool.getPage(new TransactionId(), pid, Permissions.READ_ONLY, strategy));
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
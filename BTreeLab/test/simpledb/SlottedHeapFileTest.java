@@ -0,0 +1,267 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+
+	/** The IMDB sample shipped with project 3, relative to this project. */
+	private static final File IMDB = new File("../3/CS186-proj3-supplement/CS186-proj3/sample-0.001/0.001");
+
+	private TupleDesc td;
+
+	@Before public void setUpTable() throws Exception {
+		td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "name"});
+	}
+
+	private Tuple tuple(int id, String name) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new IntField(id));
+		t.setField(1, new StringField(name, Type.STRING_LEN));
+		return t;
+	}
+
+	private static String name(int i) {
+		char[] c = new char[1 + i % 23];
+		Arrays.fill(c, (char) ('a' + i % 26));
+		return new String(c);
+	}
+
+	/** Adds an empty slotted table with schema td to the catalog. */
+	private SlottedHeapFile emptyTable() throws Exception {
+		File f = File.createTempFile("slotted", ".dat");
+		f.deleteOnExit();
+		FreeSpaceMap.fileFor(f).deleteOnExit();
+		SlottedHeapFile table = new SlottedHeapFile(f, td);
+		Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+		return table;
+	}
+
+	private static List<String> rows(DbFile table) throws Exception {
+		ArrayList<String> rows = new ArrayList<String>();
+		DbFileIterator it = table.iterator(new TransactionId());
+		it.open();
+		while (it.hasNext()) {
+			rows.add(it.next().toString());
+		}
+		it.close();
+		return rows;
+	}
+
+	/**
+	 * Records only take the bytes of their strings, deletes leave the other
+	 * RecordIds alone, and an insert that needs the holes compacts the page.
+	 */
+	@Test public void pageInsertDeleteCompact() throws Exception {
+		SlottedHeapFile table = emptyTable();
+		HeapPageId pid = new HeapPageId(table.getId(), 0);
+		SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+		int free = page.getFreeBytes();
+
+		Tuple first = tuple(1, "ab");
+		page.insertTuple(first);
+		// 4 byte int, 1 length byte, 2 characters and a 4 byte slot entry
+		assertEquals(free - 11, page.getFreeBytes());
+
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		inserted.add(first);
+		for (int i = 2; page.fits(tuple(i, name(i))); i++) {
+			Tuple t = tuple(i, name(i));
+			page.insertTuple(t);
+			inserted.add(t);
+		}
+		assertTrue(inserted.size() > BufferPool.getPageSize() / td.getSize() * 3);
+
+		// free every other record, then insert one that only fits into the holes together
+		int freed = 0;
+		for (int i = 0; i < inserted.size(); i += 2) {
+			page.deleteTuple(inserted.get(i));
+			freed += SlottedHeapPage.recordSize(inserted.get(i));
+		}
+		Tuple big = tuple(-1, new String(new char[Math.min(Type.STRING_LEN, freed - 8)]).replace('\0', 'z'));
+		assertTrue(page.fits(big));
+		page.insertTuple(big);
+		assertEquals(0, big.getRecordId().tupleno());
+
+		SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+		HashMap<Integer, String> bySlot = new HashMap<Integer, String>();
+		for (Iterator<Tuple> it = copy.iterator(); it.hasNext(); ) {
+			Tuple t = it.next();
+			bySlot.put(t.getRecordId().tupleno(), t.toString());
+		}
+		assertEquals(big.toString(), bySlot.get(0));
+		for (int i = 1; i < inserted.size(); i += 2) {
+			assertEquals(inserted.get(i).toString(), bySlot.get(i));
+		}
+		assertEquals(inserted.size() / 2 + 1, copy.getNumTuples());
+	}
+
+	/**
+	 * The encoder writes text input as slotted pages that scan back the same
+	 * rows, and a catalog line ending in "slotted" opens the table as such.
+	 */
+	@Test public void encoderAndCatalog() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "slotted" + System.nanoTime());
+		assertTrue(dir.mkdir());
+		File text = new File(dir, "People.txt");
+		File data = new File(dir, "People.dat");
+		File schema = new File(dir, "catalog.txt");
+		ArrayList<String> expected = new ArrayList<String>();
+		BufferedWriter w = new BufferedWriter(new FileWriter(text));
+		for (int i = 0; i < 3000; i++) {
+			w.write(i + "," + name(i) + "\n");
+			expected.add(tuple(i, name(i)).toString());
+		}
+		w.close();
+		w = new BufferedWriter(new FileWriter(schema));
+		w.write("People (id int pk, name string) slotted\n");
+		w.close();
+		HeapFileEncoder.convertSlotted(text, data, BufferPool.getPageSize(), 2,
+				new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, ',');
+
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		DbFile table = Database.getCatalog().getDbFile(Database.getCatalog().getTableId("People"));
+		assertTrue(table instanceof SlottedHeapFile);
+		assertEquals(data.length() / BufferPool.getPageSize(), table.numPages());
+		assertEquals(expected, rows(table));
+
+		Database.getCatalog().clear();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool survive flushing and
+	 * rereading the pages, and freed space is used again.
+	 */
+	@Test public void insertDeleteThroughBufferPool() throws Exception {
+		SlottedHeapFile table = emptyTable();
+		BufferPool bp = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < 5000; i++) {
+			Tuple t = tuple(i, name(i));
+			bp.insertTuple(tid, table.getId(), t);
+			tuples.add(t);
+		}
+		int pages = table.numPages();
+		for (int i = 0; i < tuples.size(); i += 3) {
+			bp.deleteTuple(tid, tuples.get(i));
+		}
+		for (int i = 0; i < tuples.size(); i += 3) {
+			bp.insertTuple(tid, table.getId(), tuple(-i - 1, name(i)));
+		}
+		assertEquals(pages, table.numPages());
+		bp.flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		int count = 0;
+		int negatives = 0;
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			int id = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(id < 0 || id % 3 != 0);
+			negatives += id < 0 ? 1 : 0;
+			count++;
+		}
+		assertEquals(tuples.size(), count);
+		assertEquals((tuples.size() + 2) / 3, negatives);
+	}
+
+	/**
+	 * Size and scan speed of the IMDB sample tables as HeapPages and as
+	 * slotted pages. Skipped when the sample is not next to this project.
+	 */
+	@Test public void imdbComparison() throws Exception {
+		Assume.assumeTrue(new File(IMDB, "imdb.schema").exists());
+		Database.getCatalog().loadSchema(new File(IMDB, "imdb.schema").getAbsolutePath());
+		long heapBytes = 0;
+		long slottedBytes = 0;
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); ) {
+			ids.add(it.next());
+		}
+		for (int id : ids) {
+			HeapFile heap = (HeapFile) Database.getCatalog().getDbFile(id);
+			String name = Database.getCatalog().getTableName(id);
+			List<Tuple> tuples = new ArrayList<Tuple>();
+			DbFileIterator it = heap.iterator(new TransactionId());
+			it.open();
+			while (it.hasNext()) {
+				tuples.add(it.next());
+			}
+			it.close();
+
+			File f = File.createTempFile(name, ".dat");
+			f.deleteOnExit();
+			HeapFileEncoder.convertSlotted(tuples.iterator(), f, BufferPool.getPageSize());
+			SlottedHeapFile slotted = new SlottedHeapFile(f, heap.getTupleDesc());
+			Database.getCatalog().addTable(slotted, name + "_slotted");
+
+			long heapNanos = timeScans(heap, tuples.size());
+			long slottedNanos = timeScans(slotted, tuples.size());
+			heapBytes += heap.getFile().length();
+			slottedBytes += f.length();
+			System.out.println(String.format(
+					"%-15s %6d rows: heap %4d pages %5.0f ns/row, slotted %4d pages %5.0f ns/row",
+					name, tuples.size(), heap.numPages(),
+					(double) heapNanos / Math.max(1, tuples.size()), slotted.numPages(),
+					(double) slottedNanos / Math.max(1, tuples.size())));
+		}
+		System.out.println(String.format("total: heap %d KB, slotted %d KB (%.0f%%)",
+				heapBytes / 1024, slottedBytes / 1024, 100.0 * slottedBytes / heapBytes));
+		assertTrue(slottedBytes < heapBytes / 2);
+	}
+
+	/**
+	 * Scans the table from disk (a fresh BufferPool each time) and returns the
+	 * best time of a few runs.
+	 */
+	private static long timeScans(DbFile table, int rows) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 5; run++) {
+			Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+			long begin = System.nanoTime();
+			DbFileIterator it = table.iterator(new TransactionId());
+			it.open();
+			int count = 0;
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+					t.getField(i);
+				}
+				count++;
+			}
+			it.close();
+			best = Math.min(best, System.nanoTime() - begin);
+			assertEquals(rows, count);
+		}
+		return best;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+	}
+}
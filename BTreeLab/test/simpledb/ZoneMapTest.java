@@ -0,0 +1,190 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+import static org.junit.Assert.*;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+	/** Rows (i, random) for i in [0, rows): column 0 is clustered, column 1 is not. */
+	private static HeapFile clusteredTable(int rows) throws Exception {
+		Random r = new Random(0);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < rows; i++) {
+			ArrayList<Integer> tuple = new ArrayList<Integer>();
+			tuple.add(i);
+			tuple.add(r.nextInt(rows));
+			tuples.add(tuple);
+		}
+		File f = File.createTempFile("zones", ".dat");
+		f.deleteOnExit();
+		FreeSpaceMap.fileFor(f).deleteOnExit();
+		ZoneMap.fileFor(f).deleteOnExit();
+		HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+		return Utility.openHeapFile(2, f);
+	}
+
+	private static long accesses(BufferPool pool) {
+		return pool.getHitCount() + pool.getMissCount();
+	}
+
+	private static int count(DbIterator it) throws Exception {
+		int n = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	private static Filter filter(HeapFile table, int column, Predicate.Op op, int value) {
+		return new Filter(new Predicate(column, op, new IntField(value)),
+				new SeqScan(new TransactionId(), table.getId()));
+	}
+
+	/**
+	 * The first scan learns the ranges of the pages; afterwards a selective
+	 * predicate on the clustered column only reads the pages that may match,
+	 * while every page may match one on the unclustered column.
+	 */
+	@Test public void skipsPagesOutsideRange() throws Exception {
+		HeapFile table = clusteredTable(50000);
+		int pages = table.numPages();
+		assertTrue(pages > 50);
+		assertFalse(ZoneMap.fileFor(table.getFile()).exists());
+		assertEquals(50000, count(new SeqScan(new TransactionId(), table.getId())));
+		ZoneMap zones = table.getZoneMap();
+		for (int i = 0; i < pages; i++) {
+			assertTrue(zones.isKnown(i));
+		}
+		assertEquals(0, zones.getMin(0, 0));
+
+		BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		long begin = System.nanoTime();
+		assertEquals(1000, count(filter(table, 0, Predicate.Op.LESS_THAN, 1000)));
+		long pruned = System.nanoTime() - begin;
+		assertTrue(accesses(pool) <= 3);
+
+		pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertEquals(1, count(filter(table, 0, Predicate.Op.EQUALS, 31337)));
+		assertEquals(1, accesses(pool));
+		assertEquals(0, count(filter(table, 0, Predicate.Op.GREATER_THAN_OR_EQ, 50000)));
+		assertEquals(1, accesses(pool));
+
+		pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		begin = System.nanoTime();
+		assertEquals(50000, count(filter(table, 1, Predicate.Op.LESS_THAN, 50000)));
+		long full = System.nanoTime() - begin;
+		assertEquals(pages, accesses(pool));
+		System.out.println(String.format("id < 1000 over %d pages: %.2f ms with zone maps, %.2f ms for a scan of every page",
+				pages, pruned / 1e6, full / 1e6));
+	}
+
+	/**
+	 * Inserted values widen the range of their page at once, and the range
+	 * written with the page is read back after reopening the table.
+	 */
+	@Test public void maintainedOnInsertAndPersisted() throws Exception {
+		HeapFile table = clusteredTable(5000);
+		count(new SeqScan(new TransactionId(), table.getId()));
+		BufferPool pool = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 10; i++) {
+			pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{1000000 + i, -1}));
+		}
+		assertEquals(10, count(filter(table, 0, Predicate.Op.GREATER_THAN_OR_EQ, 1000000)));
+		int last = table.numPages() - 1;
+		assertEquals(1000009, table.getZoneMap().getMax(last, 0));
+		assertEquals(-1, table.getZoneMap().getMin(last, 1));
+		pool.flushAllPages();
+		pool.transactionComplete(tid);
+		table.close();
+
+		HeapFile reopened = Utility.openHeapFile(2, table.getFile());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		assertTrue(reopened.getZoneMap().isKnown(last));
+		assertEquals(1000009, reopened.getZoneMap().getMax(last, 0));
+		assertEquals(10, count(filter(reopened, 0, Predicate.Op.GREATER_THAN_OR_EQ, 1000000)));
+		assertEquals(1, accesses(Database.getBufferPool()));
+	}
+
+	/**
+	 * Deletes leave the range as it was, and it narrows when the page is
+	 * written back.
+	 */
+	@Test public void narrowedWhenWritten() throws Exception {
+		HeapFile table = clusteredTable(100);
+		BufferPool pool = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		HeapPage page = (HeapPage) pool.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+		assertEquals(99, table.getZoneMap().getMax(0, 0));
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (java.util.Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+			tuples.add(it.next());
+		}
+		for (Tuple t : tuples) {
+			if (((IntField) t.getField(0)).getValue() >= 50) {
+				pool.deleteTuple(tid, t);
+			}
+		}
+		assertEquals(99, table.getZoneMap().getMax(0, 0));
+		pool.flushAllPages();
+		pool.transactionComplete(tid);
+		assertEquals(49, table.getZoneMap().getMax(0, 0));
+		assertEquals(0, count(filter(table, 0, Predicate.Op.GREATER_THAN, 49)));
+		assertEquals(50, count(filter(table, 0, Predicate.Op.LESS_THAN_OR_EQ, 49)));
+	}
+
+	/**
+	 * Writing a page back only records its entries; they reach the side files
+	 * when the maps are flushed. A map left stale by an exit before the flush
+	 * is thrown away when the table is opened again.
+	 */
+	@Test public void writtenInBatches() throws Exception {
+		HeapFile table = clusteredTable(5000);
+		File zmap = ZoneMap.fileFor(table.getFile());
+		File fsm = FreeSpaceMap.fileFor(table.getFile());
+		File marker = table.getZoneMap().getStaleMarker();
+		marker.deleteOnExit();
+		count(new SeqScan(new TransactionId(), table.getId()));
+		assertFalse(zmap.exists());
+		table.flushMaps();
+		assertTrue(zmap.exists());
+		long learned = zmap.length();
+
+		BufferPool pool = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 10; i++) {
+			pool.insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[]{1000000 + i, -1}));
+		}
+		int last = table.numPages() - 1;
+		pool.flushPages(tid);
+		assertFalse(fsm.exists());
+		assertEquals(learned, zmap.length());
+		assertTrue(marker.exists());
+
+		// the table is opened again without the entries of the written pages
+		HeapFile reopened = new HeapFile(table.getFile(), table.getTupleDesc());
+		assertFalse(reopened.getZoneMap().isKnown(last));
+		assertFalse(reopened.getZoneMap().isKnown(0));
+		assertFalse(marker.exists());
+		assertFalse(zmap.exists());
+		pool.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ZoneMapTest.class);
+	}
+}
@@ -0,0 +1,93 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+import static org.junit.Assert.*;
+
+/**
+ * Interleaves B+ tree point lookups with full scans of a heap file larger than
+ * the buffer pool, and compares the hit rate of the lookups under each page
+ * replacement policy. The scans go through the shared pool rather
+ * than a private ring (see {@link BufferAccessStrategy}), so that the
+ * policies themselves have to keep the scanned pages from flushing the hot
+ * set of the lookups.
+ */
+public class ScanResistanceTest extends SimpleDbTestBase {
+
+	private static final int POOL_PAGES = 150;
+	private static final int SCANS = 20;
+	// one lookup every this many scanned tuples
+	private static final int STRIDE = 2000;
+
+	@Before public void disableRing() {
+		BufferAccessStrategy.setScanThreshold(Double.POSITIVE_INFINITY);
+	}
+
+	@After public void restoreRing() {
+		BufferAccessStrategy.resetScanThreshold();
+	}
+
+	@Test public void hitRatePerPolicy() throws Exception {
+		ArrayList<ArrayList<Integer>> btreeTuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile btree = BTreeUtility.createRandomBTreeFile(2, 20000, null, btreeTuples, 0);
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 150000, null, null);
+		Database.getCatalog().addTable(heap, "scanned");
+
+		// a small hot set of keys the lookups keep coming back to
+		Random rand = new Random(1);
+		int[] hotKeys = new int[200];
+		for (int i = 0; i < hotKeys.length; i++) {
+			hotKeys[i] = btreeTuples.get(rand.nextInt(btreeTuples.size())).get(0);
+		}
+
+		EnumMap<PageReplacement, Double> hitRates = new EnumMap<PageReplacement, Double>(PageReplacement.class);
+		for (PageReplacement replacement : PageReplacement.values()) {
+			BufferPool bp = Database.resetBufferPool(POOL_PAGES, replacement);
+			TransactionId tid = new TransactionId();
+			long hits = 0;
+			long misses = 0;
+			long begin = System.nanoTime();
+			int lookups = 0;
+			for (int round = 0; round < SCANS; round++) {
+				SeqScan scan = new SeqScan(tid, heap.getId(), "s");
+				scan.open();
+				for (int n = 0; scan.hasNext(); n++) {
+					scan.next();
+					if (n % STRIDE != 0) {
+						continue;
+					}
+					// only the lookups are counted, the scan misses under every policy
+					long hitsBefore = bp.getHitCount();
+					long missesBefore = bp.getMissCount();
+					IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(hotKeys[rand.nextInt(hotKeys.length)]));
+					BTreeScan lookup = new BTreeScan(tid, btree.getId(), "b", ipred);
+					lookup.open();
+					assertTrue(lookup.hasNext());
+					lookup.close();
+					hits += bp.getHitCount() - hitsBefore;
+					misses += bp.getMissCount() - missesBefore;
+					lookups++;
+				}
+				scan.close();
+			}
+			long elapsed = System.nanoTime() - begin;
+			Database.getBufferPool().transactionComplete(tid);
+
+			double hitRate = (double) hits / (hits + misses);
+			hitRates.put(replacement, hitRate);
+			System.out.println(String.format("%-9s lookup hit rate %.3f, %d lookups alongside %d full scans in %d ms",
+					replacement, hitRate, lookups, SCANS, elapsed / 1000000));
+		}
+		assertTrue(hitRates.toString(), hitRates.get(PageReplacement.TWO_Q) > hitRates.get(PageReplacement.LRU));
+		assertTrue(hitRates.toString(), hitRates.get(PageReplacement.CLOCK_PRO) > hitRates.get(PageReplacement.LRU));
+	}
+}